@@ -0,0 +1,133 @@
+package org.jnode.driver.block;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.jnode.driver.Device;
+
+/**
+ * A block device which adds an {@link AsyncBlockDeviceAPI} to an underlying device. Asynchronous reads are run on a
+ * {@link BlockIoExecutor}, which bounds the number of requests in flight. Synchronous requests are passed straight
+ * through.
+ * <p>
+ * Batch reads issue every request at once, so for example NTFS reads of fragmented files keep up to the queue depth
+ * of data runs in flight. Asynchronous reads must not be issued from within an I/O thread of the same executor.
+ */
+public class AsyncBlockDevice extends FilterBlockDevice implements AsyncBlockDeviceAPI {
+
+    /**
+     * The executor to run reads on.
+     */
+    private final BlockIoExecutor executor;
+
+    /**
+     * Whether the executor was created by, and should be closed by, this device.
+     */
+    private final boolean ownsExecutor;
+
+    /**
+     * Creates a new device with its own executor.
+     *
+     * @param parent the underlying device.
+     * @param threads the number of I/O threads.
+     * @param queueDepth the maximum number of requests in flight.
+     * @throws IOException if the underlying device does not have a {@link BlockDeviceAPI}.
+     */
+    public AsyncBlockDevice(Device parent, int threads, int queueDepth) throws IOException {
+        this(parent, new BlockIoExecutor("async-io-" + parent.getId(), threads, queueDepth), true);
+    }
+
+    /**
+     * Creates a new device using a shared executor, which is not closed with this device.
+     *
+     * @param parent the underlying device.
+     * @param executor the executor to run reads on.
+     * @throws IOException if the underlying device does not have a {@link BlockDeviceAPI}.
+     */
+    public AsyncBlockDevice(Device parent, BlockIoExecutor executor) throws IOException {
+        this(parent, executor, false);
+    }
+
+    private AsyncBlockDevice(Device parent, BlockIoExecutor executor, boolean ownsExecutor) throws IOException {
+        super("async-" + parent.getId(), parent);
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        registerAPI(AsyncBlockDeviceAPI.class, this);
+    }
+
+    /**
+     * Gets the executor reads are run on.
+     *
+     * @return the executor.
+     */
+    public BlockIoExecutor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public CompletableFuture<ByteBuffer> readAsync(final long devOffset, final ByteBuffer dest) {
+        return executor.submit(new BlockIoExecutor.IoOperation<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() throws IOException {
+                getParentApi().read(devOffset, dest);
+                return dest;
+            }
+        });
+    }
+
+    /**
+     * Reads a batch by issuing every request asynchronously and waiting for them all, so the whole batch is in flight
+     * at once.
+     *
+     * @param requests the requests.
+     * @throws IOException if any request fails.
+     */
+    @Override
+    public void readBatch(List<ReadRequest> requests) throws IOException {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[requests.size()];
+        for (int i = 0; i < futures.length; i++) {
+            ReadRequest request = requests.get(i);
+            futures[i] = readAsync(request.getDevOffset(), request.getDest());
+        }
+        await(CompletableFuture.allOf(futures));
+    }
+
+    /**
+     * Closes the executor if this device created it, then the underlying device.
+     *
+     * @throws IOException if an error occurs closing the underlying device.
+     */
+    @Override
+    public void close() throws IOException {
+        if (ownsExecutor) {
+            executor.close();
+        }
+        super.close();
+    }
+
+    /**
+     * Waits for an asynchronous read, unwrapping any I/O error.
+     *
+     * @param future the future to wait for.
+     * @param <T> the result type.
+     * @return the result.
+     * @throws IOException if the read failed or the thread was interrupted.
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for I/O");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Error reading from device", cause);
+        }
+    }
+}
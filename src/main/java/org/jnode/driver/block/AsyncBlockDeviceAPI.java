@@ -0,0 +1,21 @@
+package org.jnode.driver.block;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A block device API which can read asynchronously, so that callers can keep several requests in flight at once.
+ */
+public interface AsyncBlockDeviceAPI extends BlockDeviceAPI {
+
+    /**
+     * Reads a block of data asynchronously. The destination buffer must not be touched by the caller until the
+     * returned future completes.
+     *
+     * @param devOffset the offset to read from.
+     * @param dest the buffer to read into, from its position up to its limit.
+     * @return a future which completes with the destination buffer once the read is done, or completes exceptionally
+     * with the {@link java.io.IOException} if the read fails.
+     */
+    CompletableFuture<ByteBuffer> readAsync(long devOffset, ByteBuffer dest);
+}
@@ -22,6 +22,7 @@ package org.jnode.driver.block;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 import org.jnode.driver.DeviceAPI;
 
 /**
@@ -49,6 +50,19 @@ public interface BlockDeviceAPI extends DeviceAPI {
      */
     public abstract void read(long devOffset, ByteBuffer dest) throws IOException;
 
+    /**
+     * Read a batch of blocks of data. Devices which can do better than one read per request, e.g. by merging adjacent
+     * requests with a {@link ReadCoalescer}, override this. The default implementation reads each request in turn.
+     *
+     * @param requests the requests, in any order.
+     * @throws IOException
+     */
+    public default void readBatch(List<ReadRequest> requests) throws IOException {
+        for (ReadRequest request : requests) {
+            read(request.getDevOffset(), request.getDest());
+        }
+    }
+
     /**
      * Write a block of data
      *
@@ -0,0 +1,216 @@
+package org.jnode.driver.block;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded executor for block device I/O.
+ * <p>
+ * The queue depth is the maximum number of requests that may be in flight (queued or running) at once. When the queue
+ * is full callers block until a request completes, which applies back pressure instead of letting an unbounded
+ * backlog build up. Fast storage such as NVMe only reaches its full throughput at a high queue depth, so the number of
+ * threads should generally be the same as the queue depth.
+ * <p>
+ * An operation may submit further operations, e.g. a read from a device which reads ahead on the same executor. Those
+ * mustn't wait for a permit, since every permit could be held by operations doing the same: {@link #submit} runs them
+ * on the calling thread instead, and optional work such as read-ahead should use {@link #trySubmit}, which gives up
+ * when the queue is full.
+ */
+public class BlockIoExecutor implements Executor, Closeable {
+
+    /**
+     * The default queue depth.
+     */
+    public static final int DEFAULT_QUEUE_DEPTH = 32;
+
+    /**
+     * The threads doing the I/O.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The permits for requests in flight.
+     */
+    private final Semaphore permits;
+
+    /**
+     * The queue depth.
+     */
+    private final int queueDepth;
+
+    /**
+     * Set on the I/O threads while they run an operation.
+     */
+    private final ThreadLocal<Boolean> running = new ThreadLocal<Boolean>();
+
+    /**
+     * Creates a new executor with the default queue depth.
+     *
+     * @param name the name used for the I/O threads.
+     */
+    public BlockIoExecutor(String name) {
+        this(name, DEFAULT_QUEUE_DEPTH, DEFAULT_QUEUE_DEPTH);
+    }
+
+    /**
+     * Creates a new executor.
+     *
+     * @param name the name used for the I/O threads.
+     * @param threads the number of I/O threads.
+     * @param queueDepth the maximum number of requests in flight.
+     */
+    public BlockIoExecutor(String name, int threads, int queueDepth) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Invalid thread count: " + threads);
+        }
+        if (queueDepth < threads) {
+            throw new IllegalArgumentException("Queue depth must be at least the thread count: " + queueDepth);
+        }
+
+        this.queueDepth = queueDepth;
+        this.permits = new Semaphore(queueDepth);
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(queueDepth), new DaemonThreadFactory(name));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Gets the queue depth.
+     *
+     * @return the maximum number of requests in flight.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Gets the number of requests currently in flight.
+     *
+     * @return the count.
+     */
+    public int getInFlightCount() {
+        return queueDepth - permits.availablePermits();
+    }
+
+    /**
+     * Submits an I/O operation, blocking while the queue is full. An operation submitted by another operation on one
+     * of the I/O threads is run straight away on that thread instead.
+     *
+     * @param operation the operation.
+     * @param <T> the result type.
+     * @return a future for the result of the operation.
+     */
+    public <T> CompletableFuture<T> submit(final IoOperation<T> operation) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        if (running.get() != null) {
+            // Waiting for a permit here could mean waiting for this thread to release its own
+            try {
+                future.complete(operation.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+            return future;
+        }
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        dispatch(operation, future);
+        return future;
+    }
+
+    /**
+     * Submits an I/O operation if the queue isn't full, without blocking.
+     *
+     * @param operation the operation.
+     * @param <T> the result type.
+     * @return a future for the result of the operation, or {@code null} if the queue is full.
+     */
+    public <T> CompletableFuture<T> trySubmit(final IoOperation<T> operation) {
+        if (!permits.tryAcquire()) {
+            return null;
+        }
+
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        dispatch(operation, future);
+        return future;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        submit(new IoOperation<Void>() {
+            @Override
+            public Void call() {
+                command.run();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Runs an operation on the I/O threads, with a permit already held.
+     *
+     * @param operation the operation.
+     * @param future the future to complete with the result.
+     * @param <T> the result type.
+     */
+    private <T> void dispatch(final IoOperation<T> operation, final CompletableFuture<T> future) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    running.set(Boolean.TRUE);
+                    try {
+                        if (!future.isDone()) {
+                            future.complete(operation.call());
+                        }
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    } finally {
+                        running.remove();
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Shuts down the I/O threads. Requests already queued are still run.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * An I/O operation.
+     *
+     * @param <T> the result type.
+     */
+    public interface IoOperation<T> {
+        /**
+         * Performs the operation.
+         *
+         * @return the result.
+         * @throws IOException if an error occurs.
+         */
+        T call() throws IOException;
+    }
+}
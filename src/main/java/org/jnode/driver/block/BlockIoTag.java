@@ -0,0 +1,85 @@
+package org.jnode.driver.block;
+
+/**
+ * Tags the block device I/O done by the current thread with the subsystem that caused it, e.g. NTFS MFT reads. The
+ * tag is picked up by {@link InstrumentedBlockDevice} so that I/O statistics can be broken down by subsystem.
+ * <p>
+ * Tags are set around a unit of work and then restored, which nests correctly:
+ * <pre>
+ * String previousTag = BlockIoTag.set(BlockIoTag.NTFS_MFT);
+ * try {
+ *     ...
+ * } finally {
+ *     BlockIoTag.restore(previousTag);
+ * }
+ * </pre>
+ */
+public final class BlockIoTag {
+
+    /**
+     * The tag reported for I/O done without a tag.
+     */
+    public static final String UNTAGGED = "untagged";
+
+    /**
+     * NTFS master file table record reads.
+     */
+    public static final String NTFS_MFT = "ntfs-mft";
+
+    /**
+     * Ext2/3/4 block reads through the block cache.
+     */
+    public static final String EXT2_BLOCK = "ext2-block";
+
+    /**
+     * HFS+ catalog B-tree node reads.
+     */
+    public static final String HFSPLUS_CATALOG = "hfsplus-catalog";
+
+    /**
+     * exFAT structure reads.
+     */
+    public static final String EXFAT_METADATA = "exfat-metadata";
+
+    /**
+     * The current tag for each thread.
+     */
+    private static final ThreadLocal<String> currentTag = new ThreadLocal<String>();
+
+    private BlockIoTag() {
+    }
+
+    /**
+     * Gets the current thread's tag.
+     *
+     * @return the tag, or {@code null} if none is set.
+     */
+    public static String get() {
+        return currentTag.get();
+    }
+
+    /**
+     * Sets the current thread's tag.
+     *
+     * @param tag the new tag.
+     * @return the previous tag, which should be passed to {@link #restore(String)} when the work is done.
+     */
+    public static String set(String tag) {
+        String previous = currentTag.get();
+        currentTag.set(tag);
+        return previous;
+    }
+
+    /**
+     * Restores a tag returned from {@link #set(String)}.
+     *
+     * @param previous the previous tag.
+     */
+    public static void restore(String previous) {
+        if (previous == null) {
+            currentTag.remove();
+        } else {
+            currentTag.set(previous);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.jnode.driver.block;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jnode.driver.Device;
+
+/**
+ * A block device which caches reads from an underlying device in a {@link SharedPageCache}.
+ * <p>
+ * Several devices, e.g. all the volumes mounted from a set of images, can share a single cache and its byte budget.
+ * Reads are broken up into page aligned requests and runs of missing pages are fetched from the underlying device in
+ * a single read. Reads larger than {@link #getMaxCachedReadSize()} bypass the cache so that bulk file data doesn't
+ * push out hot metadata such as MFT records, FAT sectors and B-tree nodes. Writes go straight through to the
+ * underlying device and invalidate the cached pages they touch.
+ */
+public class CachingBlockDevice extends FilterBlockDevice {
+
+    /**
+     * The default size above which reads bypass the cache.
+     */
+    public static final int DEFAULT_MAX_CACHED_READ_SIZE = 64 * 1024;
+
+    /**
+     * The cache.
+     */
+    private final SharedPageCache cache;
+
+    /**
+     * The owner ID of this device in the cache.
+     */
+    private final long ownerId;
+
+    /**
+     * The size above which reads bypass the cache.
+     */
+    private final int maxCachedReadSize;
+
+    /**
+     * Incremented before and after each write. Readers that see the value change while they are populating the cache
+     * drop the pages they added, since the pages may contain stale data.
+     */
+    private final AtomicLong writeGeneration = new AtomicLong();
+
+    /**
+     * Creates a new caching device.
+     *
+     * @param parent the underlying device.
+     * @param cache the cache to use.
+     * @throws IOException if the underlying device does not have a {@link BlockDeviceAPI}.
+     */
+    public CachingBlockDevice(Device parent, SharedPageCache cache) throws IOException {
+        this(parent, cache, DEFAULT_MAX_CACHED_READ_SIZE);
+    }
+
+    /**
+     * Creates a new caching device.
+     *
+     * @param parent the underlying device.
+     * @param cache the cache to use.
+     * @param maxCachedReadSize the size above which reads bypass the cache.
+     * @throws IOException if the underlying device does not have a {@link BlockDeviceAPI}.
+     */
+    public CachingBlockDevice(Device parent, SharedPageCache cache, int maxCachedReadSize) throws IOException {
+        super("cached-" + parent.getId(), parent);
+        this.cache = cache;
+        this.ownerId = cache.register();
+        this.maxCachedReadSize = maxCachedReadSize;
+    }
+
+    /**
+     * Gets the cache.
+     *
+     * @return the cache.
+     */
+    public SharedPageCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Gets the size above which reads bypass the cache.
+     *
+     * @return the size in bytes.
+     */
+    public int getMaxCachedReadSize() {
+        return maxCachedReadSize;
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        if (dest.remaining() > maxCachedReadSize) {
+            getParentApi().read(devOffset, dest);
+            return;
+        }
+
+        int pageShift = cache.getPageShift();
+        long position = devOffset;
+
+        while (dest.hasRemaining()) {
+            long pageIndex = position >>> pageShift;
+            byte[] data = cache.get(ownerId, pageIndex);
+            long dataStart = pageIndex << pageShift;
+
+            if (data == null) {
+                long lastPage = (position + dest.remaining() - 1) >>> pageShift;
+                data = readPages(pageIndex, lastPage);
+            }
+
+            int dataOffset = (int) (position - dataStart);
+            int count = Math.min(dest.remaining(), data.length - dataOffset);
+            if (count <= 0) {
+                throw new IOException("Read past the end of the device: " + position);
+            }
+            dest.put(data, dataOffset, count);
+            position += count;
+        }
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        writeGeneration.incrementAndGet();
+        try {
+            getParentApi().write(devOffset, src);
+        } finally {
+            invalidate(devOffset, length);
+            writeGeneration.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes this device's pages from the cache and closes the underlying device.
+     *
+     * @throws IOException if an error occurs closing the underlying device.
+     */
+    @Override
+    public void close() throws IOException {
+        cache.invalidateAll(ownerId);
+        super.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CachingBlockDevice:[%s %s]", getParent().getId(), cache);
+    }
+
+    /**
+     * Reads a run of pages from the underlying device, stopping at the first page that is already cached, and adds
+     * them to the cache.
+     *
+     * @param firstPage the first page, which is known to be missing.
+     * @param lastPage the last page that may be read.
+     * @return the data read, starting at the first page.
+     * @throws IOException if an error occurs reading.
+     */
+    private byte[] readPages(long firstPage, long lastPage) throws IOException {
+        int pageShift = cache.getPageShift();
+        int pageSize = cache.getPageSize();
+
+        long endPage = firstPage + 1;
+        while (endPage <= lastPage && !cache.contains(ownerId, endPage)) {
+            endPage++;
+        }
+
+        long start = firstPage << pageShift;
+        long end = Math.min(endPage << pageShift, getLength());
+        if (end <= start) {
+            throw new IOException("Read past the end of the device: " + start);
+        }
+
+        long generation = writeGeneration.get();
+        byte[] data = new byte[(int) (end - start)];
+        getParentApi().read(start, ByteBuffer.wrap(data));
+
+        for (long pageIndex = firstPage; pageIndex < endPage; pageIndex++) {
+            int offset = (int) ((pageIndex - firstPage) << pageShift);
+            int length = Math.min(pageSize, data.length - offset);
+            if (length <= 0) {
+                break;
+            }
+
+            if ((generation & 1) == 0) {
+                byte[] page = new byte[length];
+                System.arraycopy(data, offset, page, 0, length);
+                cache.put(ownerId, pageIndex, page);
+            }
+        }
+
+        if (writeGeneration.get() != generation) {
+            // A write happened concurrently, the pages just added may be stale
+            invalidate(start, data.length);
+        }
+
+        return data;
+    }
+
+    /**
+     * Removes the pages covering a range from the cache.
+     *
+     * @param devOffset the start of the range.
+     * @param length the length of the range.
+     */
+    private void invalidate(long devOffset, int length) {
+        if (length <= 0) {
+            return;
+        }
+
+        int pageShift = cache.getPageShift();
+        long lastPage = (devOffset + length - 1) >>> pageShift;
+        for (long pageIndex = devOffset >>> pageShift; pageIndex <= lastPage; pageIndex++) {
+            cache.invalidate(ownerId, pageIndex);
+        }
+    }
+}
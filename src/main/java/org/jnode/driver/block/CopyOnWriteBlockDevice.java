@@ -0,0 +1,384 @@
+package org.jnode.driver.block;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.jnode.driver.Device;
+import org.jnode.util.LittleEndian;
+
+/**
+ * A block device which keeps the underlying device pristine by sending all writes to a delta file, so that read-only
+ * evidence can be mounted read-write or have its journals replayed without copying it first.
+ * <p>
+ * The device is divided into blocks and a bitmap records which blocks have been written. Written blocks are stored in
+ * the delta file at the same offset as in the device, so the delta file is sparse on filesystems which support it and
+ * only takes up space for the blocks written. Reads are split into runs of written and unwritten blocks, which are
+ * read from the delta file and the underlying device respectively. A partial write to a block which hasn't been
+ * written yet first copies the rest of the block from the underlying device.
+ * <p>
+ * {@link #flush()} and {@link #close()} store the bitmap in the delta file after the last block, and opening the same
+ * delta file again carries on from where it left off. {@link #discard()} drops all the changes.
+ */
+public class CopyOnWriteBlockDevice extends FilterBlockDevice {
+
+    /**
+     * The default block size.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    /**
+     * The magic number at the start of the stored bitmap, "JNODECOW".
+     */
+    private static final long MAP_MAGIC = 0x574f4345444f4e4aL;
+
+    /**
+     * The size of the header before the stored bitmap: magic, block size, device length and bitmap word count.
+     */
+    private static final int MAP_HEADER_SIZE = 32;
+
+    /**
+     * The delta file.
+     */
+    private final File deltaFile;
+
+    /**
+     * The channel to the delta file.
+     */
+    private final FileChannel delta;
+
+    /**
+     * The block size.
+     */
+    private final int blockSize;
+
+    /**
+     * The size of the device.
+     */
+    private final long length;
+
+    /**
+     * The offset of the stored bitmap in the delta file.
+     */
+    private final long mapOffset;
+
+    /**
+     * The blocks which have been written to the delta file.
+     */
+    private final BitSet written;
+
+    /**
+     * Reads share the lock, writes and flushes hold it exclusively.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Whether the bitmap has changed since it was last stored.
+     */
+    private boolean mapDirty;
+
+    /**
+     * Creates a new copy-on-write device with the default block size.
+     *
+     * @param parent the underlying device, which is never written to.
+     * @param deltaFile the delta file, which is created if it doesn't exist.
+     * @throws IOException if an error occurs opening the delta file or it doesn't match the underlying device.
+     */
+    public CopyOnWriteBlockDevice(Device parent, File deltaFile) throws IOException {
+        this(parent, deltaFile, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new copy-on-write device.
+     *
+     * @param parent the underlying device, which is never written to.
+     * @param deltaFile the delta file, which is created if it doesn't exist.
+     * @param blockSize the block size, a power of two.
+     * @throws IOException if an error occurs opening the delta file or it doesn't match the underlying device.
+     */
+    public CopyOnWriteBlockDevice(Device parent, File deltaFile, int blockSize) throws IOException {
+        super("cow-" + parent.getId(), parent);
+
+        if (blockSize <= 0 || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        }
+
+        this.deltaFile = deltaFile;
+        this.blockSize = blockSize;
+        this.length = getParentApi().getLength();
+
+        long blockCount = (length + blockSize - 1) / blockSize;
+        if (blockCount > Integer.MAX_VALUE) {
+            throw new IOException("Device too large for block size " + blockSize + ": " + length);
+        }
+        this.mapOffset = blockCount * blockSize;
+
+        this.delta = new RandomAccessFile(deltaFile, "rw").getChannel();
+        try {
+            this.written = loadMap();
+        } catch (IOException | RuntimeException e) {
+            delta.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the delta file.
+     *
+     * @return the file.
+     */
+    public File getDeltaFile() {
+        return deltaFile;
+    }
+
+    /**
+     * Gets the block size.
+     *
+     * @return the size in bytes.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Gets the number of blocks which have been written.
+     *
+     * @return the count.
+     */
+    public int getWrittenBlockCount() {
+        lock.readLock().lock();
+        try {
+            return written.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        checkBounds(devOffset, dest.remaining());
+
+        lock.readLock().lock();
+        try {
+            long position = devOffset;
+            while (dest.hasRemaining()) {
+                int block = (int) (position / blockSize);
+                boolean inDelta = written.get(block);
+                int runEnd = inDelta ? written.nextClearBit(block) : written.nextSetBit(block);
+                long runEndOffset = runEnd < 0 ? length : (long) runEnd * blockSize;
+                int count = (int) Math.min(dest.remaining(), runEndOffset - position);
+
+                if (inDelta) {
+                    DiskImages.readFully(delta, position, dest, count);
+                } else {
+                    ByteBuffer slice = dest.duplicate();
+                    slice.limit(slice.position() + count);
+                    getParentApi().read(position, slice);
+                    dest.position(dest.position() + count);
+                }
+                position += count;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        checkBounds(devOffset, src.remaining());
+
+        lock.writeLock().lock();
+        try {
+            long position = devOffset;
+            long end = devOffset + src.remaining();
+            while (position < end) {
+                int block = (int) (position / blockSize);
+                long blockStart = (long) block * blockSize;
+                long blockEnd = Math.min(blockStart + blockSize, length);
+
+                if (position == blockStart && end >= blockEnd) {
+                    // A run of whole blocks goes straight to the delta file
+                    long runEnd = end == length ? end : end / blockSize * blockSize;
+                    int count = (int) (runEnd - position);
+                    writeDelta(position, src, count);
+                    written.set(block, (int) ((runEnd + blockSize - 1) / blockSize));
+                    position = runEnd;
+                } else {
+                    int count = (int) (Math.min(end, blockEnd) - position);
+                    if (!written.get(block)) {
+                        copyBlock(blockStart, (int) (blockEnd - blockStart));
+                        written.set(block);
+                    }
+                    writeDelta(position, src, count);
+                    position += count;
+                }
+                mapDirty = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stores the bitmap in the delta file and forces the delta file to disk. The underlying device is never written so
+     * it isn't flushed.
+     *
+     * @throws IOException if an error occurs writing the delta file.
+     */
+    @Override
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (mapDirty) {
+                storeMap();
+                mapDirty = false;
+            }
+            delta.force(true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops all the changes, so that the device reads the same as the underlying device again, and truncates the
+     * delta file.
+     *
+     * @throws IOException if an error occurs truncating the delta file.
+     */
+    public void discard() throws IOException {
+        lock.writeLock().lock();
+        try {
+            written.clear();
+            delta.truncate(0);
+            mapDirty = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stores the bitmap, closes the delta file and then closes the underlying device.
+     *
+     * @throws IOException if an error occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (delta.isOpen()) {
+                try {
+                    flush();
+                } finally {
+                    delta.close();
+                }
+            }
+        } finally {
+            super.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CopyOnWriteBlockDevice:[%s delta:%s blockSize:%d written:%d]", getParent().getId(),
+            deltaFile, blockSize, getWrittenBlockCount());
+    }
+
+    private void checkBounds(long devOffset, int count) throws IOException {
+        if (devOffset < 0) {
+            throw new IOException("devOffset < 0");
+        }
+        if (devOffset + count > length) {
+            throw new IOException("Access past the end of the device: offset " + devOffset + ", length " + count);
+        }
+    }
+
+    /**
+     * Copies a block from the underlying device to the delta file, ahead of a partial write to it.
+     *
+     * @param blockStart the offset of the block.
+     * @param count the size of the block, which is short at the end of the device.
+     * @throws IOException if an error occurs.
+     */
+    private void copyBlock(long blockStart, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count);
+        getParentApi().read(blockStart, buffer);
+        buffer.flip();
+        writeDelta(blockStart, buffer, count);
+    }
+
+    private void writeDelta(long position, ByteBuffer src, int count) throws IOException {
+        ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + count);
+        long offset = position;
+        while (slice.hasRemaining()) {
+            offset += delta.write(slice, offset);
+        }
+        src.position(src.position() + count);
+    }
+
+    /**
+     * Loads the bitmap stored in the delta file.
+     *
+     * @return the bitmap, empty for a new delta file.
+     * @throws IOException if an error occurs reading or the delta file doesn't match the underlying device.
+     */
+    private BitSet loadMap() throws IOException {
+        if (delta.size() == 0) {
+            return new BitSet();
+        }
+        if (delta.size() < mapOffset + MAP_HEADER_SIZE) {
+            throw new IOException("No block map in delta file: " + deltaFile);
+        }
+
+        byte[] header = new byte[MAP_HEADER_SIZE];
+        DiskImages.readFully(delta, mapOffset, ByteBuffer.wrap(header), header.length);
+        if (LittleEndian.getInt64(header, 0) != MAP_MAGIC) {
+            throw new IOException("No block map in delta file: " + deltaFile);
+        }
+        if (LittleEndian.getInt32(header, 8) != blockSize || LittleEndian.getInt64(header, 16) != length) {
+            throw new IOException("Delta file " + deltaFile + " doesn't match device: block size " +
+                LittleEndian.getInt32(header, 8) + ", length " + LittleEndian.getInt64(header, 16));
+        }
+
+        int wordCount = LittleEndian.getInt32(header, 24);
+        if (wordCount < 0 || (long) wordCount * Long.SIZE > mapOffset / blockSize + Long.SIZE) {
+            throw new IOException("Invalid block map in delta file: " + deltaFile);
+        }
+        byte[] data = new byte[wordCount * 8];
+        DiskImages.readFully(delta, mapOffset + MAP_HEADER_SIZE, ByteBuffer.wrap(data), data.length);
+        long[] words = new long[wordCount];
+        for (int i = 0; i < wordCount; i++) {
+            words[i] = LittleEndian.getInt64(data, i * 8);
+        }
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * Stores the bitmap in the delta file after the last block.
+     *
+     * @throws IOException if an error occurs writing.
+     */
+    private void storeMap() throws IOException {
+        long[] words = written.toLongArray();
+        byte[] data = new byte[MAP_HEADER_SIZE + words.length * 8];
+        LittleEndian.setInt64(data, 0, MAP_MAGIC);
+        LittleEndian.setInt32(data, 8, blockSize);
+        LittleEndian.setInt64(data, 16, length);
+        LittleEndian.setInt32(data, 24, words.length);
+        for (int i = 0; i < words.length; i++) {
+            LittleEndian.setInt64(data, MAP_HEADER_SIZE + i * 8, words[i]);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        writeDelta(mapOffset, buffer, data.length);
+        delta.truncate(mapOffset + data.length);
+    }
+}
@@ -0,0 +1,36 @@
+package org.jnode.driver.block;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads for background device I/O, so that idle I/O threads never keep the JVM alive.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+    /**
+     * The prefix for thread names.
+     */
+    private final String prefix;
+
+    /**
+     * The number of threads created.
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Creates a new factory.
+     *
+     * @param prefix the prefix for thread names, which are numbered from 1.
+     */
+    public DaemonThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
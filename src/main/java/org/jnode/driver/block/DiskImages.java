@@ -0,0 +1,290 @@
+package org.jnode.driver.block;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.ewf.EwfDevice;
+import org.jnode.driver.block.qcow2.Qcow2Device;
+import org.jnode.driver.block.vhd.VhdDevice;
+import org.jnode.driver.block.vhd.VhdxDevice;
+import org.jnode.driver.block.vmdk.VmdkDevice;
+
+/**
+ * Opens disk image files as read-only block devices, detecting the image format from the file's signature.
+ * <p>
+ * Image formats which refer to other files, e.g. the backing file of a QCOW2 image, use this to open them so that
+ * chains of mixed formats work. Each image in a chain is opened with the canonical files of the images before it, so
+ * that a chain which loops back on itself, or is unreasonably long, fails with an {@link IOException} instead of
+ * recursing until the stack overflows.
+ */
+public final class DiskImages {
+
+    /**
+     * The number of bytes read from the start of a file to detect its format.
+     */
+    public static final int SIGNATURE_SIZE = 512;
+
+    /**
+     * The maximum number of images in a chain, e.g. a differencing image and its parents.
+     */
+    public static final int MAX_CHAIN_LENGTH = 64;
+
+    /**
+     * A block of zeros for filling buffers.
+     */
+    private static final byte[] ZEROS = new byte[4096];
+
+    private DiskImages() {
+    }
+
+    /**
+     * Opens an image file as a read-only device. Files which don't have the signature of a known image format are
+     * opened as raw images, and the first segment of a split raw image, e.g. {@code disk.001}, opens all the
+     * segments.
+     *
+     * @param file the image file.
+     * @return the device, which also implements {@link FSBlockDeviceAPI} and {@link java.io.Closeable}.
+     * @throws IOException if an error occurs opening the image.
+     */
+    public static Device open(File file) throws IOException {
+        return open(file, Collections.<File>emptyList());
+    }
+
+    /**
+     * Opens an image file as a read-only device, as part of a chain of images, e.g. as the parent of a differencing
+     * image.
+     *
+     * @param file the image file.
+     * @param children the chain of the images which refer to this one, as returned by {@link #addToChain}, or an
+     * empty list.
+     * @return the device, which also implements {@link FSBlockDeviceAPI} and {@link java.io.Closeable}.
+     * @throws IOException if the image is already in the chain, the chain is too long, or an error occurs opening the
+     * image.
+     */
+    public static Device open(File file, List<File> children) throws IOException {
+        List<File> chain = addToChain(children, file);
+        byte[] header = readHeader(file);
+
+        if (Qcow2Device.hasSignature(header)) {
+            return new Qcow2Device(file, Qcow2Device.DEFAULT_L2_CACHE_SIZE, chain);
+        }
+        if (EwfDevice.hasSignature(header)) {
+            return new EwfDevice(file);
+        }
+        if (VmdkDevice.hasSignature(header)) {
+            return new VmdkDevice(file, VmdkDevice.DEFAULT_GT_CACHE_SIZE, chain);
+        }
+        if (VhdxDevice.hasSignature(header)) {
+            return new VhdxDevice(file, VhdxDevice.DEFAULT_BITMAP_CACHE_SIZE, chain);
+        }
+        if (VhdDevice.hasSignature(header) || VhdDevice.hasSignature(readFooter(file))) {
+            return new VhdDevice(file, VhdDevice.DEFAULT_BITMAP_CACHE_SIZE, chain);
+        }
+
+        List<File> segments = SplitFileDevice.findSegments(file);
+        if (segments.size() > 1) {
+            return new SplitFileDevice(segments, FileChannelDevice.DEFAULT_SECTOR_SIZE);
+        }
+        return new FileChannelDevice(file, "r");
+    }
+
+    /**
+     * Adds an image to a chain of images, checking that it isn't in the chain already and that the chain doesn't get
+     * too long.
+     *
+     * @param chain the chain, e.g. the images which refer to this one, or an empty list.
+     * @param file the image file.
+     * @return a new chain, ending with the image's canonical file.
+     * @throws IOException if the image is already in the chain, or the chain would be longer than
+     * {@link #MAX_CHAIN_LENGTH}.
+     */
+    public static List<File> addToChain(List<File> chain, File file) throws IOException {
+        File canonical = file.getCanonicalFile();
+        if (chain.contains(canonical)) {
+            throw new IOException("Image chain loops back to " + file + ": " + chain);
+        }
+        if (chain.size() >= MAX_CHAIN_LENGTH) {
+            throw new IOException("Image chain is longer than " + MAX_CHAIN_LENGTH + " images: " + chain.get(0));
+        }
+
+        List<File> result = new ArrayList<File>(chain);
+        result.add(canonical);
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Writes zeros to a buffer.
+     *
+     * @param dest the buffer.
+     * @param length the number of zeros to write.
+     */
+    public static void fillZeros(ByteBuffer dest, int length) {
+        int remaining = length;
+        while (remaining > 0) {
+            int count = Math.min(remaining, ZEROS.length);
+            dest.put(ZEROS, 0, count);
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Reads from a parent image, e.g. the backing file of a differencing image, filling with zeros past the end of the
+     * parent or if there is no parent.
+     *
+     * @param parent the parent, or {@code null}.
+     * @param devOffset the offset to read from.
+     * @param dest the buffer to read into.
+     * @param count the number of bytes to read.
+     * @throws IOException if an error occurs reading.
+     */
+    public static void readParent(BlockDeviceAPI parent, long devOffset, ByteBuffer dest, int count)
+        throws IOException {
+        int fromParent = 0;
+        if (parent != null) {
+            fromParent = (int) Math.max(0, Math.min(count, parent.getLength() - devOffset));
+        }
+
+        if (fromParent > 0) {
+            ByteBuffer slice = dest.duplicate();
+            slice.limit(slice.position() + fromParent);
+            parent.read(devOffset, slice);
+            dest.position(dest.position() + fromParent);
+        }
+        fillZeros(dest, count - fromParent);
+    }
+
+    /**
+     * Reads from a file channel, failing if the end of the file is reached.
+     *
+     * @param channel the channel.
+     * @param position the position to read from.
+     * @param dest the buffer to read into.
+     * @param count the number of bytes to read.
+     * @throws IOException if an error occurs reading.
+     */
+    public static void readFully(FileChannel channel, long position, ByteBuffer dest, int count) throws IOException {
+        ByteBuffer slice = dest.duplicate();
+        slice.limit(slice.position() + count);
+        long offset = position;
+        while (slice.hasRemaining()) {
+            int read = channel.read(slice, offset);
+            if (read < 0) {
+                throw new EOFException("Read past the end of the image: offset " + offset);
+            }
+            offset += read;
+        }
+        dest.position(dest.position() + count);
+    }
+
+    /**
+     * Finds a file referred to by an image, e.g. a parent or extent. Each path is tried as is, then relative to the
+     * image's directory, then by its file name alone in the image's directory, since images are often moved together
+     * from the machine that created them. Windows separators are accepted. The image itself is never returned, since
+     * the file name fallback would otherwise resolve a differencing image to itself when its parent has the same file
+     * name in another directory.
+     *
+     * @param image the image referring to the file.
+     * @param paths the candidate paths, in order of preference. {@code null} and empty paths are skipped.
+     * @return the file, or {@code null} if none of the paths exist.
+     */
+    public static File resolveRelated(File image, String... paths) {
+        File directory = image.getAbsoluteFile().getParentFile();
+        File self = getCanonicalFile(image);
+
+        for (String path : paths) {
+            if (path == null || path.isEmpty()) {
+                continue;
+            }
+            String normalized = path.replace('\\', File.separatorChar).replace('/', File.separatorChar);
+
+            File file = new File(normalized);
+            if (file.isAbsolute() && file.isFile() && !self.equals(getCanonicalFile(file))) {
+                return file;
+            }
+            file = new File(directory, normalized);
+            if (file.isFile() && !self.equals(getCanonicalFile(file))) {
+                return file;
+            }
+        }
+
+        for (String path : paths) {
+            if (path == null || path.isEmpty()) {
+                continue;
+            }
+            String name = path.substring(Math.max(path.lastIndexOf('\\'), path.lastIndexOf('/')) + 1);
+            File file = new File(directory, name);
+            if (!name.isEmpty() && file.isFile() && !self.equals(getCanonicalFile(file))) {
+                return file;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the canonical form of a file, falling back to its absolute form if it can't be resolved.
+     *
+     * @param file the file.
+     * @return the canonical file.
+     */
+    private static File getCanonicalFile(File file) {
+        try {
+            return file.getCanonicalFile();
+        } catch (IOException e) {
+            return file.getAbsoluteFile();
+        }
+    }
+
+    /**
+     * Reads the last sector of a file, where fixed VHD images keep their footer.
+     *
+     * @param file the file.
+     * @return the last 512 bytes, or an empty array if the file is shorter.
+     * @throws IOException if an error occurs reading.
+     */
+    private static byte[] readFooter(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < 512) {
+                return new byte[0];
+            }
+            byte[] footer = new byte[512];
+            raf.seek(raf.length() - footer.length);
+            raf.readFully(footer);
+            return footer;
+        }
+    }
+
+    /**
+     * Reads the start of a file.
+     *
+     * @param file the file.
+     * @return up to {@link #SIGNATURE_SIZE} bytes, fewer if the file is shorter.
+     * @throws IOException if an error occurs reading.
+     */
+    private static byte[] readHeader(File file) throws IOException {
+        byte[] header = new byte[SIGNATURE_SIZE];
+        int length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            while (length < header.length) {
+                int read = in.read(header, length, header.length - length);
+                if (read < 0) {
+                    break;
+                }
+                length += read;
+            }
+        }
+        if (length == 0) {
+            throw new EOFException("Empty image file: " + file);
+        }
+        return header;
+    }
+}
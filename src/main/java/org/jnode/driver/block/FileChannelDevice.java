@@ -0,0 +1,173 @@
+package org.jnode.driver.block;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import org.jnode.driver.Device;
+import org.jnode.partitions.PartitionTableEntry;
+
+/**
+ * A block device backed by a file, e.g. a raw disk image.
+ * <p>
+ * All I/O is done with positional reads and writes on a {@link FileChannel}, so there is no shared file pointer and
+ * any number of threads may read from the device concurrently without locking. The position and limit of the
+ * buffers passed in are honoured and both heap and direct buffers are supported.
+ */
+public class FileChannelDevice extends Device implements FSBlockDeviceAPI, Closeable {
+
+    /**
+     * The default sector size.
+     */
+    public static final int DEFAULT_SECTOR_SIZE = 512;
+
+    /**
+     * The backing file.
+     */
+    private final File file;
+
+    /**
+     * The channel to the backing file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Whether the device was opened read-only.
+     */
+    private final boolean readOnly;
+
+    /**
+     * The sector size to report.
+     */
+    private final int sectorSize;
+
+    /**
+     * Creates a new device.
+     *
+     * @param file the backing file.
+     * @param mode the access mode, as for {@link RandomAccessFile}, e.g. {@code "r"} or {@code "rw"}.
+     * @throws IOException if an error occurs opening the file.
+     */
+    public FileChannelDevice(File file, String mode) throws IOException {
+        this(file, mode, DEFAULT_SECTOR_SIZE);
+    }
+
+    /**
+     * Creates a new device.
+     *
+     * @param file the backing file.
+     * @param mode the access mode, as for {@link RandomAccessFile}, e.g. {@code "r"} or {@code "rw"}.
+     * @param sectorSize the sector size to report.
+     * @throws IOException if an error occurs opening the file.
+     */
+    public FileChannelDevice(File file, String mode, int sectorSize) throws IOException {
+        super("file-" + file.getName());
+
+        if (sectorSize <= 0) {
+            throw new IllegalArgumentException("Invalid sector size: " + sectorSize);
+        }
+
+        this.file = file;
+        this.readOnly = "r".equals(mode);
+        this.sectorSize = sectorSize;
+        this.channel = new RandomAccessFile(file, mode).getChannel();
+        registerAPI(FSBlockDeviceAPI.class, this);
+    }
+
+    /**
+     * Gets the backing file.
+     *
+     * @return the file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the channel to the backing file. Callers must only use positional operations on the channel.
+     *
+     * @return the channel.
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        if (devOffset < 0) {
+            throw new IOException("devOffset < 0");
+        }
+
+        long position = devOffset;
+        while (dest.hasRemaining()) {
+            int read = channel.read(dest, position);
+            if (read < 0) {
+                throw new EOFException("Read past the end of " + file + ": offset " + position + ", remaining " +
+                    dest.remaining());
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Reads a batch of requests, merging neighbouring requests into single reads.
+     *
+     * @param requests the requests, in any order.
+     * @throws IOException if an error occurs reading.
+     */
+    @Override
+    public void readBatch(List<ReadRequest> requests) throws IOException {
+        ReadCoalescer.read(this, requests);
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        if (readOnly) {
+            throw new IOException("Device is read-only: " + file);
+        }
+        if (devOffset < 0) {
+            throw new IOException("devOffset < 0");
+        }
+
+        long position = devOffset;
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (!readOnly) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public int getSectorSize() {
+        return sectorSize;
+    }
+
+    @Override
+    public PartitionTableEntry getPartitionTableEntry() {
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FileChannelDevice:[%s readOnly:%b]", file, readOnly);
+    }
+}
@@ -0,0 +1,109 @@
+package org.jnode.driver.block;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.jnode.driver.ApiNotFoundException;
+import org.jnode.driver.Device;
+import org.jnode.partitions.PartitionTableEntry;
+
+/**
+ * A block device which sits on top of another device, passing all requests through to it. Sub-classes override the
+ * methods they want to intercept, in the same way as {@link java.io.FilterInputStream}.
+ */
+public abstract class FilterBlockDevice extends Device implements FSBlockDeviceAPI, Closeable {
+
+    /**
+     * The underlying device.
+     */
+    private final Device parent;
+
+    /**
+     * The block device API of the underlying device.
+     */
+    private final BlockDeviceAPI parentApi;
+
+    /**
+     * Creates a new filter device.
+     *
+     * @param id the ID for this device.
+     * @param parent the underlying device.
+     * @throws IOException if the underlying device does not have a {@link BlockDeviceAPI}.
+     */
+    protected FilterBlockDevice(String id, Device parent) throws IOException {
+        super(id);
+        this.parent = parent;
+        try {
+            this.parentApi = parent.getAPI(BlockDeviceAPI.class);
+        } catch (ApiNotFoundException e) {
+            throw new IOException("BlockDeviceAPI not found on device", e);
+        }
+        registerAPI(FSBlockDeviceAPI.class, this);
+    }
+
+    /**
+     * Gets the underlying device.
+     *
+     * @return the device.
+     */
+    public Device getParent() {
+        return parent;
+    }
+
+    /**
+     * Gets the block device API of the underlying device.
+     *
+     * @return the API.
+     */
+    protected BlockDeviceAPI getParentApi() {
+        return parentApi;
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        return parentApi.getLength();
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        parentApi.read(devOffset, dest);
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        parentApi.write(devOffset, src);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        parentApi.flush();
+    }
+
+    @Override
+    public int getSectorSize() throws IOException {
+        if (parentApi instanceof FSBlockDeviceAPI) {
+            return ((FSBlockDeviceAPI) parentApi).getSectorSize();
+        }
+        return FileChannelDevice.DEFAULT_SECTOR_SIZE;
+    }
+
+    @Override
+    public PartitionTableEntry getPartitionTableEntry() {
+        if (parentApi instanceof FSBlockDeviceAPI) {
+            return ((FSBlockDeviceAPI) parentApi).getPartitionTableEntry();
+        }
+        return null;
+    }
+
+    /**
+     * Closes the underlying device if it is {@link Closeable}.
+     *
+     * @throws IOException if an error occurs closing the underlying device.
+     */
+    @Override
+    public void close() throws IOException {
+        if (parent instanceof Closeable) {
+            ((Closeable) parent).close();
+        }
+    }
+}
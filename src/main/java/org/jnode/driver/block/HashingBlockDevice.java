@@ -0,0 +1,199 @@
+package org.jnode.driver.block;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jnode.driver.Device;
+
+/**
+ * A read-only caching device which hashes the whole underlying device in the background, so that an image can be
+ * hashed and parsed in a single pass over it.
+ * <p>
+ * Once {@link #start()} is called a background thread reads the device from start to end through the
+ * {@link SharedPageCache}, feeding each chunk to the message digests in order. Pages the filesystem layer has already
+ * read are taken from the cache instead of being read again, and reads the filesystem makes near the hashing position
+ * are served from the pages the hashing thread has just cached. Since the device can't be written, the hashes are the
+ * same as those of a plain sequential read of the device.
+ */
+public class HashingBlockDevice extends CachingBlockDevice {
+
+    /**
+     * The algorithms used when none are given.
+     */
+    public static final String[] DEFAULT_ALGORITHMS = {"MD5", "SHA-1", "SHA-256"};
+
+    /**
+     * The names of the algorithms, in order.
+     */
+    private final String[] algorithms;
+
+    /**
+     * The number of bytes hashed so far.
+     */
+    private final AtomicLong hashedBytes = new AtomicLong();
+
+    /**
+     * Whether the hashing thread has been started.
+     */
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * The hashes, completed when the whole device has been hashed.
+     */
+    private final CompletableFuture<Map<String, byte[]>> result = new CompletableFuture<Map<String, byte[]>>();
+
+    /**
+     * Set when the device is closed, to stop the hashing thread.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Creates a new hashing device using the default algorithms.
+     *
+     * @param parent the underlying device.
+     * @param cache the cache to use.
+     * @throws IOException if the underlying device does not have a {@link BlockDeviceAPI}.
+     */
+    public HashingBlockDevice(Device parent, SharedPageCache cache) throws IOException {
+        this(parent, cache, DEFAULT_ALGORITHMS);
+    }
+
+    /**
+     * Creates a new hashing device.
+     *
+     * @param parent the underlying device.
+     * @param cache the cache to use.
+     * @param algorithms the {@link MessageDigest} algorithms to use.
+     * @throws IOException if the underlying device does not have a {@link BlockDeviceAPI} or an algorithm isn't
+     *     available.
+     */
+    public HashingBlockDevice(Device parent, SharedPageCache cache, String... algorithms) throws IOException {
+        super(parent, cache);
+        this.algorithms = algorithms.clone();
+        createDigests();
+    }
+
+    /**
+     * Starts hashing the device in the background. Calling this again has no effect.
+     *
+     * @return the hashes keyed by algorithm, completed when the whole device has been hashed. If an error occurs the
+     *     future completes exceptionally.
+     */
+    public CompletableFuture<Map<String, byte[]>> start() {
+        if (started.compareAndSet(false, true)) {
+            Thread thread = new DaemonThreadFactory("hash-" + getParent().getId()).newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        result.complete(hash());
+                    } catch (IOException | RuntimeException e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            });
+            thread.start();
+        }
+        return result;
+    }
+
+    /**
+     * Gets the hashes.
+     *
+     * @return the hashes keyed by algorithm, completed when the whole device has been hashed.
+     */
+    public CompletableFuture<Map<String, byte[]>> getHashes() {
+        return result;
+    }
+
+    /**
+     * Gets the number of bytes hashed so far.
+     *
+     * @return the count.
+     */
+    public long getHashedBytes() {
+        return hashedBytes.get();
+    }
+
+    /**
+     * Fails, since writes would make the hashes differ from the underlying device.
+     *
+     * @param devOffset the offset to write to.
+     * @param src the data to write.
+     * @throws IOException always.
+     */
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        throw new IOException("Hashing devices are read-only");
+    }
+
+    /**
+     * Stops the hashing thread, if it is still running, and closes the device.
+     *
+     * @throws IOException if an error occurs closing the underlying device.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        result.completeExceptionally(new IOException("Device closed before hashing finished"));
+        super.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HashingBlockDevice:[%s hashed:%d done:%b]", getParent().getId(), hashedBytes.get(),
+            result.isDone());
+    }
+
+    /**
+     * Reads the whole device in order and hashes it. Each chunk is no larger than the largest cached read, so that
+     * it goes through the cache.
+     *
+     * @return the hashes keyed by algorithm.
+     * @throws IOException if an error occurs reading or the device is closed.
+     */
+    private Map<String, byte[]> hash() throws IOException {
+        MessageDigest[] digests = createDigests();
+        long length = getLength();
+        byte[] chunk = new byte[getMaxCachedReadSize()];
+
+        long position = 0;
+        while (position < length) {
+            if (closed) {
+                throw new IOException("Device closed before hashing finished");
+            }
+
+            int count = (int) Math.min(chunk.length, length - position);
+            read(position, ByteBuffer.wrap(chunk, 0, count));
+            for (MessageDigest digest : digests) {
+                digest.update(chunk, 0, count);
+            }
+            position += count;
+            hashedBytes.set(position);
+        }
+
+        Map<String, byte[]> hashes = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < algorithms.length; i++) {
+            hashes.put(algorithms[i], digests[i].digest());
+        }
+        return Collections.unmodifiableMap(hashes);
+    }
+
+    private MessageDigest[] createDigests() throws IOException {
+        MessageDigest[] digests = new MessageDigest[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            try {
+                digests[i] = MessageDigest.getInstance(algorithms[i]);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("Hash algorithm not available: " + algorithms[i], e);
+            }
+        }
+        return digests;
+    }
+}
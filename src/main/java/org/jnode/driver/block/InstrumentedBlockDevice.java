@@ -0,0 +1,150 @@
+package org.jnode.driver.block;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jnode.driver.Device;
+
+/**
+ * A block device which records statistics about the I/O passing through it: request counts, byte volumes, the
+ * distribution of request sizes and latency histograms. Requests are broken down by the {@link BlockIoTag} of the
+ * calling thread, so it is possible to tell which subsystem issued them, e.g. whether a slow job is doing millions of
+ * tiny metadata reads or a few large data reads.
+ * <p>
+ * Recording does not allocate once a tag has been seen. Statistics can be exported with {@link #snapshot()} and
+ * cleared with {@link #reset()}.
+ */
+public class InstrumentedBlockDevice extends FilterBlockDevice {
+
+    /**
+     * The statistics by tag.
+     */
+    private final ConcurrentHashMap<String, IoStatistics> statisticsByTag =
+        new ConcurrentHashMap<String, IoStatistics>();
+
+    /**
+     * The statistics for all requests.
+     */
+    private final IoStatistics total = new IoStatistics();
+
+    /**
+     * Creates a new instrumented device.
+     *
+     * @param parent the underlying device.
+     * @throws IOException if the underlying device does not have a {@link BlockDeviceAPI}.
+     */
+    public InstrumentedBlockDevice(Device parent) throws IOException {
+        super("instrumented-" + parent.getId(), parent);
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        int length = dest.remaining();
+        boolean failed = true;
+        long start = System.nanoTime();
+        try {
+            getParentApi().read(devOffset, dest);
+            failed = false;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            total.recordRead(length, nanos, failed);
+            statisticsForCurrentTag().recordRead(length, nanos, failed);
+        }
+    }
+
+    /**
+     * Passes the batch to the underlying device. Each request in the batch is recorded with the latency of the whole
+     * batch.
+     *
+     * @param requests the requests.
+     * @throws IOException if an error occurs reading.
+     */
+    @Override
+    public void readBatch(List<ReadRequest> requests) throws IOException {
+        boolean failed = true;
+        long start = System.nanoTime();
+        try {
+            getParentApi().readBatch(requests);
+            failed = false;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            IoStatistics tagged = statisticsForCurrentTag();
+            for (ReadRequest request : requests) {
+                total.recordRead(request.getLength(), nanos, failed);
+                tagged.recordRead(request.getLength(), nanos, failed);
+            }
+        }
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        boolean failed = true;
+        long start = System.nanoTime();
+        try {
+            getParentApi().write(devOffset, src);
+            failed = false;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            total.recordWrite(length, nanos, failed);
+            statisticsForCurrentTag().recordWrite(length, nanos, failed);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the statistics for each tag.
+     *
+     * @return the snapshots, sorted by tag.
+     */
+    public Map<String, IoStatistics.Snapshot> snapshot() {
+        Map<String, IoStatistics.Snapshot> snapshots = new TreeMap<String, IoStatistics.Snapshot>();
+        for (Map.Entry<String, IoStatistics> entry : statisticsByTag.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Takes a snapshot of the statistics for all requests.
+     *
+     * @return the snapshot.
+     */
+    public IoStatistics.Snapshot snapshotTotal() {
+        return total.snapshot();
+    }
+
+    /**
+     * Clears all statistics. Requests running concurrently with the reset may be partially counted.
+     */
+    public void reset() {
+        total.reset();
+        for (IoStatistics statistics : statisticsByTag.values()) {
+            statistics.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("InstrumentedBlockDevice:[%s %s]", getParent().getId(), total.snapshot());
+    }
+
+    private IoStatistics statisticsForCurrentTag() {
+        String tag = BlockIoTag.get();
+        if (tag == null) {
+            tag = BlockIoTag.UNTAGGED;
+        }
+
+        IoStatistics statistics = statisticsByTag.get(tag);
+        if (statistics == null) {
+            IoStatistics created = new IoStatistics();
+            statistics = statisticsByTag.putIfAbsent(tag, created);
+            if (statistics == null) {
+                statistics = created;
+            }
+        }
+        return statistics;
+    }
+}
@@ -0,0 +1,228 @@
+package org.jnode.driver.block;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of non-negative values, such as latencies in nanoseconds or request sizes in bytes.
+ * <p>
+ * Values are counted in log-linear buckets in the style of HdrHistogram: each power of two is split into eight
+ * sub-buckets, so a recorded value is accurate to within 12.5%. The bucket array is fixed up front, which keeps
+ * {@link #record(long)} free of allocation and locking.
+ */
+public final class IoHistogram {
+
+    /**
+     * The log2 of the number of sub-buckets per power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * The number of sub-buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The total number of buckets, enough for any positive long.
+     */
+    static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /**
+     * The bucket counts.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * The number of values recorded.
+     */
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * The sum of the values recorded.
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * The largest value recorded.
+     */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a value.
+     *
+     * @param value the value, negative values are recorded as zero.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Clears all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * Takes a snapshot of the histogram.
+     *
+     * @return the snapshot.
+     */
+    public Snapshot snapshot() {
+        long[] snapshotCounts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshotCounts[i] = counts.get(i);
+            total += snapshotCounts[i];
+        }
+        return new Snapshot(snapshotCounts, total, sum.sum(), max.get());
+    }
+
+    /**
+     * Gets the bucket for a value.
+     *
+     * @param value the value.
+     * @return the bucket index.
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    /**
+     * Gets the largest value which falls into a bucket.
+     *
+     * @param index the bucket index.
+     * @return the value.
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long mantissa = index % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + mantissa) << (exponent - SUB_BUCKET_BITS);
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return lower + width - 1;
+    }
+
+    /**
+     * An immutable copy of a histogram.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * Gets the number of values recorded.
+         *
+         * @return the count.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Gets the sum of the values recorded.
+         *
+         * @return the sum.
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * Gets the largest value recorded.
+         *
+         * @return the maximum.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Gets the mean of the values recorded.
+         *
+         * @return the mean, or {@code 0} if nothing was recorded.
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Gets the value at a percentile, accurate to the bucket resolution.
+         *
+         * @param percentile the percentile, from 0 to 100.
+         * @return the value, or {@code 0} if nothing was recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long target = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if (cumulative >= target) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Gets the non-empty buckets, as pairs of the bucket's upper bound and its count.
+         *
+         * @return the buckets.
+         */
+        public long[][] getBuckets() {
+            int nonEmpty = 0;
+            for (long bucketCount : counts) {
+                if (bucketCount != 0) {
+                    nonEmpty++;
+                }
+            }
+
+            long[][] buckets = new long[nonEmpty][];
+            int index = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    buckets[index++] = new long[] { bucketUpperBound(i), counts[i] };
+                }
+            }
+            return buckets;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[count:%d mean:%.1f p50:%d p90:%d p99:%d max:%d]", count, getMean(),
+                getValueAtPercentile(50), getValueAtPercentile(90), getValueAtPercentile(99), max);
+        }
+    }
+}
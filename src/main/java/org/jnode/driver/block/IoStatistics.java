@@ -0,0 +1,194 @@
+package org.jnode.driver.block;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * I/O counters and histograms for one subsystem, see {@link InstrumentedBlockDevice}.
+ */
+public final class IoStatistics {
+
+    private final LongAdder readCount = new LongAdder();
+    private final LongAdder writeCount = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+    private final IoHistogram readSizes = new IoHistogram();
+    private final IoHistogram writeSizes = new IoHistogram();
+    private final IoHistogram readLatency = new IoHistogram();
+    private final IoHistogram writeLatency = new IoHistogram();
+
+    /**
+     * Records a read.
+     *
+     * @param bytes the size of the read.
+     * @param nanos the time taken in nanoseconds.
+     * @param failed whether the read failed.
+     */
+    void recordRead(int bytes, long nanos, boolean failed) {
+        readCount.increment();
+        bytesRead.add(bytes);
+        readSizes.record(bytes);
+        readLatency.record(nanos);
+        if (failed) {
+            errorCount.increment();
+        }
+    }
+
+    /**
+     * Records a write.
+     *
+     * @param bytes the size of the write.
+     * @param nanos the time taken in nanoseconds.
+     * @param failed whether the write failed.
+     */
+    void recordWrite(int bytes, long nanos, boolean failed) {
+        writeCount.increment();
+        bytesWritten.add(bytes);
+        writeSizes.record(bytes);
+        writeLatency.record(nanos);
+        if (failed) {
+            errorCount.increment();
+        }
+    }
+
+    /**
+     * Clears all counters and histograms.
+     */
+    public void reset() {
+        readCount.reset();
+        writeCount.reset();
+        bytesRead.reset();
+        bytesWritten.reset();
+        errorCount.reset();
+        readSizes.reset();
+        writeSizes.reset();
+        readLatency.reset();
+        writeLatency.reset();
+    }
+
+    /**
+     * Takes a snapshot of the statistics.
+     *
+     * @return the snapshot.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(readCount.sum(), writeCount.sum(), bytesRead.sum(), bytesWritten.sum(), errorCount.sum(),
+            readSizes.snapshot(), writeSizes.snapshot(), readLatency.snapshot(), writeLatency.snapshot());
+    }
+
+    /**
+     * An immutable copy of the statistics.
+     */
+    public static final class Snapshot {
+        private final long readCount;
+        private final long writeCount;
+        private final long bytesRead;
+        private final long bytesWritten;
+        private final long errorCount;
+        private final IoHistogram.Snapshot readSizes;
+        private final IoHistogram.Snapshot writeSizes;
+        private final IoHistogram.Snapshot readLatency;
+        private final IoHistogram.Snapshot writeLatency;
+
+        Snapshot(long readCount, long writeCount, long bytesRead, long bytesWritten, long errorCount,
+                 IoHistogram.Snapshot readSizes, IoHistogram.Snapshot writeSizes,
+                 IoHistogram.Snapshot readLatency, IoHistogram.Snapshot writeLatency) {
+            this.readCount = readCount;
+            this.writeCount = writeCount;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.errorCount = errorCount;
+            this.readSizes = readSizes;
+            this.writeSizes = writeSizes;
+            this.readLatency = readLatency;
+            this.writeLatency = writeLatency;
+        }
+
+        /**
+         * Gets the number of reads.
+         *
+         * @return the count.
+         */
+        public long getReadCount() {
+            return readCount;
+        }
+
+        /**
+         * Gets the number of writes.
+         *
+         * @return the count.
+         */
+        public long getWriteCount() {
+            return writeCount;
+        }
+
+        /**
+         * Gets the number of bytes read.
+         *
+         * @return the count.
+         */
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        /**
+         * Gets the number of bytes written.
+         *
+         * @return the count.
+         */
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        /**
+         * Gets the number of requests which failed.
+         *
+         * @return the count.
+         */
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        /**
+         * Gets the distribution of read sizes in bytes.
+         *
+         * @return the histogram.
+         */
+        public IoHistogram.Snapshot getReadSizes() {
+            return readSizes;
+        }
+
+        /**
+         * Gets the distribution of write sizes in bytes.
+         *
+         * @return the histogram.
+         */
+        public IoHistogram.Snapshot getWriteSizes() {
+            return writeSizes;
+        }
+
+        /**
+         * Gets the distribution of read latencies in nanoseconds.
+         *
+         * @return the histogram.
+         */
+        public IoHistogram.Snapshot getReadLatency() {
+            return readLatency;
+        }
+
+        /**
+         * Gets the distribution of write latencies in nanoseconds.
+         *
+         * @return the histogram.
+         */
+        public IoHistogram.Snapshot getWriteLatency() {
+            return writeLatency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[reads:%d (%d bytes) writes:%d (%d bytes) errors:%d read-sizes:%s read-latency:%s]",
+                readCount, bytesRead, writeCount, bytesWritten, errorCount, readSizes, readLatency);
+        }
+    }
+}
@@ -22,6 +22,8 @@ package org.jnode.driver.block;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import org.jnode.driver.ApiNotFoundException;
 import org.jnode.driver.Device;
 
@@ -88,6 +90,20 @@ public class MappedBlockDeviceSupport extends Device implements BlockDeviceAPI {
         parentApi.read(offset + devOffset, dest);
     }
 
+    /**
+     * Passes the whole batch on to the parent device so it can merge the requests.
+     *
+     * @see org.jnode.driver.block.BlockDeviceAPI#readBatch(java.util.List)
+     */
+    public void readBatch(List<ReadRequest> requests) throws IOException {
+        List<ReadRequest> parentRequests = new ArrayList<ReadRequest>(requests.size());
+        for (ReadRequest request : requests) {
+            checkBounds(request.getDevOffset(), request.getDest());
+            parentRequests.add(new ReadRequest(offset + request.getDevOffset(), request.getDest()));
+        }
+        parentApi.readBatch(parentRequests);
+    }
+
     /**
      * (non-Javadoc)
      *
@@ -0,0 +1,345 @@
+package org.jnode.driver.block;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.jnode.driver.Device;
+import org.jnode.partitions.PartitionTableEntry;
+import org.jnode.util.ByteBufferUtils;
+
+/**
+ * A block device backed by a memory mapped file.
+ * <p>
+ * A single {@link MappedByteBuffer} can only cover 2GB, so the file is split up into fixed size windows which are
+ * mapped lazily the first time they are accessed. Reads that span a window boundary are split across the windows.
+ * Once mapped, reads are served straight from the page cache without a system call.
+ * <p>
+ * All windows are unmapped on {@link #close()}. Touching an unmapped window is fatal to the JVM, so reads, writes and
+ * flushes share a lock which {@link #close()} takes exclusively: it waits for those in progress to finish, and those
+ * which come later fail with an {@link IOException}.
+ */
+public class MappedFileDevice extends Device implements FSBlockDeviceAPI, Closeable {
+
+    /**
+     * The default window size, 1GB.
+     */
+    public static final int DEFAULT_WINDOW_SHIFT = 30;
+
+    /**
+     * The backing file.
+     */
+    private final File file;
+
+    /**
+     * The channel to the backing file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Whether the device was opened read-only.
+     */
+    private final boolean readOnly;
+
+    /**
+     * The length of the device, fixed when the device is opened.
+     */
+    private final long length;
+
+    /**
+     * The log2 of the window size.
+     */
+    private final int windowShift;
+
+    /**
+     * The window size in bytes.
+     */
+    private final long windowSize;
+
+    /**
+     * The table of windows, populated lazily.
+     */
+    private final AtomicReferenceArray<MappedByteBuffer> windows;
+
+    /**
+     * Reads, writes and flushes share the lock, closing holds it exclusively.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Whether the device has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Creates a new device using the default window size.
+     *
+     * @param file the backing file.
+     * @param mode the access mode, as for {@link RandomAccessFile}, e.g. {@code "r"} or {@code "rw"}.
+     * @throws IOException if an error occurs opening the file.
+     */
+    public MappedFileDevice(File file, String mode) throws IOException {
+        this(file, mode, DEFAULT_WINDOW_SHIFT);
+    }
+
+    /**
+     * Creates a new device.
+     *
+     * @param file the backing file.
+     * @param mode the access mode, as for {@link RandomAccessFile}, e.g. {@code "r"} or {@code "rw"}.
+     * @param windowShift the log2 of the window size, e.g. {@code 30} for 1GB windows.
+     * @throws IOException if an error occurs opening the file.
+     */
+    public MappedFileDevice(File file, String mode, int windowShift) throws IOException {
+        super("mmap-" + file.getName());
+
+        if (windowShift < 12 || windowShift > 30) {
+            throw new IllegalArgumentException("Invalid window shift: " + windowShift);
+        }
+
+        this.file = file;
+        this.readOnly = "r".equals(mode);
+        this.windowShift = windowShift;
+        this.windowSize = 1L << windowShift;
+        this.channel = new RandomAccessFile(file, mode).getChannel();
+        this.length = channel.size();
+
+        long windowCount = (length + windowSize - 1) >>> windowShift;
+        if (windowCount > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException("File is too large for the window size: " + length);
+        }
+        windows = new AtomicReferenceArray<MappedByteBuffer>((int) windowCount);
+
+        registerAPI(FSBlockDeviceAPI.class, this);
+    }
+
+    /**
+     * Gets the backing file.
+     *
+     * @return the file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the channel to the backing file. Callers must only use positional operations on the channel.
+     *
+     * @return the channel.
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        checkBounds(devOffset, dest.remaining());
+
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            long position = devOffset;
+            while (dest.hasRemaining()) {
+                ByteBuffer window = getWindow(position);
+                int windowOffset = (int) (position & (windowSize - 1));
+                int count = Math.min(dest.remaining(), window.limit() - windowOffset);
+
+                window.position(windowOffset);
+                window.limit(windowOffset + count);
+                dest.put(window);
+                position += count;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        if (readOnly) {
+            throw new IOException("Device is read-only: " + file);
+        }
+        checkBounds(devOffset, src.remaining());
+
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            long position = devOffset;
+            while (src.hasRemaining()) {
+                ByteBuffer window = getWindow(position);
+                int windowOffset = (int) (position & (windowSize - 1));
+                int count = Math.min(src.remaining(), window.limit() - windowOffset);
+
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + count);
+                window.position(windowOffset);
+                window.put(slice);
+                src.position(src.position() + count);
+                position += count;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (readOnly) {
+            return;
+        }
+
+        lock.readLock().lock();
+        try {
+            if (!closed) {
+                forceWindows();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getSectorSize() {
+        return FileChannelDevice.DEFAULT_SECTOR_SIZE;
+    }
+
+    @Override
+    public PartitionTableEntry getPartitionTableEntry() {
+        return null;
+    }
+
+    /**
+     * Gets the number of windows that are currently mapped.
+     *
+     * @return the count.
+     */
+    public int getMappedWindowCount() {
+        int count = 0;
+        for (int i = 0; i < windows.length(); i++) {
+            if (windows.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes the device and unmaps all windows, waiting for reads, writes and flushes in progress to finish first.
+     *
+     * @throws IOException if an error occurs closing the file.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            try {
+                if (!readOnly) {
+                    forceWindows();
+                }
+            } finally {
+                for (int i = 0; i < windows.length(); i++) {
+                    MappedByteBuffer window = windows.getAndSet(i, null);
+                    ByteBufferUtils.unmap(window);
+                }
+                channel.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MappedFileDevice:[%s readOnly:%b windows:%d/%d]", file, readOnly,
+            getMappedWindowCount(), windows.length());
+    }
+
+    /**
+     * Writes the mapped windows back to the file, with the lock held.
+     */
+    private void forceWindows() {
+        for (int i = 0; i < windows.length(); i++) {
+            MappedByteBuffer window = windows.get(i);
+            if (window != null) {
+                window.force();
+            }
+        }
+    }
+
+    /**
+     * Checks that the device hasn't been closed, with the lock held.
+     *
+     * @throws IOException if the device is closed.
+     */
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Device is closed: " + file);
+        }
+    }
+
+    /**
+     * Gets a private view of the window containing the given position, mapping it if required. The caller holds the
+     * read lock, so the device can't be closed meanwhile.
+     *
+     * @param position the device position.
+     * @return the window, positioned at zero.
+     * @throws IOException if an error occurs mapping the window.
+     */
+    private ByteBuffer getWindow(long position) throws IOException {
+        int index = (int) (position >>> windowShift);
+        MappedByteBuffer window = windows.get(index);
+
+        if (window == null) {
+            long start = (long) index << windowShift;
+            long size = Math.min(windowSize, length - start);
+            MappedByteBuffer mapped = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY :
+                FileChannel.MapMode.READ_WRITE, start, size);
+
+            if (windows.compareAndSet(index, null, mapped)) {
+                window = mapped;
+            } else {
+                // Another thread mapped the window first
+                ByteBufferUtils.unmap(mapped);
+                window = windows.get(index);
+            }
+        }
+
+        // The shared buffer's position and limit are never touched so concurrent readers don't interfere
+        return window.duplicate();
+    }
+
+    /**
+     * Checks that a request lies within the device.
+     *
+     * @param devOffset the offset of the request.
+     * @param count the size of the request.
+     * @throws IOException if the request is out of bounds.
+     */
+    private void checkBounds(long devOffset, int count) throws IOException {
+        if (devOffset < 0) {
+            throw new IOException("devOffset < 0");
+        }
+        if (devOffset + count > length) {
+            throw new EOFException("Read past the end of " + file + ": offset " + devOffset + ", remaining " +
+                count);
+        }
+    }
+}
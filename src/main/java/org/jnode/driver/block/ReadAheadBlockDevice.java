@@ -0,0 +1,447 @@
+package org.jnode.driver.block;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import org.jnode.driver.Device;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A block device which detects sequential reads and prefetches ahead of them.
+ * <p>
+ * Filesystems tend to read files front to back in small requests, e.g. one block or cluster at a time. This device
+ * tracks a small number of read streams, each identified by the offset the next sequential read is expected at, so
+ * several files being read at once by different callers are each detected. Once a stream reads sequentially a window
+ * of data after it is read asynchronously from the underlying device. The window doubles on each sequential hit up to
+ * a maximum, so the number of requests to the underlying device drops sharply for large files.
+ * <p>
+ * Each stream holds at most two windows (the one being consumed and the one being prefetched), so the memory used is
+ * bounded by {@code maxStreams * 2 * maxWindow}.
+ */
+public class ReadAheadBlockDevice extends FilterBlockDevice {
+
+    /**
+     * The logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(ReadAheadBlockDevice.class);
+
+    /**
+     * The default initial window size.
+     */
+    public static final int DEFAULT_MIN_WINDOW = 64 * 1024;
+
+    /**
+     * The default maximum window size.
+     */
+    public static final int DEFAULT_MAX_WINDOW = 4 * 1024 * 1024;
+
+    /**
+     * The default number of streams to track.
+     */
+    public static final int DEFAULT_MAX_STREAMS = 8;
+
+    /**
+     * The initial window size.
+     */
+    private final int minWindow;
+
+    /**
+     * The maximum window size.
+     */
+    private final int maxWindow;
+
+    /**
+     * The tracked streams.
+     */
+    private final Stream[] streams;
+
+    /**
+     * The executor to prefetch with.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Whether the executor was created by, and should be shut down by, this device.
+     */
+    private final boolean ownsExecutor;
+
+    /**
+     * A clock for LRU replacement of streams.
+     */
+    private long useClock;
+
+    /**
+     * The number of bytes served from prefetched windows.
+     */
+    private final LongAdder prefetchedBytes = new LongAdder();
+
+    /**
+     * The number of bytes read directly from the underlying device.
+     */
+    private final LongAdder directBytes = new LongAdder();
+
+    /**
+     * The number of prefetch requests issued.
+     */
+    private final LongAdder prefetchCount = new LongAdder();
+
+    /**
+     * Creates a new device with the default settings and its own prefetch thread.
+     *
+     * @param parent the underlying device.
+     * @throws IOException if the underlying device does not have a {@link BlockDeviceAPI}.
+     */
+    public ReadAheadBlockDevice(Device parent) throws IOException {
+        this(parent, DEFAULT_MIN_WINDOW, DEFAULT_MAX_WINDOW, DEFAULT_MAX_STREAMS, null);
+    }
+
+    /**
+     * Creates a new device.
+     *
+     * @param parent the underlying device.
+     * @param minWindow the initial window size.
+     * @param maxWindow the maximum window size.
+     * @param maxStreams the number of sequential streams to track.
+     * @param executor the executor to prefetch with, or {@code null} to create one which is shut down on close.
+     * @throws IOException if the underlying device does not have a {@link BlockDeviceAPI}.
+     */
+    public ReadAheadBlockDevice(Device parent, int minWindow, int maxWindow, int maxStreams,
+                                ExecutorService executor) throws IOException {
+        super("readahead-" + parent.getId(), parent);
+
+        if (minWindow <= 0 || maxWindow < minWindow) {
+            throw new IllegalArgumentException("Invalid window sizes: " + minWindow + ", " + maxWindow);
+        }
+        if (maxStreams <= 0) {
+            throw new IllegalArgumentException("Invalid stream count: " + maxStreams);
+        }
+
+        this.minWindow = minWindow;
+        this.maxWindow = maxWindow;
+        this.streams = new Stream[maxStreams];
+        for (int i = 0; i < maxStreams; i++) {
+            streams[i] = new Stream();
+        }
+
+        if (executor == null) {
+            this.executor = Executors.newFixedThreadPool(2, new DaemonThreadFactory("readahead-" + parent.getId()));
+            this.ownsExecutor = true;
+        } else {
+            this.executor = executor;
+            this.ownsExecutor = false;
+        }
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        int length = dest.remaining();
+        if (length >= maxWindow) {
+            // Already a large request, nothing to gain by prefetching
+            directBytes.add(length);
+            getParentApi().read(devOffset, dest);
+            return;
+        }
+
+        Stream stream = findStream(devOffset, length);
+        if (stream == null) {
+            directBytes.add(length);
+            getParentApi().read(devOffset, dest);
+            return;
+        }
+
+        synchronized (stream) {
+            if (!stream.matches(devOffset)) {
+                // Another caller took over the stream in the meantime
+                directBytes.add(length);
+                getParentApi().read(devOffset, dest);
+                return;
+            }
+
+            long position = devOffset;
+            while (dest.hasRemaining()) {
+                if (stream.current != null && stream.current.contains(position)) {
+                    int count = stream.current.copyTo(position, dest);
+                    prefetchedBytes.add(count);
+                    position += count;
+                } else if (stream.pending != null && stream.pending.contains(position)) {
+                    stream.current = stream.pending.await();
+                    stream.pending = null;
+                    if (stream.current == null) {
+                        break;
+                    }
+                } else {
+                    break;
+                }
+            }
+
+            if (dest.hasRemaining()) {
+                directBytes.add(dest.remaining());
+                getParentApi().read(position, dest);
+            }
+
+            stream.nextOffset = devOffset + length;
+            stream.lastUsed = nextUse();
+            if (stream.current != null && stream.current.end() <= stream.nextOffset) {
+                stream.current = null;
+            }
+            schedulePrefetch(stream);
+        }
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        try {
+            getParentApi().write(devOffset, src);
+        } finally {
+            for (Stream stream : streams) {
+                synchronized (stream) {
+                    if (stream.overlaps(devOffset, length)) {
+                        stream.reset(-1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops prefetching and closes the underlying device.
+     *
+     * @throws IOException if an error occurs closing the underlying device.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Stream stream : streams) {
+            synchronized (stream) {
+                stream.reset(-1);
+            }
+        }
+        if (ownsExecutor) {
+            executor.shutdownNow();
+        }
+        super.close();
+    }
+
+    /**
+     * Gets the number of bytes served from prefetched data.
+     *
+     * @return the count.
+     */
+    public long getPrefetchedBytes() {
+        return prefetchedBytes.sum();
+    }
+
+    /**
+     * Gets the number of bytes read directly from the underlying device to satisfy read requests.
+     *
+     * @return the count.
+     */
+    public long getDirectBytes() {
+        return directBytes.sum();
+    }
+
+    /**
+     * Gets the number of prefetch requests issued to the underlying device.
+     *
+     * @return the count.
+     */
+    public long getPrefetchCount() {
+        return prefetchCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ReadAheadBlockDevice:[%s prefetched:%d direct:%d prefetches:%d]", getParent().getId(),
+            getPrefetchedBytes(), getDirectBytes(), getPrefetchCount());
+    }
+
+    /**
+     * Finds the stream a read belongs to. If no stream matches the least recently used stream is restarted at the end
+     * of this read, and {@code null} is returned since the read isn't sequential yet.
+     *
+     * @param devOffset the offset of the read.
+     * @param length the length of the read.
+     * @return the matching stream, or {@code null}.
+     */
+    private Stream findStream(long devOffset, int length) {
+        synchronized (streams) {
+            Stream oldest = streams[0];
+            for (Stream stream : streams) {
+                if (stream.matches(devOffset)) {
+                    return stream;
+                }
+                if (stream.lastUsed < oldest.lastUsed) {
+                    oldest = stream;
+                }
+            }
+
+            synchronized (oldest) {
+                oldest.reset(devOffset + length);
+                oldest.lastUsed = nextUse();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Starts the next prefetch for a stream if there isn't one in flight.
+     *
+     * @param stream the stream, which must be locked by the caller.
+     */
+    private void schedulePrefetch(Stream stream) throws IOException {
+        if (stream.pending != null) {
+            return;
+        }
+
+        final long start = stream.current != null ? stream.current.end() : stream.nextOffset;
+        final long deviceLength = getLength();
+        if (start >= deviceLength) {
+            return;
+        }
+
+        stream.window = stream.window == 0 ? minWindow : Math.min(stream.window * 2, maxWindow);
+        final int size = (int) Math.min(stream.window, deviceLength - start);
+
+        prefetchCount.increment();
+        Future<Window> future = executor.submit(new Callable<Window>() {
+            @Override
+            public Window call() throws Exception {
+                byte[] data = new byte[size];
+                getParentApi().read(start, ByteBuffer.wrap(data));
+                return new Window(start, data);
+            }
+        });
+        stream.pending = new PendingWindow(start, size, future);
+    }
+
+    private synchronized long nextUse() {
+        return ++useClock;
+    }
+
+    /**
+     * A sequential read stream.
+     */
+    private static class Stream {
+        /**
+         * The offset the next sequential read is expected at, or -1 if the stream is unused.
+         */
+        long nextOffset = -1;
+
+        /**
+         * The current window size.
+         */
+        int window;
+
+        /**
+         * The window currently being consumed.
+         */
+        Window current;
+
+        /**
+         * The window being prefetched.
+         */
+        PendingWindow pending;
+
+        /**
+         * The clock value when this stream was last used.
+         */
+        long lastUsed;
+
+        boolean matches(long offset) {
+            return nextOffset >= 0 &&
+                (offset == nextOffset ||
+                    (current != null && current.contains(offset)) ||
+                    (pending != null && pending.contains(offset)));
+        }
+
+        boolean overlaps(long offset, int length) {
+            return (current != null && offset < current.end() && offset + length > current.start) ||
+                (pending != null && offset < pending.start + pending.length && offset + length > pending.start);
+        }
+
+        void reset(long nextOffset) {
+            if (pending != null) {
+                pending.future.cancel(false);
+            }
+            this.nextOffset = nextOffset;
+            window = 0;
+            current = null;
+            pending = null;
+        }
+    }
+
+    /**
+     * A window of prefetched data.
+     */
+    private static class Window {
+        final long start;
+        final byte[] data;
+
+        Window(long start, byte[] data) {
+            this.start = start;
+            this.data = data;
+        }
+
+        long end() {
+            return start + data.length;
+        }
+
+        boolean contains(long offset) {
+            return offset >= start && offset < end();
+        }
+
+        int copyTo(long offset, ByteBuffer dest) {
+            int windowOffset = (int) (offset - start);
+            int count = Math.min(dest.remaining(), data.length - windowOffset);
+            dest.put(data, windowOffset, count);
+            return count;
+        }
+    }
+
+    /**
+     * A window which is being prefetched.
+     */
+    private static class PendingWindow {
+        final long start;
+        final int length;
+        final Future<Window> future;
+
+        PendingWindow(long start, int length, Future<Window> future) {
+            this.start = start;
+            this.length = length;
+            this.future = future;
+        }
+
+        boolean contains(long offset) {
+            return offset >= start && offset < start + length;
+        }
+
+        /**
+         * Waits for the prefetch to complete.
+         *
+         * @return the window, or {@code null} if the prefetch failed.
+         * @throws InterruptedIOException if the thread is interrupted while waiting.
+         */
+        Window await() throws InterruptedIOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for read-ahead");
+            } catch (ExecutionException e) {
+                log.debug("Read-ahead failed at " + start, e.getCause());
+                return null;
+            } catch (RuntimeException e) {
+                // Cancelled
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.jnode.driver.block;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Services a batch of read requests with as few device reads as possible.
+ * <p>
+ * The requests are sorted by offset and neighbouring requests are merged into a single read when the gap between them
+ * is small enough and the merged read isn't too large. Merged reads go into a temporary buffer and are then scattered
+ * to the requests. A request that isn't merged with anything is read straight into its own buffer.
+ */
+public final class ReadCoalescer {
+
+    /**
+     * The default maximum gap between requests which are merged, the gap is read and discarded.
+     */
+    public static final int DEFAULT_MAX_GAP = 64 * 1024;
+
+    /**
+     * The default maximum size of a merged read.
+     */
+    public static final int DEFAULT_MAX_READ_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Orders requests by their device offset.
+     */
+    private static final Comparator<ReadRequest> BY_OFFSET = new Comparator<ReadRequest>() {
+        @Override
+        public int compare(ReadRequest request1, ReadRequest request2) {
+            return Long.compare(request1.getDevOffset(), request2.getDevOffset());
+        }
+    };
+
+    private ReadCoalescer() {
+    }
+
+    /**
+     * Services a batch of requests using the default limits.
+     *
+     * @param api the device to read from.
+     * @param requests the requests.
+     * @throws IOException if an error occurs reading.
+     */
+    public static void read(BlockDeviceAPI api, List<ReadRequest> requests) throws IOException {
+        read(api, requests, DEFAULT_MAX_GAP, DEFAULT_MAX_READ_SIZE);
+    }
+
+    /**
+     * Services a batch of requests.
+     *
+     * @param api the device to read from.
+     * @param requests the requests.
+     * @param maxGap the maximum gap between requests which are merged.
+     * @param maxReadSize the maximum size of a merged read.
+     * @throws IOException if an error occurs reading.
+     */
+    public static void read(BlockDeviceAPI api, List<ReadRequest> requests, int maxGap, int maxReadSize)
+        throws IOException {
+
+        if (requests.size() == 1) {
+            ReadRequest request = requests.get(0);
+            api.read(request.getDevOffset(), request.getDest());
+            return;
+        }
+
+        List<ReadRequest> sorted = new ArrayList<ReadRequest>(requests);
+        Collections.sort(sorted, BY_OFFSET);
+
+        int index = 0;
+        while (index < sorted.size()) {
+            ReadRequest first = sorted.get(index);
+            long start = first.getDevOffset();
+            long end = first.getEndOffset();
+
+            int groupEnd = index + 1;
+            while (groupEnd < sorted.size()) {
+                ReadRequest next = sorted.get(groupEnd);
+                long mergedEnd = Math.max(end, next.getEndOffset());
+                if (next.getDevOffset() > end + maxGap || mergedEnd - start > maxReadSize) {
+                    break;
+                }
+                end = mergedEnd;
+                groupEnd++;
+            }
+
+            if (groupEnd == index + 1) {
+                api.read(first.getDevOffset(), first.getDest());
+            } else {
+                ByteBuffer merged = ByteBuffer.allocate((int) (end - start));
+                api.read(start, merged);
+
+                for (int i = index; i < groupEnd; i++) {
+                    ReadRequest request = sorted.get(i);
+                    ByteBuffer slice = merged.duplicate();
+                    slice.position((int) (request.getDevOffset() - start));
+                    slice.limit(slice.position() + request.getLength());
+                    request.getDest().put(slice);
+                }
+            }
+
+            index = groupEnd;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.jnode.driver.block;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A single request in a batch read, see {@link BlockDeviceAPI#readBatch(java.util.List)}.
+ */
+public final class ReadRequest {
+
+    /**
+     * The device offset to read from.
+     */
+    private final long devOffset;
+
+    /**
+     * The buffer to read into, from its position up to its limit.
+     */
+    private final ByteBuffer dest;
+
+    /**
+     * The number of bytes requested.
+     */
+    private final int length;
+
+    /**
+     * Creates a new request.
+     *
+     * @param devOffset the device offset to read from.
+     * @param dest the buffer to read into, from its position up to its limit.
+     */
+    public ReadRequest(long devOffset, ByteBuffer dest) {
+        if (devOffset < 0) {
+            throw new IllegalArgumentException("devOffset < 0");
+        }
+        this.devOffset = devOffset;
+        this.dest = dest;
+        this.length = dest.remaining();
+    }
+
+    /**
+     * Gets the device offset to read from.
+     *
+     * @return the offset.
+     */
+    public long getDevOffset() {
+        return devOffset;
+    }
+
+    /**
+     * Gets the buffer to read into.
+     *
+     * @return the buffer.
+     */
+    public ByteBuffer getDest() {
+        return dest;
+    }
+
+    /**
+     * Gets the number of bytes requested.
+     *
+     * @return the length.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Gets the device offset just past the end of this request.
+     *
+     * @return the end offset.
+     */
+    public long getEndOffset() {
+        return devOffset + length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[read-request offset:%d length:%d]", devOffset, length);
+    }
+}
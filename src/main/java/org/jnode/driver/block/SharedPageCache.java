@@ -0,0 +1,379 @@
+package org.jnode.driver.block;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A page cache with a fixed byte budget which can be shared by any number of {@link CachingBlockDevice}s.
+ * <p>
+ * The cache is split into stripes, each with its own lock, LRU list and a share of the byte budget, so lookups from
+ * different threads rarely contend. Pages are keyed by the owning device and the page index within that device.
+ */
+public class SharedPageCache {
+
+    /**
+     * The default page size.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+
+    /**
+     * The default number of stripes.
+     */
+    public static final int DEFAULT_STRIPES = 16;
+
+    /**
+     * The page size in bytes.
+     */
+    private final int pageSize;
+
+    /**
+     * The log2 of the page size.
+     */
+    private final int pageShift;
+
+    /**
+     * The total byte budget.
+     */
+    private final long maxBytes;
+
+    /**
+     * The stripes.
+     */
+    private final Stripe[] stripes;
+
+    /**
+     * The source of owner IDs.
+     */
+    private final AtomicLong nextOwnerId = new AtomicLong();
+
+    /**
+     * The number of cache hits.
+     */
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * The number of cache misses.
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * The number of pages evicted.
+     */
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a new cache with the default page size and stripe count.
+     *
+     * @param maxBytes the maximum number of bytes to cache.
+     */
+    public SharedPageCache(long maxBytes) {
+        this(maxBytes, DEFAULT_PAGE_SIZE, DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxBytes the maximum number of bytes to cache.
+     * @param pageSize the page size, which must be a power of two.
+     * @param stripeCount the number of stripes, which must be a power of two.
+     */
+    public SharedPageCache(long maxBytes, int pageSize, int stripeCount) {
+        if (pageSize <= 0 || Integer.bitCount(pageSize) != 1) {
+            throw new IllegalArgumentException("Page size must be a power of two: " + pageSize);
+        }
+        if (stripeCount <= 0 || Integer.bitCount(stripeCount) != 1) {
+            throw new IllegalArgumentException("Stripe count must be a power of two: " + stripeCount);
+        }
+        if (maxBytes < (long) pageSize * stripeCount) {
+            throw new IllegalArgumentException("Budget must allow at least one page per stripe: " + maxBytes);
+        }
+
+        this.pageSize = pageSize;
+        this.pageShift = Integer.numberOfTrailingZeros(pageSize);
+        this.maxBytes = maxBytes;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(maxBytes / stripeCount);
+        }
+    }
+
+    /**
+     * Gets the page size.
+     *
+     * @return the page size in bytes.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Gets the log2 of the page size.
+     *
+     * @return the page shift.
+     */
+    public int getPageShift() {
+        return pageShift;
+    }
+
+    /**
+     * Gets the total byte budget.
+     *
+     * @return the budget.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Allocates a new owner ID for a device using this cache.
+     *
+     * @return the ID.
+     */
+    long register() {
+        return nextOwnerId.incrementAndGet();
+    }
+
+    /**
+     * Looks up a page.
+     *
+     * @param owner the owner ID.
+     * @param pageIndex the page index.
+     * @return the page data, or {@code null} if it is not cached. The array must not be modified.
+     */
+    byte[] get(long owner, long pageIndex) {
+        PageKey key = new PageKey(owner, pageIndex);
+        byte[] page = stripeFor(key).get(key);
+        if (page == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return page;
+    }
+
+    /**
+     * Checks whether a page is cached, without counting a hit or miss or changing its position in the LRU list.
+     *
+     * @param owner the owner ID.
+     * @param pageIndex the page index.
+     * @return {@code true} if the page is cached.
+     */
+    boolean contains(long owner, long pageIndex) {
+        PageKey key = new PageKey(owner, pageIndex);
+        return stripeFor(key).contains(key);
+    }
+
+    /**
+     * Adds a page to the cache.
+     *
+     * @param owner the owner ID.
+     * @param pageIndex the page index.
+     * @param page the page data, which must not be modified after this call.
+     */
+    void put(long owner, long pageIndex, byte[] page) {
+        PageKey key = new PageKey(owner, pageIndex);
+        stripeFor(key).put(key, page);
+    }
+
+    /**
+     * Removes a page from the cache.
+     *
+     * @param owner the owner ID.
+     * @param pageIndex the page index.
+     */
+    void invalidate(long owner, long pageIndex) {
+        PageKey key = new PageKey(owner, pageIndex);
+        stripeFor(key).remove(key);
+    }
+
+    /**
+     * Removes all pages for an owner from the cache.
+     *
+     * @param owner the owner ID.
+     */
+    void invalidateAll(long owner) {
+        for (Stripe stripe : stripes) {
+            stripe.removeOwner(owner);
+        }
+    }
+
+    /**
+     * Removes all pages from the cache.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    /**
+     * Gets the number of cache hits.
+     *
+     * @return the count.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of cache misses.
+     *
+     * @return the count.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of pages evicted to stay within the budget.
+     *
+     * @return the count.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Gets the hit rate.
+     *
+     * @return the ratio of hits to lookups, or {@code 0} if there have been no lookups.
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Resets the hit, miss and eviction counters.
+     */
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    /**
+     * Gets the number of bytes currently cached.
+     *
+     * @return the size in bytes.
+     */
+    public long getSize() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.getSize();
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SharedPageCache:[size:%d max:%d hits:%d misses:%d evictions:%d]", getSize(), maxBytes,
+            getHitCount(), getMissCount(), getEvictionCount());
+    }
+
+    private Stripe stripeFor(PageKey key) {
+        return stripes[key.hashCode() & (stripes.length - 1)];
+    }
+
+    /**
+     * The key for a page.
+     */
+    private static final class PageKey {
+        private final long owner;
+        private final long pageIndex;
+
+        PageKey(long owner, long pageIndex) {
+            this.owner = owner;
+            this.pageIndex = pageIndex;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof PageKey)) {
+                return false;
+            }
+            PageKey key = (PageKey) other;
+            return owner == key.owner && pageIndex == key.pageIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = owner * 0x9E3779B97F4A7C15L + pageIndex;
+            hash ^= hash >>> 29;
+            hash *= 0xBF58476D1CE4E5B9L;
+            hash ^= hash >>> 32;
+            return (int) hash;
+        }
+    }
+
+    /**
+     * A stripe of the cache: an access ordered map with its own share of the budget.
+     */
+    private final class Stripe {
+        private final long maxBytes;
+        private final LinkedHashMap<PageKey, byte[]> pages = new LinkedHashMap<PageKey, byte[]>(16, 0.75f, true);
+        private long size;
+
+        Stripe(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized byte[] get(PageKey key) {
+            return pages.get(key);
+        }
+
+        synchronized boolean contains(PageKey key) {
+            return pages.containsKey(key);
+        }
+
+        synchronized void put(PageKey key, byte[] page) {
+            byte[] previous = pages.put(key, page);
+            if (previous != null) {
+                size -= previous.length;
+            }
+            size += page.length;
+
+            Iterator<Map.Entry<PageKey, byte[]>> iterator = pages.entrySet().iterator();
+            while (size > maxBytes && iterator.hasNext()) {
+                Map.Entry<PageKey, byte[]> eldest = iterator.next();
+                if (eldest.getKey() == key) {
+                    continue;
+                }
+                size -= eldest.getValue().length;
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+
+        synchronized void remove(PageKey key) {
+            byte[] previous = pages.remove(key);
+            if (previous != null) {
+                size -= previous.length;
+            }
+        }
+
+        synchronized void removeOwner(long owner) {
+            Iterator<Map.Entry<PageKey, byte[]>> iterator = pages.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<PageKey, byte[]> entry = iterator.next();
+                if (entry.getKey().owner == owner) {
+                    size -= entry.getValue().length;
+                    iterator.remove();
+                }
+            }
+        }
+
+        synchronized void clear() {
+            pages.clear();
+            size = 0;
+        }
+
+        synchronized long getSize() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package org.jnode.driver.block;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.jnode.driver.Device;
+import org.jnode.partitions.PartitionTableEntry;
+
+/**
+ * A read-only block device for a raw image split into several segment files, e.g. {@code disk.001},
+ * {@code disk.002}, ... as written by {@code split} or FTK Imager.
+ * <p>
+ * The segments are presented as one device without concatenating them first. The segment holding an offset is found
+ * with a binary search over the segment start offsets, and reads which cross segments are read straight into the
+ * caller's buffer one segment at a time. Each segment's channel is opened on first use and then kept open until the
+ * device is closed, so images with many segments only hold the files which are actually read.
+ */
+public class SplitFileDevice extends Device implements FSBlockDeviceAPI, Closeable {
+
+    /**
+     * The segment files, in order.
+     */
+    private final File[] files;
+
+    /**
+     * The channel to each segment, or {@code null} if it hasn't been opened yet.
+     */
+    private final AtomicReferenceArray<FileChannel> channels;
+
+    /**
+     * The offset of each segment in the device.
+     */
+    private final long[] starts;
+
+    /**
+     * The size of the device.
+     */
+    private final long length;
+
+    /**
+     * The sector size to report.
+     */
+    private final int sectorSize;
+
+    /**
+     * Whether the device has been closed.
+     */
+    private boolean closed;
+
+    /**
+     * Opens a split image starting at its first segment, finding the other segments with
+     * {@link #findSegments(File)}.
+     *
+     * @param firstSegment the first segment.
+     * @throws IOException if an error occurs opening the image.
+     */
+    public SplitFileDevice(File firstSegment) throws IOException {
+        this(findSegments(firstSegment), FileChannelDevice.DEFAULT_SECTOR_SIZE);
+    }
+
+    /**
+     * Opens a split image.
+     *
+     * @param segments the segment files, in order.
+     * @param sectorSize the sector size to report.
+     * @throws IOException if a segment doesn't exist.
+     */
+    public SplitFileDevice(List<File> segments, int sectorSize) throws IOException {
+        super("split-" + segments.get(0).getName());
+
+        if (sectorSize <= 0) {
+            throw new IllegalArgumentException("Invalid sector size: " + sectorSize);
+        }
+
+        this.files = segments.toArray(new File[segments.size()]);
+        this.channels = new AtomicReferenceArray<FileChannel>(files.length);
+        this.starts = new long[files.length];
+        this.sectorSize = sectorSize;
+
+        long offset = 0;
+        for (int i = 0; i < files.length; i++) {
+            if (!files[i].isFile()) {
+                throw new FileNotFoundException(files[i].toString());
+            }
+            starts[i] = offset;
+            offset += files[i].length();
+        }
+        this.length = offset;
+
+        registerAPI(FSBlockDeviceAPI.class, this);
+    }
+
+    /**
+     * Finds the segments of a split image from its first segment. The first segment's extension must be a number,
+     * e.g. {@code .001} or {@code .000}, and the following segments are the files with the next numbers of the same
+     * width, up to the first one which doesn't exist.
+     *
+     * @param firstSegment the first segment.
+     * @return the segments, just the given file if its name doesn't look like a split image.
+     * @throws FileNotFoundException if the first segment doesn't exist.
+     */
+    public static List<File> findSegments(File firstSegment) throws FileNotFoundException {
+        if (!firstSegment.isFile()) {
+            throw new FileNotFoundException(firstSegment.toString());
+        }
+
+        List<File> files = new ArrayList<File>();
+        files.add(firstSegment);
+
+        String name = firstSegment.getName();
+        int dot = name.lastIndexOf('.');
+        String extension = name.substring(dot + 1);
+        if (dot < 0 || extension.isEmpty() || extension.length() > 9 || !isDigits(extension)) {
+            return files;
+        }
+
+        String base = name.substring(0, dot + 1);
+        String format = "%0" + extension.length() + "d";
+        for (int number = Integer.parseInt(extension) + 1; ; number++) {
+            String next = String.format(format, number);
+            if (next.length() != extension.length()) {
+                break;
+            }
+            File file = new File(firstSegment.getParentFile(), base + next);
+            if (!file.isFile()) {
+                break;
+            }
+            files.add(file);
+        }
+
+        return files;
+    }
+
+    /**
+     * Gets the number of segments.
+     *
+     * @return the count.
+     */
+    public int getSegmentCount() {
+        return files.length;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public int getSectorSize() {
+        return sectorSize;
+    }
+
+    @Override
+    public PartitionTableEntry getPartitionTableEntry() {
+        return null;
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        if (devOffset < 0) {
+            throw new IOException("devOffset < 0");
+        }
+        if (devOffset + dest.remaining() > length) {
+            throw new EOFException("Read past the end of the image: offset " + devOffset + ", length " +
+                dest.remaining());
+        }
+
+        long position = devOffset;
+        int index = findSegment(position);
+        while (dest.hasRemaining()) {
+            long segmentEnd = index + 1 < starts.length ? starts[index + 1] : length;
+            int count = (int) Math.min(dest.remaining(), segmentEnd - position);
+            if (count > 0) {
+                DiskImages.readFully(getChannel(index), position - starts[index], dest, count);
+                position += count;
+            }
+            index++;
+        }
+    }
+
+    /**
+     * Reads a batch of requests, merging neighbouring requests into single reads.
+     *
+     * @param requests the requests, in any order.
+     * @throws IOException if an error occurs reading.
+     */
+    @Override
+    public void readBatch(List<ReadRequest> requests) throws IOException {
+        ReadCoalescer.read(this, requests);
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        throw new IOException("Split images are read-only");
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to do
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        IOException error = null;
+        for (int i = 0; i < channels.length(); i++) {
+            FileChannel channel = channels.getAndSet(i, null);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SplitFileDevice:[%s segments:%d size:%d]", files[0], files.length, length);
+    }
+
+    /**
+     * Finds the segment containing an offset. Empty segments share their start with the next segment, so this
+     * returns the last segment starting at or before the offset.
+     *
+     * @param position the offset.
+     * @return the segment index.
+     */
+    private int findSegment(long position) {
+        int index = Arrays.binarySearch(starts, position);
+        if (index < 0) {
+            return -index - 2;
+        }
+        while (index + 1 < starts.length && starts[index + 1] == position) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Gets the channel to a segment, opening it on first use. Only opening takes the lock, reads of segments which
+     * are already open don't contend.
+     *
+     * @param index the segment index.
+     * @return the channel.
+     * @throws IOException if an error occurs opening the segment or the device is closed.
+     */
+    private FileChannel getChannel(int index) throws IOException {
+        FileChannel channel = channels.get(index);
+        if (channel != null) {
+            return channel;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Device is closed: " + files[0]);
+            }
+            channel = channels.get(index);
+            if (channel == null) {
+                channel = new RandomAccessFile(files[index], "r").getChannel();
+                channels.set(index, channel);
+            }
+            return channel;
+        }
+    }
+
+    private static boolean isDigits(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,648 @@
+package org.jnode.driver.block.ewf;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.AsyncBlockDevice;
+import org.jnode.driver.block.BlockIoExecutor;
+import org.jnode.driver.block.FSBlockDeviceAPI;
+import org.jnode.partitions.PartitionTableEntry;
+import org.jnode.util.LittleEndian;
+import org.jnode.util.LruCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read-only block device for an Expert Witness Format (EWF, e.g. E01) image.
+ * <p>
+ * The media data is stored in fixed size chunks, each either zlib compressed or stored with an Adler-32 checksum,
+ * spread over one or more segment files. The chunk tables of all segments are loaded when the device is opened and
+ * chunks are inflated on demand into a bounded LRU cache. When reads are sequential, or span several chunks, the
+ * following chunks are inflated in parallel on a {@link BlockIoExecutor} so that decompression keeps up with the
+ * reader.
+ */
+public class EwfDevice extends Device implements FSBlockDeviceAPI, Closeable {
+
+    /**
+     * The logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(EwfDevice.class);
+
+    /**
+     * The default number of decompressed chunks to cache.
+     */
+    public static final int DEFAULT_MAX_CACHED_CHUNKS = 256;
+
+    /**
+     * The default number of chunks to inflate ahead of sequential reads.
+     */
+    public static final int DEFAULT_READ_AHEAD_CHUNKS = 8;
+
+    /**
+     * The size of the checksum stored after uncompressed chunks.
+     */
+    private static final int CHECKSUM_SIZE = 4;
+
+    /**
+     * The segment files, in order.
+     */
+    private final List<EwfSegment> segments;
+
+    /**
+     * The chunk tables of all segments, in order.
+     */
+    private final List<EwfSegment.ChunkTable> tables = new ArrayList<EwfSegment.ChunkTable>();
+
+    /**
+     * The index of the first chunk in each table.
+     */
+    private final long[] tableFirstChunks;
+
+    /**
+     * The total number of chunks.
+     */
+    private final long chunkCount;
+
+    /**
+     * The size of a chunk in bytes.
+     */
+    private final int chunkSize;
+
+    /**
+     * The sector size.
+     */
+    private final int sectorSize;
+
+    /**
+     * The size of the media.
+     */
+    private final long length;
+
+    /**
+     * The cache of decompressed chunks.
+     */
+    private final LruCache<Long, byte[]> cache;
+
+    /**
+     * The chunks currently being inflated.
+     */
+    private final ConcurrentHashMap<Long, CompletableFuture<byte[]>> inflight =
+        new ConcurrentHashMap<Long, CompletableFuture<byte[]>>();
+
+    /**
+     * The executor to inflate ahead of the reader with.
+     */
+    private final BlockIoExecutor executor;
+
+    /**
+     * Whether the executor was created by, and should be closed by, this device.
+     */
+    private final boolean ownsExecutor;
+
+    /**
+     * The number of chunks to inflate ahead of sequential reads.
+     */
+    private final int readAheadChunks;
+
+    /**
+     * The chunk after the last one read, used to detect sequential reads.
+     */
+    private volatile long nextChunk = -1;
+
+    /**
+     * The number of chunks inflated.
+     */
+    private final LongAdder inflatedChunks = new LongAdder();
+
+    /**
+     * Opens an image from its first segment file, finding the other segments alongside it.
+     *
+     * @param firstSegment the first segment file, e.g. {@code image.E01}.
+     * @throws IOException if an error occurs reading the image.
+     */
+    public EwfDevice(File firstSegment) throws IOException {
+        this(findSegments(firstSegment), DEFAULT_MAX_CACHED_CHUNKS, DEFAULT_READ_AHEAD_CHUNKS, null);
+    }
+
+    /**
+     * Opens an image.
+     *
+     * @param segmentFiles the segment files.
+     * @param maxCachedChunks the number of decompressed chunks to cache.
+     * @param readAheadChunks the number of chunks to inflate ahead of sequential reads, or {@code 0} to disable
+     * parallel decompression.
+     * @param executor the executor to inflate chunks with, or {@code null} to create one which is closed on close.
+     * @throws IOException if an error occurs reading the image.
+     */
+    public EwfDevice(List<File> segmentFiles, int maxCachedChunks, int readAheadChunks, BlockIoExecutor executor)
+        throws IOException {
+        super("ewf-" + segmentFiles.get(0).getName());
+
+        if (readAheadChunks < 0 || maxCachedChunks <= readAheadChunks) {
+            throw new IllegalArgumentException("The cache must hold more than the read-ahead: " + maxCachedChunks +
+                ", " + readAheadChunks);
+        }
+
+        this.segments = openSegments(segmentFiles);
+
+        EwfVolume volume = null;
+        for (EwfSegment segment : segments) {
+            if (volume == null) {
+                volume = segment.getVolume();
+            }
+            tables.addAll(segment.getTables());
+        }
+        if (volume == null) {
+            closeSegments();
+            throw new IOException("No volume section found in " + segmentFiles.get(0));
+        }
+
+        tableFirstChunks = new long[tables.size()];
+        long chunks = 0;
+        for (int i = 0; i < tables.size(); i++) {
+            tableFirstChunks[i] = chunks;
+            chunks += tables.get(i).getChunkCount();
+        }
+
+        this.chunkCount = chunks;
+        this.chunkSize = volume.getChunkSize();
+        this.sectorSize = volume.getBytesPerSector();
+        this.length = volume.getMediaSize() > 0 ? volume.getMediaSize() : chunks * chunkSize;
+        this.readAheadChunks = readAheadChunks;
+        this.cache = new LruCache<Long, byte[]>(maxCachedChunks);
+
+        if (volume.getChunkCount() != chunks) {
+            log.warn("Volume expects {} chunks but the tables hold {}: {}", volume.getChunkCount(), chunks,
+                segmentFiles.get(0));
+        }
+        if ((length + chunkSize - 1) / chunkSize > chunks) {
+            closeSegments();
+            throw new IOException("Chunk tables only cover " + chunks + " chunks of " + length + " bytes: " +
+                segmentFiles.get(0));
+        }
+
+        if (executor == null && readAheadChunks > 0) {
+            int threads = Math.min(Runtime.getRuntime().availableProcessors(), readAheadChunks);
+            this.executor = new BlockIoExecutor(getId(), threads, readAheadChunks);
+            this.ownsExecutor = true;
+        } else {
+            this.executor = executor;
+            this.ownsExecutor = false;
+        }
+
+        registerAPI(FSBlockDeviceAPI.class, this);
+    }
+
+    /**
+     * Finds the segment files of an image. Segments are named with the extensions E01 to E99, then EAA to EZZ, FAA
+     * and so on, matching the case and the first letter of the first segment's extension.
+     *
+     * @param firstSegment the first segment file.
+     * @return the segment files found, in order.
+     * @throws FileNotFoundException if the first segment doesn't exist.
+     */
+    public static List<File> findSegments(File firstSegment) throws FileNotFoundException {
+        if (!firstSegment.isFile()) {
+            throw new FileNotFoundException(firstSegment.toString());
+        }
+
+        String name = firstSegment.getName();
+        int dot = name.lastIndexOf('.');
+        List<File> files = new ArrayList<File>();
+        files.add(firstSegment);
+
+        if (dot < 0 || name.length() - dot != 4) {
+            return files;
+        }
+
+        String base = name.substring(0, dot + 1);
+        char first = name.charAt(dot + 1);
+        boolean lowerCase = Character.isLowerCase(first);
+
+        for (int number = 2; ; number++) {
+            String extension = getSegmentExtension(Character.toUpperCase(first), number);
+            if (extension == null) {
+                break;
+            }
+            File file = new File(firstSegment.getParentFile(), base + (lowerCase ? extension.toLowerCase() :
+                extension));
+            if (!file.isFile()) {
+                break;
+            }
+            files.add(file);
+        }
+
+        return files;
+    }
+
+    /**
+     * Checks whether the start of a file has the EWF signature.
+     *
+     * @param header the start of the file.
+     * @return {@code true} if the file is an EWF segment.
+     */
+    public static boolean hasSignature(byte[] header) {
+        if (header.length < EwfSegment.SIGNATURE.length) {
+            return false;
+        }
+        for (int i = 0; i < EwfSegment.SIGNATURE.length; i++) {
+            if (header[i] != EwfSegment.SIGNATURE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the extension for a segment number.
+     *
+     * @param first the first letter of the extension, e.g. {@code 'E'}.
+     * @param number the segment number, starting at 1.
+     * @return the extension, or {@code null} if the number is past the end of the naming scheme.
+     */
+    static String getSegmentExtension(char first, int number) {
+        if (number < 100) {
+            return String.format("%c%02d", first, number);
+        }
+
+        int index = number - 100;
+        char letter = (char) (first + index / (26 * 26));
+        if (letter > 'Z') {
+            return null;
+        }
+        return new String(new char[] {letter, (char) ('A' + (index / 26) % 26), (char) ('A' + index % 26)});
+    }
+
+    /**
+     * Gets the number of chunks in the image.
+     *
+     * @return the count.
+     */
+    public long getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Gets the size of a chunk.
+     *
+     * @return the size in bytes.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Gets the number of segment files.
+     *
+     * @return the count.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Gets the number of chunks inflated or read so far, including ones inflated ahead of the reader.
+     *
+     * @return the count.
+     */
+    public long getInflatedChunkCount() {
+        return inflatedChunks.sum();
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public int getSectorSize() {
+        return sectorSize;
+    }
+
+    @Override
+    public PartitionTableEntry getPartitionTableEntry() {
+        return null;
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        if (devOffset < 0) {
+            throw new IOException("devOffset < 0");
+        }
+        if (devOffset + dest.remaining() > length) {
+            throw new IOException("Read past the end of the image: offset " + devOffset + ", length " +
+                dest.remaining());
+        }
+        if (!dest.hasRemaining()) {
+            return;
+        }
+
+        long firstChunk = devOffset / chunkSize;
+        long lastChunk = (devOffset + dest.remaining() - 1) / chunkSize;
+
+        if (executor != null && (firstChunk == nextChunk || firstChunk == nextChunk - 1 || lastChunk > firstChunk)) {
+            long end = Math.min(lastChunk + readAheadChunks, chunkCount - 1);
+            for (long chunk = firstChunk + 1; chunk <= end; chunk++) {
+                prefetch(chunk);
+            }
+        }
+        nextChunk = lastChunk + 1;
+
+        long position = devOffset;
+        for (long chunk = firstChunk; chunk <= lastChunk; chunk++) {
+            byte[] data = getChunk(chunk);
+            int offset = (int) (position - chunk * chunkSize);
+            int count = Math.min(dest.remaining(), data.length - offset);
+            dest.put(data, offset, count);
+            position += count;
+        }
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        throw new IOException("EWF images are read-only");
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to do
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsExecutor) {
+            executor.close();
+        }
+        cache.clear();
+        closeSegments();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EwfDevice:[%s segments:%d chunks:%d chunkSize:%d length:%d]", segments.get(0).getFile(),
+            segments.size(), chunkCount, chunkSize, length);
+    }
+
+    /**
+     * Closes the segment files.
+     *
+     * @throws IOException if an error occurs closing a file.
+     */
+    private void closeSegments() throws IOException {
+        IOException error = null;
+        for (EwfSegment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Gets a decompressed chunk, from the cache, from an inflate already in progress, or by inflating it on this
+     * thread.
+     *
+     * @param chunk the chunk index.
+     * @return the chunk data.
+     * @throws IOException if an error occurs reading the chunk.
+     */
+    private byte[] getChunk(long chunk) throws IOException {
+        while (true) {
+            byte[] data = cache.get(chunk);
+            if (data != null) {
+                return data;
+            }
+
+            CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+            CompletableFuture<byte[]> existing = inflight.putIfAbsent(chunk, future);
+            if (existing == null) {
+                inflate(chunk, future);
+                return AsyncBlockDevice.await(future);
+            }
+
+            try {
+                return AsyncBlockDevice.await(existing);
+            } catch (CancellationException e) {
+                // The read-ahead was dropped, so try again
+            }
+        }
+    }
+
+    /**
+     * Starts inflating a chunk in the background if it isn't cached or already being inflated.
+     *
+     * @param chunk the chunk index.
+     */
+    private void prefetch(final long chunk) {
+        if (inflight.containsKey(chunk) || cache.get(chunk) != null) {
+            return;
+        }
+
+        final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+        if (inflight.putIfAbsent(chunk, future) != null) {
+            return;
+        }
+
+        // Read-ahead doesn't wait for a permit, since the reader may itself be running on the executor, e.g. under an
+        // AsyncBlockDevice sharing it, and every permit could be held by readers waiting in the same place
+        CompletableFuture<Void> submitted = executor.trySubmit(new BlockIoExecutor.IoOperation<Void>() {
+            @Override
+            public Void call() {
+                inflate(chunk, future);
+                return null;
+            }
+        });
+        if (submitted == null) {
+            inflight.remove(chunk, future);
+            future.cancel(false);
+            return;
+        }
+
+        // inflate() never fails, so an error here means the executor dropped the task, e.g. it was closed. Unregister
+        // the chunk so that the reader inflates it itself.
+        submitted.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable error) {
+                if (error != null) {
+                    inflight.remove(chunk, future);
+                    future.cancel(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads and inflates a chunk, adding it to the cache and completing the future.
+     *
+     * @param chunk the chunk index.
+     * @param future the future for the chunk, which is registered as in flight.
+     */
+    private void inflate(long chunk, CompletableFuture<byte[]> future) {
+        try {
+            byte[] data = readChunk(chunk);
+            cache.put(chunk, data);
+            inflatedChunks.increment();
+            future.complete(data);
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        } finally {
+            inflight.remove(chunk, future);
+        }
+    }
+
+    /**
+     * Reads a chunk from its segment file.
+     *
+     * @param chunk the chunk index.
+     * @return the chunk data.
+     * @throws IOException if an error occurs reading, or the chunk is corrupt.
+     */
+    private byte[] readChunk(long chunk) throws IOException {
+        int tableIndex = findTable(chunk);
+        EwfSegment.ChunkTable table = tables.get(tableIndex);
+        int index = (int) (chunk - tableFirstChunks[tableIndex]);
+
+        long offset = table.getOffset(index);
+        long storedSize = table.getEnd(index) - offset;
+        int expectedSize = (int) Math.min(chunkSize, length - chunk * chunkSize);
+        boolean compressed = table.isCompressed(index);
+
+        if (storedSize <= 0 || storedSize > 2L * chunkSize + CHECKSUM_SIZE ||
+            (!compressed && storedSize < expectedSize)) {
+            throw new IOException("Invalid size " + storedSize + " for chunk " + chunk + " in " +
+                table.segment.getFile());
+        }
+
+        byte[] stored = table.segment.read(offset, (int) storedSize);
+
+        if (compressed) {
+            return decompress(chunk, stored, expectedSize);
+        }
+
+        if (storedSize >= expectedSize + CHECKSUM_SIZE) {
+            Adler32 adler = new Adler32();
+            adler.update(stored, 0, expectedSize);
+            long checksum = LittleEndian.getUInt32(stored, expectedSize);
+            if (adler.getValue() != checksum) {
+                throw new IOException("Checksum mismatch for chunk " + chunk + " in " + table.segment.getFile());
+            }
+        }
+
+        if (stored.length == expectedSize) {
+            return stored;
+        }
+        byte[] data = new byte[expectedSize];
+        System.arraycopy(stored, 0, data, 0, expectedSize);
+        return data;
+    }
+
+    /**
+     * Inflates a compressed chunk.
+     *
+     * @param chunk the chunk index.
+     * @param stored the compressed data.
+     * @param expectedSize the expected size of the chunk.
+     * @return the chunk data.
+     * @throws IOException if the data is corrupt.
+     */
+    private byte[] decompress(long chunk, byte[] stored, int expectedSize) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            byte[] data = new byte[expectedSize];
+            int size = 0;
+            while (size < expectedSize && !inflater.finished()) {
+                int count = inflater.inflate(data, size, expectedSize - size);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += count;
+            }
+
+            if (size != expectedSize) {
+                throw new IOException("Chunk " + chunk + " inflated to " + size + " bytes, expected " +
+                    expectedSize);
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chunk " + chunk, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Finds the table holding a chunk.
+     *
+     * @param chunk the chunk index.
+     * @return the index of the table.
+     */
+    private int findTable(long chunk) {
+        int low = 0;
+        int high = tableFirstChunks.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (tableFirstChunks[mid] <= chunk) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Opens the segment files and puts them in segment number order.
+     *
+     * @param segmentFiles the files.
+     * @return the segments.
+     * @throws IOException if an error occurs opening a segment.
+     */
+    private static List<EwfSegment> openSegments(List<File> segmentFiles) throws IOException {
+        List<EwfSegment> segments = new ArrayList<EwfSegment>();
+        try {
+            for (File file : segmentFiles) {
+                segments.add(new EwfSegment(file));
+            }
+        } catch (IOException e) {
+            for (EwfSegment segment : segments) {
+                segment.close();
+            }
+            throw e;
+        }
+
+        Collections.sort(segments, new Comparator<EwfSegment>() {
+            @Override
+            public int compare(EwfSegment segment1, EwfSegment segment2) {
+                return Integer.compare(segment1.getSegmentNumber(), segment2.getSegmentNumber());
+            }
+        });
+
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).getSegmentNumber() != i + 1) {
+                log.warn("Missing or duplicate EWF segment {}: {}", i + 1, segments.get(i).getFile());
+                break;
+            }
+        }
+        return segments;
+    }
+}
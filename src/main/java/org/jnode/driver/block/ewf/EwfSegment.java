@@ -0,0 +1,312 @@
+package org.jnode.driver.block.ewf;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jnode.util.LittleEndian;
+
+/**
+ * A single segment file (E01, E02, ...) of an EWF image.
+ * <p>
+ * A segment starts with a 13 byte file header followed by a chain of sections, each starting with a 76 byte section
+ * descriptor holding the section type, the offset of the next section and the size of the section. Only the sections
+ * needed to read the media data are parsed: the volume information and the chunk tables.
+ */
+final class EwfSegment implements Closeable {
+
+    /**
+     * The EWF file signature.
+     */
+    static final byte[] SIGNATURE = {'E', 'V', 'F', 0x09, 0x0d, 0x0a, (byte) 0xff, 0x00};
+
+    /**
+     * The size of the file header.
+     */
+    static final int FILE_HEADER_SIZE = 13;
+
+    /**
+     * The size of a section descriptor.
+     */
+    static final int SECTION_DESCRIPTOR_SIZE = 76;
+
+    /**
+     * The size of the header of a table section.
+     */
+    static final int TABLE_HEADER_SIZE = 24;
+
+    /**
+     * The file.
+     */
+    private final File file;
+
+    /**
+     * The channel to the file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The segment number from the file header.
+     */
+    private final int segmentNumber;
+
+    /**
+     * The volume information, or {@code null} if this segment has none.
+     */
+    private EwfVolume volume;
+
+    /**
+     * The chunk tables in this segment, in order.
+     */
+    private final List<ChunkTable> tables = new ArrayList<ChunkTable>();
+
+    /**
+     * Opens and parses a segment file.
+     *
+     * @param file the file.
+     * @throws IOException if an error occurs reading the file or it is not an EWF segment.
+     */
+    EwfSegment(File file) throws IOException {
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+
+        try {
+            byte[] header = read(0, FILE_HEADER_SIZE);
+            if (!Arrays.equals(Arrays.copyOf(header, SIGNATURE.length), SIGNATURE)) {
+                throw new IOException("Not an EWF segment file: " + file);
+            }
+            segmentNumber = LittleEndian.getUInt16(header, 9);
+
+            parseSections();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the file.
+     *
+     * @return the file.
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the segment number.
+     *
+     * @return the segment number, starting at 1.
+     */
+    int getSegmentNumber() {
+        return segmentNumber;
+    }
+
+    /**
+     * Gets the volume information.
+     *
+     * @return the volume information, or {@code null} if this segment has none.
+     */
+    EwfVolume getVolume() {
+        return volume;
+    }
+
+    /**
+     * Gets the chunk tables.
+     *
+     * @return the tables, in order.
+     */
+    List<ChunkTable> getTables() {
+        return tables;
+    }
+
+    /**
+     * Reads bytes from the file.
+     *
+     * @param offset the file offset.
+     * @param length the number of bytes to read.
+     * @return the data.
+     * @throws IOException if an error occurs reading or the file is too short.
+     */
+    byte[] read(long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Read past the end of " + file + ": offset " + position);
+            }
+            position += read;
+        }
+        return data;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EwfSegment:[%s segment:%d tables:%d]", file, segmentNumber, tables.size());
+    }
+
+    /**
+     * Walks the section chain.
+     *
+     * @throws IOException if an error occurs reading.
+     */
+    private void parseSections() throws IOException {
+        long fileSize = channel.size();
+        long offset = FILE_HEADER_SIZE;
+        long sectorsEnd = -1;
+
+        while (offset + SECTION_DESCRIPTOR_SIZE <= fileSize) {
+            byte[] descriptor = read(offset, SECTION_DESCRIPTOR_SIZE);
+            String type = getType(descriptor);
+            long next = LittleEndian.getInt64(descriptor, 16);
+            long size = LittleEndian.getInt64(descriptor, 24);
+
+            if ("volume".equals(type) || "disk".equals(type) || "data".equals(type)) {
+                if (volume == null) {
+                    long dataSize = size - SECTION_DESCRIPTOR_SIZE;
+                    volume = new EwfVolume(read(offset + SECTION_DESCRIPTOR_SIZE, EwfVolume.SIZE),
+                        dataSize <= EwfVolume.SMART_SECTION_SIZE);
+                }
+            } else if ("sectors".equals(type)) {
+                sectorsEnd = offset + size;
+            } else if ("table".equals(type)) {
+                tables.add(parseTable(offset, size, sectorsEnd));
+            } else if ("next".equals(type) || "done".equals(type)) {
+                break;
+            }
+
+            if (next <= offset) {
+                break;
+            }
+            offset = next;
+        }
+    }
+
+    /**
+     * Parses a table section.
+     *
+     * @param offset the offset of the section descriptor.
+     * @param size the size of the section.
+     * @param sectorsEnd the end of the preceding sectors section, or -1 if there isn't one.
+     * @return the table.
+     * @throws IOException if an error occurs reading.
+     */
+    private ChunkTable parseTable(long offset, long size, long sectorsEnd) throws IOException {
+        long dataOffset = offset + SECTION_DESCRIPTOR_SIZE;
+        byte[] header = read(dataOffset, TABLE_HEADER_SIZE);
+        int entryCount = (int) LittleEndian.getUInt32(header, 0);
+        long baseOffset = LittleEndian.getInt64(header, 8);
+
+        long maxEntries = (size - SECTION_DESCRIPTOR_SIZE - TABLE_HEADER_SIZE) / 4;
+        if (entryCount < 0 || entryCount > maxEntries) {
+            throw new IOException("Invalid chunk table entry count " + entryCount + " at " + offset + " in " + file);
+        }
+
+        byte[] data = read(dataOffset + TABLE_HEADER_SIZE, entryCount * 4);
+        int[] entries = new int[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            entries[i] = LittleEndian.getInt32(data, i * 4);
+        }
+
+        // Old formats store the chunks inside the table section, after the entries
+        long end = sectorsEnd > 0 && sectorsEnd <= offset ? sectorsEnd : offset + size;
+        return new ChunkTable(this, baseOffset, entries, end);
+    }
+
+    /**
+     * Gets the type of a section from its descriptor.
+     *
+     * @param descriptor the descriptor.
+     * @return the type.
+     */
+    private static String getType(byte[] descriptor) {
+        int length = 0;
+        while (length < 16 && descriptor[length] != 0) {
+            length++;
+        }
+        return new String(descriptor, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A table of chunk offsets.
+     * <p>
+     * Each entry holds the offset of a chunk relative to the table's base offset in the low 31 bits, with the top bit
+     * set if the chunk is compressed. Segments over 2GB written by some versions of EnCase overflow the 31 bits, after
+     * which the entries are full 32 bit offsets of uncompressed chunks.
+     */
+    static final class ChunkTable {
+        /**
+         * The segment holding the chunks.
+         */
+        final EwfSegment segment;
+
+        /**
+         * The base offset for the entries.
+         */
+        final long baseOffset;
+
+        /**
+         * The raw entries.
+         */
+        final int[] entries;
+
+        /**
+         * The end of the last chunk.
+         */
+        final long end;
+
+        /**
+         * The index of the first entry which has overflowed the 31 bit offset range.
+         */
+        final int overflowIndex;
+
+        ChunkTable(EwfSegment segment, long baseOffset, int[] entries, long end) {
+            this.segment = segment;
+            this.baseOffset = baseOffset;
+            this.entries = entries;
+            this.end = end;
+
+            int overflow = entries.length;
+            for (int i = 1; i < entries.length; i++) {
+                if ((entries[i] & 0x7fffffffL) < (entries[i - 1] & 0x7fffffffL)) {
+                    overflow = i;
+                    break;
+                }
+            }
+            this.overflowIndex = overflow;
+        }
+
+        int getChunkCount() {
+            return entries.length;
+        }
+
+        long getOffset(int index) {
+            if (index >= overflowIndex) {
+                return baseOffset + (entries[index] & 0xffffffffL);
+            }
+            return baseOffset + (entries[index] & 0x7fffffffL);
+        }
+
+        boolean isCompressed(int index) {
+            return index < overflowIndex && entries[index] < 0;
+        }
+
+        long getEnd(int index) {
+            return index + 1 < entries.length ? getOffset(index + 1) : end;
+        }
+    }
+}
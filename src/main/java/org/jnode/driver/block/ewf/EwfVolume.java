@@ -0,0 +1,82 @@
+package org.jnode.driver.block.ewf;
+
+import java.io.IOException;
+import org.jnode.util.LittleEndian;
+
+/**
+ * The media information from the volume (or disk, or data) section of an EWF image.
+ */
+final class EwfVolume {
+
+    /**
+     * The number of bytes of the section data that are parsed.
+     */
+    static final int SIZE = 24;
+
+    /**
+     * The size of the volume section data in the EWF-S01 (SMART) format, which only has a 32 bit sector count.
+     */
+    static final int SMART_SECTION_SIZE = 94;
+
+    /**
+     * The number of chunks.
+     */
+    private final long chunkCount;
+
+    /**
+     * The number of sectors in each chunk.
+     */
+    private final int sectorsPerChunk;
+
+    /**
+     * The number of bytes in each sector.
+     */
+    private final int bytesPerSector;
+
+    /**
+     * The number of sectors in the media.
+     */
+    private final long sectorCount;
+
+    /**
+     * Parses the volume information.
+     *
+     * @param data the start of the section data.
+     * @param smart {@code true} if this is the EWF-S01 layout.
+     * @throws IOException if the values are invalid.
+     */
+    EwfVolume(byte[] data, boolean smart) throws IOException {
+        chunkCount = LittleEndian.getUInt32(data, 4);
+        sectorsPerChunk = LittleEndian.getInt32(data, 8);
+        bytesPerSector = LittleEndian.getInt32(data, 12);
+        sectorCount = smart ? LittleEndian.getUInt32(data, 16) : LittleEndian.getInt64(data, 16);
+
+        if (sectorsPerChunk <= 0 || bytesPerSector <= 0 || (long) sectorsPerChunk * bytesPerSector > 0x7fffffffL ||
+            sectorCount < 0) {
+            throw new IOException(String.format("Invalid EWF volume: sectors/chunk %d, bytes/sector %d, sectors %d",
+                sectorsPerChunk, bytesPerSector, sectorCount));
+        }
+    }
+
+    long getChunkCount() {
+        return chunkCount;
+    }
+
+    int getBytesPerSector() {
+        return bytesPerSector;
+    }
+
+    int getChunkSize() {
+        return sectorsPerChunk * bytesPerSector;
+    }
+
+    long getMediaSize() {
+        return sectorCount * bytesPerSector;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EwfVolume:[chunks:%d sectors/chunk:%d bytes/sector:%d sectors:%d]", chunkCount,
+            sectorsPerChunk, bytesPerSector, sectorCount);
+    }
+}
@@ -0,0 +1,494 @@
+package org.jnode.driver.block.qcow2;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.jnode.driver.ApiNotFoundException;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.DiskImages;
+import org.jnode.driver.block.FSBlockDeviceAPI;
+import org.jnode.partitions.PartitionTableEntry;
+import org.jnode.util.BigEndian;
+import org.jnode.util.LruCache;
+
+/**
+ * A read-only block device for a QCOW2 image.
+ * <p>
+ * Guest offsets are mapped to clusters in the image through a two level table: the L1 table, which is loaded when the
+ * device is opened, points to L2 tables, which are loaded on demand into an LRU cache. Clusters may be stored as is,
+ * deflate compressed, marked as reading as zeros, or be unallocated, in which case they are read from the backing
+ * file if there is one and are zeros otherwise. Zero and unallocated clusters without a backing file are returned
+ * without any I/O, and runs of clusters which are contiguous in the image are read with a single request.
+ * <p>
+ * Internal snapshots are ignored; the active image is read.
+ */
+public class Qcow2Device extends Device implements FSBlockDeviceAPI, Closeable {
+
+    /**
+     * The QCOW magic number.
+     */
+    public static final int MAGIC = 0x514649fb;
+
+    /**
+     * The default number of L2 tables to cache.
+     */
+    public static final int DEFAULT_L2_CACHE_SIZE = 64;
+
+    /**
+     * The number of compressed clusters to keep decompressed.
+     */
+    private static final int COMPRESSED_CACHE_SIZE = 16;
+
+    /**
+     * The largest L1 table accepted, as a sanity check.
+     */
+    private static final int MAX_L1_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * The mask for the offset in L1 and standard L2 entries.
+     */
+    private static final long OFFSET_MASK = 0x00fffffffffffe00L;
+
+    /**
+     * The L2 entry flag for compressed clusters.
+     */
+    private static final long FLAG_COMPRESSED = 1L << 62;
+
+    /**
+     * The L2 entry flag for clusters which read as zeros (version 3).
+     */
+    private static final long FLAG_ZERO = 1L;
+
+    /**
+     * The incompatible feature bit for an external data file.
+     */
+    private static final long INCOMPATIBLE_DATA_FILE = 1L << 2;
+
+    /**
+     * The incompatible feature bit for a compression type other than deflate.
+     */
+    private static final long INCOMPATIBLE_COMPRESSION = 1L << 3;
+
+    /**
+     * The incompatible feature bit for extended L2 entries.
+     */
+    private static final long INCOMPATIBLE_EXTENDED_L2 = 1L << 4;
+
+    /**
+     * The incompatible features that can be read.
+     */
+    private static final long SUPPORTED_INCOMPATIBLE = 0x3L;
+
+    /**
+     * The image file.
+     */
+    private final File file;
+
+    /**
+     * The channel to the image file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The log2 of the cluster size.
+     */
+    private final int clusterBits;
+
+    /**
+     * The cluster size in bytes.
+     */
+    private final int clusterSize;
+
+    /**
+     * The log2 of the number of entries in an L2 table.
+     */
+    private final int l2Bits;
+
+    /**
+     * The virtual size of the image.
+     */
+    private final long length;
+
+    /**
+     * The L1 table.
+     */
+    private final long[] l1Table;
+
+    /**
+     * The cache of L2 tables, keyed by their offset in the image.
+     */
+    private final LruCache<Long, long[]> l2Cache;
+
+    /**
+     * The cache of decompressed clusters, keyed by their L2 entry.
+     */
+    private final LruCache<Long, byte[]> compressedCache = new LruCache<Long, byte[]>(COMPRESSED_CACHE_SIZE);
+
+    /**
+     * The backing device, or {@code null} if there isn't one.
+     */
+    private final Device backing;
+
+    /**
+     * The API of the backing device, or {@code null} if there isn't one.
+     */
+    private final BlockDeviceAPI backingApi;
+
+    /**
+     * Opens an image with the default L2 cache size.
+     *
+     * @param file the image file.
+     * @throws IOException if an error occurs opening the image or it isn't a supported QCOW2 image.
+     */
+    public Qcow2Device(File file) throws IOException {
+        this(file, DEFAULT_L2_CACHE_SIZE);
+    }
+
+    /**
+     * Opens an image.
+     *
+     * @param file the image file.
+     * @param l2CacheSize the number of L2 tables to cache.
+     * @throws IOException if an error occurs opening the image or it isn't a supported QCOW2 image.
+     */
+    public Qcow2Device(File file, int l2CacheSize) throws IOException {
+        this(file, l2CacheSize, DiskImages.addToChain(Collections.<File>emptyList(), file));
+    }
+
+    /**
+     * Opens an image as part of a chain of images, e.g. as the backing file of another image.
+     *
+     * @param file the image file.
+     * @param l2CacheSize the number of L2 tables to cache.
+     * @param chain the chain of images, ending with this one, as returned by {@link DiskImages#addToChain}.
+     * @throws IOException if an error occurs opening the image or it isn't a supported QCOW2 image, or the backing
+     * file is already in the chain.
+     */
+    public Qcow2Device(File file, int l2CacheSize, List<File> chain) throws IOException {
+        super("qcow2-" + file.getName());
+
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        this.l2Cache = new LruCache<Long, long[]>(l2CacheSize);
+
+        Device backingDevice = null;
+        try {
+            byte[] header = read(0, 104);
+            if (BigEndian.getInt32(header, 0) != MAGIC) {
+                throw new IOException("Not a QCOW2 image: " + file);
+            }
+
+            int version = BigEndian.getInt32(header, 4);
+            if (version != 2 && version != 3) {
+                throw new IOException("Unsupported QCOW version " + version + ": " + file);
+            }
+
+            clusterBits = BigEndian.getInt32(header, 20);
+            if (clusterBits < 9 || clusterBits > 21) {
+                throw new IOException("Invalid cluster bits " + clusterBits + ": " + file);
+            }
+            clusterSize = 1 << clusterBits;
+            l2Bits = clusterBits - 3;
+            length = BigEndian.getInt64(header, 24);
+
+            if (BigEndian.getInt32(header, 32) != 0) {
+                throw new IOException("Encrypted QCOW2 images are not supported: " + file);
+            }
+
+            if (version == 3) {
+                checkFeatures(header);
+            }
+
+            int l1Size = BigEndian.getInt32(header, 36);
+            long l1Offset = BigEndian.getInt64(header, 40);
+            long maxL1Size = (length + ((long) clusterSize << l2Bits) - 1) >>> (clusterBits + l2Bits);
+            if (l1Size < maxL1Size || l1Size > MAX_L1_SIZE) {
+                throw new IOException("Invalid L1 size " + l1Size + " for image size " + length + ": " + file);
+            }
+            byte[] l1Data = read(l1Offset, l1Size * 8);
+            l1Table = new long[l1Size];
+            for (int i = 0; i < l1Size; i++) {
+                l1Table[i] = BigEndian.getInt64(l1Data, i * 8) & OFFSET_MASK;
+            }
+
+            long backingOffset = BigEndian.getInt64(header, 8);
+            int backingSize = BigEndian.getInt32(header, 16);
+            if (backingOffset != 0 && backingSize > 0) {
+                if (backingSize > 1023) {
+                    throw new IOException("Invalid backing file name size " + backingSize + ": " + file);
+                }
+                String name = new String(read(backingOffset, backingSize), StandardCharsets.UTF_8);
+                File backingFile = DiskImages.resolveRelated(file, name);
+                if (backingFile == null) {
+                    throw new IOException("Can't find the backing file of QCOW2 " + file + ": " + name);
+                }
+                backingDevice = DiskImages.open(backingFile, chain);
+            }
+
+            backing = backingDevice;
+            backingApi = backingDevice == null ? null : backingDevice.getAPI(BlockDeviceAPI.class);
+        } catch (IOException | ApiNotFoundException | RuntimeException e) {
+            closeQuietly(backingDevice);
+            channel.close();
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw new IOException("Error opening " + file, e);
+        }
+
+        registerAPI(FSBlockDeviceAPI.class, this);
+    }
+
+    /**
+     * Checks whether the start of a file has the QCOW magic number.
+     *
+     * @param header the start of the file.
+     * @return {@code true} if the file is a QCOW image.
+     */
+    public static boolean hasSignature(byte[] header) {
+        return header.length >= 4 && BigEndian.getInt32(header, 0) == MAGIC;
+    }
+
+    /**
+     * Gets the cluster size.
+     *
+     * @return the size in bytes.
+     */
+    public int getClusterSize() {
+        return clusterSize;
+    }
+
+    /**
+     * Gets the backing device.
+     *
+     * @return the device, or {@code null} if the image has no backing file.
+     */
+    public Device getBacking() {
+        return backing;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public int getSectorSize() {
+        return 512;
+    }
+
+    @Override
+    public PartitionTableEntry getPartitionTableEntry() {
+        return null;
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        if (devOffset < 0) {
+            throw new IOException("devOffset < 0");
+        }
+        if (devOffset + dest.remaining() > length) {
+            throw new IOException("Read past the end of the image: offset " + devOffset + ", length " +
+                dest.remaining());
+        }
+
+        long position = devOffset;
+        while (dest.hasRemaining()) {
+            long entry = getL2Entry(position);
+            int clusterOffset = (int) (position & (clusterSize - 1));
+            int count = Math.min(dest.remaining(), clusterSize - clusterOffset);
+
+            if ((entry & FLAG_COMPRESSED) != 0) {
+                byte[] cluster = readCompressed(entry);
+                dest.put(cluster, clusterOffset, count);
+            } else if ((entry & FLAG_ZERO) != 0) {
+                DiskImages.fillZeros(dest, count);
+            } else if ((entry & OFFSET_MASK) == 0) {
+                // Unallocated: merge following unallocated clusters into one request to the backing file
+                while (count < dest.remaining() && isUnallocated(getL2Entry(position + count))) {
+                    count += Math.min(dest.remaining() - count, clusterSize);
+                }
+                DiskImages.readParent(backingApi, position, dest, count);
+            } else {
+                // Merge following clusters which are contiguous in the image into one read
+                long hostOffset = (entry & OFFSET_MASK) + clusterOffset;
+                while (count < dest.remaining()) {
+                    long next = getL2Entry(position + count);
+                    if ((next & (FLAG_COMPRESSED | FLAG_ZERO)) != 0 || (next & OFFSET_MASK) != hostOffset + count) {
+                        break;
+                    }
+                    count += Math.min(dest.remaining() - count, clusterSize);
+                }
+                DiskImages.readFully(channel, hostOffset, dest, count);
+            }
+
+            position += count;
+        }
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        throw new IOException("QCOW2 images are read-only");
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to do
+    }
+
+    @Override
+    public void close() throws IOException {
+        l2Cache.clear();
+        compressedCache.clear();
+        try {
+            channel.close();
+        } finally {
+            if (backing instanceof Closeable) {
+                ((Closeable) backing).close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Qcow2Device:[%s size:%d clusterSize:%d backing:%s]", file, length, clusterSize,
+            backing == null ? null : backing.getId());
+    }
+
+    /**
+     * Checks the version 3 feature bits.
+     *
+     * @param header the header.
+     * @throws IOException if the image uses a feature that isn't supported.
+     */
+    private void checkFeatures(byte[] header) throws IOException {
+        long incompatible = BigEndian.getInt64(header, 72);
+        int headerLength = BigEndian.getInt32(header, 100);
+
+        if ((incompatible & INCOMPATIBLE_COMPRESSION) != 0 && headerLength > 104) {
+            byte[] extra = read(104, 1);
+            if (extra[0] != 0) {
+                throw new IOException("Unsupported QCOW2 compression type " + extra[0] + ": " + file);
+            }
+            incompatible &= ~INCOMPATIBLE_COMPRESSION;
+        }
+        if ((incompatible & INCOMPATIBLE_DATA_FILE) != 0) {
+            throw new IOException("QCOW2 images with an external data file are not supported: " + file);
+        }
+        if ((incompatible & INCOMPATIBLE_EXTENDED_L2) != 0) {
+            throw new IOException("QCOW2 images with extended L2 entries are not supported: " + file);
+        }
+        if ((incompatible & ~SUPPORTED_INCOMPATIBLE) != 0) {
+            throw new IOException(String.format("Unsupported QCOW2 features 0x%x: %s", incompatible, file));
+        }
+    }
+
+    /**
+     * Gets the L2 entry for a guest offset.
+     *
+     * @param position the guest offset.
+     * @return the entry, or {@code 0} if the L2 table isn't allocated.
+     * @throws IOException if an error occurs reading the L2 table.
+     */
+    private long getL2Entry(long position) throws IOException {
+        long clusterIndex = position >>> clusterBits;
+        int l1Index = (int) (clusterIndex >>> l2Bits);
+        long l2Offset = l1Table[l1Index];
+        if (l2Offset == 0) {
+            return 0;
+        }
+
+        long[] l2Table = l2Cache.get(l2Offset);
+        if (l2Table == null) {
+            byte[] data = read(l2Offset, clusterSize);
+            l2Table = new long[clusterSize / 8];
+            for (int i = 0; i < l2Table.length; i++) {
+                l2Table[i] = BigEndian.getInt64(data, i * 8);
+            }
+            l2Cache.put(l2Offset, l2Table);
+        }
+
+        return l2Table[(int) (clusterIndex & ((1 << l2Bits) - 1))];
+    }
+
+    private static boolean isUnallocated(long entry) {
+        return (entry & (FLAG_COMPRESSED | FLAG_ZERO | OFFSET_MASK)) == 0;
+    }
+
+    /**
+     * Reads and inflates a compressed cluster.
+     *
+     * @param entry the L2 entry of the cluster.
+     * @return the cluster data.
+     * @throws IOException if an error occurs reading or the cluster is corrupt.
+     */
+    private byte[] readCompressed(long entry) throws IOException {
+        byte[] cluster = compressedCache.get(entry);
+        if (cluster != null) {
+            return cluster;
+        }
+
+        int offsetBits = 62 - (clusterBits - 8);
+        long hostOffset = entry & ((1L << offsetBits) - 1);
+        long sectors = ((entry & 0x3fffffffffffffffL) >>> offsetBits) + 1;
+        int compressedSize = (int) Math.min(sectors * 512 - (hostOffset & 511), channel.size() - hostOffset);
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(read(hostOffset, compressedSize));
+            cluster = new byte[clusterSize];
+            int size = 0;
+            while (size < clusterSize && !inflater.finished()) {
+                int count = inflater.inflate(cluster, size, clusterSize - size);
+                if (count == 0 && inflater.needsInput()) {
+                    break;
+                }
+                size += count;
+            }
+            if (size != clusterSize) {
+                throw new IOException("Compressed cluster at " + hostOffset + " inflated to " + size + " bytes: " +
+                    file);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed cluster at " + hostOffset + ": " + file, e);
+        } finally {
+            inflater.end();
+        }
+
+        compressedCache.put(entry, cluster);
+        return cluster;
+    }
+
+    /**
+     * Reads metadata from the image file.
+     *
+     * @param offset the offset in the image file.
+     * @param length the number of bytes to read.
+     * @return the data.
+     * @throws IOException if an error occurs reading.
+     */
+    private byte[] read(long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        DiskImages.readFully(channel, offset, ByteBuffer.wrap(data), length);
+        return data;
+    }
+
+    private static void closeQuietly(Device device) {
+        if (device instanceof Closeable) {
+            try {
+                ((Closeable) device).close();
+            } catch (IOException e) {
+                // Already failing
+            }
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package org.jnode.driver.block.vhd;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import org.jnode.driver.ApiNotFoundException;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.DiskImages;
+import org.jnode.driver.block.FSBlockDeviceAPI;
+import org.jnode.partitions.PartitionTableEntry;
+import org.jnode.util.BigEndian;
+import org.jnode.util.LruCache;
+
+/**
+ * A read-only block device for a VHD image (fixed, dynamic or differencing).
+ * <p>
+ * Fixed images are the raw disk data followed by a 512 byte footer. Dynamic and differencing images store the data in
+ * blocks located through the block allocation table (BAT), which is loaded when the device is opened. Each block
+ * starts with a sector bitmap; for differencing images a clear bit means the sector is read from the parent image.
+ * Unallocated blocks read as zeros, or from the parent, without any I/O to this image. Sector bitmaps are kept in an
+ * LRU cache.
+ */
+public class VhdDevice extends Device implements FSBlockDeviceAPI, Closeable {
+
+    /**
+     * The footer cookie.
+     */
+    public static final byte[] FOOTER_COOKIE = "conectix".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The disk type of fixed images.
+     */
+    public static final int TYPE_FIXED = 2;
+
+    /**
+     * The disk type of dynamic images.
+     */
+    public static final int TYPE_DYNAMIC = 3;
+
+    /**
+     * The disk type of differencing images.
+     */
+    public static final int TYPE_DIFFERENCING = 4;
+
+    /**
+     * The default number of sector bitmaps to cache.
+     */
+    public static final int DEFAULT_BITMAP_CACHE_SIZE = 256;
+
+    /**
+     * The size of the footer.
+     */
+    static final int FOOTER_SIZE = 512;
+
+    /**
+     * The size of the dynamic disk header.
+     */
+    static final int DYNAMIC_HEADER_SIZE = 1024;
+
+    /**
+     * The BAT entry for an unallocated block.
+     */
+    private static final int UNALLOCATED = 0xffffffff;
+
+    /**
+     * The platform code for a relative Windows path in UTF-16LE.
+     */
+    private static final int PLATFORM_W2RU = 0x57327275;
+
+    /**
+     * The platform code for an absolute Windows path in UTF-16LE.
+     */
+    private static final int PLATFORM_W2KU = 0x57326b75;
+
+    /**
+     * The sector size.
+     */
+    private static final int SECTOR_SIZE = 512;
+
+    /**
+     * The image file.
+     */
+    private final File file;
+
+    /**
+     * The channel to the image file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The disk type.
+     */
+    private final int diskType;
+
+    /**
+     * The virtual size of the disk.
+     */
+    private final long length;
+
+    /**
+     * The block size, for dynamic and differencing images.
+     */
+    private final int blockSize;
+
+    /**
+     * The size of the sector bitmap at the start of each block, rounded up to a whole sector.
+     */
+    private final int bitmapSize;
+
+    /**
+     * The block allocation table, holding the sector offset of each block.
+     */
+    private final int[] bat;
+
+    /**
+     * The cache of sector bitmaps, keyed by block index.
+     */
+    private final LruCache<Integer, byte[]> bitmapCache;
+
+    /**
+     * The parent device, or {@code null} if this isn't a differencing image.
+     */
+    private final Device parent;
+
+    /**
+     * The API of the parent device, or {@code null}.
+     */
+    private final BlockDeviceAPI parentApi;
+
+    /**
+     * Opens an image with the default bitmap cache size.
+     *
+     * @param file the image file.
+     * @throws IOException if an error occurs opening the image or it isn't a supported VHD image.
+     */
+    public VhdDevice(File file) throws IOException {
+        this(file, DEFAULT_BITMAP_CACHE_SIZE);
+    }
+
+    /**
+     * Opens an image.
+     *
+     * @param file the image file.
+     * @param bitmapCacheSize the number of sector bitmaps to cache.
+     * @throws IOException if an error occurs opening the image or it isn't a supported VHD image.
+     */
+    public VhdDevice(File file, int bitmapCacheSize) throws IOException {
+        this(file, bitmapCacheSize, DiskImages.addToChain(Collections.<File>emptyList(), file));
+    }
+
+    /**
+     * Opens an image as part of a chain of images, e.g. as the parent of another image.
+     *
+     * @param file the image file.
+     * @param bitmapCacheSize the number of sector bitmaps to cache.
+     * @param chain the chain of images, ending with this one, as returned by {@link DiskImages#addToChain}.
+     * @throws IOException if an error occurs opening the image or it isn't a supported VHD image, or the parent is
+     * already in the chain.
+     */
+    public VhdDevice(File file, int bitmapCacheSize, List<File> chain) throws IOException {
+        super("vhd-" + file.getName());
+
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        this.bitmapCache = new LruCache<Integer, byte[]>(bitmapCacheSize);
+
+        Device parentDevice = null;
+        try {
+            long fileSize = channel.size();
+            if (fileSize < FOOTER_SIZE) {
+                throw new IOException("Not a VHD image: " + file);
+            }
+
+            // Dynamic images have a copy of the footer at the start, which survives a truncated file
+            byte[] footer = read(fileSize - FOOTER_SIZE, FOOTER_SIZE);
+            if (!hasSignature(footer)) {
+                footer = read(0, FOOTER_SIZE);
+                if (!hasSignature(footer)) {
+                    throw new IOException("Not a VHD image: " + file);
+                }
+            }
+
+            diskType = BigEndian.getInt32(footer, 60);
+            length = BigEndian.getInt64(footer, 48);
+
+            if (diskType == TYPE_FIXED) {
+                if (length > fileSize - FOOTER_SIZE) {
+                    throw new IOException("Fixed VHD is shorter than its size " + length + ": " + file);
+                }
+                blockSize = 0;
+                bitmapSize = 0;
+                bat = null;
+            } else if (diskType == TYPE_DYNAMIC || diskType == TYPE_DIFFERENCING) {
+                long headerOffset = BigEndian.getInt64(footer, 16);
+                byte[] header = read(headerOffset, DYNAMIC_HEADER_SIZE);
+                if (!"cxsparse".equals(new String(header, 0, 8, StandardCharsets.US_ASCII))) {
+                    throw new IOException("Invalid dynamic disk header: " + file);
+                }
+
+                long batOffset = BigEndian.getInt64(header, 16);
+                int batEntries = BigEndian.getInt32(header, 28);
+                blockSize = BigEndian.getInt32(header, 32);
+                if (blockSize < SECTOR_SIZE || Integer.bitCount(blockSize) != 1) {
+                    throw new IOException("Invalid VHD block size " + blockSize + ": " + file);
+                }
+                if (batEntries < 0 || (long) batEntries * blockSize < length) {
+                    throw new IOException("VHD BAT has too few entries (" + batEntries + "): " + file);
+                }
+
+                int sectorsPerBlock = blockSize / SECTOR_SIZE;
+                bitmapSize = ((sectorsPerBlock / 8 + SECTOR_SIZE - 1) / SECTOR_SIZE) * SECTOR_SIZE;
+
+                byte[] batData = read(batOffset, batEntries * 4);
+                bat = new int[batEntries];
+                for (int i = 0; i < batEntries; i++) {
+                    bat[i] = BigEndian.getInt32(batData, i * 4);
+                }
+
+                if (diskType == TYPE_DIFFERENCING) {
+                    parentDevice = DiskImages.open(findParent(header), chain);
+                }
+            } else {
+                throw new IOException("Unsupported VHD disk type " + diskType + ": " + file);
+            }
+
+            parent = parentDevice;
+            parentApi = parentDevice == null ? null : parentDevice.getAPI(BlockDeviceAPI.class);
+        } catch (IOException | ApiNotFoundException | RuntimeException e) {
+            closeQuietly(parentDevice);
+            channel.close();
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw new IOException("Error opening " + file, e);
+        }
+
+        registerAPI(FSBlockDeviceAPI.class, this);
+    }
+
+    /**
+     * Checks whether a block has the VHD footer cookie. Fixed images only have the footer at the end of the file.
+     *
+     * @param footer the block.
+     * @return {@code true} if the block is a VHD footer.
+     */
+    public static boolean hasSignature(byte[] footer) {
+        if (footer.length < FOOTER_COOKIE.length) {
+            return false;
+        }
+        for (int i = 0; i < FOOTER_COOKIE.length; i++) {
+            if (footer[i] != FOOTER_COOKIE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the disk type.
+     *
+     * @return one of {@link #TYPE_FIXED}, {@link #TYPE_DYNAMIC} or {@link #TYPE_DIFFERENCING}.
+     */
+    public int getDiskType() {
+        return diskType;
+    }
+
+    /**
+     * Gets the parent device.
+     *
+     * @return the device, or {@code null} if this isn't a differencing image.
+     */
+    public Device getParent() {
+        return parent;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public int getSectorSize() {
+        return SECTOR_SIZE;
+    }
+
+    @Override
+    public PartitionTableEntry getPartitionTableEntry() {
+        return null;
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        if (devOffset < 0) {
+            throw new IOException("devOffset < 0");
+        }
+        if (devOffset + dest.remaining() > length) {
+            throw new IOException("Read past the end of the image: offset " + devOffset + ", length " +
+                dest.remaining());
+        }
+
+        if (diskType == TYPE_FIXED) {
+            DiskImages.readFully(channel, devOffset, dest, dest.remaining());
+            return;
+        }
+
+        long position = devOffset;
+        while (dest.hasRemaining()) {
+            int blockIndex = (int) (position / blockSize);
+            int blockOffset = (int) (position % blockSize);
+            int count = Math.min(dest.remaining(), blockSize - blockOffset);
+            int entry = bat[blockIndex];
+
+            if (entry == UNALLOCATED) {
+                DiskImages.readParent(parentApi, position, dest, count);
+            } else {
+                long dataOffset = (entry & 0xffffffffL) * SECTOR_SIZE + bitmapSize;
+                if (parentApi == null) {
+                    DiskImages.readFully(channel, dataOffset + blockOffset, dest, count);
+                } else {
+                    readDifferencing(blockIndex, blockOffset, dataOffset, position, dest, count);
+                }
+            }
+
+            position += count;
+        }
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        throw new IOException("VHD images are read-only");
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to do
+    }
+
+    @Override
+    public void close() throws IOException {
+        bitmapCache.clear();
+        try {
+            channel.close();
+        } finally {
+            if (parent instanceof Closeable) {
+                ((Closeable) parent).close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("VhdDevice:[%s type:%d size:%d blockSize:%d parent:%s]", file, diskType, length,
+            blockSize, parent == null ? null : parent.getId());
+    }
+
+    /**
+     * Reads part of an allocated block of a differencing image, taking each run of sectors from this image or the
+     * parent according to the sector bitmap.
+     *
+     * @param blockIndex the block index.
+     * @param blockOffset the offset to read from in the block.
+     * @param dataOffset the offset of the block's data in the image file.
+     * @param position the virtual offset being read.
+     * @param dest the buffer to read into.
+     * @param count the number of bytes to read.
+     * @throws IOException if an error occurs reading.
+     */
+    private void readDifferencing(int blockIndex, int blockOffset, long dataOffset, long position, ByteBuffer dest,
+                                  int count) throws IOException {
+        byte[] bitmap = getBitmap(blockIndex, dataOffset - bitmapSize);
+
+        int offset = blockOffset;
+        int end = blockOffset + count;
+        while (offset < end) {
+            int sector = offset / SECTOR_SIZE;
+            boolean present = isSet(bitmap, sector);
+
+            int runEnd = (sector + 1) * SECTOR_SIZE;
+            while (runEnd < end && isSet(bitmap, runEnd / SECTOR_SIZE) == present) {
+                runEnd += SECTOR_SIZE;
+            }
+            int runLength = Math.min(runEnd, end) - offset;
+
+            if (present) {
+                DiskImages.readFully(channel, dataOffset + offset, dest, runLength);
+            } else {
+                DiskImages.readParent(parentApi, position + offset - blockOffset, dest, runLength);
+            }
+            offset += runLength;
+        }
+    }
+
+    private static boolean isSet(byte[] bitmap, int sector) {
+        return (bitmap[sector >>> 3] & (0x80 >>> (sector & 7))) != 0;
+    }
+
+    /**
+     * Gets the sector bitmap of a block.
+     *
+     * @param blockIndex the block index.
+     * @param bitmapOffset the offset of the bitmap in the image file.
+     * @return the bitmap.
+     * @throws IOException if an error occurs reading.
+     */
+    private byte[] getBitmap(int blockIndex, long bitmapOffset) throws IOException {
+        byte[] bitmap = bitmapCache.get(blockIndex);
+        if (bitmap == null) {
+            bitmap = read(bitmapOffset, bitmapSize);
+            bitmapCache.put(blockIndex, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Finds the parent of a differencing image from the parent locators in the dynamic disk header, falling back to
+     * the parent's name.
+     *
+     * @param header the dynamic disk header.
+     * @return the parent file.
+     * @throws IOException if the parent can't be found.
+     */
+    private File findParent(byte[] header) throws IOException {
+        Charset utf16le = Charset.forName("UTF-16LE");
+        String relative = null;
+        String absolute = null;
+
+        for (int i = 0; i < 8; i++) {
+            int locator = 576 + i * 24;
+            int platform = BigEndian.getInt32(header, locator);
+            int dataLength = BigEndian.getInt32(header, locator + 8);
+            long dataOffset = BigEndian.getInt64(header, locator + 16);
+            if (dataLength <= 0 || dataLength > 4096) {
+                continue;
+            }
+
+            if (platform == PLATFORM_W2RU) {
+                relative = trimNulls(new String(read(dataOffset, dataLength), utf16le));
+            } else if (platform == PLATFORM_W2KU) {
+                absolute = trimNulls(new String(read(dataOffset, dataLength), utf16le));
+            }
+        }
+
+        String name = trimNulls(new String(header, 64, 512, StandardCharsets.UTF_16BE));
+        File parentFile = DiskImages.resolveRelated(file, relative, absolute, name);
+        if (parentFile == null) {
+            throw new IOException("Can't find the parent of differencing VHD " + file + ": " +
+                (relative != null ? relative : absolute != null ? absolute : name));
+        }
+        return parentFile;
+    }
+
+    private static String trimNulls(String value) {
+        int end = value.indexOf('\0');
+        return end < 0 ? value : value.substring(0, end);
+    }
+
+    /**
+     * Reads metadata from the image file.
+     *
+     * @param offset the offset in the image file.
+     * @param length the number of bytes to read.
+     * @return the data.
+     * @throws IOException if an error occurs reading.
+     */
+    private byte[] read(long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        DiskImages.readFully(channel, offset, ByteBuffer.wrap(data), length);
+        return data;
+    }
+
+    private static void closeQuietly(Device device) {
+        if (device instanceof Closeable) {
+            try {
+                ((Closeable) device).close();
+            } catch (IOException e) {
+                // Already failing
+            }
+        }
+    }
+}
@@ -0,0 +1,608 @@
+package org.jnode.driver.block.vhd;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.jnode.driver.ApiNotFoundException;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.DiskImages;
+import org.jnode.driver.block.FSBlockDeviceAPI;
+import org.jnode.partitions.PartitionTableEntry;
+import org.jnode.util.LittleEndian;
+import org.jnode.util.LruCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read-only block device for a VHDX image.
+ * <p>
+ * The current header and the region table locate the BAT and the metadata region. The metadata gives the block size,
+ * the virtual size, the logical sector size and, for differencing images, the parent locator. The BAT is loaded when
+ * the device is opened and interleaves payload block entries with sector bitmap entries, one for every chunk of
+ * payload blocks. Blocks which aren't present read as zeros, or from the parent, without any I/O to this image, and
+ * the sector bitmaps of partially present blocks are kept in an LRU cache.
+ * <p>
+ * The log is not replayed, so an image that wasn't closed cleanly may be read in the state before its last updates.
+ */
+public class VhdxDevice extends Device implements FSBlockDeviceAPI, Closeable {
+
+    /**
+     * The logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(VhdxDevice.class);
+
+    /**
+     * The file type identifier signature.
+     */
+    public static final byte[] SIGNATURE = "vhdxfile".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The default number of sector bitmap blocks to cache.
+     */
+    public static final int DEFAULT_BITMAP_CACHE_SIZE = 16;
+
+    /**
+     * The offsets of the two headers.
+     */
+    private static final long[] HEADER_OFFSETS = {64 * 1024, 128 * 1024};
+
+    /**
+     * The offset of the region table.
+     */
+    private static final long REGION_TABLE_OFFSET = 192 * 1024;
+
+    /**
+     * The size of the region table.
+     */
+    private static final int REGION_TABLE_SIZE = 64 * 1024;
+
+    /**
+     * The size of a sector bitmap block.
+     */
+    private static final int BITMAP_BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * The region ID of the BAT.
+     */
+    private static final UUID REGION_BAT = UUID.fromString("2DC27766-F623-4200-9D64-115E9BFD4A08");
+
+    /**
+     * The region ID of the metadata.
+     */
+    private static final UUID REGION_METADATA = UUID.fromString("8B7CA206-4790-4B9A-B8FE-575F050F886E");
+
+    /**
+     * The metadata item ID of the file parameters.
+     */
+    private static final UUID METADATA_FILE_PARAMETERS = UUID.fromString("CAA16737-FA36-4D43-B3B6-33F0AA44E76B");
+
+    /**
+     * The metadata item ID of the virtual disk size.
+     */
+    private static final UUID METADATA_VIRTUAL_DISK_SIZE = UUID.fromString("2FA54224-CD1B-4876-B211-5DBED83BF4B8");
+
+    /**
+     * The metadata item ID of the logical sector size.
+     */
+    private static final UUID METADATA_LOGICAL_SECTOR_SIZE = UUID.fromString("8141BF1D-A96F-4709-BA47-F233A8FAAB5F");
+
+    /**
+     * The metadata item ID of the parent locator.
+     */
+    private static final UUID METADATA_PARENT_LOCATOR = UUID.fromString("A8D35F2D-B30B-454D-ABF7-D3D84834AB0C");
+
+    /**
+     * The payload block state for a block which is not present (read from the parent in differencing images).
+     */
+    private static final int PAYLOAD_NOT_PRESENT = 0;
+
+    /**
+     * The payload block state for a block which is fully present in this image.
+     */
+    private static final int PAYLOAD_FULLY_PRESENT = 6;
+
+    /**
+     * The payload block state for a block which is partially present, in differencing images.
+     */
+    private static final int PAYLOAD_PARTIALLY_PRESENT = 7;
+
+    /**
+     * The mask for the file offset in BAT entries.
+     */
+    private static final long BAT_OFFSET_MASK = 0xfffffffffff00000L;
+
+    /**
+     * The image file.
+     */
+    private final File file;
+
+    /**
+     * The channel to the image file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The virtual size of the disk.
+     */
+    private final long length;
+
+    /**
+     * The payload block size.
+     */
+    private final int blockSize;
+
+    /**
+     * The logical sector size.
+     */
+    private final int sectorSize;
+
+    /**
+     * The number of payload blocks covered by each sector bitmap block.
+     */
+    private final int chunkRatio;
+
+    /**
+     * The BAT.
+     */
+    private final long[] bat;
+
+    /**
+     * The cache of sector bitmap blocks, keyed by chunk index.
+     */
+    private final LruCache<Integer, byte[]> bitmapCache;
+
+    /**
+     * The parent device, or {@code null} if this isn't a differencing image.
+     */
+    private final Device parent;
+
+    /**
+     * The API of the parent device, or {@code null}.
+     */
+    private final BlockDeviceAPI parentApi;
+
+    /**
+     * Opens an image with the default bitmap cache size.
+     *
+     * @param file the image file.
+     * @throws IOException if an error occurs opening the image or it isn't a supported VHDX image.
+     */
+    public VhdxDevice(File file) throws IOException {
+        this(file, DEFAULT_BITMAP_CACHE_SIZE);
+    }
+
+    /**
+     * Opens an image.
+     *
+     * @param file the image file.
+     * @param bitmapCacheSize the number of 1MB sector bitmap blocks to cache.
+     * @throws IOException if an error occurs opening the image or it isn't a supported VHDX image.
+     */
+    public VhdxDevice(File file, int bitmapCacheSize) throws IOException {
+        this(file, bitmapCacheSize, DiskImages.addToChain(Collections.<File>emptyList(), file));
+    }
+
+    /**
+     * Opens an image as part of a chain of images, e.g. as the parent of another image.
+     *
+     * @param file the image file.
+     * @param bitmapCacheSize the number of 1MB sector bitmap blocks to cache.
+     * @param chain the chain of images, ending with this one, as returned by {@link DiskImages#addToChain}.
+     * @throws IOException if an error occurs opening the image or it isn't a supported VHDX image, or the parent is
+     * already in the chain.
+     */
+    public VhdxDevice(File file, int bitmapCacheSize, List<File> chain) throws IOException {
+        super("vhdx-" + file.getName());
+
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        this.bitmapCache = new LruCache<Integer, byte[]>(bitmapCacheSize);
+
+        Device parentDevice = null;
+        try {
+            if (!hasSignature(read(0, SIGNATURE.length))) {
+                throw new IOException("Not a VHDX image: " + file);
+            }
+
+            readHeader();
+
+            Map<UUID, long[]> regions = readRegionTable();
+            long[] batRegion = regions.get(REGION_BAT);
+            long[] metadataRegion = regions.get(REGION_METADATA);
+            if (batRegion == null || metadataRegion == null) {
+                throw new IOException("VHDX region table is missing the BAT or metadata: " + file);
+            }
+
+            Map<UUID, byte[]> metadata = readMetadata(metadataRegion[0], (int) metadataRegion[1]);
+            byte[] fileParameters = requireItem(metadata, METADATA_FILE_PARAMETERS);
+            blockSize = LittleEndian.getInt32(fileParameters, 0);
+            boolean hasParent = (LittleEndian.getInt32(fileParameters, 4) & 2) != 0;
+            length = LittleEndian.getInt64(requireItem(metadata, METADATA_VIRTUAL_DISK_SIZE), 0);
+            sectorSize = LittleEndian.getInt32(requireItem(metadata, METADATA_LOGICAL_SECTOR_SIZE), 0);
+
+            if (blockSize < BITMAP_BLOCK_SIZE || Integer.bitCount(blockSize) != 1) {
+                throw new IOException("Invalid VHDX block size " + blockSize + ": " + file);
+            }
+            if (sectorSize != 512 && sectorSize != 4096) {
+                throw new IOException("Invalid VHDX sector size " + sectorSize + ": " + file);
+            }
+
+            chunkRatio = (int) ((8L * BITMAP_BLOCK_SIZE * sectorSize) / blockSize);
+            long blockCount = (length + blockSize - 1) / blockSize;
+            long entryCount = hasParent ? ((blockCount + chunkRatio - 1) / chunkRatio) * (chunkRatio + 1) :
+                blockCount + (blockCount - 1) / chunkRatio;
+            if (entryCount * 8 > batRegion[1]) {
+                throw new IOException("VHDX BAT region is too small for " + entryCount + " entries: " + file);
+            }
+
+            byte[] batData = read(batRegion[0], (int) (entryCount * 8));
+            bat = new long[(int) entryCount];
+            for (int i = 0; i < bat.length; i++) {
+                bat[i] = LittleEndian.getInt64(batData, i * 8);
+            }
+
+            if (hasParent) {
+                parentDevice = DiskImages.open(findParent(requireItem(metadata, METADATA_PARENT_LOCATOR)), chain);
+            }
+            parent = parentDevice;
+            parentApi = parentDevice == null ? null : parentDevice.getAPI(BlockDeviceAPI.class);
+        } catch (IOException | ApiNotFoundException | RuntimeException e) {
+            closeQuietly(parentDevice);
+            channel.close();
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw new IOException("Error opening " + file, e);
+        }
+
+        registerAPI(FSBlockDeviceAPI.class, this);
+    }
+
+    /**
+     * Checks whether the start of a file has the VHDX signature.
+     *
+     * @param header the start of the file.
+     * @return {@code true} if the file is a VHDX image.
+     */
+    public static boolean hasSignature(byte[] header) {
+        return header.length >= SIGNATURE.length &&
+            Arrays.equals(Arrays.copyOf(header, SIGNATURE.length), SIGNATURE);
+    }
+
+    /**
+     * Gets the payload block size.
+     *
+     * @return the size in bytes.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Gets the parent device.
+     *
+     * @return the device, or {@code null} if this isn't a differencing image.
+     */
+    public Device getParent() {
+        return parent;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public int getSectorSize() {
+        return sectorSize;
+    }
+
+    @Override
+    public PartitionTableEntry getPartitionTableEntry() {
+        return null;
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        if (devOffset < 0) {
+            throw new IOException("devOffset < 0");
+        }
+        if (devOffset + dest.remaining() > length) {
+            throw new IOException("Read past the end of the image: offset " + devOffset + ", length " +
+                dest.remaining());
+        }
+
+        long position = devOffset;
+        while (dest.hasRemaining()) {
+            int blockIndex = (int) (position / blockSize);
+            int blockOffset = (int) (position % blockSize);
+            int count = Math.min(dest.remaining(), blockSize - blockOffset);
+
+            long entry = bat[blockIndex + blockIndex / chunkRatio];
+            int state = (int) (entry & 7);
+            long dataOffset = entry & BAT_OFFSET_MASK;
+
+            if (state == PAYLOAD_FULLY_PRESENT) {
+                DiskImages.readFully(channel, dataOffset + blockOffset, dest, count);
+            } else if (state == PAYLOAD_PARTIALLY_PRESENT && parentApi != null) {
+                readPartial(blockIndex, blockOffset, dataOffset, position, dest, count);
+            } else if (state == PAYLOAD_NOT_PRESENT && parentApi != null) {
+                DiskImages.readParent(parentApi, position, dest, count);
+            } else {
+                // Zero, unmapped and undefined blocks, and blocks not present in an image without a parent
+                DiskImages.fillZeros(dest, count);
+            }
+
+            position += count;
+        }
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        throw new IOException("VHDX images are read-only");
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to do
+    }
+
+    @Override
+    public void close() throws IOException {
+        bitmapCache.clear();
+        try {
+            channel.close();
+        } finally {
+            if (parent instanceof Closeable) {
+                ((Closeable) parent).close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("VhdxDevice:[%s size:%d blockSize:%d sectorSize:%d parent:%s]", file, length, blockSize,
+            sectorSize, parent == null ? null : parent.getId());
+    }
+
+    /**
+     * Reads part of a partially present block, taking each run of sectors from this image or the parent according to
+     * the sector bitmap.
+     *
+     * @param blockIndex the block index.
+     * @param blockOffset the offset to read from in the block.
+     * @param dataOffset the offset of the block's data in the image file.
+     * @param position the virtual offset being read.
+     * @param dest the buffer to read into.
+     * @param count the number of bytes to read.
+     * @throws IOException if an error occurs reading.
+     */
+    private void readPartial(int blockIndex, int blockOffset, long dataOffset, long position, ByteBuffer dest,
+                             int count) throws IOException {
+        int chunk = blockIndex / chunkRatio;
+        byte[] bitmap = getBitmap(chunk);
+        long firstSector = (long) (blockIndex % chunkRatio) * (blockSize / sectorSize);
+
+        int offset = blockOffset;
+        int end = blockOffset + count;
+        while (offset < end) {
+            boolean present = isSet(bitmap, firstSector + offset / sectorSize);
+
+            int runEnd = (offset / sectorSize + 1) * sectorSize;
+            while (runEnd < end && isSet(bitmap, firstSector + runEnd / sectorSize) == present) {
+                runEnd += sectorSize;
+            }
+            int runLength = Math.min(runEnd, end) - offset;
+
+            if (present) {
+                DiskImages.readFully(channel, dataOffset + offset, dest, runLength);
+            } else {
+                DiskImages.readParent(parentApi, position + offset - blockOffset, dest, runLength);
+            }
+            offset += runLength;
+        }
+    }
+
+    private static boolean isSet(byte[] bitmap, long sector) {
+        return (bitmap[(int) (sector >>> 3)] & (1 << (sector & 7))) != 0;
+    }
+
+    /**
+     * Gets the sector bitmap block for a chunk.
+     *
+     * @param chunk the chunk index.
+     * @return the bitmap.
+     * @throws IOException if an error occurs reading or the bitmap block isn't present.
+     */
+    private byte[] getBitmap(int chunk) throws IOException {
+        byte[] bitmap = bitmapCache.get(chunk);
+        if (bitmap == null) {
+            long entry = bat[chunk * (chunkRatio + 1) + chunkRatio];
+            if ((entry & 7) != PAYLOAD_FULLY_PRESENT) {
+                throw new IOException("Missing sector bitmap for chunk " + chunk + ": " + file);
+            }
+            bitmap = read(entry & BAT_OFFSET_MASK, BITMAP_BLOCK_SIZE);
+            bitmapCache.put(chunk, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Checks the headers, using the one with the higher sequence number.
+     *
+     * @throws IOException if neither header is valid.
+     */
+    private void readHeader() throws IOException {
+        byte[] current = null;
+        long currentSequence = -1;
+        for (long offset : HEADER_OFFSETS) {
+            byte[] header = read(offset, 80);
+            long sequence = LittleEndian.getInt64(header, 8);
+            if ("head".equals(new String(header, 0, 4, StandardCharsets.US_ASCII)) && sequence > currentSequence) {
+                current = header;
+                currentSequence = sequence;
+            }
+        }
+
+        if (current == null) {
+            throw new IOException("No valid VHDX header: " + file);
+        }
+        if (LittleEndian.getUInt16(current, 66) != 1) {
+            throw new IOException("Unsupported VHDX version " + LittleEndian.getUInt16(current, 66) + ": " + file);
+        }
+
+        boolean hasLog = false;
+        for (int i = 48; i < 64; i++) {
+            hasLog |= current[i] != 0;
+        }
+        if (hasLog) {
+            log.warn("VHDX log has not been replayed, recent changes may be missing: {}", file);
+        }
+    }
+
+    /**
+     * Reads the region table.
+     *
+     * @return the offset and length of each region, by region ID.
+     * @throws IOException if an error occurs reading.
+     */
+    private Map<UUID, long[]> readRegionTable() throws IOException {
+        byte[] table = read(REGION_TABLE_OFFSET, REGION_TABLE_SIZE);
+        if (!"regi".equals(new String(table, 0, 4, StandardCharsets.US_ASCII))) {
+            throw new IOException("Invalid VHDX region table: " + file);
+        }
+
+        int count = LittleEndian.getInt32(table, 8);
+        if (count < 0 || count > (REGION_TABLE_SIZE - 16) / 32) {
+            throw new IOException("Invalid VHDX region count " + count + ": " + file);
+        }
+
+        Map<UUID, long[]> regions = new HashMap<UUID, long[]>();
+        for (int i = 0; i < count; i++) {
+            int entry = 16 + i * 32;
+            regions.put(readGuid(table, entry), new long[] {
+                LittleEndian.getInt64(table, entry + 16), LittleEndian.getUInt32(table, entry + 24)});
+        }
+        return regions;
+    }
+
+    /**
+     * Reads the metadata region.
+     *
+     * @param offset the offset of the region.
+     * @param regionLength the length of the region.
+     * @return the metadata items, by item ID.
+     * @throws IOException if an error occurs reading.
+     */
+    private Map<UUID, byte[]> readMetadata(long offset, int regionLength) throws IOException {
+        byte[] region = read(offset, regionLength);
+        if (!"metadata".equals(new String(region, 0, 8, StandardCharsets.US_ASCII))) {
+            throw new IOException("Invalid VHDX metadata region: " + file);
+        }
+
+        int count = LittleEndian.getUInt16(region, 10);
+        Map<UUID, byte[]> items = new HashMap<UUID, byte[]>();
+        for (int i = 0; i < count; i++) {
+            int entry = 32 + i * 32;
+            int itemOffset = LittleEndian.getInt32(region, entry + 16);
+            int itemLength = LittleEndian.getInt32(region, entry + 20);
+            if (itemOffset < 0 || itemLength < 0 || (long) itemOffset + itemLength > regionLength) {
+                throw new IOException("Invalid VHDX metadata item " + i + ": " + file);
+            }
+            items.put(readGuid(region, entry), Arrays.copyOfRange(region, itemOffset, itemOffset + itemLength));
+        }
+        return items;
+    }
+
+    private byte[] requireItem(Map<UUID, byte[]> metadata, UUID id) throws IOException {
+        byte[] item = metadata.get(id);
+        if (item == null) {
+            throw new IOException("VHDX metadata item " + id + " is missing: " + file);
+        }
+        return item;
+    }
+
+    /**
+     * Finds the parent of a differencing image from its parent locator.
+     *
+     * @param locator the parent locator item.
+     * @return the parent file.
+     * @throws IOException if the parent can't be found.
+     */
+    private File findParent(byte[] locator) throws IOException {
+        Charset utf16le = Charset.forName("UTF-16LE");
+        Map<String, String> entries = new HashMap<String, String>();
+
+        int count = LittleEndian.getUInt16(locator, 18);
+        for (int i = 0; i < count; i++) {
+            int entry = 20 + i * 12;
+            int keyOffset = LittleEndian.getInt32(locator, entry);
+            int valueOffset = LittleEndian.getInt32(locator, entry + 4);
+            int keyLength = LittleEndian.getUInt16(locator, entry + 8);
+            int valueLength = LittleEndian.getUInt16(locator, entry + 10);
+            entries.put(new String(locator, keyOffset, keyLength, utf16le),
+                new String(locator, valueOffset, valueLength, utf16le));
+        }
+
+        File parentFile = DiskImages.resolveRelated(file, entries.get("relative_path"),
+            entries.get("absolute_win32_path"));
+        if (parentFile == null) {
+            throw new IOException("Can't find the parent of differencing VHDX " + file + ": " + entries);
+        }
+        return parentFile;
+    }
+
+    /**
+     * Reads a GUID stored in the mixed-endian Microsoft layout.
+     *
+     * @param data the data.
+     * @param offset the offset of the GUID.
+     * @return the GUID.
+     */
+    static UUID readGuid(byte[] data, int offset) {
+        long high = (LittleEndian.getUInt32(data, offset) << 32) |
+            ((long) LittleEndian.getUInt16(data, offset + 4) << 16) |
+            LittleEndian.getUInt16(data, offset + 6);
+        long low = 0;
+        for (int i = 8; i < 16; i++) {
+            low = (low << 8) | (data[offset + i] & 0xff);
+        }
+        return new UUID(high, low);
+    }
+
+    /**
+     * Reads metadata from the image file.
+     *
+     * @param offset the offset in the image file.
+     * @param length the number of bytes to read.
+     * @return the data.
+     * @throws IOException if an error occurs reading.
+     */
+    private byte[] read(long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        DiskImages.readFully(channel, offset, ByteBuffer.wrap(data), length);
+        return data;
+    }
+
+    private static void closeQuietly(Device device) {
+        if (device instanceof Closeable) {
+            try {
+                ((Closeable) device).close();
+            } catch (IOException e) {
+                // Already failing
+            }
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package org.jnode.driver.block.vmdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.DiskImages;
+import org.jnode.util.LittleEndian;
+import org.jnode.util.LruCache;
+
+/**
+ * A hosted sparse extent, as used by the monolithicSparse, twoGbMaxExtentSparse and streamOptimized VMDK types.
+ * <p>
+ * The extent is divided into grains located through a grain directory, which is loaded when the extent is opened,
+ * and grain tables, which are loaded on demand into an LRU cache. In streamOptimized extents the grains are deflate
+ * compressed and the header with the grain directory location is in a footer at the end of the file. Unallocated
+ * grains read from the parent disk, or as zeros, without any I/O to the extent.
+ */
+final class SparseExtent implements VmdkExtent {
+
+    /**
+     * The sparse extent magic number, "KDMV".
+     */
+    static final int MAGIC = 0x564d444b;
+
+    /**
+     * The size of the header.
+     */
+    static final int HEADER_SIZE = 512;
+
+    /**
+     * The header flag for compressed grains.
+     */
+    static final int FLAG_COMPRESSED = 1 << 16;
+
+    /**
+     * The header flag for markers.
+     */
+    static final int FLAG_MARKERS = 1 << 17;
+
+    /**
+     * The grain directory offset that means the real header is in the footer.
+     */
+    static final long GD_AT_END = -1L;
+
+    /**
+     * The grain table entry for a grain which reads as zeros.
+     */
+    private static final int GRAIN_ZERO = 1;
+
+    /**
+     * The deflate compression algorithm.
+     */
+    private static final int COMPRESSION_DEFLATE = 1;
+
+    /**
+     * The size of the header before the data of a compressed grain: the LBA and the compressed size.
+     */
+    private static final int GRAIN_HEADER_SIZE = 12;
+
+    /**
+     * The sector size.
+     */
+    private static final int SECTOR_SIZE = 512;
+
+    /**
+     * The number of compressed grains to keep decompressed.
+     */
+    private static final int COMPRESSED_CACHE_SIZE = 32;
+
+    /**
+     * The extent file.
+     */
+    private final File file;
+
+    /**
+     * The channel to the extent file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The size of the extent in bytes.
+     */
+    private final long length;
+
+    /**
+     * The grain size in bytes.
+     */
+    private final int grainSize;
+
+    /**
+     * The number of entries in each grain table.
+     */
+    private final int gtEntries;
+
+    /**
+     * Whether grains are compressed.
+     */
+    private final boolean compressed;
+
+    /**
+     * The grain directory, holding the sector offset of each grain table.
+     */
+    private final int[] grainDirectory;
+
+    /**
+     * The cache of grain tables, keyed by grain directory index.
+     */
+    private final LruCache<Integer, int[]> gtCache;
+
+    /**
+     * The cache of decompressed grains, keyed by grain index.
+     */
+    private final LruCache<Long, byte[]> grainCache = new LruCache<Long, byte[]>(COMPRESSED_CACHE_SIZE);
+
+    /**
+     * The parent disk, or {@code null}.
+     */
+    private final BlockDeviceAPI parent;
+
+    /**
+     * The offset of this extent in the disk, for reads from the parent.
+     */
+    private final long diskOffset;
+
+    /**
+     * Opens an extent.
+     *
+     * @param file the extent file.
+     * @param parent the parent disk to read unallocated grains from, or {@code null}.
+     * @param diskOffset the offset of this extent in the disk.
+     * @param gtCacheSize the number of grain tables to cache.
+     * @throws IOException if an error occurs reading or the extent isn't supported.
+     */
+    SparseExtent(File file, BlockDeviceAPI parent, long diskOffset, int gtCacheSize) throws IOException {
+        this.file = file;
+        this.parent = parent;
+        this.diskOffset = diskOffset;
+        this.gtCache = new LruCache<Integer, int[]>(gtCacheSize);
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+
+        try {
+            byte[] header = read(0, HEADER_SIZE);
+            if (LittleEndian.getInt32(header, 0) != MAGIC) {
+                throw new IOException("Not a VMDK sparse extent: " + file);
+            }
+
+            if (LittleEndian.getInt64(header, 56) == GD_AT_END) {
+                // streamOptimized: the footer holds the real header, followed by the end-of-stream marker
+                header = read(channel.size() - 2 * HEADER_SIZE, HEADER_SIZE);
+                if (LittleEndian.getInt32(header, 0) != MAGIC || LittleEndian.getInt64(header, 56) == GD_AT_END) {
+                    throw new IOException("Invalid VMDK footer: " + file);
+                }
+            }
+
+            int flags = LittleEndian.getInt32(header, 8);
+            long capacity = LittleEndian.getInt64(header, 12);
+            long grainSectors = LittleEndian.getInt64(header, 20);
+            gtEntries = LittleEndian.getInt32(header, 44);
+            long gdOffset = LittleEndian.getInt64(header, 56);
+            int compressAlgorithm = LittleEndian.getUInt16(header, 77);
+
+            if (grainSectors < 1 || grainSectors > 2048 || Long.bitCount(grainSectors) != 1) {
+                throw new IOException("Invalid VMDK grain size " + grainSectors + ": " + file);
+            }
+            if (gtEntries <= 0 || gtEntries > 65536) {
+                throw new IOException("Invalid VMDK grain table size " + gtEntries + ": " + file);
+            }
+
+            compressed = (flags & FLAG_COMPRESSED) != 0;
+            if (compressed && compressAlgorithm != COMPRESSION_DEFLATE) {
+                throw new IOException("Unsupported VMDK compression " + compressAlgorithm + ": " + file);
+            }
+
+            length = capacity * SECTOR_SIZE;
+            grainSize = (int) grainSectors * SECTOR_SIZE;
+
+            long gtCoverage = (long) grainSize * gtEntries;
+            int gdEntries = (int) ((length + gtCoverage - 1) / gtCoverage);
+            byte[] gdData = read(gdOffset * SECTOR_SIZE, gdEntries * 4);
+            grainDirectory = new int[gdEntries];
+            for (int i = 0; i < gdEntries; i++) {
+                grainDirectory[i] = LittleEndian.getInt32(gdData, i * 4);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw new IOException("Error opening " + file, e);
+        }
+    }
+
+    /**
+     * Checks whether the start of a file has the sparse extent magic number.
+     *
+     * @param header the start of the file.
+     * @return {@code true} if the file is a sparse extent.
+     */
+    static boolean hasSignature(byte[] header) {
+        return header.length >= 4 && LittleEndian.getInt32(header, 0) == MAGIC;
+    }
+
+    /**
+     * Reads the descriptor embedded in a sparse extent, as in monolithicSparse and streamOptimized disks.
+     *
+     * @param file the extent file.
+     * @return the descriptor, or {@code null} if there isn't one.
+     * @throws IOException if an error occurs reading.
+     */
+    static String readEmbeddedDescriptor(File file) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            byte[] header = new byte[HEADER_SIZE];
+            DiskImages.readFully(channel, 0, ByteBuffer.wrap(header), HEADER_SIZE);
+            if (!hasSignature(header)) {
+                throw new IOException("Not a VMDK sparse extent: " + file);
+            }
+
+            long descriptorOffset = LittleEndian.getInt64(header, 28);
+            long descriptorSize = LittleEndian.getInt64(header, 36);
+            if (descriptorOffset <= 0 || descriptorSize <= 0 || descriptorSize > 2048) {
+                return null;
+            }
+
+            byte[] data = new byte[(int) descriptorSize * SECTOR_SIZE];
+            DiskImages.readFully(channel, descriptorOffset * SECTOR_SIZE, ByteBuffer.wrap(data), data.length);
+            int end = 0;
+            while (end < data.length && data[end] != 0) {
+                end++;
+            }
+            return new String(data, 0, end, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public void read(long offset, ByteBuffer dest, int count) throws IOException {
+        long position = offset;
+        int remaining = count;
+
+        while (remaining > 0) {
+            long grain = position / grainSize;
+            int grainOffset = (int) (position % grainSize);
+            int chunk = Math.min(remaining, grainSize - grainOffset);
+            int entry = getGrainTableEntry(grain);
+
+            if (entry == 0) {
+                DiskImages.readParent(parent, diskOffset + position, dest, chunk);
+            } else if (entry == GRAIN_ZERO) {
+                DiskImages.fillZeros(dest, chunk);
+            } else if (compressed) {
+                byte[] data = readCompressedGrain(grain, entry & 0xffffffffL);
+                dest.put(data, grainOffset, chunk);
+            } else {
+                DiskImages.readFully(channel, (entry & 0xffffffffL) * SECTOR_SIZE + grainOffset, dest, chunk);
+            }
+
+            position += chunk;
+            remaining -= chunk;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        gtCache.clear();
+        grainCache.clear();
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SparseExtent:[%s size:%d grainSize:%d compressed:%b]", file, length, grainSize,
+            compressed);
+    }
+
+    /**
+     * Gets the grain table entry for a grain.
+     *
+     * @param grain the grain index.
+     * @return the entry, or {@code 0} if the grain table isn't allocated.
+     * @throws IOException if an error occurs reading the grain table.
+     */
+    private int getGrainTableEntry(long grain) throws IOException {
+        int gdIndex = (int) (grain / gtEntries);
+        long gtSector = grainDirectory[gdIndex] & 0xffffffffL;
+        if (gtSector == 0) {
+            return 0;
+        }
+
+        int[] table = gtCache.get(gdIndex);
+        if (table == null) {
+            byte[] data = read(gtSector * SECTOR_SIZE, gtEntries * 4);
+            table = new int[gtEntries];
+            for (int i = 0; i < gtEntries; i++) {
+                table[i] = LittleEndian.getInt32(data, i * 4);
+            }
+            gtCache.put(gdIndex, table);
+        }
+
+        return table[(int) (grain % gtEntries)];
+    }
+
+    /**
+     * Reads and inflates a compressed grain.
+     *
+     * @param grain the grain index.
+     * @param sector the sector holding the grain.
+     * @return the grain data.
+     * @throws IOException if an error occurs reading or the grain is corrupt.
+     */
+    private byte[] readCompressedGrain(long grain, long sector) throws IOException {
+        byte[] data = grainCache.get(grain);
+        if (data != null) {
+            return data;
+        }
+
+        long offset = sector * SECTOR_SIZE;
+        byte[] header = read(offset, GRAIN_HEADER_SIZE);
+        int size = LittleEndian.getInt32(header, 8);
+        if (size <= 0 || size > 2 * grainSize) {
+            throw new IOException("Invalid compressed grain size " + size + " at sector " + sector + ": " + file);
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(read(offset + GRAIN_HEADER_SIZE, size));
+            data = new byte[grainSize];
+            int total = 0;
+            while (total < grainSize && !inflater.finished()) {
+                int inflated = inflater.inflate(data, total, grainSize - total);
+                if (inflated == 0 && inflater.needsInput()) {
+                    break;
+                }
+                total += inflated;
+            }
+            // The last grain of a disk may be short, the rest reads as zeros
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed grain at sector " + sector + ": " + file, e);
+        } finally {
+            inflater.end();
+        }
+
+        grainCache.put(grain, data);
+        return data;
+    }
+
+    /**
+     * Reads metadata from the extent file.
+     *
+     * @param offset the offset in the file.
+     * @param length the number of bytes to read.
+     * @return the data.
+     * @throws IOException if an error occurs reading.
+     */
+    private byte[] read(long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        DiskImages.readFully(channel, offset, ByteBuffer.wrap(data), length);
+        return data;
+    }
+}
@@ -0,0 +1,458 @@
+package org.jnode.driver.block.vmdk;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jnode.driver.ApiNotFoundException;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.DiskImages;
+import org.jnode.driver.block.FSBlockDeviceAPI;
+import org.jnode.partitions.PartitionTableEntry;
+
+/**
+ * A read-only block device for a VMDK disk.
+ * <p>
+ * The disk is opened either from its descriptor file or from a sparse extent with an embedded descriptor
+ * (monolithicSparse and streamOptimized). The descriptor lists the extents making up the disk, which may be sparse,
+ * flat or zero extents, so split disks (twoGbMaxExtentSparse and twoGbMaxExtentFlat) and flat disks are supported
+ * too. Snapshot disks read unallocated grains from the parent named in the descriptor.
+ */
+public class VmdkDevice extends Device implements FSBlockDeviceAPI, Closeable {
+
+    /**
+     * The first line of a descriptor file.
+     */
+    public static final String DESCRIPTOR_SIGNATURE = "# Disk DescriptorFile";
+
+    /**
+     * The default number of grain tables to cache for each sparse extent.
+     */
+    public static final int DEFAULT_GT_CACHE_SIZE = 256;
+
+    /**
+     * The largest descriptor file accepted.
+     */
+    private static final int MAX_DESCRIPTOR_SIZE = 1024 * 1024;
+
+    /**
+     * The sector size.
+     */
+    private static final int SECTOR_SIZE = 512;
+
+    /**
+     * The pattern for extent lines in the descriptor: access, size in sectors, type, file name and offset.
+     */
+    private static final Pattern EXTENT_PATTERN =
+        Pattern.compile("^(RW|RDONLY|NOACCESS)\\s+(\\d+)\\s+(\\w+)(?:\\s+\"([^\"]*)\"(?:\\s+(\\d+))?)?");
+
+    /**
+     * The pattern for key/value lines in the descriptor.
+     */
+    private static final Pattern VALUE_PATTERN = Pattern.compile("^(\\w+)\\s*=\\s*\"?([^\"]*)\"?");
+
+    /**
+     * The disk file that was opened.
+     */
+    private final File file;
+
+    /**
+     * The extents, in order.
+     */
+    private final List<VmdkExtent> extents = new ArrayList<VmdkExtent>();
+
+    /**
+     * The offset of each extent in the disk.
+     */
+    private final long[] extentStarts;
+
+    /**
+     * The size of the disk.
+     */
+    private final long length;
+
+    /**
+     * The parent disk, or {@code null}.
+     */
+    private final Device parent;
+
+    /**
+     * Opens a disk with the default grain table cache size.
+     *
+     * @param file the descriptor file, or a sparse extent with an embedded descriptor.
+     * @throws IOException if an error occurs opening the disk or it isn't supported.
+     */
+    public VmdkDevice(File file) throws IOException {
+        this(file, DEFAULT_GT_CACHE_SIZE);
+    }
+
+    /**
+     * Opens a disk.
+     *
+     * @param file the descriptor file, or a sparse extent with an embedded descriptor.
+     * @param gtCacheSize the number of grain tables to cache for each sparse extent.
+     * @throws IOException if an error occurs opening the disk or it isn't supported.
+     */
+    public VmdkDevice(File file, int gtCacheSize) throws IOException {
+        this(file, gtCacheSize, DiskImages.addToChain(Collections.<File>emptyList(), file));
+    }
+
+    /**
+     * Opens a disk as part of a chain of images, e.g. as the parent of another disk.
+     *
+     * @param file the descriptor file, or a sparse extent with an embedded descriptor.
+     * @param gtCacheSize the number of grain tables to cache for each sparse extent.
+     * @param chain the chain of images, ending with this one, as returned by {@link DiskImages#addToChain}.
+     * @throws IOException if an error occurs opening the disk or it isn't supported, or the parent is already in the
+     * chain.
+     */
+    public VmdkDevice(File file, int gtCacheSize, List<File> chain) throws IOException {
+        super("vmdk-" + file.getName());
+        this.file = file;
+
+        boolean sparse = SparseExtent.hasSignature(readStart(file, 4));
+        String descriptor = sparse ? SparseExtent.readEmbeddedDescriptor(file) : readDescriptor(file);
+
+        Device parentDevice = null;
+        try {
+            List<String[]> extentLines = new ArrayList<String[]>();
+            String parentHint = null;
+            boolean hasParent = false;
+
+            if (descriptor != null) {
+                for (String line : descriptor.split("\r?\n")) {
+                    String trimmed = line.trim();
+                    Matcher extentMatcher = EXTENT_PATTERN.matcher(trimmed);
+                    Matcher valueMatcher = VALUE_PATTERN.matcher(trimmed);
+                    if (extentMatcher.find()) {
+                        extentLines.add(new String[] {extentMatcher.group(2), extentMatcher.group(3),
+                            extentMatcher.group(4), extentMatcher.group(5)});
+                    } else if (valueMatcher.find()) {
+                        if ("parentCID".equals(valueMatcher.group(1))) {
+                            hasParent = !"ffffffff".equalsIgnoreCase(valueMatcher.group(2).trim());
+                        } else if ("parentFileNameHint".equals(valueMatcher.group(1))) {
+                            parentHint = valueMatcher.group(2);
+                        }
+                    }
+                }
+            }
+
+            BlockDeviceAPI parentApi = null;
+            if (hasParent && parentHint != null) {
+                File parentFile = DiskImages.resolveRelated(file, parentHint);
+                if (parentFile == null) {
+                    throw new IOException("Can't find the parent of VMDK " + file + ": " + parentHint);
+                }
+                parentDevice = DiskImages.open(parentFile, chain);
+                parentApi = parentDevice.getAPI(BlockDeviceAPI.class);
+            }
+
+            if (extentLines.isEmpty()) {
+                if (!sparse) {
+                    throw new IOException("No extents in VMDK descriptor: " + file);
+                }
+                extents.add(new SparseExtent(file, parentApi, 0, gtCacheSize));
+            } else {
+                long offset = 0;
+                for (String[] extentLine : extentLines) {
+                    VmdkExtent extent = openExtent(extentLine, offset, sparse, parentApi, gtCacheSize);
+                    extents.add(extent);
+                    offset += extent.getLength();
+                }
+            }
+        } catch (IOException | ApiNotFoundException | RuntimeException e) {
+            try {
+                closeExtents();
+            } catch (IOException closeError) {
+                // Already failing
+            }
+            closeQuietly(parentDevice);
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw new IOException("Error opening " + file, e);
+        }
+
+        this.parent = parentDevice;
+        this.extentStarts = new long[extents.size()];
+        long offset = 0;
+        for (int i = 0; i < extents.size(); i++) {
+            extentStarts[i] = offset;
+            offset += extents.get(i).getLength();
+        }
+        this.length = offset;
+
+        registerAPI(FSBlockDeviceAPI.class, this);
+    }
+
+    /**
+     * Checks whether the start of a file is a VMDK descriptor or sparse extent.
+     *
+     * @param header the start of the file.
+     * @return {@code true} if the file is a VMDK disk.
+     */
+    public static boolean hasSignature(byte[] header) {
+        if (SparseExtent.hasSignature(header)) {
+            return true;
+        }
+        byte[] signature = DESCRIPTOR_SIGNATURE.getBytes(StandardCharsets.US_ASCII);
+        return header.length >= signature.length &&
+            Arrays.equals(Arrays.copyOf(header, signature.length), signature);
+    }
+
+    /**
+     * Gets the number of extents.
+     *
+     * @return the count.
+     */
+    public int getExtentCount() {
+        return extents.size();
+    }
+
+    /**
+     * Gets the parent device.
+     *
+     * @return the device, or {@code null} if this isn't a snapshot disk.
+     */
+    public Device getParent() {
+        return parent;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public int getSectorSize() {
+        return SECTOR_SIZE;
+    }
+
+    @Override
+    public PartitionTableEntry getPartitionTableEntry() {
+        return null;
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        if (devOffset < 0) {
+            throw new IOException("devOffset < 0");
+        }
+        if (devOffset + dest.remaining() > length) {
+            throw new IOException("Read past the end of the disk: offset " + devOffset + ", length " +
+                dest.remaining());
+        }
+
+        long position = devOffset;
+        int index = findExtent(position);
+        while (dest.hasRemaining()) {
+            VmdkExtent extent = extents.get(index);
+            long extentOffset = position - extentStarts[index];
+            int count = (int) Math.min(dest.remaining(), extent.getLength() - extentOffset);
+            extent.read(extentOffset, dest, count);
+            position += count;
+            index++;
+        }
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        throw new IOException("VMDK disks are read-only");
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to do
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            closeExtents();
+        } finally {
+            if (parent instanceof Closeable) {
+                ((Closeable) parent).close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("VmdkDevice:[%s size:%d extents:%s parent:%s]", file, length, extents,
+            parent == null ? null : parent.getId());
+    }
+
+    /**
+     * Opens an extent listed in the descriptor.
+     *
+     * @param extentLine the size, type, file name and offset from the extent line.
+     * @param diskOffset the offset of the extent in the disk.
+     * @param embedded whether the descriptor is embedded in the disk file.
+     * @param parentApi the parent disk, or {@code null}.
+     * @param gtCacheSize the number of grain tables to cache.
+     * @return the extent.
+     * @throws IOException if an error occurs opening the extent or it isn't supported.
+     */
+    private VmdkExtent openExtent(String[] extentLine, long diskOffset, boolean embedded, BlockDeviceAPI parentApi,
+                                  int gtCacheSize) throws IOException {
+        long size = Long.parseLong(extentLine[0]) * SECTOR_SIZE;
+        String type = extentLine[1];
+
+        if ("ZERO".equals(type)) {
+            return new ZeroExtent(size);
+        }
+
+        File extentFile = embedded ? file : DiskImages.resolveRelated(file, extentLine[2]);
+        if (extentFile == null) {
+            throw new IOException("Can't find VMDK extent " + extentLine[2] + " of " + file);
+        }
+
+        if ("SPARSE".equals(type)) {
+            return new SparseExtent(extentFile, parentApi, diskOffset, gtCacheSize);
+        }
+        if ("FLAT".equals(type) || "VMFS".equals(type)) {
+            long offset = extentLine[3] == null ? 0 : Long.parseLong(extentLine[3]) * SECTOR_SIZE;
+            return new FlatExtent(extentFile, offset, size);
+        }
+        throw new IOException("Unsupported VMDK extent type " + type + ": " + file);
+    }
+
+    /**
+     * Finds the extent containing an offset.
+     *
+     * @param position the offset.
+     * @return the extent index.
+     */
+    private int findExtent(long position) {
+        int index = Arrays.binarySearch(extentStarts, position);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private static void closeQuietly(Device device) {
+        if (device instanceof Closeable) {
+            try {
+                ((Closeable) device).close();
+            } catch (IOException e) {
+                // Already failing
+            }
+        }
+    }
+
+    private void closeExtents() throws IOException {
+        IOException error = null;
+        for (VmdkExtent extent : extents) {
+            try {
+                extent.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Reads a descriptor file.
+     *
+     * @param file the file.
+     * @return the descriptor.
+     * @throws IOException if an error occurs reading or the file isn't a descriptor.
+     */
+    private static String readDescriptor(File file) throws IOException {
+        if (file.length() > MAX_DESCRIPTOR_SIZE) {
+            throw new IOException("Not a VMDK descriptor: " + file);
+        }
+        String descriptor = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        if (!descriptor.startsWith(DESCRIPTOR_SIGNATURE)) {
+            throw new IOException("Not a VMDK descriptor: " + file);
+        }
+        return descriptor;
+    }
+
+    private static byte[] readStart(File file, int length) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            byte[] data = new byte[(int) Math.min(length, channel.size())];
+            DiskImages.readFully(channel, 0, ByteBuffer.wrap(data), data.length);
+            return data;
+        }
+    }
+
+    /**
+     * An extent stored as is in a file, possibly at an offset.
+     */
+    private static final class FlatExtent implements VmdkExtent {
+        private final File file;
+        private final FileChannel channel;
+        private final long offset;
+        private final long length;
+
+        FlatExtent(File file, long offset, long length) throws IOException {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.channel = new RandomAccessFile(file, "r").getChannel();
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public void read(long position, ByteBuffer dest, int count) throws IOException {
+            DiskImages.readFully(channel, offset + position, dest, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("FlatExtent:[%s offset:%d size:%d]", file, offset, length);
+        }
+    }
+
+    /**
+     * An extent which reads as zeros.
+     */
+    private static final class ZeroExtent implements VmdkExtent {
+        private final long length;
+
+        ZeroExtent(long length) {
+            this.length = length;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public void read(long position, ByteBuffer dest, int count) {
+            DiskImages.fillZeros(dest, count);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ZeroExtent:[size:%d]", length);
+        }
+    }
+}
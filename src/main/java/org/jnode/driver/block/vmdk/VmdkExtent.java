@@ -0,0 +1,28 @@
+package org.jnode.driver.block.vmdk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An extent of a VMDK disk: a range of sectors stored in one file, or not stored at all.
+ */
+interface VmdkExtent extends Closeable {
+
+    /**
+     * Gets the size of the extent.
+     *
+     * @return the size in bytes.
+     */
+    long getLength();
+
+    /**
+     * Reads from the extent.
+     *
+     * @param offset the offset within the extent.
+     * @param dest the buffer to read into.
+     * @param count the number of bytes to read, which doesn't go past the end of the extent.
+     * @throws IOException if an error occurs reading.
+     */
+    void read(long offset, ByteBuffer dest, int count) throws IOException;
+}
@@ -0,0 +1,192 @@
+package org.jnode.fs;
+
+/**
+ * A range of a file's data and where it is stored on the file system's device.
+ *
+ * @see FSFileExtents
+ */
+public class FSFileExtent {
+
+    /**
+     * The flag for a hole, which has no storage and reads as zeros.
+     */
+    public static final int SPARSE = 0x01;
+
+    /**
+     * The flag for compressed data. The device offset is where the compressed data starts, if it is stored in one
+     * place.
+     */
+    public static final int COMPRESSED = 0x02;
+
+    /**
+     * The flag for allocated space which hasn't been written yet, e.g. preallocated blocks or an NTFS range past the
+     * initialised size. It reads as zeros through {@link FSFile#read(long, java.nio.ByteBuffer)}, whatever the device
+     * holds.
+     */
+    public static final int UNWRITTEN = 0x04;
+
+    /**
+     * The flag for data stored in the file's metadata, such as an ext4 inline file or an NTFS resident attribute.
+     */
+    public static final int INLINE = 0x08;
+
+    /**
+     * The flag for encrypted data.
+     */
+    public static final int ENCRYPTED = 0x10;
+
+    /**
+     * The device offset of an extent which isn't stored in a single place on the device.
+     */
+    public static final long NO_DEVICE_OFFSET = -1;
+
+    /**
+     * The offset of the extent in the file.
+     */
+    private final long fileOffset;
+
+    /**
+     * The length of the extent in bytes.
+     */
+    private final long length;
+
+    /**
+     * The offset of the extent on the device, or {@link #NO_DEVICE_OFFSET}.
+     */
+    private final long deviceOffset;
+
+    /**
+     * The flags.
+     */
+    private final int flags;
+
+    /**
+     * Creates a new extent.
+     *
+     * @param fileOffset the offset of the extent in the file.
+     * @param length the length of the extent in bytes.
+     * @param deviceOffset the offset of the extent on the device, or {@link #NO_DEVICE_OFFSET}.
+     * @param flags the flags.
+     */
+    public FSFileExtent(long fileOffset, long length, long deviceOffset, int flags) {
+        this.fileOffset = fileOffset;
+        this.length = length;
+        this.deviceOffset = deviceOffset;
+        this.flags = flags;
+    }
+
+    /**
+     * Gets the offset of the extent in the file.
+     *
+     * @return the offset.
+     */
+    public long getFileOffset() {
+        return fileOffset;
+    }
+
+    /**
+     * Gets the length of the extent in bytes.
+     *
+     * @return the length.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Gets the offset of the extent on the device.
+     *
+     * @return the offset, or {@link #NO_DEVICE_OFFSET} for sparse and inline extents, and for compressed data which
+     * isn't stored in one place.
+     */
+    public long getDeviceOffset() {
+        return deviceOffset;
+    }
+
+    /**
+     * Gets the flags.
+     *
+     * @return the flags.
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Checks whether the extent is a hole.
+     *
+     * @return {@code true} if sparse.
+     */
+    public boolean isSparse() {
+        return (flags & SPARSE) != 0;
+    }
+
+    /**
+     * Checks whether the extent is compressed.
+     *
+     * @return {@code true} if compressed.
+     */
+    public boolean isCompressed() {
+        return (flags & COMPRESSED) != 0;
+    }
+
+    /**
+     * Checks whether the extent is allocated but not written yet.
+     *
+     * @return {@code true} if unwritten.
+     */
+    public boolean isUnwritten() {
+        return (flags & UNWRITTEN) != 0;
+    }
+
+    /**
+     * Checks whether the extent is stored in the file's metadata.
+     *
+     * @return {@code true} if inline.
+     */
+    public boolean isInline() {
+        return (flags & INLINE) != 0;
+    }
+
+    /**
+     * Checks whether the extent is encrypted.
+     *
+     * @return {@code true} if encrypted.
+     */
+    public boolean isEncrypted() {
+        return (flags & ENCRYPTED) != 0;
+    }
+
+    /**
+     * Checks whether the extent's data can be read as is from the device at its device offset.
+     *
+     * @return {@code true} if there are no flags.
+     */
+    public boolean isDirect() {
+        return flags == 0;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof FSFileExtent)) {
+            return false;
+        }
+
+        FSFileExtent extent = (FSFileExtent) other;
+        return fileOffset == extent.fileOffset && length == extent.length && deviceOffset == extent.deviceOffset &&
+            flags == extent.flags;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Long.hashCode(fileOffset);
+        result = 31 * result + Long.hashCode(length);
+        result = 31 * result + Long.hashCode(deviceOffset);
+        return 31 * result + flags;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FSFileExtent:[%d +%d -> %d flags:0x%x]", fileOffset, length, deviceOffset, flags);
+    }
+}
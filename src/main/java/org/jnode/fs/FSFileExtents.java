@@ -0,0 +1,27 @@
+package org.jnode.fs;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * <p>
+ * Interface for {@link FSFile} implementations that can map the file's data to where it is stored on the file
+ * system's device.
+ * </p>
+ * <p>
+ * The extents are in file order and together cover the file from offset zero to its length, with holes reported as
+ * sparse extents. Where an extent is neither sparse, compressed, encrypted, unwritten nor inline, its bytes can be read
+ * straight from the device at its device offset, e.g. to copy or hash a file without going through
+ * {@link FSFile#read(long, java.nio.ByteBuffer)}, or to check which files a damaged range of a disk belongs to.
+ * </p>
+ */
+public interface FSFileExtents {
+    /**
+     * Gets the file's extents.
+     *
+     * @return the extents, or {@code null} if the file's data can't be mapped, e.g. because its metadata is in a
+     *         format which isn't supported, in which case callers should read it through the file instead.
+     * @throws IOException if an error occurs reading the file's metadata.
+     */
+    List<FSFileExtent> getExtents() throws IOException;
+}
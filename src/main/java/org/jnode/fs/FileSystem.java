@@ -54,6 +54,17 @@ public interface FileSystem<T extends FSEntry> {
      */
     public T getRootEntry() throws IOException;
 
+    /**
+     * Gets the entry at the given path, relative to the root entry, e.g. "/Users/x/Library".
+     *
+     * @param path the path, with components separated by '/'.
+     * @return the {@link FSEntry} at the path, or {@code null} if there is no such entry.
+     * @throws IOException if an I/O error occurs
+     */
+    public default FSEntry resolve(String path) throws IOException {
+        return PathResolver.resolve(getRootEntry(), path);
+    }
+
     /**
      * Returns <tt>true</tt> if the file system is mounted in read-only mode.
      *
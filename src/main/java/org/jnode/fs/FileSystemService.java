@@ -0,0 +1,384 @@
+package org.jnode.fs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jnode.driver.ApiNotFoundException;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.DaemonThreadFactory;
+import org.jnode.driver.block.FSBlockDeviceAPI;
+import org.jnode.partitions.PartitionTableEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects the file system on a device and mounts it, using the {@link FileSystemType}s registered through
+ * {@link ServiceLoader} in {@code META-INF/services/org.jnode.fs.FileSystemType}.
+ * <p>
+ * Detection reads the first {@link #PROBE_SIZE} bytes of the device once and runs every type's
+ * {@link FileSystemType#supports(PartitionTableEntry, byte[], FSBlockDeviceAPI)} check in parallel against that
+ * buffer. Checks which read the device themselves are given a view of the device which serves reads within the
+ * buffer without any I/O. The checks are submitted fastest first, going by how long each type has taken before, and
+ * the first type in registration order which matches wins, so the result doesn't depend on timing. Results are
+ * remembered for each device until {@link #forget(Device)} is called.
+ * <p>
+ * Checks which are still running once the result is known are left to finish in the background rather than being
+ * interrupted, since interrupting a thread reading a {@link java.nio.channels.FileChannel} closes the channel, and
+ * with it the device which is about to be mounted.
+ */
+public class FileSystemService implements Closeable {
+
+    /**
+     * The number of bytes read from the start of a device for detection.
+     */
+    public static final int PROBE_SIZE = 64 * 1024;
+
+    /**
+     * The logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(FileSystemService.class);
+
+    /**
+     * The types, in order of preference.
+     */
+    private final List<FileSystemType<?>> types;
+
+    /**
+     * The total time spent in each type's check, indexed as {@link #types}.
+     */
+    private final AtomicLong[] probeNanos;
+
+    /**
+     * The number of checks run for each type, indexed as {@link #types}.
+     */
+    private final AtomicLong[] probeCounts;
+
+    /**
+     * The executor to run checks on.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Whether the executor was created by, and should be shut down by, this service.
+     */
+    private final boolean ownsExecutor;
+
+    /**
+     * The detection results for each device.
+     */
+    private final Map<Device, ProbeResult> results =
+        Collections.synchronizedMap(new WeakHashMap<Device, ProbeResult>());
+
+    /**
+     * Creates a service with the types registered with {@link ServiceLoader} and its own executor.
+     */
+    public FileSystemService() {
+        this(loadTypes(), null);
+    }
+
+    /**
+     * Creates a service.
+     *
+     * @param types the types, in order of preference.
+     * @param executor the executor to run checks on, or {@code null} to create one, which is shut down when the
+     *     service is closed.
+     */
+    public FileSystemService(List<? extends FileSystemType<?>> types, ExecutorService executor) {
+        this.types = Collections.unmodifiableList(new ArrayList<FileSystemType<?>>(types));
+        this.probeNanos = new AtomicLong[types.size()];
+        this.probeCounts = new AtomicLong[types.size()];
+        for (int i = 0; i < types.size(); i++) {
+            probeNanos[i] = new AtomicLong();
+            probeCounts[i] = new AtomicLong();
+        }
+
+        this.ownsExecutor = executor == null;
+        int threads = Math.max(1, Math.min(types.size(), Runtime.getRuntime().availableProcessors()));
+        this.executor = executor != null ? executor :
+            Executors.newFixedThreadPool(threads, new DaemonThreadFactory("fs-probe"));
+    }
+
+    /**
+     * Gets the types.
+     *
+     * @return the types, in order of preference.
+     */
+    public List<FileSystemType<?>> getFileSystemTypes() {
+        return types;
+    }
+
+    /**
+     * Gets a type by its class.
+     *
+     * @param typeClass the class of the type.
+     * @return the type.
+     * @throws FileSystemException if the type isn't registered.
+     */
+    public <T extends FileSystemType<?>> T getFileSystemType(Class<T> typeClass) throws FileSystemException {
+        for (FileSystemType<?> type : types) {
+            if (type.getClass() == typeClass) {
+                return typeClass.cast(type);
+            }
+        }
+        throw new FileSystemException("Unhandled Filesystem type: " + typeClass.getName());
+    }
+
+    /**
+     * Detects the file system on a device.
+     *
+     * @param device the device.
+     * @return the preferred type which supports the device, or {@code null} if none do.
+     * @throws FileSystemException if an error occurs reading the device.
+     */
+    public FileSystemType<?> detect(Device device) throws FileSystemException {
+        List<FileSystemType<?>> matches = probe(device, true);
+        return matches.isEmpty() ? null : matches.get(0);
+    }
+
+    /**
+     * Finds all the types which support a device, e.g. to report ambiguous volumes.
+     *
+     * @param device the device.
+     * @return the types, in order of preference.
+     * @throws FileSystemException if an error occurs reading the device.
+     */
+    public List<FileSystemType<?>> detectAll(Device device) throws FileSystemException {
+        return probe(device, false);
+    }
+
+    /**
+     * Detects the file system on a device and creates it.
+     *
+     * @param device the device.
+     * @param readOnly whether to create the file system read-only.
+     * @return the file system.
+     * @throws FileSystemException if no type supports the device or an error occurs creating the file system.
+     */
+    public FileSystem<?> mount(Device device, boolean readOnly) throws FileSystemException {
+        FileSystemType<?> type = detect(device);
+        if (type == null) {
+            throw new FileSystemException("No supported file system on " + device.getId());
+        }
+        return type.create(device, readOnly);
+    }
+
+    /**
+     * Forgets the detection result for a device, e.g. after it has been formatted.
+     *
+     * @param device the device.
+     */
+    public void forget(Device device) {
+        results.remove(device);
+    }
+
+    /**
+     * Shuts down the executor if it was created by this service. Checks which are still running are left to finish.
+     */
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FileSystemService:[types:%d remembered:%d]", types.size(), results.size());
+    }
+
+    /**
+     * Runs the checks for a device, or returns the remembered result.
+     *
+     * @param device the device.
+     * @param firstOnly whether to stop at the first match in order of preference.
+     * @return the matching types, in order of preference.
+     * @throws FileSystemException if an error occurs reading the device.
+     */
+    private List<FileSystemType<?>> probe(Device device, boolean firstOnly) throws FileSystemException {
+        ProbeResult remembered = results.get(device);
+        if (remembered != null && (firstOnly || remembered.complete)) {
+            return remembered.matches;
+        }
+
+        final FSBlockDeviceAPI api;
+        final byte[] buffer;
+        try {
+            api = device.getAPI(FSBlockDeviceAPI.class);
+            buffer = new byte[(int) Math.min(PROBE_SIZE, api.getLength())];
+            api.read(0, ByteBuffer.wrap(buffer));
+        } catch (ApiNotFoundException | IOException e) {
+            throw new FileSystemException("Error reading " + device.getId(), e);
+        }
+
+        final PartitionTableEntry pte = api.getPartitionTableEntry();
+        final FSBlockDeviceAPI probeApi = new ProbeDeviceApi(api, buffer);
+
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(types.size());
+        for (int i = 0; i < types.size(); i++) {
+            futures.add(null);
+        }
+        for (final int index : fastestFirst()) {
+            futures.set(index, executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return check(index, pte, buffer, probeApi);
+                }
+            }));
+        }
+
+        List<FileSystemType<?>> matches = new ArrayList<FileSystemType<?>>();
+        boolean complete = true;
+        try {
+            for (int i = 0; i < types.size(); i++) {
+                if (futures.get(i).get()) {
+                    matches.add(types.get(i));
+                    if (firstOnly && i < types.size() - 1) {
+                        complete = false;
+                        break;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileSystemException("Interrupted detecting the file system on " + device.getId(), e);
+        } catch (ExecutionException e) {
+            throw new FileSystemException("Error detecting the file system on " + device.getId(), e.getCause());
+        } finally {
+            // Checks which haven't started are dropped, but running ones aren't interrupted
+            for (Future<Boolean> future : futures) {
+                future.cancel(false);
+            }
+        }
+
+        ProbeResult result = new ProbeResult(matches, complete);
+        results.put(device, result);
+        return result.matches;
+    }
+
+    /**
+     * Runs one type's check, treating failures as not supported.
+     */
+    private boolean check(int index, PartitionTableEntry pte, byte[] buffer, FSBlockDeviceAPI probeApi) {
+        long start = System.nanoTime();
+        try {
+            return types.get(index).supports(pte, buffer, probeApi);
+        } catch (RuntimeException e) {
+            log.debug("Error checking for {}", types.get(index).getName(), e);
+            return false;
+        } finally {
+            probeNanos[index].addAndGet(System.nanoTime() - start);
+            probeCounts[index].incrementAndGet();
+        }
+    }
+
+    /**
+     * Orders the types by their mean check time so far. Types which haven't been checked yet keep their order of
+     * preference at the front.
+     *
+     * @return the type indexes.
+     */
+    private List<Integer> fastestFirst() {
+        final long[] means = new long[types.size()];
+        List<Integer> order = new ArrayList<Integer>(types.size());
+        for (int i = 0; i < types.size(); i++) {
+            long count = probeCounts[i].get();
+            means[i] = count == 0 ? 0 : probeNanos[i].get() / count;
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer index1, Integer index2) {
+                return Long.compare(means[index1], means[index2]);
+            }
+        });
+        return order;
+    }
+
+    private static List<FileSystemType<?>> loadTypes() {
+        List<FileSystemType<?>> types = new ArrayList<FileSystemType<?>>();
+        for (FileSystemType<?> type : ServiceLoader.load(FileSystemType.class)) {
+            types.add(type);
+        }
+        return types;
+    }
+
+    /**
+     * The result of detecting the file system on a device.
+     */
+    private static final class ProbeResult {
+        /**
+         * The matching types, in order of preference.
+         */
+        private final List<FileSystemType<?>> matches;
+
+        /**
+         * Whether every type was checked, rather than stopping at the first match.
+         */
+        private final boolean complete;
+
+        ProbeResult(List<FileSystemType<?>> matches, boolean complete) {
+            this.matches = Collections.unmodifiableList(matches);
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * A read-only view of a device for the checks, serving reads within the probe buffer from the buffer.
+     */
+    private static final class ProbeDeviceApi implements FSBlockDeviceAPI {
+        private final FSBlockDeviceAPI api;
+        private final byte[] buffer;
+
+        ProbeDeviceApi(FSBlockDeviceAPI api, byte[] buffer) {
+            this.api = api;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public long getLength() throws IOException {
+            return api.getLength();
+        }
+
+        @Override
+        public void read(long devOffset, ByteBuffer dest) throws IOException {
+            if (devOffset >= 0 && devOffset + dest.remaining() <= buffer.length) {
+                dest.put(buffer, (int) devOffset, dest.remaining());
+            } else {
+                api.read(devOffset, dest);
+            }
+        }
+
+        @Override
+        public void write(long devOffset, ByteBuffer src) throws IOException {
+            throw new IOException("Devices are read-only while being probed");
+        }
+
+        @Override
+        public void flush() {
+            // Nothing to do
+        }
+
+        @Override
+        public int getSectorSize() throws IOException {
+            return api.getSectorSize();
+        }
+
+        @Override
+        public PartitionTableEntry getPartitionTableEntry() {
+            return api.getPartitionTableEntry();
+        }
+    }
+}
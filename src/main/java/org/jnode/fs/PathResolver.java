@@ -0,0 +1,354 @@
+package org.jnode.fs;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jnode.fs.spi.FSObjectCache;
+
+/**
+ * Resolves paths to entries, caching each resolved path component.
+ * <p>
+ * Each directory reached is given a dentry with an ID, and the cache maps a (parent dentry ID, name) pair to the
+ * child's dentry. Names which weren't found are cached too, as negative entries. Only read-only file systems are
+ * cached, since otherwise a renamed, removed or newly added entry would be resolved from a stale dentry; paths on
+ * writable file systems are looked up directly. A hit for an entry which is no longer valid is looked up again.
+ * Callers which change the directory tree some other way should call {@link #clear()}.
+ * <p>
+ * In many file systems {@link FSDirectory#getEntry(String)} reads the whole directory, so looking up a list of
+ * paths would take time proportional to the size of the directories times the depth. Once a second name is looked
+ * up in the same directory, the directory is listed and all its entries are cached in one pass instead.
+ */
+public class PathResolver {
+
+    /**
+     * The path separator.
+     */
+    public static final char SEPARATOR = '/';
+
+    /**
+     * The default number of path components kept.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+
+    /**
+     * The number of uncached lookups in a directory after which it is listed.
+     */
+    private static final int LIST_AFTER_LOOKUPS = 2;
+
+    /**
+     * The value cached for names which don't exist.
+     */
+    private static final Object NEGATIVE = new Object();
+
+    /**
+     * The file system.
+     */
+    private final FileSystem<?> fileSystem;
+
+    /**
+     * The resolved path components.
+     */
+    private final FSObjectCache<DentryKey, Object> cache;
+
+    /**
+     * The source of dentry IDs.
+     */
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    /**
+     * The dentry for the root entry, or {@code null} if not looked up yet.
+     */
+    private volatile Dentry root;
+
+    /**
+     * Creates a new resolver with the default cache size.
+     *
+     * @param fileSystem the file system.
+     */
+    public PathResolver(FileSystem<?> fileSystem) {
+        this(fileSystem, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a new resolver.
+     *
+     * @param fileSystem the file system.
+     * @param cacheSize the number of path components to keep.
+     */
+    public PathResolver(FileSystem<?> fileSystem, int cacheSize) {
+        this.fileSystem = fileSystem;
+        cache = new FSObjectCache<DentryKey, Object>(cacheSize);
+    }
+
+    /**
+     * Resolves a path, relative to the root entry. Empty and "." components are skipped and ".." goes to the parent
+     * directory.
+     *
+     * @param path the path, e.g. "/Users/x/Library".
+     * @return the entry, or {@code null} if it doesn't exist.
+     * @throws IOException if an error occurs reading a directory.
+     */
+    public FSEntry resolve(String path) throws IOException {
+        Dentry current = getRoot();
+        int start = 0;
+        while (current != null && start <= path.length()) {
+            int end = path.indexOf(SEPARATOR, start);
+            if (end < 0) {
+                end = path.length();
+            }
+
+            String name = path.substring(start, end);
+            start = end + 1;
+            if (name.isEmpty() || ".".equals(name)) {
+                continue;
+            }
+            if ("..".equals(name)) {
+                current = current.parent == null ? current : current.parent;
+                continue;
+            }
+
+            current = lookup(current, name);
+        }
+        return current == null ? null : current.entry;
+    }
+
+    /**
+     * Removes all cached path components.
+     */
+    public void clear() {
+        cache.clear();
+        root = null;
+    }
+
+    /**
+     * Gets the number of path components found in the cache.
+     *
+     * @return the number of hits.
+     */
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    /**
+     * Gets the number of path components not found in the cache.
+     *
+     * @return the number of misses.
+     */
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    /**
+     * Gets the hit rate.
+     *
+     * @return the fraction of path components found in the cache.
+     */
+    public double getHitRate() {
+        return cache.getHitRate();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PathResolver:[%s]", cache);
+    }
+
+    /**
+     * Resolves a path without caching.
+     *
+     * @param root the entry the path is relative to.
+     * @param path the path.
+     * @return the entry, or {@code null} if it doesn't exist.
+     * @throws IOException if an error occurs reading a directory.
+     */
+    public static FSEntry resolve(FSEntry root, String path) throws IOException {
+        Deque<FSEntry> entries = new ArrayDeque<FSEntry>();
+        entries.push(root);
+        for (String name : path.split(String.valueOf(SEPARATOR))) {
+            if (name.isEmpty() || ".".equals(name)) {
+                continue;
+            }
+            if ("..".equals(name)) {
+                if (entries.size() > 1) {
+                    entries.pop();
+                }
+                continue;
+            }
+
+            FSEntry current = entries.peek();
+            FSEntry entry = current.isDirectory() ? current.getDirectory().getEntry(name) : null;
+            if (entry == null) {
+                return null;
+            }
+            entries.push(entry);
+        }
+        return entries.peek();
+    }
+
+    private Dentry getRoot() throws IOException {
+        Dentry current = root;
+        if (current == null) {
+            current = new Dentry(0, fileSystem.getRootEntry(), null);
+            root = current;
+        }
+        return current;
+    }
+
+    /**
+     * Looks up a name in a directory.
+     *
+     * @param parent the directory's dentry.
+     * @param name the name.
+     * @return the entry's dentry, or {@code null} if it doesn't exist.
+     * @throws IOException if an error occurs reading the directory.
+     */
+    private Dentry lookup(Dentry parent, String name) throws IOException {
+        if (!parent.entry.isDirectory()) {
+            return null;
+        }
+
+        if (!fileSystem.isReadOnly()) {
+            FSEntry entry = parent.entry.getDirectory().getEntry(name);
+            return entry == null ? null : new Dentry(nextId.getAndIncrement(), entry, parent);
+        }
+
+        DentryKey key = new DentryKey(parent.id, name);
+        Object cached = cache.get(key);
+        if (cached == NEGATIVE) {
+            return null;
+        }
+        if (cached != null) {
+            Dentry dentry = (Dentry) cached;
+            if (dentry.entry.isValid()) {
+                return dentry;
+            }
+            cache.remove(key);
+        }
+
+        FSDirectory directory = parent.entry.getDirectory();
+        if (!parent.listed && parent.lookups.incrementAndGet() >= LIST_AFTER_LOOKUPS) {
+            Dentry listed = list(parent, directory, name);
+            if (listed != null) {
+                return listed;
+            }
+        }
+
+        // Not listed, or the name isn't spelled as listed, e.g. on file systems which ignore case
+        FSEntry entry = directory.getEntry(name);
+        if (entry == null) {
+            cache.add(key, NEGATIVE);
+            return null;
+        }
+        return (Dentry) cache.add(key, new Dentry(nextId.getAndIncrement(), entry, parent));
+    }
+
+    /**
+     * Caches all the entries in a directory.
+     *
+     * @param parent the directory's dentry.
+     * @param directory the directory.
+     * @param name the name being looked up.
+     * @return the dentry for the name being looked up, or {@code null} if it wasn't listed.
+     * @throws IOException if an error occurs reading the directory.
+     */
+    private Dentry list(Dentry parent, FSDirectory directory, String name) throws IOException {
+        parent.listed = true;
+
+        // Listing a directory bigger than the cache would only evict its own entries
+        int limit = cache.getMaximumSize() / 2;
+        int count = 0;
+        Dentry found = null;
+        for (Iterator<? extends FSEntry> iterator = directory.iterator(); iterator.hasNext(); ) {
+            if (++count > limit) {
+                return found;
+            }
+
+            FSEntry entry = iterator.next();
+            String entryName = entry.getName();
+            if (entryName == null || ".".equals(entryName) || "..".equals(entryName)) {
+                continue;
+            }
+
+            Dentry dentry = (Dentry) cache.add(new DentryKey(parent.id, entryName),
+                new Dentry(nextId.getAndIncrement(), entry, parent));
+            if (entryName.equals(name)) {
+                found = dentry;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * A resolved path component.
+     */
+    private static class Dentry {
+
+        /**
+         * The ID, unique within this resolver.
+         */
+        private final long id;
+
+        /**
+         * The entry.
+         */
+        private final FSEntry entry;
+
+        /**
+         * The parent directory's dentry, or {@code null} for the root.
+         */
+        private final Dentry parent;
+
+        /**
+         * The number of uncached lookups in this directory.
+         */
+        private final AtomicInteger lookups = new AtomicInteger();
+
+        /**
+         * Whether this directory was listed, or at least as much of it as fits in the cache.
+         */
+        private volatile boolean listed;
+
+        private Dentry(long id, FSEntry entry, Dentry parent) {
+            this.id = id;
+            this.entry = entry;
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * The cache key for a path component.
+     */
+    private static class DentryKey {
+
+        /**
+         * The parent directory's dentry ID.
+         */
+        private final long parentId;
+
+        /**
+         * The name.
+         */
+        private final String name;
+
+        private DentryKey(long parentId, String name) {
+            this.parentId = parentId;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof DentryKey)) {
+                return false;
+            }
+            DentryKey key = (DentryKey) other;
+            return parentId == key.parentId && name.equals(key.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (parentId ^ (parentId >>> 32)) * 31 + name.hashCode();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.jnode.fs;
+
+import org.jnode.driver.Device;
+import org.jnode.partitions.PartitionTableEntry;
+
+/**
+ * A volume found by {@link VolumeDiscovery}: a partition, or a whole device without a partition table, and the file
+ * system mounted from it if there is one.
+ */
+public class Volume {
+
+    /**
+     * The path of the volume, the partition numbers from the outermost table inwards, e.g. {@code "2"} or
+     * {@code "1/3"}, the volume group and name of a logical volume, e.g. {@code "vg0/root"}, or an empty string for
+     * a whole device.
+     */
+    private final String path;
+
+    /**
+     * The device holding the volume.
+     */
+    private final Device device;
+
+    /**
+     * The partition table entry, or {@code null} for a whole device.
+     */
+    private final PartitionTableEntry entry;
+
+    /**
+     * The detected file system type, or {@code null}.
+     */
+    private final FileSystemType<?> type;
+
+    /**
+     * The mounted file system, or {@code null}.
+     */
+    private final FileSystem<?> fileSystem;
+
+    /**
+     * The error detecting or mounting the file system, or {@code null}.
+     */
+    private final Exception error;
+
+    Volume(String path, Device device, PartitionTableEntry entry, FileSystemType<?> type, FileSystem<?> fileSystem,
+           Exception error) {
+        this.path = path;
+        this.device = device;
+        this.entry = entry;
+        this.type = type;
+        this.fileSystem = fileSystem;
+        this.error = error;
+    }
+
+    /**
+     * Gets the path of the volume, the partition numbers from the outermost table inwards, e.g. {@code "2"} or
+     * {@code "1/3"}, or the volume group and name of a logical volume, e.g. {@code "vg0/root"}.
+     *
+     * @return the path, or an empty string for a whole device.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Gets the device holding the volume.
+     *
+     * @return the device.
+     */
+    public Device getDevice() {
+        return device;
+    }
+
+    /**
+     * Gets the partition table entry.
+     *
+     * @return the entry, or {@code null} for a whole device.
+     */
+    public PartitionTableEntry getPartitionTableEntry() {
+        return entry;
+    }
+
+    /**
+     * Gets the detected file system type.
+     *
+     * @return the type, or {@code null} if no supported file system was found.
+     */
+    public FileSystemType<?> getFileSystemType() {
+        return type;
+    }
+
+    /**
+     * Gets the mounted file system.
+     *
+     * @return the file system, or {@code null} if none was found or mounting failed.
+     */
+    public FileSystem<?> getFileSystem() {
+        return fileSystem;
+    }
+
+    /**
+     * Gets the error detecting or mounting the file system.
+     *
+     * @return the error, or {@code null}.
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Volume:[%s type:%s error:%s]", path, type == null ? null : type.getName(), error);
+    }
+}
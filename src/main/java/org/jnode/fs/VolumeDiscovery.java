@@ -0,0 +1,441 @@
+package org.jnode.fs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.jnode.driver.ApiNotFoundException;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.DaemonThreadFactory;
+import org.jnode.partitions.PartitionDevice;
+import org.jnode.partitions.PartitionTable;
+import org.jnode.partitions.PartitionTableEntry;
+import org.jnode.partitions.PartitionTableException;
+import org.jnode.partitions.PartitionTableType;
+import org.jnode.partitions.apm.ApmPartitionTableEntry;
+import org.jnode.partitions.apm.ApmPartitionTableType;
+import org.jnode.partitions.gpt.GptPartitionTableEntry;
+import org.jnode.partitions.gpt.GptPartitionTableType;
+import org.jnode.partitions.ibm.IBMPartitionTable;
+import org.jnode.partitions.ibm.IBMPartitionTableEntry;
+import org.jnode.partitions.ibm.IBMPartitionTableType;
+import org.jnode.partitions.lvm.LogicalVolumeDevice;
+import org.jnode.partitions.lvm.LvmPhysicalVolume;
+import org.jnode.partitions.lvm.LvmVolumeGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the volumes on a device and mounts their file systems.
+ * <p>
+ * GPT, APM and IBM (MBR) partition tables are walked recursively, including the logical partitions in IBM extended
+ * partitions, and each partition is wrapped in a {@link PartitionDevice}. A partition holding a file system is a
+ * volume, otherwise it is checked for a nested partition table. A device without a partition table is a volume in
+ * itself, unless it is an LVM2 physical volume: those are collected and assembled into their volume groups once the
+ * tables have been walked, and each logical volume is then treated like a partition. Walking the tables only reads
+ * the first sectors of each partition, which is quick, and then the volumes are all mounted concurrently on a bounded
+ * executor since mounting is where the time goes.
+ */
+public class VolumeDiscovery implements Closeable {
+
+    /**
+     * The default number of volumes mounted at once.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_MOUNTS = 4;
+
+    /**
+     * The deepest nesting of partition tables followed.
+     */
+    public static final int MAX_DEPTH = 4;
+
+    /**
+     * The number of bytes read from the start of a device to look for a partition table.
+     */
+    private static final int TABLE_PROBE_SIZE = 16 * 1024;
+
+    /**
+     * The number of the first logical partition in an IBM partition table.
+     */
+    private static final int FIRST_LOGICAL_PARTITION = 5;
+
+    /**
+     * The logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(VolumeDiscovery.class);
+
+    /**
+     * The service used to detect and create file systems.
+     */
+    private final FileSystemService service;
+
+    /**
+     * The executor to mount volumes on.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Whether the executor was created by, and should be shut down by, this instance.
+     */
+    private final boolean ownsExecutor;
+
+    /**
+     * The partition table types, GPT first since GPT disks also have a protective IBM partition table.
+     */
+    private final List<PartitionTableType> tableTypes = Arrays.<PartitionTableType>asList(
+        new GptPartitionTableType(), new ApmPartitionTableType(), new IBMPartitionTableType());
+
+    /**
+     * Creates a new instance which mounts up to {@link #DEFAULT_MAX_CONCURRENT_MOUNTS} volumes at once.
+     *
+     * @param service the service used to detect and create file systems.
+     */
+    public VolumeDiscovery(FileSystemService service) {
+        this(service, DEFAULT_MAX_CONCURRENT_MOUNTS);
+    }
+
+    /**
+     * Creates a new instance with its own executor.
+     *
+     * @param service the service used to detect and create file systems.
+     * @param maxConcurrentMounts the number of volumes mounted at once.
+     */
+    public VolumeDiscovery(FileSystemService service, int maxConcurrentMounts) {
+        this(service, Executors.newFixedThreadPool(maxConcurrentMounts, new DaemonThreadFactory("volume-mount")),
+            true);
+    }
+
+    /**
+     * Creates a new instance using a shared executor, which isn't shut down when this instance is closed.
+     *
+     * @param service the service used to detect and create file systems.
+     * @param executor the executor to mount volumes on.
+     */
+    public VolumeDiscovery(FileSystemService service, ExecutorService executor) {
+        this(service, executor, false);
+    }
+
+    private VolumeDiscovery(FileSystemService service, ExecutorService executor, boolean ownsExecutor) {
+        this.service = service;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /**
+     * Finds the volumes on a device without mounting them.
+     *
+     * @param device the device.
+     * @return the volumes, in partition table order. Only the path, device and partition table entry are set.
+     * @throws IOException if an error occurs reading the partition tables.
+     */
+    public List<Volume> findVolumes(Device device) throws IOException {
+        List<Volume> volumes = new ArrayList<Volume>();
+        List<LvmPhysicalVolume> physicalVolumes = new ArrayList<LvmPhysicalVolume>();
+        findVolumes(device, null, "", 0, volumes, physicalVolumes);
+        findLogicalVolumes(physicalVolumes, 1, volumes);
+        return volumes;
+    }
+
+    /**
+     * Finds the volumes on a device and mounts them concurrently. A volume which can't be mounted is still returned,
+     * with the error.
+     * <p>
+     * If the thread is interrupted, mounts which haven't started are skipped and those which are running are waited
+     * for rather than interrupted, since interrupting a read from the image's channel would close it for every volume.
+     * The file systems which did mount are closed before the exception is thrown.
+     *
+     * @param device the device.
+     * @param readOnly whether to mount the file systems read-only.
+     * @return the volumes, in partition table order.
+     * @throws IOException if an error occurs reading the partition tables or the thread is interrupted.
+     */
+    public List<Volume> discover(Device device, final boolean readOnly) throws IOException {
+        List<Volume> found = findVolumes(device);
+
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        List<Future<Volume>> futures = new ArrayList<Future<Volume>>(found.size());
+        for (final Volume volume : found) {
+            futures.add(executor.submit(new Callable<Volume>() {
+                @Override
+                public Volume call() {
+                    return abandoned.get() ? volume : mount(volume, readOnly);
+                }
+            }));
+        }
+
+        List<Volume> volumes = new ArrayList<Volume>(found.size());
+        try {
+            for (Future<Volume> future : futures) {
+                volumes.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            abandoned.set(true);
+            closeFileSystems(awaitAll(futures));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted mounting the volumes on " + device.getId());
+        } catch (ExecutionException e) {
+            abandoned.set(true);
+            closeFileSystems(awaitAll(futures));
+            throw new IOException("Error mounting the volumes on " + device.getId(), e.getCause());
+        }
+        return volumes;
+    }
+
+    /**
+     * Shuts down the executor if it was created by this instance. Mounts which are still running are left to finish.
+     */
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("VolumeDiscovery:[%s]", service);
+    }
+
+    private void findVolumes(Device device, PartitionTableEntry entry, String path, int depth, List<Volume> volumes,
+                             List<LvmPhysicalVolume> physicalVolumes) throws IOException {
+        if (depth > 0 && hasFileSystem(device)) {
+            volumes.add(new Volume(path, device, entry, null, null, null));
+            return;
+        }
+
+        byte[] start = depth < MAX_DEPTH ? readStart(device) : null;
+        PartitionTable<?> table = start != null ? readPartitionTable(device, start) : null;
+        if (table == null) {
+            if (start != null && LvmPhysicalVolume.hasLabel(start)) {
+                try {
+                    physicalVolumes.add(new LvmPhysicalVolume(device));
+                    return;
+                } catch (IOException e) {
+                    log.warn("Error reading the LVM2 physical volume on {}", device.getId(), e);
+                }
+            }
+            volumes.add(new Volume(path, device, entry, null, null, null));
+            return;
+        }
+
+        long deviceLength = getApi(device).getLength();
+        List<PartitionTableEntry> children = new ArrayList<PartitionTableEntry>();
+        List<Integer> numbers = new ArrayList<Integer>();
+        listPartitions(table, children, numbers);
+
+        for (int i = 0; i < children.size(); i++) {
+            PartitionTableEntry child = children.get(i);
+            long[] range = getRange(table, child);
+            String childPath = path.isEmpty() ? String.valueOf(numbers.get(i)) : path + "/" + numbers.get(i);
+
+            if (range == null || range[1] <= 0) {
+                continue;
+            }
+            if (range[0] < 0 || range[0] + range[1] > deviceLength) {
+                log.warn("Partition {} of {} is outside the device: {}", childPath, device.getId(), child);
+                continue;
+            }
+
+            findVolumes(new PartitionDevice(device, child, range[0], range[1]), child, childPath, depth + 1, volumes,
+                physicalVolumes);
+        }
+    }
+
+    /**
+     * Assembles the volume groups of the physical volumes found and walks their logical volumes, which are given
+     * paths of the form {@code "vg/lv"}.
+     */
+    private void findLogicalVolumes(List<LvmPhysicalVolume> physicalVolumes, int depth, List<Volume> volumes)
+        throws IOException {
+        for (LvmVolumeGroup group : LvmVolumeGroup.assemble(physicalVolumes)) {
+            if (!group.getMissingPhysicalVolumes().isEmpty()) {
+                log.warn("Volume group {} is missing physical volumes {}", group.getName(),
+                    group.getMissingPhysicalVolumes());
+            }
+
+            List<LvmPhysicalVolume> nested = new ArrayList<LvmPhysicalVolume>();
+            for (LogicalVolumeDevice logicalVolume : group.getLogicalVolumes()) {
+                findVolumes(logicalVolume, null, group.getName() + "/" + logicalVolume.getName(), depth, volumes,
+                    nested);
+            }
+            if (depth < MAX_DEPTH) {
+                findLogicalVolumes(nested, depth + 1, volumes);
+            }
+        }
+    }
+
+    /**
+     * Lists the partitions in a table with their numbers. IBM primary partitions are numbered by their slot and
+     * logical partitions from {@link #FIRST_LOGICAL_PARTITION}, as Linux does. Other tables are numbered in order.
+     */
+    private static void listPartitions(PartitionTable<?> table, List<PartitionTableEntry> children,
+                                       List<Integer> numbers) {
+        if (table instanceof IBMPartitionTable) {
+            IBMPartitionTable ibmTable = (IBMPartitionTable) table;
+            int slot = 1;
+            for (IBMPartitionTableEntry child : ibmTable) {
+                if (child.isValid() && !child.isExtended()) {
+                    children.add(child);
+                    numbers.add(slot);
+                }
+                slot++;
+            }
+            int logical = FIRST_LOGICAL_PARTITION;
+            for (IBMPartitionTableEntry child : ibmTable.getExtendedPartitions()) {
+                children.add(child);
+                numbers.add(logical++);
+            }
+        } else {
+            int number = 1;
+            for (PartitionTableEntry child : table) {
+                if (child.isValid()) {
+                    children.add(child);
+                    numbers.add(number);
+                }
+                number++;
+            }
+        }
+    }
+
+    /**
+     * Gets the byte range of a partition.
+     *
+     * @param table the partition table the entry is from.
+     * @param entry the partition table entry.
+     * @return the offset and length, or {@code null} for an unknown kind of entry.
+     */
+    private static long[] getRange(PartitionTable<?> table, PartitionTableEntry entry) {
+        if (entry instanceof IBMPartitionTableEntry && table instanceof IBMPartitionTable) {
+            // IBM tables are in sectors of the device, e.g. 4096 bytes on a 4Kn disk
+            IBMPartitionTableEntry ibmEntry = (IBMPartitionTableEntry) entry;
+            long sectorSize = ((IBMPartitionTable) table).getSectorSize();
+            return new long[] {ibmEntry.getStartLba() * sectorSize, ibmEntry.getNrSectors() * sectorSize};
+        }
+        if (entry instanceof GptPartitionTableEntry) {
+            GptPartitionTableEntry gptEntry = (GptPartitionTableEntry) entry;
+            return new long[] {gptEntry.getStartOffset(), gptEntry.getEndOffset() - gptEntry.getStartOffset()};
+        }
+        if (entry instanceof ApmPartitionTableEntry) {
+            ApmPartitionTableEntry apmEntry = (ApmPartitionTableEntry) entry;
+            return new long[] {apmEntry.getStartOffset(), apmEntry.getEndOffset() - apmEntry.getStartOffset()};
+        }
+        return null;
+    }
+
+    private boolean hasFileSystem(Device device) {
+        try {
+            return service.detect(device) != null;
+        } catch (FileSystemException e) {
+            log.debug("Error detecting the file system on {}", device.getId(), e);
+            return false;
+        }
+    }
+
+    private static byte[] readStart(Device device) throws IOException {
+        BlockDeviceAPI api = getApi(device);
+        byte[] start = new byte[(int) Math.min(TABLE_PROBE_SIZE, api.getLength())];
+        api.read(0, ByteBuffer.wrap(start));
+        return start;
+    }
+
+    /**
+     * Reads the partition table at the start of a device.
+     *
+     * @param device the device.
+     * @param start the start of the device.
+     * @return the table, or {@code null} if there isn't one.
+     * @throws IOException if the device doesn't have a {@link BlockDeviceAPI}.
+     */
+    private PartitionTable<?> readPartitionTable(Device device, byte[] start) throws IOException {
+        BlockDeviceAPI api = getApi(device);
+        for (PartitionTableType type : tableTypes) {
+            if (type.supports(start, api)) {
+                try {
+                    return type.create(start, device);
+                } catch (PartitionTableException e) {
+                    log.warn("Error reading the {} partition table on {}", type.getName(), device.getId(), e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Detects and mounts the file system of a volume.
+     *
+     * @param volume the volume found.
+     * @param readOnly whether to mount read-only.
+     * @return the volume with its file system or error.
+     */
+    private Volume mount(Volume volume, boolean readOnly) {
+        FileSystemType<?> type = null;
+        try {
+            type = service.detect(volume.getDevice());
+            FileSystem<?> fileSystem = type == null ? null : type.create(volume.getDevice(), readOnly);
+            return new Volume(volume.getPath(), volume.getDevice(), volume.getPartitionTableEntry(), type, fileSystem,
+                null);
+        } catch (FileSystemException | RuntimeException e) {
+            log.warn("Error mounting volume {} of {}", volume.getPath(), volume.getDevice().getId(), e);
+            return new Volume(volume.getPath(), volume.getDevice(), volume.getPartitionTableEntry(), type, null, e);
+        }
+    }
+
+    /**
+     * Waits for mounts to finish, keeping any interrupt for the caller.
+     *
+     * @param futures the mounts.
+     * @return the volumes of the mounts which finished normally.
+     */
+    private static List<Volume> awaitAll(List<Future<Volume>> futures) {
+        List<Volume> volumes = new ArrayList<Volume>(futures.size());
+        boolean interrupted = false;
+        for (Future<Volume> future : futures) {
+            while (true) {
+                try {
+                    volumes.add(future.get());
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return volumes;
+    }
+
+    /**
+     * Closes the file systems of volumes which won't be returned.
+     */
+    private static void closeFileSystems(List<Volume> volumes) {
+        for (Volume volume : volumes) {
+            if (volume.getFileSystem() != null) {
+                try {
+                    volume.getFileSystem().close();
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Error closing the file system on volume {}", volume.getPath(), e);
+                }
+            }
+        }
+    }
+
+    private static BlockDeviceAPI getApi(Device device) throws IOException {
+        try {
+            return device.getAPI(BlockDeviceAPI.class);
+        } catch (ApiNotFoundException e) {
+            throw new IOException("BlockDeviceAPI not found on device", e);
+        }
+    }
+}
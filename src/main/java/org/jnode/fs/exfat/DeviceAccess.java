@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.BlockIoTag;
 
 /**
  * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
@@ -48,7 +49,7 @@ final class DeviceAccess {
     public int getUint8(long offset) throws IOException {
         this.buffer.rewind();
         this.buffer.limit(1);
-        this.dev.read(offset, buffer);
+        readTagged(offset, buffer);
         this.buffer.rewind();
 
         return getUint8(this.buffer);
@@ -57,7 +58,7 @@ final class DeviceAccess {
     public long getUint32(long offset) throws IOException {
         this.buffer.rewind();
         this.buffer.limit(4);
-        this.dev.read(offset, buffer);
+        readTagged(offset, buffer);
         this.buffer.rewind();
 
         return getUint32(buffer);
@@ -92,14 +93,23 @@ final class DeviceAccess {
     public char getChar(long offset) throws IOException {
         this.buffer.rewind();
         this.buffer.limit(BYTES_PER_CHAR);
-        this.dev.read(offset, buffer);
+        readTagged(offset, buffer);
         this.buffer.rewind();
 
         return getChar(buffer);
     }
 
     public void read(ByteBuffer dest, long offset) throws IOException {
-        dev.read(offset, dest);
+        readTagged(offset, dest);
+    }
+
+    private void readTagged(long offset, ByteBuffer dest) throws IOException {
+        final String previousTag = BlockIoTag.set(BlockIoTag.EXFAT_METADATA);
+        try {
+            dev.read(offset, dest);
+        } finally {
+            BlockIoTag.restore(previousTag);
+        }
     }
 
 }
@@ -23,13 +23,17 @@ package org.jnode.fs.exfat;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 import org.jnode.fs.FSFile;
+import org.jnode.fs.FSFileExtent;
+import org.jnode.fs.FSFileExtents;
 import org.jnode.fs.spi.AbstractFSObject;
+import org.jnode.fs.util.FSFileExtentBuilder;
 
 /**
  * @author Matthias Treydte &lt;waldheinz at gmail.com&gt;
  */
-public class NodeFile extends AbstractFSObject implements FSFile {
+public class NodeFile extends AbstractFSObject implements FSFile, FSFileExtents {
 
     private final Node node;
 
@@ -111,6 +115,38 @@ public class NodeFile extends AbstractFSObject implements FSFile {
         }
     }
 
+    @Override
+    public List<FSFileExtent> getExtents() throws IOException {
+        final long length = getLength();
+        final FSFileExtentBuilder builder = new FSFileExtentBuilder(length);
+
+        if (length == 0) {
+            return builder.build();
+        }
+
+        final ExFatSuperBlock sb = node.getSuperBlock();
+        if (node.isContiguous()) {
+            // No FAT chain to follow, the clusters are all in one run
+            return builder.add(0, length, sb.clusterToOffset(node.getStartCluster()), 0).build();
+        }
+
+        final int bpc = sb.getBytesPerCluster();
+        long cluster = node.getStartCluster();
+        for (long offset = 0; offset < length; offset += bpc) {
+            if (Cluster.invalid(cluster)) {
+                throw new IOException("invalid cluster");
+            }
+
+            builder.add(offset, bpc, sb.clusterToOffset(cluster), 0);
+
+            if (offset + bpc < length) {
+                cluster = this.node.nextCluster(cluster);
+            }
+        }
+
+        return builder.build();
+    }
+
     @Override
     public void write(long offset, ByteBuffer src) throws IOException {
         throw new UnsupportedOperationException("Not supported yet.");
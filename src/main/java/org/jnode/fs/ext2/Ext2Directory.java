@@ -347,24 +347,41 @@ public class Ext2Directory extends AbstractFSDirectory implements FSDirectoryId
         return getEntryTable().getById(id);
     }
 
+    /**
+     * Iterates the directory records, reading the directory a window of blocks at a time so that huge directories
+     * are decoded in bounded memory. Records never cross a block boundary, so neither do the windows.
+     */
     class Ext2FSEntryIterator implements Iterator<FSEntry> {
+        /**
+         * The number of blocks read at once.
+         */
+        static final int WINDOW_BLOCKS = 16;
+
+        Ext2File directoryFile;
+
         ByteBuffer data;
 
+        int dataStart;
+
+        int dataLength;
+
         int index;
 
         Ext2DirectoryRecord current;
 
         Ext2FSEntryIterator(Ext2Entry entry) throws IOException {
             //read itself as a file
-            Ext2File directoryFile = new Ext2File(entry);
-            //read the whole directory
-
-            data = ByteBuffer.allocate((int) directoryFile.getLength());
-            directoryFile.read(0, data);
+            directoryFile = new Ext2File(entry);
+            long length = directoryFile.getLength();
+            int windowSize = (int) Math.min(length, (long) ((Ext2FileSystem) getFileSystem()).getBlockSize() *
+                WINDOW_BLOCKS);
 
             index = 0;
 
             if ((entry.getINode().getFlags() & Ext2Constants.EXT4_INLINE_DATA_FL) == Ext2Constants.EXT4_INLINE_DATA_FL) {
+                //inline directories are small and not made of blocks, so read them whole
+                windowSize = (int) length;
+
                 XAttrEntry dataAttribute = entry.getINode().getAttribute("system.data");
                 if (dataAttribute == null || dataAttribute.getValueSize() == 0) {
                     // If the directory listings are stored in the inode's i_block
@@ -372,6 +389,8 @@ public class Ext2Directory extends AbstractFSDirectory implements FSDirectoryId
                     index = 4;
                 }
             }
+
+            data = ByteBuffer.allocate(windowSize);
         }
 
         public boolean hasNext() {
@@ -383,13 +402,17 @@ public class Ext2Directory extends AbstractFSDirectory implements FSDirectoryId
                         return false;
                     }
 
-                    if (data.capacity() < 8 || index >= data.capacity() ||
-                        LittleEndian.getUInt16(data.array(), index + 4) == 0) {
+                    if (index + 8 > dataStart + dataLength && !readWindow(fs)) {
+                        return false;
+                    }
+
+                    int offset = index - dataStart;
+                    if (LittleEndian.getUInt16(data.array(), offset + 4) == 0) {
                         return false;
                     }
 
-                    //TODO optimize it also to use ByteBuffer at lower level            
-                    dr = new Ext2DirectoryRecord(fs, data.array(), index, index);
+                    //TODO optimize it also to use ByteBuffer at lower level
+                    dr = new Ext2DirectoryRecord(fs, data.array(), offset, index);
                     index += dr.getRecLen();
                 } while (dr.getINodeNr() == 0); //inode nr=0 means the entry is unused
             } catch (Exception e) {
@@ -400,6 +423,26 @@ public class Ext2Directory extends AbstractFSDirectory implements FSDirectoryId
             return true;
         }
 
+        /**
+         * Reads the window of blocks holding the current index.
+         *
+         * @return {@code false} if there isn't a whole record header left to read.
+         */
+        private boolean readWindow(Ext2FileSystem fs) throws IOException {
+            int start = data.capacity() >= directoryFile.getLength() ? 0 : index - index % fs.getBlockSize();
+            int length = (int) Math.min(data.capacity(), directoryFile.getLength() - start);
+            if (length < 8 || index + 8 > start + length) {
+                return false;
+            }
+
+            data.clear();
+            data.limit(length);
+            directoryFile.read(start, data);
+            dataStart = start;
+            dataLength = length;
+            return true;
+        }
+
         public FSEntry next() {
 
             if (current == null) {
@@ -446,6 +489,11 @@ public class Ext2Directory extends AbstractFSDirectory implements FSDirectoryId
         }
     }
 
+    @Override
+    protected Iterator<FSEntry> streamEntries() throws IOException {
+        return new Ext2FSEntryIterator(entry);
+    }
+
     /**
      * Read the entries from the device and return the result in a new
      * FSEntryTable
@@ -462,7 +510,7 @@ public class Ext2Directory extends AbstractFSDirectory implements FSDirectoryId
             entries.add(entry);
         }
 
-        FSEntryTable table = new FSEntryTable((AbstractFileSystem<?>) getFileSystem(), entries);
+        FSEntryTable table = FSEntryTable.create((AbstractFileSystem<?>) getFileSystem(), entries);
 
         return table;
     }
@@ -23,12 +23,16 @@ package org.jnode.fs.ext2;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
+import org.jnode.fs.FSFileExtent;
+import org.jnode.fs.FSFileExtents;
 import org.jnode.fs.FSFileSlackSpace;
 import org.jnode.fs.FileSystemException;
 import org.jnode.fs.ReadOnlyFileSystemException;
 import org.jnode.fs.ext2.xattr.XAttrEntry;
 import org.jnode.fs.spi.AbstractFSFile;
 import org.jnode.fs.spi.AbstractFileSystem;
+import org.jnode.fs.util.FSFileExtentBuilder;
 import org.jnode.util.ByteBufferUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,7 +40,7 @@ import org.slf4j.LoggerFactory;
 /**
  * @author Andras Nagy
  */
-public class Ext2File extends AbstractFSFile implements FSFileSlackSpace {
+public class Ext2File extends AbstractFSFile implements FSFileSlackSpace, FSFileExtents {
 
     private final Ext2Entry entry;
     private final String name;
@@ -387,4 +391,31 @@ public class Ext2File extends AbstractFSFile implements FSFileSlackSpace {
 
         return slackSpace;
     }
+
+    @Override
+    public List<FSFileExtent> getExtents() throws IOException {
+        // synchronize to the inode cache to make sure that the inode does not
+        // get flushed between reading it and locking it
+        synchronized (((Ext2FileSystem) getFileSystem()).getInodeCache()) {
+            rereadInode();
+            iNode.incLocked();
+        }
+
+        synchronized (iNode) {
+            try {
+                long length = getLength();
+                boolean fastSymlink = (iNode.getMode() & Ext2Constants.EXT2_S_IFLNK) == Ext2Constants.EXT2_S_IFLNK &&
+                    length < 60;
+                if (fastSymlink || (iNode.getFlags() & Ext2Constants.EXT4_INLINE_DATA_FL) != 0) {
+                    return new FSFileExtentBuilder(length)
+                        .add(0, length, FSFileExtent.NO_DEVICE_OFFSET, FSFileExtent.INLINE)
+                        .build();
+                }
+
+                return iNode.getExtents(length);
+            } finally {
+                iNode.decLocked();
+            }
+        }
+    }
 }
@@ -26,6 +26,7 @@ import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import org.jnode.driver.Device;
+import org.jnode.driver.block.BlockIoTag;
 import org.jnode.fs.FSDirectory;
 import org.jnode.fs.FSEntry;
 import org.jnode.fs.FSFile;
@@ -424,7 +425,12 @@ public class Ext2FileSystem extends AbstractFileSystem<Ext2Entry> {
         // synchronized block
         ByteBuffer data = ByteBuffer.allocate(blockSize);
         log.debug("Reading block " + nr + " (offset: " + nr * blockSize + ") from disk");
-        getApi().read(nr * blockSize, data);
+        final String previousTag = BlockIoTag.set(BlockIoTag.EXT2_BLOCK);
+        try {
+            getApi().read(nr * blockSize, data);
+        } finally {
+            BlockIoTag.restore(previousTag);
+        }
 
         // synchronize again
         synchronized (blockCache) {
@@ -26,12 +26,15 @@ import java.util.Arrays;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.jnode.fs.FSFileExtent;
 import org.jnode.fs.FileSystemException;
 import org.jnode.fs.ext2.exception.UnallocatedBlockException;
 import org.jnode.fs.ext2.xattr.XAttrEntry;
 import org.jnode.fs.ext2.xattr.XAttrHeader;
 import org.jnode.fs.ext2.xattr.XAttrInlineEntry;
+import org.jnode.fs.ext4.Extent;
 import org.jnode.fs.ext4.ExtentHeader;
+import org.jnode.fs.util.FSFileExtentBuilder;
 import org.jnode.fs.util.FSUtils;
 import org.jnode.util.LittleEndian;
 
@@ -482,6 +485,90 @@ public class INode {
         throw new IOException("Internal FS exception: getDataBlockIndex(i=" + i + ")");
     }
 
+    /**
+     * Gets the extents of the inode's data from its extent tree, or from its block map. Unallocated blocks are
+     * reported as holes.
+     *
+     * @param length the length of the data.
+     * @return the extents.
+     * @throws IOException if an error occurs reading the index or indirect blocks.
+     */
+    public List<FSFileExtent> getExtents(long length) throws IOException {
+        final long blockSize = fs.getBlockSize();
+        FSFileExtentBuilder builder = new FSFileExtentBuilder(length);
+
+        if ((getFlags() & Ext2Constants.EXT4_INODE_EXTENTS_FLAG) != 0) {
+            if (extentHeader == null) {
+                extentHeader = new ExtentHeader(getINodeBlockData());
+            }
+
+            for (Extent extent : extentHeader.getAllExtents(fs)) {
+                builder.add(extent.getBlockIndex() * blockSize, extent.getLength() * blockSize,
+                    extent.getStartLow() * blockSize, extent.isUnwritten() ? FSFileExtent.UNWRITTEN : 0);
+            }
+        } else {
+            final long blockCount = (length + blockSize - 1) / blockSize;
+            for (int i = 0; i < 12 && i < blockCount; i++) {
+                addBlockExtent(builder, i, LittleEndian.getUInt32(data, 40 + i * 4));
+            }
+
+            // Then the single, double and triple indirect blocks, each read once rather than once per data block
+            long firstIndex = 12;
+            long span = getIndirectCount();
+            for (int level = 1; level <= 3 && firstIndex < blockCount; level++) {
+                addIndirectExtents(builder, LittleEndian.getUInt32(data, 40 + (11 + level) * 4), firstIndex, level,
+                    blockCount);
+                firstIndex += span;
+                span *= getIndirectCount();
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Adds the blocks reachable from an indirect block to an extent list.
+     *
+     * @param builder the extent list builder.
+     * @param blockNr the indirect block, or zero for a hole.
+     * @param firstIndex the index in the file of the first block reachable from the indirect block.
+     * @param indirectionLevel 1 for a simple indirect block, and so on.
+     * @param blockCount the number of blocks in the file.
+     */
+    private void addIndirectExtents(FSFileExtentBuilder builder, long blockNr, long firstIndex, int indirectionLevel,
+                                    long blockCount) throws IOException {
+        if (blockNr == 0) {
+            return;
+        }
+
+        final byte[] indirectData = fs.getBlock(blockNr);
+        final int indirectCount = getIndirectCount();
+        final long span = (long) Math.pow(indirectCount, indirectionLevel - 1);
+        for (int i = 0; i < indirectCount; i++) {
+            long index = firstIndex + i * span;
+            if (index >= blockCount) {
+                break;
+            }
+
+            long childBlockNr = LittleEndian.getUInt32(indirectData, i * 4);
+            if (indirectionLevel == 1) {
+                addBlockExtent(builder, index, childBlockNr);
+            } else {
+                addIndirectExtents(builder, childBlockNr, index, indirectionLevel - 1, blockCount);
+            }
+        }
+    }
+
+    /**
+     * Adds a data block to an extent list, unless it is a hole.
+     */
+    private void addBlockExtent(FSFileExtentBuilder builder, long index, long blockNr) {
+        if (blockNr != 0) {
+            long blockSize = fs.getBlockSize();
+            builder.add(index * blockSize, blockSize, blockNr * blockSize, 0);
+        }
+    }
+
     /**
      * Read the ith block of the inode (i is a sequential index from the
      * beginning of the file, and not an absolute block number)
@@ -33,6 +33,12 @@ public class Extent {
      */
     public static final int EXTENT_LENGTH = 12;
 
+    /**
+     * The largest block count of an initialised extent. A larger count marks an unwritten (preallocated) extent, of
+     * the count less this many blocks.
+     */
+    public static final int MAX_INITIALISED_LENGTH = 32768;
+
     /**
      * The data for the extent.
      */
@@ -61,6 +67,24 @@ public class Extent {
         return LittleEndian.getUInt16(data, 4);
     }
 
+    /**
+     * Checks whether this extent is allocated but not written yet.
+     *
+     * @return {@code true} if unwritten.
+     */
+    public boolean isUnwritten() {
+        return getBlockCount() > MAX_INITIALISED_LENGTH;
+    }
+
+    /**
+     * Gets the number of blocks in this extent, without the unwritten marker.
+     *
+     * @return the number of blocks.
+     */
+    public int getLength() {
+        return isUnwritten() ? getBlockCount() - MAX_INITIALISED_LENGTH : getBlockCount();
+    }
+
     public long getStartLow() {
         return LittleEndian.getUInt32(data, 8);
     }
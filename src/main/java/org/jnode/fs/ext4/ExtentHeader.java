@@ -21,6 +21,9 @@
 package org.jnode.fs.ext4;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import org.jnode.fs.ext2.Ext2FileSystem;
 import org.jnode.util.LittleEndian;
 
@@ -138,6 +141,28 @@ public class ExtentHeader {
         }
     }
 
+    /**
+     * Gets all the extents in the tree under this header, in block index order.
+     *
+     * @param fs the file system to read the index blocks from.
+     * @return the extents.
+     * @throws IOException if an error occurs reading an index block.
+     */
+    public List<Extent> getAllExtents(Ext2FileSystem fs) throws IOException {
+        if (getDepth() == 0) {
+            List<Extent> extents = new ArrayList<Extent>(getEntryCount());
+            Collections.addAll(extents, getExtentEntries());
+            return extents;
+        }
+
+        List<Extent> extents = new ArrayList<Extent>();
+        for (ExtentIndex extentIndex : getIndexEntries()) {
+            ExtentHeader indexHeader = new ExtentHeader(fs.getBlock(extentIndex.getLeafLow()));
+            extents.addAll(indexHeader.getAllExtents(fs));
+        }
+        return extents;
+    }
+
     /**
      * Performs a binary search in the extent indexes.
      *
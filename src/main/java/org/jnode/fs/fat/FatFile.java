@@ -22,10 +22,14 @@ package org.jnode.fs.fat;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 import org.jnode.driver.block.BlockDeviceAPI;
 import org.jnode.fs.FSFile;
+import org.jnode.fs.FSFileExtent;
+import org.jnode.fs.FSFileExtents;
 import org.jnode.fs.ReadOnlyFileSystemException;
+import org.jnode.fs.util.FSFileExtentBuilder;
 
 /**
  * A File instance is the in-memory representation of a single file (chain of
@@ -33,7 +37,7 @@ import org.jnode.fs.ReadOnlyFileSystemException;
  * 
  * @author epr
  */
-public class FatFile extends FatObject implements FSFile {
+public class FatFile extends FatObject implements FSFile, FSFileExtents {
     private long startCluster;
     private long length;
     private FatDirectory dir;
@@ -195,6 +199,23 @@ public class FatFile extends FatObject implements FSFile {
         }
     }
 
+    /**
+     * Gets the extents of this file's cluster chain.
+     * 
+     * @return the extents.
+     */
+    public synchronized List<FSFileExtent> getExtents() throws IOException {
+        final long max = (isDir) ? getLengthOnDisk() : getLength();
+        final FSFileExtentBuilder builder = new FSFileExtentBuilder(max);
+        if (max > 0) {
+            final long[] chain = getFatFileSystem().getFat().getChain(startCluster);
+            for (int chainIdx = 0; chainIdx < chain.length; chainIdx++) {
+                builder.add((long) chainIdx * clusterSize, clusterSize, getDevOffset(chain[chainIdx], 0), 0);
+            }
+        }
+        return builder.build();
+    }
+
     /**
      * Returns the startCluster.
      * 
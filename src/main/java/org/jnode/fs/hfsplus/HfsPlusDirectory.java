@@ -239,7 +239,7 @@ public class HfsPlusDirectory implements FSDirectory, FSDirectoryId {
                 }
             }
         }
-        return new FSEntryTable(getFileSystem(), pathList);
+        return FSEntryTable.create(getFileSystem(), pathList);
     }
 
     /**
@@ -23,8 +23,11 @@ package org.jnode.fs.hfsplus;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.jnode.fs.FSFile;
+import org.jnode.fs.FSFileExtent;
+import org.jnode.fs.FSFileExtents;
 import org.jnode.fs.FSFileSlackSpace;
 import org.jnode.fs.FSFileStreams;
 import org.jnode.fs.FileSystem;
@@ -33,8 +36,9 @@ import org.jnode.fs.hfsplus.catalog.CatalogFile;
 import org.jnode.fs.hfsplus.catalog.CatalogNodeId;
 import org.jnode.fs.hfsplus.compression.CompressedAttributeData;
 import org.jnode.fs.hfsplus.compression.DecmpfsDiskHeader;
+import org.jnode.fs.util.FSFileExtentBuilder;
 
-public class HfsPlusFile implements FSFile, FSFileSlackSpace, FSFileStreams {
+public class HfsPlusFile implements FSFile, FSFileSlackSpace, FSFileStreams, FSFileExtents {
 
     /**
      * The associated entry.
@@ -232,6 +236,21 @@ public class HfsPlusFile implements FSFile, FSFileSlackSpace, FSFileStreams {
         return slackSpace;
     }
 
+    @Override
+    public List<FSFileExtent> getExtents() throws IOException {
+        if (isHardLinked()) {
+            return getHardLinkFile().getExtents();
+        } else if (isCompressed()) {
+            // The compressed data is in an attribute or the resource fork, and not split up by file offset
+            long length = getLength();
+            return new FSFileExtentBuilder(length)
+                .add(0, length, FSFileExtent.NO_DEVICE_OFFSET, FSFileExtent.COMPRESSED)
+                .build();
+        } else {
+            return file.getDatas().getFileExtents(getFileSystem());
+        }
+    }
+
     @Override
     public Map<String, FSFile> getStreams() {
         Map<String, FSFile> streams = new HashMap<String, FSFile>();
@@ -260,7 +279,7 @@ public class HfsPlusFile implements FSFile, FSFileSlackSpace, FSFileStreams {
     /**
      * A file for the resource fork stream.
      */
-    public class ResourceForkFile implements FSFile {
+    public class ResourceForkFile implements FSFile, FSFileExtents {
         /**
          * Gets the catalog file for the resource fork file.
          *
@@ -291,6 +310,11 @@ public class HfsPlusFile implements FSFile, FSFileSlackSpace, FSFileStreams {
             throw new UnsupportedOperationException("Not implemented yet");
         }
 
+        @Override
+        public List<FSFileExtent> getExtents() throws IOException {
+            return file.getResources().getFileExtents(HfsPlusFile.this.getFileSystem());
+        }
+
         @Override
         public void flush() throws IOException {
         }
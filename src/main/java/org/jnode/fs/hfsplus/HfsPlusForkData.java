@@ -26,9 +26,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import org.jnode.fs.FSFileExtent;
 import org.jnode.fs.hfsplus.catalog.CatalogNodeId;
 import org.jnode.fs.hfsplus.extent.ExtentDescriptor;
 import org.jnode.fs.hfsplus.extent.ExtentKey;
+import org.jnode.fs.util.FSFileExtentBuilder;
 import org.jnode.fs.util.FSUtils;
 import org.jnode.util.BigEndian;
 import org.slf4j.Logger;
@@ -185,6 +187,29 @@ public class HfsPlusForkData {
         return allExtents;
     }
 
+    /**
+     * Gets the extents of the fork's data on the device, in file order.
+     *
+     * @param fileSystem the current file system.
+     * @return the extents.
+     * @throws IOException if an error occurs reading the overflow extents.
+     */
+    public List<FSFileExtent> getFileExtents(HfsPlusFileSystem fileSystem) throws IOException {
+        int blockSize = fileSystem.getVolumeHeader().getBlockSize();
+        FSFileExtentBuilder builder = new FSFileExtentBuilder(getTotalSize());
+        long fileOffset = 0;
+
+        for (ExtentDescriptor extentDescriptor : getAllExtents(fileSystem)) {
+            if (!extentDescriptor.isEmpty()) {
+                long length = extentDescriptor.getSize(blockSize);
+                builder.add(fileOffset, length, extentDescriptor.getStartOffset(blockSize), 0);
+                fileOffset += length;
+            }
+        }
+
+        return builder.build();
+    }
+
     /**
      * Read a block of data
      *
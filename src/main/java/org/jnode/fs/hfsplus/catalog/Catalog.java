@@ -25,6 +25,7 @@ import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import org.jnode.driver.block.BlockIoTag;
 import org.jnode.fs.hfsplus.HFSPlusParams;
 import org.jnode.fs.hfsplus.HfsPlusFileSystem;
 import org.jnode.fs.hfsplus.HfsPlusForkData;
@@ -73,7 +74,7 @@ public class Catalog {
         if (!catalogFile.getExtent(0).isEmpty()) {
             buffer = ByteBuffer.allocate(NodeDescriptor.BT_NODE_DESCRIPTOR_LENGTH +
                 BTHeaderRecord.BT_HEADER_RECORD_LENGTH);
-            catalogFile.read(fs, 0, buffer);
+            readCatalog(0, buffer);
             buffer.rewind();
             byte[] data = ByteBufferUtils.toArray(buffer);
             log.debug("Load catalog node descriptor.");
@@ -216,7 +217,7 @@ public class Catalog {
         LeafRecord lr = null;
         int nodeSize = bthr.getNodeSize();
         ByteBuffer nodeData = ByteBuffer.allocate(nodeSize);
-        catalogFile.read(fs, (bthr.getRootNode() * nodeSize), nodeData);
+        readCatalog((bthr.getRootNode() * nodeSize), nodeData);
         nodeData.rewind();
         byte[] data = ByteBufferUtils.toArray(nodeData);
         NodeDescriptor nd = new NodeDescriptor(data, 0);
@@ -226,7 +227,7 @@ public class Catalog {
             IndexRecord record = (IndexRecord) node.find(new CatalogKey(parentID));
             currentOffset = record.getIndex() * nodeSize;
             nodeData = ByteBuffer.allocate(nodeSize);
-            catalogFile.read(fs, currentOffset, nodeData);
+            readCatalog(currentOffset, nodeData);
             nodeData.rewind();
             data = ByteBufferUtils.toArray(nodeData);
             nd = new NodeDescriptor(nodeData.array(), 0);
@@ -266,7 +267,7 @@ public class Catalog {
             long currentNodeNumber = nodeNumber;
             int nodeSize = getBTHeaderRecord().getNodeSize();
             ByteBuffer nodeData = ByteBuffer.allocate(nodeSize);
-            catalogFile.read(fs, (currentNodeNumber * nodeSize), nodeData);
+            readCatalog((currentNodeNumber * nodeSize), nodeData);
             byte[] datas = nodeData.array();
             NodeDescriptor nd = new NodeDescriptor(datas, 0);
             if (nd.isIndexNode()) {
@@ -303,7 +304,7 @@ public class Catalog {
         long currentNodeNumber = getBTHeaderRecord().getRootNode();
         int nodeSize = getBTHeaderRecord().getNodeSize();
         ByteBuffer nodeData = ByteBuffer.allocate(nodeSize);
-        catalogFile.read(fs, (currentNodeNumber * nodeSize), nodeData);
+        readCatalog((currentNodeNumber * nodeSize), nodeData);
         NodeDescriptor nd = new NodeDescriptor(nodeData.array(), 0);
         long currentOffset = 0;
         CatalogKey cKey = new CatalogKey(parentID, nodeName);
@@ -313,7 +314,7 @@ public class Catalog {
             currentNodeNumber = record.getIndex();
             currentOffset = record.getIndex() * nodeSize;
             nodeData = ByteBuffer.allocate(nodeSize);
-            catalogFile.read(fs, currentOffset, buffer);
+            readCatalog(currentOffset, buffer);
             node = new CatalogIndexNode(nodeData.array(), nodeSize);
         }
         LeafRecord lr = null;
@@ -332,6 +333,22 @@ public class Catalog {
         return bthr;
     }
 
+    /**
+     * Reads from the catalog file, tagging the I/O as catalog I/O.
+     *
+     * @param offset the offset into the catalog file.
+     * @param dest the buffer to read into.
+     * @throws IOException if an error occurs reading.
+     */
+    private void readCatalog(long offset, ByteBuffer dest) throws IOException {
+        final String previousTag = BlockIoTag.set(BlockIoTag.HFSPLUS_CATALOG);
+        try {
+            catalogFile.read(fs, offset, dest);
+        } finally {
+            BlockIoTag.restore(previousTag);
+        }
+    }
+
     public ByteBuffer getBytes() {
         return buffer;
     }
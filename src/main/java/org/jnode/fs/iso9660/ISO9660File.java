@@ -22,16 +22,20 @@ package org.jnode.fs.iso9660;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 import org.jnode.fs.FSFile;
+import org.jnode.fs.FSFileExtent;
+import org.jnode.fs.FSFileExtents;
 import org.jnode.fs.FileSystem;
+import org.jnode.fs.util.FSFileExtentBuilder;
 import org.jnode.util.ByteBufferUtils;
 
 /**
  * @author Chira
  * @author Ewout Prangsma (epr@users.sourceforge.net)
  */
-public class ISO9660File implements FSFile {
+public class ISO9660File implements FSFile, FSFileExtents {
 
     private final ISO9660Entry entry;
 
@@ -67,6 +71,16 @@ public class ISO9660File implements FSFile {
         destBA.refreshByteBuffer();
     }
 
+    /**
+     * @see org.jnode.fs.FSFileExtents#getExtents()
+     */
+    public List<FSFileExtent> getExtents() throws IOException {
+        // The file's data is a single extent, as read by EntryRecord.readFileData
+        final EntryRecord record = this.entry.getCDFSentry();
+        final long deviceOffset = record.getLocationOfExtent() * record.getVolume().getBlockSize();
+        return new FSFileExtentBuilder(getLength()).add(0, getLength(), deviceOffset, 0).build();
+    }
+
     /**
      * @see org.jnode.fs.FSFile#write(long, ByteBuffer)
      */
@@ -134,4 +134,13 @@ public class ISO9660Volume implements ISO9660Constants {
     public long getSize() {
         return primaryVolumeDescriptor.getSize();
     }
+
+    /**
+     * Gets the size of a logical block, the unit extent locations are given in.
+     *
+     * @return the block size.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
 }
@@ -22,13 +22,17 @@ package org.jnode.fs.jfat;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.NoSuchElementException;
 import org.jnode.fs.FSFile;
+import org.jnode.fs.FSFileExtent;
+import org.jnode.fs.FSFileExtents;
 import org.jnode.fs.FSFileSlackSpace;
+import org.jnode.fs.util.FSFileExtentBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class FatFile extends FatEntry implements FSFile, FSFileSlackSpace {
+public class FatFile extends FatEntry implements FSFile, FSFileSlackSpace, FSFileExtents {
     private static final Logger log = LoggerFactory.getLogger(FatFile.class);
 
     public FatFile(FatFileSystem fs, FatDirectory parent, FatRecord record) {
@@ -144,6 +148,21 @@ public class FatFile extends FatEntry implements FSFile, FSFileSlackSpace {
         return slackSpace;
     }
 
+    @Override
+    public List<FSFileExtent> getExtents() throws IOException {
+        Fat fat = ((FatFileSystem) getFileSystem()).getFat();
+        long clusterSize = fat.getClusterSize();
+        long length = getLength();
+        FSFileExtentBuilder builder = new FSFileExtentBuilder(length);
+
+        FatChain.ChainIterator iterator = getChain().listIterator();
+        for (long offset = 0; offset < length && iterator.hasNext(); offset += clusterSize) {
+            builder.add(offset, clusterSize, fat.getClusterPosition(iterator.next()), 0);
+        }
+
+        return builder.build();
+    }
+
     @Override
     public String toString() {
         return String.format("FatFile [%s] index:%d size:%d", getName(), getIndex(), getLength());
@@ -27,12 +27,17 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import org.jnode.fs.FSFileExtent;
 import org.jnode.fs.ntfs.attribute.AttributeListAttribute;
 import org.jnode.fs.ntfs.attribute.AttributeListBuilder;
 import org.jnode.fs.ntfs.attribute.AttributeListEntry;
 import org.jnode.fs.ntfs.attribute.NTFSAttribute;
 import org.jnode.fs.ntfs.attribute.NTFSNonResidentAttribute;
 import org.jnode.fs.ntfs.attribute.NTFSResidentAttribute;
+import org.jnode.fs.ntfs.datarun.CompressedDataRun;
+import org.jnode.fs.ntfs.datarun.DataRun;
+import org.jnode.fs.ntfs.datarun.DataRunInterface;
+import org.jnode.fs.util.FSFileExtentBuilder;
 import org.jnode.fs.util.FSUtils;
 import org.jnode.util.NumberUtils;
 
@@ -701,6 +706,74 @@ public class FileRecord extends NTFSRecord {
         System.arraycopy(tmp, (int) (fileOffset % clusterSize), dest, off, len);
     }
 
+    /**
+     * Gets the extents of an attribute's data. Resident data is reported as inline, each compression unit of a
+     * compressed attribute as a compressed extent, and anything past the initialised size as unwritten.
+     *
+     * @param attributeType the attribute type.
+     * @param streamName the stream name, or {@code null} for the default stream.
+     * @return the extents.
+     * @throws IOException if the attribute is not found.
+     */
+    public List<FSFileExtent> getExtents(NTFSAttribute.Types attributeType, String streamName) throws IOException {
+        Iterator<NTFSAttribute> dataAttrs = findAttributesByTypeAndName(attributeType, streamName);
+        if (!dataAttrs.hasNext()) {
+            throw new IOException(attributeType + " attribute not found, file record = " + this);
+        }
+
+        NTFSAttribute attr = dataAttrs.next();
+        long length = getAttributeTotalSize(attributeType, streamName);
+        FSFileExtentBuilder builder = new FSFileExtentBuilder(length);
+
+        if (attr.isResident()) {
+            return builder.add(0, length, FSFileExtent.NO_DEVICE_OFFSET, FSFileExtent.INLINE).build();
+        }
+
+        // As for reads, an initialised size of zero is taken to mean the whole attribute is initialised
+        NTFSNonResidentAttribute nresData = (NTFSNonResidentAttribute) attr;
+        long initialisedSize = nresData.getAttributeInitializedSize();
+        if (initialisedSize == 0) {
+            initialisedSize = length;
+        }
+
+        int encrypted = attr.isEncryptedAttribute() ? FSFileExtent.ENCRYPTED : 0;
+        int clusterSize = getClusterSize();
+
+        for (DataRunInterface dataRun : nresData.getDataRuns()) {
+            long fileOffset = dataRun.getFirstVcn() * clusterSize;
+            long runLength = dataRun.getLength() * clusterSize;
+
+            if (dataRun instanceof CompressedDataRun) {
+                // The unit's data is stored in its non-sparse runs, if there are none the unit is a hole
+                List<DataRun> storedRuns = new ArrayList<DataRun>();
+                for (DataRun compressedRun : ((CompressedDataRun) dataRun).getCompressedRuns()) {
+                    if (!compressedRun.isSparse()) {
+                        storedRuns.add(compressedRun);
+                    }
+                }
+
+                if (!storedRuns.isEmpty()) {
+                    long deviceOffset = storedRuns.size() == 1 ?
+                        storedRuns.get(0).getCluster() * clusterSize : FSFileExtent.NO_DEVICE_OFFSET;
+                    builder.add(fileOffset, runLength, deviceOffset, FSFileExtent.COMPRESSED | encrypted);
+                }
+            } else {
+                DataRun plainRun = (DataRun) dataRun;
+                if (plainRun.isSparse()) {
+                    continue;
+                }
+
+                long deviceOffset = plainRun.getCluster() * clusterSize;
+                long initialisedLength = Math.max(0, Math.min(runLength, initialisedSize - fileOffset));
+                builder.add(fileOffset, initialisedLength, deviceOffset, encrypted);
+                builder.add(fileOffset + initialisedLength, runLength - initialisedLength,
+                    deviceOffset + initialisedLength, FSFileExtent.UNWRITTEN | encrypted);
+            }
+        }
+
+        return builder.build();
+    }
+
     @Override
     public String toString() {
         String fileName = null;
@@ -21,6 +21,7 @@
 package org.jnode.fs.ntfs;
 
 import java.io.IOException;
+import org.jnode.driver.block.BlockIoTag;
 import org.jnode.fs.ntfs.attribute.NTFSAttribute;
 import org.jnode.fs.ntfs.index.IndexEntry;
 
@@ -180,7 +181,12 @@ public class MasterFileTable extends FileRecord {
 
         // read the buffer
         final byte[] buffer = new byte[bytesPerFileRecord];
-        readData(offset, buffer, 0, bytesPerFileRecord);
+        final String previousTag = BlockIoTag.set(BlockIoTag.NTFS_MFT);
+        try {
+            readData(offset, buffer, 0, bytesPerFileRecord);
+        } finally {
+            BlockIoTag.restore(previousTag);
+        }
         return buffer;
     }
 
@@ -25,9 +25,12 @@ import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.jnode.fs.FSFile;
+import org.jnode.fs.FSFileExtent;
+import org.jnode.fs.FSFileExtents;
 import org.jnode.fs.FSFileSlackSpace;
 import org.jnode.fs.FSFileStreams;
 import org.jnode.fs.FileSystem;
@@ -39,7 +42,7 @@ import org.jnode.util.ByteBufferUtils;
  * @author vali
  * @author Ewout Prangsma (epr@users.sourceforge.net)
  */
-public class NTFSFile implements FSFile, FSFileSlackSpace, FSFileStreams {
+public class NTFSFile implements FSFile, FSFileSlackSpace, FSFileStreams, FSFileExtents {
 
     /**
      * The associated file record.
@@ -185,6 +188,11 @@ public class NTFSFile implements FSFile, FSFileSlackSpace, FSFileStreams {
         return slackSpace;
     }
 
+    @Override
+    public List<FSFileExtent> getExtents() throws IOException {
+        return getFileRecord().getExtents(NTFSAttribute.Types.DATA, null);
+    }
+
     /**
      * Flush any cached data to the disk.
      *
@@ -221,7 +229,7 @@ public class NTFSFile implements FSFile, FSFileSlackSpace, FSFileStreams {
     /**
      * A file for reading data out of alternate streams.
      */
-    public class StreamFile implements FSFile {
+    public class StreamFile implements FSFile, FSFileExtents {
         /**
          * The name of the alternate data stream.
          */
@@ -283,6 +291,11 @@ public class NTFSFile implements FSFile, FSFileSlackSpace, FSFileStreams {
             throw new UnsupportedOperationException("Not implemented yet");
         }
 
+        @Override
+        public List<FSFileExtent> getExtents() throws IOException {
+            return getFileRecord().getExtents(NTFSAttribute.Types.DATA, attributeName);
+        }
+
         @Override
         public void flush() throws IOException {
         }
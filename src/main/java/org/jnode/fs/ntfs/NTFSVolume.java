@@ -22,7 +22,9 @@ package org.jnode.fs.ntfs;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.ReadRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -106,6 +108,33 @@ public class NTFSVolume {
         api.read(clusterOffset, ByteBuffer.wrap(dst, dstOffset, nrClusters * clusterSize));
     }
 
+    /**
+     * Creates a request to read a number of clusters, for use with {@link #readClusters(java.util.List)}.
+     *
+     * @param firstCluster the first cluster to read.
+     * @param dst          Must have space for (nrClusters * getClusterSize())
+     * @param dstOffset    the offset into the destination.
+     * @param nrClusters   The number of clusters to read.
+     * @return the request.
+     */
+    public ReadRequest createReadRequest(long firstCluster, byte[] dst, int dstOffset, int nrClusters) {
+        final int clusterSize = getClusterSize();
+        return new ReadRequest(firstCluster * clusterSize, ByteBuffer.wrap(dst, dstOffset, nrClusters * clusterSize));
+    }
+
+    /**
+     * Reads a batch of cluster runs, letting the device merge neighbouring runs.
+     *
+     * @param requests the requests to read.
+     * @throws IOException if an error occurs reading.
+     */
+    public void readClusters(List<ReadRequest> requests) throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug("readClusters(" + requests.size() + " runs) " + (readClustersCount++));
+        }
+        api.readBatch(requests);
+    }
+
     /**
      * Gets the size of a cluster.
      *
@@ -135,6 +135,15 @@ public abstract class NTFSAttribute extends NTFSStructure {
         return (getFlags() & 0x0001) != 0;
     }
 
+    /**
+     * Checks whether this attribute contains encrypted data.
+     *
+     * @return {@code true} if the attribute is encrypted, {@code false} otherwise.
+     */
+    public boolean isEncryptedAttribute() {
+        return (getFlags() & 0x4000) != 0;
+    }
+
     /**
      * @return Returns the nameLength.
      */
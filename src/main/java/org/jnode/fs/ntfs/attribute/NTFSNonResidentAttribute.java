@@ -21,9 +21,12 @@
 package org.jnode.fs.ntfs.attribute;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import org.jnode.driver.block.ReadRequest;
 import org.jnode.fs.ntfs.FileRecord;
 import org.jnode.fs.ntfs.NTFSVolume;
+import org.jnode.fs.ntfs.datarun.DataRun;
 import org.jnode.fs.ntfs.datarun.DataRunDecoder;
 import org.jnode.fs.ntfs.datarun.DataRunInterface;
 
@@ -156,12 +159,29 @@ public class NTFSNonResidentAttribute extends NTFSAttribute {
 
         final NTFSVolume volume = getFileRecord().getVolume();
         final int clusterSize = volume.getClusterSize();
+        final List<DataRunInterface> dataRuns = getDataRuns();
         int readClusters = 0;
-        for (DataRunInterface dataRun : getDataRuns()) {
-            if (readClusters >= nrClusters) {
-                break;
+
+        if (isPlainDataRuns(dataRuns)) {
+            // Submit the reads for all the runs at once so the device can merge neighbouring runs
+            List<ReadRequest> requests = new ArrayList<ReadRequest>();
+            for (DataRunInterface dataRun : dataRuns) {
+                if (readClusters >= nrClusters) {
+                    break;
+                }
+                readClusters += ((DataRun) dataRun).addReadRequests(vcn, dst, dstOffset, nrClusters, clusterSize,
+                    volume, requests);
+            }
+            if (!requests.isEmpty()) {
+                volume.readClusters(requests);
+            }
+        } else {
+            for (DataRunInterface dataRun : dataRuns) {
+                if (readClusters >= nrClusters) {
+                    break;
+                }
+                readClusters += dataRun.readClusters(vcn, dst, dstOffset, nrClusters, clusterSize, volume);
             }
-            readClusters += dataRun.readClusters(vcn, dst, dstOffset, nrClusters, clusterSize, volume);
         }
 
         if (log.isDebugEnabled()) {
@@ -171,6 +191,21 @@ public class NTFSNonResidentAttribute extends NTFSAttribute {
         return readClusters;
     }
 
+    /**
+     * Checks whether all the data runs are plain (uncompressed) runs which can be read as a batch.
+     *
+     * @param dataRuns the data runs to check.
+     * @return {@code true} if all runs are plain runs.
+     */
+    private static boolean isPlainDataRuns(List<DataRunInterface> dataRuns) {
+        for (DataRunInterface dataRun : dataRuns) {
+            if (!(dataRun instanceof DataRun)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public String toString() {
         return String.format("[attribute (non-res) type=x%x name'%s' size=%d runs=%d]", getAttributeType().getValue(),
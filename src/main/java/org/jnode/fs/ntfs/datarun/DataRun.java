@@ -21,7 +21,10 @@
 package org.jnode.fs.ntfs.datarun;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import org.jnode.driver.block.ReadRequest;
 import org.jnode.fs.ntfs.NTFSStructure;
 import org.jnode.fs.ntfs.NTFSVolume;
 import org.slf4j.Logger;
@@ -232,6 +235,30 @@ public final class DataRun implements DataRunInterface {
     public int readClusters(long vcn, byte[] dst, int dstOffset, int nrClusters, int clusterSize,
                             NTFSVolume volume) throws IOException {
 
+        List<ReadRequest> requests = new ArrayList<ReadRequest>(1);
+        int count = addReadRequests(vcn, dst, dstOffset, nrClusters, clusterSize, volume, requests);
+        if (!requests.isEmpty()) {
+            volume.readClusters(requests);
+        }
+        return count;
+    }
+
+    /**
+     * Works out the clusters to read from this datarun, without reading them. The area of the destination covered by
+     * this run is zeroed and, unless the run is sparse, a request to read the clusters into it is added to the list.
+     *
+     * @param vcn the VCN to read, offset from the start of the entire file.
+     * @param dst destination buffer.
+     * @param dstOffset offset into destination buffer.
+     * @param nrClusters number of clusters to read.
+     * @param clusterSize size of each cluster.
+     * @param volume reference to the NTFS volume structure.
+     * @param requests the list to add the request to.
+     * @return The number of clusters covered by this run.
+     */
+    public int addReadRequests(long vcn, byte[] dst, int dstOffset, int nrClusters, int clusterSize,
+                               NTFSVolume volume, List<ReadRequest> requests) {
+
         final long myFirstVcn = getFirstVcn();
         final long myLength = getLength();
         final long myLastVcn = getLastVcn();
@@ -272,7 +299,7 @@ public final class DataRun implements DataRunInterface {
         Arrays.fill(dst, actDstOffset, actDstOffset + count * clusterSize, (byte) 0);
 
         if (!isSparse()) {
-            volume.readClusters(actCluster, dst, actDstOffset, count);
+            requests.add(volume.createReadRequest(actCluster, dst, actDstOffset, count));
         }
 
         return count;
@@ -93,6 +93,12 @@ public abstract class AbstractFSDirectory extends AbstractFSObject implements FS
      * @see org.jnode.fs.FSDirectory#iterator()
      */
     public final Iterator<FSEntry> iterator() throws IOException {
+        if (!isEntriesLoaded() && canRead() && ((AbstractFileSystem<?>) getFileSystem()).isStreamingIteration()) {
+            Iterator<FSEntry> stream = streamEntries();
+            if (stream != null)
+                return stream;
+        }
+
         checkEntriesLoaded();
         return entries.iterator();
     }
@@ -180,6 +186,19 @@ public abstract class AbstractFSDirectory extends AbstractFSObject implements FS
      */
     protected abstract FSEntryTable readEntries() throws IOException;
 
+    /**
+     * Read the entries of this directory from the persistent storage one at a time, as they are iterated, rather
+     * than all at once into a table. Used instead of {@link #readEntries()} for iteration when the file system
+     * streams directories.
+     * 
+     * @return an iterator decoding the entries on demand, or <tt>null</tt> if this directory can't be streamed
+     * @throws IOException
+     * @see AbstractFileSystem#setStreamingIteration(boolean)
+     */
+    protected Iterator<FSEntry> streamEntries() throws IOException {
+        return null;
+    }
+
     /**
      * Write the entries of this directory to the persistent storage
      * 
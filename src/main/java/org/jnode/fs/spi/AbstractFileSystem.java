@@ -21,7 +21,6 @@
 package org.jnode.fs.spi;
 
 import java.io.IOException;
-import java.util.HashMap;
 
 import org.jnode.driver.ApiNotFoundException;
 import org.jnode.driver.Device;
@@ -33,6 +32,7 @@ import org.jnode.fs.FSFile;
 import org.jnode.fs.FileSystem;
 import org.jnode.fs.FileSystemException;
 import org.jnode.fs.FileSystemType;
+import org.jnode.fs.PathResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,6 +42,8 @@ import org.slf4j.LoggerFactory;
  * @author Fabien DUMINY
  */
 public abstract class AbstractFileSystem<T extends FSEntry> implements FileSystem<T> {
+    /** The default number of files, and of directories, kept in the object caches of read-only file systems */
+    public static final int DEFAULT_OBJECT_CACHE_SIZE = 10000;
     /** My logger */
     private static final Logger log = LoggerFactory.getLogger(AbstractFileSystem.class);
     /** The device that contains the file system */
@@ -56,10 +58,18 @@ public abstract class AbstractFileSystem<T extends FSEntry> implements FileSyste
     private boolean readOnly;
     /** The file system is closed */
     private boolean closed;
+    /** Directories are iterated without loading their entry tables, where supported */
+    private volatile boolean streamingIteration;
+    /** Large directories are loaded into compact entry tables */
+    private volatile boolean compactEntryTables;
     /** The cache of files */
-    private HashMap<FSEntry, FSFile> files = new HashMap<FSEntry, FSFile>();
+    private final FSObjectCache<FSEntry, FSFile> files;
     /** The cache of directory */
-    private HashMap<FSEntry, FSDirectory> directories = new HashMap<FSEntry, FSDirectory>();
+    private final FSObjectCache<FSEntry, FSDirectory> directories;
+    /** The cache of resolved paths */
+    private final PathResolver pathResolver;
+    /** The number of files, and of directories, kept in the object caches while read-only */
+    private final int objectCacheSize;
 
     /**
      * Construct an AbstractFileSystem in specified readOnly mode
@@ -71,6 +81,22 @@ public abstract class AbstractFileSystem<T extends FSEntry> implements FileSyste
      */
     public AbstractFileSystem(Device device, boolean readOnly,
             FileSystemType<? extends FileSystem<T>> type) throws FileSystemException {
+        this(device, readOnly, type, DEFAULT_OBJECT_CACHE_SIZE);
+    }
+
+    /**
+     * Construct an AbstractFileSystem in specified readOnly mode, with the given size of file and directory caches.
+     * The caches are only bounded while the file system is read-only: on a writable file system, evicting a file or
+     * directory which a caller still holds would let a second live object be created for the same entry.
+     * 
+     * @param device device contains file system. This paramter is mandatory.
+     * @param readOnly file system should be read-only.
+     * @param objectCacheSize the number of files, and of directories, to keep in the caches.
+     * 
+     * @throws FileSystemException device is null or device has no {@link BlockDeviceAPI} defined.
+     */
+    public AbstractFileSystem(Device device, boolean readOnly, FileSystemType<? extends FileSystem<T>> type,
+            int objectCacheSize) throws FileSystemException {
         if (device == null)
             throw new FileSystemException("Device cannot be null.");
 
@@ -85,6 +111,17 @@ public abstract class AbstractFileSystem<T extends FSEntry> implements FileSyste
         this.closed = false;
         this.readOnly = readOnly;
         this.type = type;
+        this.objectCacheSize = objectCacheSize;
+
+        files = new FSObjectCache<FSEntry, FSFile>(getObjectCacheLimit(readOnly));
+        directories = new FSObjectCache<FSEntry, FSDirectory>(getObjectCacheLimit(readOnly));
+        pathResolver = new PathResolver(this, objectCacheSize);
+        files.setEvictionListener(new FSObjectCache.EvictionListener<FSEntry, FSFile>() {
+            @Override
+            public void evicted(FSEntry entry, FSFile file) {
+                flushEvicted(file);
+            }
+        });
     }
 
     /**
@@ -114,6 +151,28 @@ public abstract class AbstractFileSystem<T extends FSEntry> implements FileSyste
         return rootEntry;
     }
 
+    /**
+     * Gets the entry at the given path, caching the path components and the names which don't exist on read-only
+     * file systems.
+     * 
+     * @see org.jnode.fs.FileSystem#resolve(String)
+     */
+    public FSEntry resolve(String path) throws IOException {
+        if (isClosed())
+            throw new IOException("FileSystem is closed");
+
+        return pathResolver.resolve(path);
+    }
+
+    /**
+     * Gets the path resolver, e.g. to check its hit rate or to clear it after changing the directory tree.
+     * 
+     * @return the path resolver.
+     */
+    public final PathResolver getPathResolver() {
+        return pathResolver;
+    }
+
     /**
      * @see org.jnode.fs.FileSystem#close()
      */
@@ -125,9 +184,8 @@ public abstract class AbstractFileSystem<T extends FSEntry> implements FileSyste
             api.flush();
             files.clear();
             directories.clear();
+            pathResolver.clear();
             rootEntry = null;
-            files = null;
-            directories = null;
             closed = true;
         }
     }
@@ -185,7 +243,65 @@ public abstract class AbstractFileSystem<T extends FSEntry> implements FileSyste
      * @param readOnly <tt>true</tt> if file system should be treated as a read-only file system.
      */
     protected final void setReadOnly(boolean readOnly) {
+        // Resized before the flag changes, so files evicted on becoming read-only are still flushed
+        files.setMaximumSize(getObjectCacheLimit(readOnly));
+        directories.setMaximumSize(getObjectCacheLimit(readOnly));
         this.readOnly = readOnly;
+        if (!readOnly) {
+            pathResolver.clear();
+        }
+    }
+
+    /**
+     * Gets the maximum size of the file and directory caches.
+     * 
+     * @param readOnly whether the file system is read-only.
+     * @return the configured size if read-only, otherwise no limit.
+     */
+    private int getObjectCacheLimit(boolean readOnly) {
+        return readOnly ? objectCacheSize : FSObjectCache.UNBOUNDED;
+    }
+
+    /**
+     * Returns <tt>true</tt> if directories are iterated by decoding their entries on demand.
+     * 
+     * @return <tt>true</tt> if directories are streamed.
+     */
+    public final boolean isStreamingIteration() {
+        return streamingIteration;
+    }
+
+    /**
+     * Sets whether directories are iterated by decoding their entries on demand, in bounded memory, rather than by
+     * loading a table of all the entries first. This helps with huge directories, but each iteration decodes the
+     * entries again and returns new entry instances. Looking up or changing entries still loads the table, and once
+     * a directory's table is loaded it is iterated from the table. Only some directory types support streaming, the
+     * others always use the table.
+     * 
+     * @param streamingIteration <tt>true</tt> to stream directories.
+     */
+    public final void setStreamingIteration(boolean streamingIteration) {
+        this.streamingIteration = streamingIteration;
+    }
+
+    /**
+     * Returns <tt>true</tt> if large directories are loaded into {@link CompactFSEntryTable}s.
+     * 
+     * @return <tt>true</tt> if compact entry tables are used.
+     */
+    public final boolean isCompactEntryTables() {
+        return compactEntryTables;
+    }
+
+    /**
+     * Sets whether directories with at least {@link CompactFSEntryTable#MIN_ENTRIES} entries are loaded into
+     * {@link CompactFSEntryTable}s, which take much less memory but make lookups by name cost more CPU. Only tables
+     * loaded afterwards are affected.
+     * 
+     * @param compactEntryTables <tt>true</tt> to use compact entry tables.
+     */
+    public final void setCompactEntryTables(boolean compactEntryTables) {
+        this.compactEntryTables = compactEntryTables;
     }
 
     /**
@@ -197,18 +313,28 @@ public abstract class AbstractFileSystem<T extends FSEntry> implements FileSyste
      * 
      * @throws IOException if file system is closed.
      */
-    public final synchronized FSFile getFile(FSEntry entry) throws IOException {
+    public final FSFile getFile(FSEntry entry) throws IOException {
         if (isClosed())
             throw new IOException("FileSystem is closed");
 
         FSFile file = files.get(entry);
         if (file == null) {
             file = createFile(entry);
-            files.put(entry, file);
+            if (file != null)
+                file = files.add(entry, file);
         }
         return file;
     }
 
+    /**
+     * Gets the cache of files, e.g. to check its hit rate.
+     * 
+     * @return the cache of files.
+     */
+    public final FSObjectCache<FSEntry, FSFile> getFileCache() {
+        return files;
+    }
+
     /**
      * Creates a new file from the entry
      * 
@@ -234,6 +360,22 @@ public abstract class AbstractFileSystem<T extends FSEntry> implements FileSyste
         }
     }
 
+    /**
+     * Saves a file evicted from the cache when the file system becomes read-only, so changes aren't lost.
+     * 
+     * @param file the evicted file.
+     */
+    private void flushEvicted(FSFile file) {
+        if (readOnly || closed)
+            return;
+
+        try {
+            file.flush();
+        } catch (IOException e) {
+            log.warn("Error flushing evicted file " + file, e);
+        }
+    }
+
     /**
      * Gets the file for the given entry.
      * 
@@ -243,18 +385,28 @@ public abstract class AbstractFileSystem<T extends FSEntry> implements FileSyste
      * 
      * @throws IOException
      */
-    public final synchronized FSDirectory getDirectory(FSEntry entry) throws IOException {
+    public final FSDirectory getDirectory(FSEntry entry) throws IOException {
         if (isClosed())
             throw new IOException("FileSystem is closed");
 
         FSDirectory dir = directories.get(entry);
         if (dir == null) {
             dir = createDirectory(entry);
-            directories.put(entry, dir);
+            if (dir != null)
+                dir = directories.add(entry, dir);
         }
         return dir;
     }
 
+    /**
+     * Gets the cache of directories, e.g. to check its hit rate.
+     * 
+     * @return the cache of directories.
+     */
+    public final FSObjectCache<FSEntry, FSDirectory> getDirectoryCache() {
+        return directories;
+    }
+
     /**
      * Creates a new directory from the entry
      * 
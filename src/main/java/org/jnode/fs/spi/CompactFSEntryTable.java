@@ -0,0 +1,745 @@
+package org.jnode.fs.spi;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.jnode.fs.FSEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link FSEntryTable} for large directories which keeps its indexes in primitive arrays.
+ * <p>
+ * The entries are kept in slots, with a free slot holding {@code null}. The normalised names are packed into one
+ * {@code byte} array as records of the slot number, the length and the UTF-8 encoded name. The lookups by name go
+ * through an open-addressing hash index whose cells hold a name's hash code and the offset of its record, and the
+ * lookups by ID through one whose cells hold an ID's hash code and the slot. So a table needs no {@code HashMap.Node}
+ * or key string per entry, and a lookup by name probes the index, then compares the name against the packed bytes in
+ * place without decoding them.
+ * <p>
+ * The names array is sized to fit the names when the table is loaded. Removing or renaming an entry leaves its old
+ * record unused, and renaming appends a new one, so once the array is full and at least a quarter of it is unused,
+ * the records in use are moved together rather than growing the array.
+ */
+public class CompactFSEntryTable extends FSEntryTable {
+
+    /**
+     * The number of entries from which {@link FSEntryTable#create} uses a compact table, on file systems which opted
+     * in. A lookup by name costs a few times more CPU than in a {@code HashMap}, which only pays off once a directory
+     * is big enough for its memory to matter.
+     *
+     * @see AbstractFileSystem#setCompactEntryTables(boolean)
+     */
+    public static final int MIN_ENTRIES = 16384;
+
+    /**
+     * The logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(CompactFSEntryTable.class);
+
+    /**
+     * The size of a name record's header: a 4-byte slot number and a 2-byte length.
+     */
+    private static final int RECORD_HEADER = 6;
+
+    /**
+     * The longest encoded name a record can hold, far longer than any file system allows.
+     */
+    private static final int MAX_NAME_BYTES = 0xffff;
+
+    /**
+     * An index cell which held a key that was removed.
+     */
+    private static final long DELETED = 0xffffffffL;
+
+    /**
+     * The entries, {@code null} for free slots.
+     */
+    private FSEntry[] slots;
+
+    /**
+     * The number of slots in use, free or not.
+     */
+    private int slotCount;
+
+    /**
+     * The number of free slots.
+     */
+    private int freeCount;
+
+    /**
+     * The name records, packed together.
+     */
+    private byte[] nameBytes;
+
+    /**
+     * The number of bytes used in {@link #nameBytes}.
+     */
+    private int nameByteCount;
+
+    /**
+     * The number of bytes in {@link #nameBytes} held by records no longer in use.
+     */
+    private int unusedNameByteCount;
+
+    /**
+     * The offset of each slot's name record, or {@code -1} for a free slot.
+     */
+    private int[] nameOffsets;
+
+    /**
+     * The index of name records by name.
+     */
+    private final KeyIndex nameIndex = new KeyIndex(true);
+
+    /**
+     * The index of slots by ID.
+     */
+    private final KeyIndex idIndex = new KeyIndex(false);
+
+    /**
+     * Construct a CompactFSEntryTable from a list of FSEntry
+     *
+     * @param fs the file system.
+     * @param entryList the entries, with {@code null} for free entries.
+     */
+    public CompactFSEntryTable(AbstractFileSystem<?> fs, List<FSEntry> entryList) {
+        super(fs);
+
+        int capacity = Math.max(16, entryList.size());
+        int nameByteLength = 0;
+        for (FSEntry entry : entryList) {
+            if (entry != null) {
+                nameByteLength += RECORD_HEADER + encodedLength(normalizeName(entry.getName()));
+            }
+        }
+
+        slots = new FSEntry[capacity];
+        nameOffsets = new int[capacity];
+        nameBytes = new byte[nameByteLength];
+        nameIndex.resize(entryList.size());
+        idIndex.resize(entryList.size());
+
+        for (FSEntry entry : entryList) {
+            addEntry(entry);
+        }
+    }
+
+    @Override
+    protected int addEntry(FSEntry entry) {
+        if (slotCount == slots.length) {
+            int capacity = slots.length * 2;
+            slots = Arrays.copyOf(slots, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+        }
+
+        int slot = slotCount++;
+        if (entry == null) {
+            nameOffsets[slot] = -1;
+            freeCount++;
+        } else {
+            store(slot, entry);
+        }
+        return slot;
+    }
+
+    @Override
+    protected int findFreeEntry(FSEntry entry) {
+        if (freeCount > 0) {
+            for (int slot = slotCount - 1; slot >= 0; slot--) {
+                if (slots[slot] == null) {
+                    return slot;
+                }
+            }
+        }
+        return addEntry(null);
+    }
+
+    @Override
+    public FSEntry get(int index) {
+        if (index < 0 || index >= slotCount) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + slotCount);
+        }
+        return slots[index];
+    }
+
+    @Override
+    public FSEntry get(String name) {
+        // name can't be null (it's reserved for free entries)
+        if (name == null) {
+            return null;
+        }
+
+        int slot = indexOfEntry(name);
+        return slot < 0 ? null : slots[slot];
+    }
+
+    @Override
+    public FSEntry getById(String id) {
+        if (id == null) {
+            return null;
+        }
+
+        int slot = idIndex.find(id, id.hashCode());
+        return slot < 0 ? null : slots[slot];
+    }
+
+    @Override
+    protected List<String> getEntryNames() {
+        List<String> names = new ArrayList<String>(slotCount);
+        for (int slot = 0; slot < slotCount; slot++) {
+            int offset = nameOffsets[slot];
+            names.add(offset < 0 ? null : new String(nameBytes, offset + RECORD_HEADER, recordLength(offset),
+                StandardCharsets.UTF_8));
+        }
+        return names;
+    }
+
+    @Override
+    protected List<FSEntry> getUsedEntries() {
+        return toList(true);
+    }
+
+    @Override
+    protected int indexOfEntry(String name) {
+        String normalized = normalizeName(name);
+        int offset = nameIndex.find(normalized, normalized.hashCode());
+        return offset < 0 ? -1 : recordSlot(offset);
+    }
+
+    @Override
+    public boolean isDirty() throws IOException {
+        if (super.isDirty()) {
+            return true;
+        }
+
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (slots[slot] != null && slots[slot].isDirty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Iterator that returns all used entries, reading the slots as it goes rather than copying them first.
+     *
+     * @return an Iterator with all used entries
+     */
+    @Override
+    public Iterator<FSEntry> iterator() {
+        return new Iterator<FSEntry>() {
+            private int slot = nextUsed(0);
+
+            public boolean hasNext() {
+                return slot < slotCount;
+            }
+
+            public FSEntry next() {
+                if (slot >= slotCount) {
+                    throw new NoSuchElementException();
+                }
+                FSEntry entry = slots[slot];
+                slot = nextUsed(slot + 1);
+                return entry;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public int remove(String name) {
+        String normalized = normalizeName(name);
+        int offset = nameIndex.find(normalized, normalized.hashCode());
+        if (offset < 0) {
+            return -1;
+        }
+
+        int slot = recordSlot(offset);
+        nameIndex.remove(offset, normalized.hashCode());
+        String id = slots[slot].getId();
+        if (id != null) {
+            idIndex.remove(slot, id.hashCode());
+        }
+        slots[slot] = null;
+        releaseName(slot);
+        freeCount++;
+        return slot;
+    }
+
+    @Override
+    public int rename(String oldName, String newName) {
+        String normalized = normalizeName(oldName);
+        int offset = nameIndex.find(normalized, normalized.hashCode());
+        if (offset < 0) {
+            return -1;
+        }
+
+        int slot = recordSlot(offset);
+        nameIndex.remove(offset, normalized.hashCode());
+        releaseName(slot);
+        normalized = normalizeName(newName);
+        nameIndex.insert(storeName(slot, normalized), normalized.hashCode());
+        return slot;
+    }
+
+    @Override
+    public int setFreeEntry(FSEntry newEntry) throws IOException {
+        int slot = findFreeEntry(newEntry);
+        if (slot < 0) {
+            log.debug("setFreeEntry: ERROR: entry table is full");
+            throw new IOException("Directory is full");
+        }
+
+        freeCount--;
+        store(slot, newEntry);
+
+        // entry added, so need to be flushed later
+        setDirty();
+        return slot;
+    }
+
+    @Override
+    public int size() {
+        return slotCount;
+    }
+
+    @Override
+    public List<FSEntry> toList(boolean compacted) {
+        List<FSEntry> entryList = new ArrayList<FSEntry>(compacted ? slotCount - freeCount : slotCount);
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (!compacted || slots[slot] != null) {
+                entryList.add(slots[slot]);
+            }
+        }
+        return entryList;
+    }
+
+    /**
+     * Gets the size of the array holding the name records, in use or not.
+     *
+     * @return the size in bytes.
+     */
+    int getNameCapacity() {
+        return nameBytes.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CompactFSEntryTable:[slots:%d free:%d name-bytes:%d unused-name-bytes:%d]", slotCount,
+            freeCount, nameByteCount, unusedNameByteCount);
+    }
+
+    /**
+     * Stores an entry in a slot and indexes it. As in the base class, a later entry with the same name or ID replaces
+     * the earlier one in the index.
+     */
+    private void store(int slot, FSEntry entry) {
+        slots[slot] = entry;
+        String name = normalizeName(entry.getName());
+        nameIndex.insert(storeName(slot, name), name.hashCode());
+
+        String id = entry.getId();
+        if (id != null) {
+            int replaced = idIndex.insert(slot, id.hashCode());
+            if (replaced >= 0) {
+                log.error(String.format("Duplicate entries for ID: '%s' old:%s new:%s", id, slots[replaced], entry));
+            }
+        }
+    }
+
+    /**
+     * Appends a name record for a slot, encoding the name as {@link String#getBytes} would.
+     *
+     * @return the offset of the record.
+     */
+    private int storeName(int slot, String name) {
+        int encodedLength = encodedLength(name);
+        if (encodedLength > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Name too long: " + encodedLength + " bytes");
+        }
+
+        int recordLength = RECORD_HEADER + encodedLength;
+        if (nameByteCount + recordLength > nameBytes.length && unusedNameByteCount >= nameBytes.length / 4) {
+            compactNames();
+        }
+        if (nameByteCount + recordLength > nameBytes.length) {
+            int capacity = nameBytes.length + Math.max(nameBytes.length >> 1, recordLength);
+            nameBytes = Arrays.copyOf(nameBytes, capacity);
+        }
+
+        int record = nameByteCount;
+        int offset = record + RECORD_HEADER;
+        for (int i = 0; i < name.length(); i++) {
+            int codePoint = codePointAt(name, i);
+            if (codePoint >= 0x10000) {
+                i++;
+            }
+            offset = encode(codePoint, nameBytes, offset);
+        }
+
+        nameBytes[record] = (byte) (slot >>> 24);
+        nameBytes[record + 1] = (byte) (slot >>> 16);
+        nameBytes[record + 2] = (byte) (slot >>> 8);
+        nameBytes[record + 3] = (byte) slot;
+        nameBytes[record + 4] = (byte) (encodedLength >>> 8);
+        nameBytes[record + 5] = (byte) encodedLength;
+
+        nameOffsets[slot] = record;
+        nameByteCount = offset;
+        return record;
+    }
+
+    /**
+     * Marks the name record of a slot as no longer in use.
+     */
+    private void releaseName(int slot) {
+        int record = nameOffsets[slot];
+        if (record >= 0) {
+            unusedNameByteCount += RECORD_HEADER + recordLength(record);
+            nameOffsets[slot] = -1;
+        }
+    }
+
+    /**
+     * Moves the name records in use together at the start of {@link #nameBytes}, dropping the unused ones.
+     */
+    private void compactNames() {
+        // The index refers to the slots while the records move
+        nameIndex.swapRefs(true);
+
+        int compacted = 0;
+        for (int record = 0; record < nameByteCount; ) {
+            int slot = recordSlot(record);
+            int length = RECORD_HEADER + recordLength(record);
+            if (nameOffsets[slot] == record) {
+                System.arraycopy(nameBytes, record, nameBytes, compacted, length);
+                nameOffsets[slot] = compacted;
+                compacted += length;
+            }
+            record += length;
+        }
+        nameByteCount = compacted;
+        unusedNameByteCount = 0;
+
+        nameIndex.swapRefs(false);
+    }
+
+    private int recordSlot(int record) {
+        return (nameBytes[record] & 0xff) << 24 | (nameBytes[record + 1] & 0xff) << 16
+            | (nameBytes[record + 2] & 0xff) << 8 | nameBytes[record + 3] & 0xff;
+    }
+
+    private int recordLength(int record) {
+        return (nameBytes[record + 4] & 0xff) << 8 | nameBytes[record + 5] & 0xff;
+    }
+
+    /**
+     * Gets the code point at an index, or {@code '?'} for an unpaired surrogate as the UTF-8 encoder replaces them.
+     */
+    private static int codePointAt(String name, int index) {
+        char c = name.charAt(index);
+        if (!Character.isSurrogate(c)) {
+            return c;
+        }
+        if (Character.isHighSurrogate(c) && index + 1 < name.length()
+            && Character.isLowSurrogate(name.charAt(index + 1))) {
+            return Character.toCodePoint(c, name.charAt(index + 1));
+        }
+        return '?';
+    }
+
+    /**
+     * Gets the length of a name encoded as UTF-8.
+     */
+    private static int encodedLength(String name) {
+        int length = 0;
+        for (int i = 0; i < name.length(); i++) {
+            int codePoint = codePointAt(name, i);
+            if (codePoint >= 0x10000) {
+                i++;
+                length += 4;
+            } else {
+                length += codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes a code point as UTF-8.
+     *
+     * @return the offset after the encoded bytes.
+     */
+    private static int encode(int codePoint, byte[] bytes, int offset) {
+        if (codePoint < 0x80) {
+            bytes[offset++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            bytes[offset++] = (byte) (0xc0 | (codePoint >> 6));
+            bytes[offset++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else if (codePoint < 0x10000) {
+            bytes[offset++] = (byte) (0xe0 | (codePoint >> 12));
+            bytes[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            bytes[offset++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+            bytes[offset++] = (byte) (0xf0 | (codePoint >> 18));
+            bytes[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            bytes[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            bytes[offset++] = (byte) (0x80 | (codePoint & 0x3f));
+        }
+        return offset;
+    }
+
+    private int nextUsed(int slot) {
+        while (slot < slotCount && slots[slot] == null) {
+            slot++;
+        }
+        return slot;
+    }
+
+    /**
+     * An open-addressing hash index with linear probing, from names to the offsets of their records or from IDs to
+     * slots. Either way the values are called refs here.
+     */
+    private final class KeyIndex {
+
+        /**
+         * Whether the index is by name, otherwise by ID.
+         */
+        private final boolean byName;
+
+        /**
+         * The cells, holding the key's hash code in the high 32 bits and the ref plus one in the low 32 bits,
+         * {@code 0} if empty or {@link #DELETED}.
+         */
+        private long[] cells = new long[0];
+
+        /**
+         * The shift taking a 32-bit hash to a cell index.
+         */
+        private int shift;
+
+        /**
+         * The number of cells which are not empty, including deleted ones.
+         */
+        private int used;
+
+        /**
+         * The number of live refs in the index.
+         */
+        private int live;
+
+        private KeyIndex(boolean byName) {
+            this.byName = byName;
+        }
+
+        /**
+         * Finds the ref for a key.
+         *
+         * @return the ref, or {@code -1} if the key isn't indexed.
+         */
+        private int find(String key, int hash) {
+            if (live == 0) {
+                return -1;
+            }
+
+            int mask = cells.length - 1;
+            for (int i = home(hash); ; i = (i + 1) & mask) {
+                long cell = cells[i];
+                if (cell == 0) {
+                    return -1;
+                }
+                if (cell != DELETED && (int) (cell >>> 32) == hash && matches(refOf(cell), key)) {
+                    return refOf(cell);
+                }
+            }
+        }
+
+        /**
+         * Indexes a ref, replacing any ref with the same key.
+         *
+         * @return the replaced ref, or {@code -1} if none.
+         */
+        private int insert(int ref, int hash) {
+            if ((used + 1) * 2 > cells.length) {
+                resize(live + 1);
+            }
+
+            int mask = cells.length - 1;
+            int free = -1;
+            for (int i = home(hash); ; i = (i + 1) & mask) {
+                long cell = cells[i];
+                if (cell == 0) {
+                    if (free < 0) {
+                        free = i;
+                        used++;
+                    }
+                    break;
+                }
+                if (cell == DELETED) {
+                    if (free < 0) {
+                        free = i;
+                    }
+                } else if ((int) (cell >>> 32) == hash && sameKey(refOf(cell), ref)) {
+                    // Replace the earlier ref in place
+                    cells[i] = cellOf(hash, ref);
+                    return refOf(cell);
+                }
+            }
+
+            cells[free] = cellOf(hash, ref);
+            live++;
+            return -1;
+        }
+
+        /**
+         * Removes a ref from the index.
+         */
+        private void remove(int ref, int hash) {
+            if (live == 0) {
+                return;
+            }
+
+            long target = cellOf(hash, ref);
+            int mask = cells.length - 1;
+            for (int i = home(hash); cells[i] != 0; i = (i + 1) & mask) {
+                if (cells[i] == target) {
+                    cells[i] = DELETED;
+                    live--;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Rebuilds the index with room for a number of refs, dropping deleted cells.
+         */
+        private void resize(int expected) {
+            long[] old = cells;
+            cells = new long[Integer.highestOneBit(Math.max(8, expected * 2 - 1)) << 1];
+            shift = 32 - Integer.numberOfTrailingZeros(cells.length);
+            used = 0;
+            live = 0;
+
+            int mask = cells.length - 1;
+            for (long cell : old) {
+                if (cell != 0 && cell != DELETED) {
+                    int i = home((int) (cell >>> 32));
+                    while (cells[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    cells[i] = cell;
+                    used++;
+                    live++;
+                }
+            }
+        }
+
+        /**
+         * Replaces the name records' offsets in the cells by their slots, or back again once the records have moved.
+         * Only used by the index by name.
+         */
+        private void swapRefs(boolean toSlots) {
+            for (int i = 0; i < cells.length; i++) {
+                long cell = cells[i];
+                if (cell != 0 && cell != DELETED) {
+                    int ref = refOf(cell);
+                    cells[i] = cellOf((int) (cell >>> 32), toSlots ? recordSlot(ref) : nameOffsets[ref]);
+                }
+            }
+        }
+
+        private boolean sameKey(int ref, int other) {
+            if (!byName) {
+                return slots[ref].getId().equals(slots[other].getId());
+            }
+
+            int length = recordLength(ref);
+            if (length != recordLength(other)) {
+                return false;
+            }
+            for (int i = RECORD_HEADER; i < RECORD_HEADER + length; i++) {
+                if (nameBytes[ref + i] != nameBytes[other + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean matches(int ref, String key) {
+            if (!byName) {
+                return key.equals(slots[ref].getId());
+            }
+
+            // Compare the key with the packed name in place, without encoding the key. A UTF-8 name is never
+            // shorter than its UTF-16 form, and the common ASCII names compare a byte per char.
+            byte[] bytes = nameBytes;
+            int offset = ref + RECORD_HEADER;
+            int end = offset + recordLength(ref);
+            int length = key.length();
+            if (end - offset < length) {
+                return false;
+            }
+            int i = 0;
+            while (i < length) {
+                char c = key.charAt(i);
+                if (c >= 0x80) {
+                    break;
+                }
+                if (bytes[offset] != c) {
+                    return false;
+                }
+                offset++;
+                i++;
+            }
+            return i == length ? offset == end : matchesEncoded(key, i, offset, end);
+        }
+
+        /**
+         * Compares the rest of a key with non-ASCII chars to the packed name, a code point at a time.
+         */
+        private boolean matchesEncoded(String key, int index, int offset, int end) {
+            byte[] encoded = new byte[4];
+            for (int i = index; i < key.length(); i++) {
+                int codePoint = codePointAt(key, i);
+                if (codePoint >= 0x10000) {
+                    i++;
+                }
+                int count = encode(codePoint, encoded, 0);
+                if (end - offset < count) {
+                    return false;
+                }
+                for (int j = 0; j < count; j++) {
+                    if (nameBytes[offset++] != encoded[j]) {
+                        return false;
+                    }
+                }
+            }
+            return offset == end;
+        }
+
+        private long cellOf(int hash, int ref) {
+            return (long) hash << 32 | (ref + 1);
+        }
+
+        private int refOf(long cell) {
+            return (int) cell - 1;
+        }
+
+        /**
+         * Gets the first cell to probe for a hash code. Names in a directory often differ only in a few characters, so
+         * their hash codes are clustered; Fibonacci hashing takes the cell from the high bits of the product, which
+         * depend on every bit of the hash code.
+         */
+        private int home(int hash) {
+            return (hash * 0x9e3779b9) >>> shift;
+        }
+    }
+}
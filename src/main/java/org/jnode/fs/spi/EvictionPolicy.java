@@ -0,0 +1,54 @@
+package org.jnode.fs.spi;
+
+/**
+ * Decides which key an {@link FSObjectCache} evicts when it is full.
+ * <p>
+ * Policies don't need to be thread safe, the cache only calls them while holding its lock. Accesses are recorded on
+ * a best effort basis: an access which would have to wait for the lock isn't recorded, so policies must cope with
+ * missing accesses, and with accesses or removals of keys they don't hold.
+ *
+ * @param <K> the type of the keys.
+ */
+public interface EvictionPolicy<K> {
+
+    /**
+     * Sets the number of keys the cache holds, called before any key is added and whenever the size changes. An
+     * unbounded cache doesn't use its policy, so this is never called with {@link FSObjectCache#UNBOUNDED}.
+     *
+     * @param maximumSize the maximum number of keys.
+     */
+    void setMaximumSize(int maximumSize);
+
+    /**
+     * Records a key added to the cache.
+     *
+     * @param key the key.
+     */
+    void recordInsert(K key);
+
+    /**
+     * Records a cache hit.
+     *
+     * @param key the key.
+     */
+    void recordAccess(K key);
+
+    /**
+     * Records a key removed from the cache other than by eviction.
+     *
+     * @param key the key.
+     */
+    void recordRemove(K key);
+
+    /**
+     * Chooses a key to evict and forgets it.
+     *
+     * @return the key, or {@code null} if the policy holds no keys.
+     */
+    K selectVictim();
+
+    /**
+     * Forgets all keys.
+     */
+    void clear();
+}
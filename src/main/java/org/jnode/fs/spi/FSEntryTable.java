@@ -77,6 +77,19 @@ public class FSEntryTable extends AbstractFSObject {
         entryNames = Collections.emptyList();
     }
 
+    /**
+     * Constructor for child classes which store the entries themselves, and so override all the methods reading or
+     * changing them.
+     *
+     * @param fs
+     */
+    protected FSEntryTable(AbstractFileSystem<?> fs) {
+        super(fs);
+        entries = Collections.emptyMap();
+        entriesById = Collections.emptyMap();
+        entryNames = Collections.emptyList();
+    }
+
     /**
      * Construct a FSEntryTable from a list of FSEntry
      *
@@ -97,7 +110,9 @@ public class FSEntryTable extends AbstractFSObject {
                 entryNames.add(null);
             } else {
                 final String name = normalizeName(entry.getName());
-                log.debug("FSEntryTable: adding entry " + name + " (length=+" + name.length() + ")");
+                if (log.isDebugEnabled()) {
+                    log.debug("FSEntryTable: adding entry " + name + " (length=+" + name.length() + ")");
+                }
                 entries.put(name, entry);
                 FSEntry existingEntry = entriesById.put(entry.getId(), entry);
                 if (existingEntry != null) {
@@ -109,6 +124,22 @@ public class FSEntryTable extends AbstractFSObject {
         }
     }
 
+    /**
+     * Creates a table for a directory's entries, a {@link CompactFSEntryTable} for large directories if the file
+     * system opted in.
+     *
+     * @param fs
+     * @param entryList
+     * @return the table
+     * @see AbstractFileSystem#setCompactEntryTables(boolean)
+     */
+    public static FSEntryTable create(AbstractFileSystem<?> fs, List<FSEntry> entryList) {
+        if (fs != null && fs.isCompactEntryTables() && entryList.size() >= CompactFSEntryTable.MIN_ENTRIES) {
+            return new CompactFSEntryTable(fs, entryList);
+        }
+        return new FSEntryTable(fs, entryList);
+    }
+
     protected int addEntry(FSEntry entry) {
         // grow the entry table
         if (entry == null) {
@@ -149,7 +180,7 @@ public class FSEntryTable extends AbstractFSObject {
      * @param index
      * @return the FSEntry at index
      */
-    public final FSEntry get(int index) {
+    public FSEntry get(int index) {
         return get(entryNames.get(index));
     }
 
@@ -165,7 +196,9 @@ public class FSEntryTable extends AbstractFSObject {
             return null;
 
         name = normalizeName(name);
-        log.debug("get(" + name + ")");
+        if (log.isDebugEnabled()) {
+            log.debug("get(" + name + ")");
+        }
         return entries.get(name);
     }
 
@@ -228,7 +261,7 @@ public class FSEntryTable extends AbstractFSObject {
      * @return if the table needs to be saved to the device
      * @throws IOException
      */
-    public final boolean isDirty() throws IOException {
+    public boolean isDirty() throws IOException {
         if (super.isDirty()) {
             return true;
         }
@@ -248,7 +281,7 @@ public class FSEntryTable extends AbstractFSObject {
      *
      * @return an Iterator with all used entries
      */
-    public final Iterator<FSEntry> iterator() {
+    public Iterator<FSEntry> iterator() {
         return new Iterator<FSEntry>() {
             private int index = 0;
 
@@ -374,7 +407,7 @@ public class FSEntryTable extends AbstractFSObject {
      *
      * @return the complete size of the entry table
      */
-    public final int size() {
+    public int size() {
         return entryNames.size();
     }
 
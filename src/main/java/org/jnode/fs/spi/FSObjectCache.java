@@ -0,0 +1,371 @@
+package org.jnode.fs.spi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of file system objects, such as the {@link org.jnode.fs.FSFile} and
+ * {@link org.jnode.fs.FSDirectory} instances of an {@link AbstractFileSystem}.
+ * <p>
+ * Lookups don't block: the objects are held in a concurrent map, and only adding, removing and evicting objects takes
+ * the lock which guards the {@link EvictionPolicy}. A hit is passed on to the policy only if the lock is free, so
+ * under contention some accesses go unrecorded rather than making readers wait for each other.
+ * <p>
+ * A cache whose maximum size is {@link #UNBOUNDED} never evicts, so it doesn't use the policy at all and costs no
+ * more than the map.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the cached objects.
+ */
+public class FSObjectCache<K, V> {
+
+    /**
+     * The maximum size of a cache which never evicts.
+     */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    /**
+     * The cached objects.
+     */
+    private final ConcurrentHashMap<K, V> map = new ConcurrentHashMap<K, V>();
+
+    /**
+     * The lock guarding the policy.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The eviction policy.
+     */
+    private final EvictionPolicy<K> policy;
+
+    /**
+     * The listener told about evicted objects, or {@code null}.
+     */
+    private volatile EvictionListener<K, V> listener;
+
+    /**
+     * The maximum number of objects.
+     */
+    private volatile int maximumSize;
+
+    /**
+     * The number of cache hits.
+     */
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * The number of cache misses.
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * The number of objects evicted.
+     */
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a new cache with a {@link TinyLfuEvictionPolicy}.
+     *
+     * @param maximumSize the maximum number of objects, or {@link #UNBOUNDED}.
+     */
+    public FSObjectCache(int maximumSize) {
+        this(maximumSize, new TinyLfuEvictionPolicy<K>());
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maximumSize the maximum number of objects, or {@link #UNBOUNDED}.
+     * @param policy the eviction policy.
+     */
+    public FSObjectCache(int maximumSize, EvictionPolicy<K> policy) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Invalid maximum size: " + maximumSize);
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("Policy cannot be null");
+        }
+
+        this.policy = policy;
+        this.maximumSize = maximumSize;
+        if (maximumSize != UNBOUNDED) {
+            policy.setMaximumSize(maximumSize);
+        }
+    }
+
+    /**
+     * Looks up an object.
+     *
+     * @param key the key.
+     * @return the object, or {@code null} if it is not cached.
+     */
+    public V get(K key) {
+        V value = map.get(key);
+        if (value == null) {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        if (maximumSize != UNBOUNDED && lock.tryLock()) {
+            try {
+                if (maximumSize != UNBOUNDED) {
+                    policy.recordAccess(key);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Adds an object to the cache, evicting others if the cache is full. If another thread added an object for the
+     * key first, that object is kept and returned instead.
+     *
+     * @param key the key.
+     * @param value the object.
+     * @return the cached object.
+     */
+    public V add(K key, V value) {
+        List<Object> evicted = null;
+
+        lock.lock();
+        try {
+            V existing = map.putIfAbsent(key, value);
+            if (existing != null) {
+                return existing;
+            }
+
+            if (maximumSize != UNBOUNDED) {
+                policy.recordInsert(key);
+                evicted = evict();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        notifyEvicted(evicted);
+        return value;
+    }
+
+    /**
+     * Removes an object from the cache.
+     *
+     * @param key the key.
+     * @return the removed object, or {@code null} if it was not cached.
+     */
+    public V remove(K key) {
+        lock.lock();
+        try {
+            V value = map.remove(key);
+            if (value != null && maximumSize != UNBOUNDED) {
+                policy.recordRemove(key);
+            }
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all objects from the cache, without telling the listener.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            map.clear();
+            policy.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets a snapshot of the cached objects.
+     *
+     * @return the objects.
+     */
+    public Collection<V> values() {
+        return new ArrayList<V>(map.values());
+    }
+
+    /**
+     * Gets the number of cached objects.
+     *
+     * @return the number of objects.
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Gets the maximum number of objects.
+     *
+     * @return the maximum number of objects.
+     */
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Sets the maximum number of objects, evicting objects if the cache is now over the limit. A cache which becomes
+     * unbounded drops the policy's state, and one which becomes bounded gives the policy the cached keys in no
+     * particular order.
+     *
+     * @param maximumSize the maximum number of objects, or {@link #UNBOUNDED}.
+     */
+    public void setMaximumSize(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Invalid maximum size: " + maximumSize);
+        }
+
+        List<Object> evicted = null;
+        lock.lock();
+        try {
+            boolean wasUnbounded = this.maximumSize == UNBOUNDED;
+            this.maximumSize = maximumSize;
+            if (maximumSize == UNBOUNDED) {
+                policy.clear();
+            } else {
+                policy.setMaximumSize(maximumSize);
+                if (wasUnbounded) {
+                    for (K key : map.keySet()) {
+                        policy.recordInsert(key);
+                    }
+                }
+                evicted = evict();
+            }
+        } finally {
+            lock.unlock();
+        }
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Sets the listener told about evicted objects.
+     *
+     * @param listener the listener, or {@code null} for none.
+     */
+    public void setEvictionListener(EvictionListener<K, V> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Gets the number of cache hits.
+     *
+     * @return the number of hits.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of cache misses.
+     *
+     * @return the number of misses.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of objects evicted to stay within the maximum size.
+     *
+     * @return the number of evictions.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Gets the hit rate.
+     *
+     * @return the fraction of lookups which were hits, or {@code 0} if there were no lookups.
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Resets the hit, miss and eviction counters.
+     */
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FSObjectCache:[size:%d max:%d hits:%d misses:%d evictions:%d %s]", map.size(),
+            maximumSize, hits.sum(), misses.sum(), evictions.sum(), policy);
+    }
+
+    /**
+     * Evicts objects until the cache is within its maximum size, with the lock held.
+     *
+     * @return the evicted keys and objects in pairs, or {@code null} if none were evicted.
+     */
+    private List<Object> evict() {
+        List<Object> evicted = null;
+        while (map.size() > maximumSize) {
+            K victim = policy.selectVictim();
+            if (victim == null) {
+                break;
+            }
+
+            V value = map.remove(victim);
+            if (value != null) {
+                evictions.increment();
+                if (evicted == null) {
+                    evicted = new ArrayList<Object>();
+                }
+                evicted.add(victim);
+                evicted.add(value);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Tells the listener about evicted objects, without holding the lock.
+     *
+     * @param evicted the evicted keys and objects in pairs, or {@code null}.
+     */
+    @SuppressWarnings("unchecked")
+    private void notifyEvicted(List<Object> evicted) {
+        EvictionListener<K, V> current = listener;
+        if (evicted == null || current == null) {
+            return;
+        }
+
+        for (int i = 0; i < evicted.size(); i += 2) {
+            current.evicted((K) evicted.get(i), (V) evicted.get(i + 1));
+        }
+    }
+
+    /**
+     * Told about objects evicted from a cache.
+     *
+     * @param <K> the type of the keys.
+     * @param <V> the type of the cached objects.
+     */
+    public interface EvictionListener<K, V> {
+
+        /**
+         * Called after an object was evicted.
+         *
+         * @param key the key.
+         * @param value the evicted object.
+         */
+        void evicted(K key, V value);
+    }
+}
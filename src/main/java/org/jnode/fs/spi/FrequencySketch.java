@@ -0,0 +1,158 @@
+package org.jnode.fs.spi;
+
+/**
+ * An approximate count of how often keys were seen recently, a count-min sketch of 4-bit counters.
+ * <p>
+ * Each key maps to four counters, one in each of four 64-bit words picked by different hashes, and its frequency is
+ * the smallest of them. Once the number of increments reaches ten times the number of keys the sketch is sized for
+ * every counter is halved, so keys which were popular a long time ago fade out. The sketch starts small and is grown
+ * as the cache fills up.
+ */
+final class FrequencySketch {
+
+    /**
+     * The seeds of the four hashes.
+     */
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    /**
+     * The mask which halves every counter in a word once it has been shifted right by one.
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /**
+     * The largest table size, 32 MiB of counters.
+     */
+    private static final int MAX_TABLE_SIZE = 1 << 22;
+
+    /**
+     * The largest counter value.
+     */
+    private static final int MAX_COUNT = 15;
+
+    /**
+     * The counters, sixteen in each word.
+     */
+    private long[] table = new long[0];
+
+    /**
+     * The mask giving a word index from a hash.
+     */
+    private int tableMask;
+
+    /**
+     * The number of keys the sketch is sized for.
+     */
+    private int capacity = -1;
+
+    /**
+     * The number of increments after which the counters are halved.
+     */
+    private int sampleSize;
+
+    /**
+     * The number of increments since the counters were last halved.
+     */
+    private int size;
+
+    /**
+     * Grows the sketch to suit a number of keys. The counters are cleared when the table grows, which only happens
+     * when the number of keys passes a power of two. The sketch never shrinks.
+     *
+     * @param expectedSize the number of keys in the cache.
+     */
+    void ensureCapacity(int expectedSize) {
+        if (expectedSize <= capacity) {
+            return;
+        }
+
+        capacity = expectedSize;
+        sampleSize = capacity > Integer.MAX_VALUE / 10 ? Integer.MAX_VALUE : 10 * Math.max(1, capacity);
+
+        int tableSize = Integer.highestOneBit(Math.max(16, Math.min(capacity, MAX_TABLE_SIZE) - 1)) << 1;
+        if (tableSize > table.length) {
+            table = new long[tableSize];
+            tableMask = tableSize - 1;
+            size = 0;
+        }
+    }
+
+    /**
+     * Gets the estimated number of times a key was seen recently.
+     *
+     * @param key the key.
+     * @return the estimate, at most 15.
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & MAX_COUNT);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records that a key was seen.
+     *
+     * @param key the key.
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Clears the counters.
+     */
+    void clear() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = 0;
+        }
+        size = 0;
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int shift = counter << 2;
+        long mask = (long) MAX_COUNT << shift;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << shift;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size >>>= 1;
+    }
+
+    private int indexOf(int hash, int i) {
+        long value = (hash + SEEDS[i]) * SEEDS[i];
+        value += value >>> 32;
+        return (int) value & tableMask;
+    }
+
+    /**
+     * Mixes the bits of a hash code, which may be poorly distributed.
+     */
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
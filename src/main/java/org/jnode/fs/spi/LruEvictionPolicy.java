@@ -0,0 +1,58 @@
+package org.jnode.fs.spi;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts the least recently used key.
+ *
+ * @param <K> the type of the keys.
+ */
+public class LruEvictionPolicy<K> implements EvictionPolicy<K> {
+
+    /**
+     * The keys, least recently used first.
+     */
+    private final LinkedHashMap<K, Boolean> keys = new LinkedHashMap<K, Boolean>(16, 0.75f, true);
+
+    @Override
+    public void setMaximumSize(int maximumSize) {
+        // The order doesn't depend on the size
+    }
+
+    @Override
+    public void recordInsert(K key) {
+        keys.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public void recordAccess(K key) {
+        keys.get(key);
+    }
+
+    @Override
+    public void recordRemove(K key) {
+        keys.remove(key);
+    }
+
+    @Override
+    public K selectVictim() {
+        Iterator<K> iterator = keys.keySet().iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        K victim = iterator.next();
+        iterator.remove();
+        return victim;
+    }
+
+    @Override
+    public void clear() {
+        keys.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LruEvictionPolicy:[size:%d]", keys.size());
+    }
+}
@@ -0,0 +1,167 @@
+package org.jnode.fs.spi;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A W-TinyLFU eviction policy: new keys go into a small LRU window, and a key leaving the window only displaces a key
+ * in the main area if it has been seen more often recently, going by a {@link FrequencySketch}.
+ * <p>
+ * The main area is a segmented LRU. Keys start in the probation segment and move to the protected segment when they
+ * are used again. A walk of a large volume touches most objects once, so the window and probation segment absorb the
+ * walk while the directories which are used again and again stay protected.
+ * <p>
+ * The sketch grows with the number of keys held rather than being sized for the maximum up front, so a large limit
+ * which is never reached costs little.
+ *
+ * @param <K> the type of the keys.
+ */
+public class TinyLfuEvictionPolicy<K> implements EvictionPolicy<K> {
+
+    /**
+     * The percentage of the cache used for the window.
+     */
+    private static final int WINDOW_PERCENT = 1;
+
+    /**
+     * The percentage of the main area used for the protected segment.
+     */
+    private static final int PROTECTED_PERCENT = 80;
+
+    /**
+     * The recent frequency of keys.
+     */
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    /**
+     * The window, least recently used first.
+     */
+    private final LinkedHashMap<K, Boolean> window = new LinkedHashMap<K, Boolean>(16, 0.75f, true);
+
+    /**
+     * The probation segment of the main area, least recently used first.
+     */
+    private final LinkedHashMap<K, Boolean> probation = new LinkedHashMap<K, Boolean>(16, 0.75f, true);
+
+    /**
+     * The protected segment of the main area, least recently used first.
+     */
+    private final LinkedHashMap<K, Boolean> protectedKeys = new LinkedHashMap<K, Boolean>(16, 0.75f, true);
+
+    /**
+     * The maximum number of keys.
+     */
+    private int maximumSize;
+
+    /**
+     * The number of keys the window holds.
+     */
+    private int windowCapacity = 1;
+
+    /**
+     * The number of keys the main area holds.
+     */
+    private int mainCapacity;
+
+    /**
+     * The number of keys the protected segment holds.
+     */
+    private int protectedCapacity;
+
+    @Override
+    public void setMaximumSize(int maximumSize) {
+        this.maximumSize = maximumSize;
+        windowCapacity = Math.max(1, (int) ((long) maximumSize * WINDOW_PERCENT / 100));
+        mainCapacity = Math.max(0, maximumSize - windowCapacity);
+        protectedCapacity = (int) ((long) mainCapacity * PROTECTED_PERCENT / 100);
+        sketch.ensureCapacity(Math.min(maximumSize, size()));
+    }
+
+    @Override
+    public void recordInsert(K key) {
+        window.put(key, Boolean.TRUE);
+        sketch.ensureCapacity(Math.min(maximumSize, size()));
+        sketch.increment(key);
+    }
+
+    @Override
+    public void recordAccess(K key) {
+        sketch.increment(key);
+        if (window.get(key) != null || protectedKeys.get(key) != null) {
+            return;
+        }
+        if (probation.remove(key) != null) {
+            protectedKeys.put(key, Boolean.TRUE);
+            while (protectedKeys.size() > protectedCapacity) {
+                probation.put(removeEldest(protectedKeys), Boolean.TRUE);
+            }
+        }
+    }
+
+    @Override
+    public void recordRemove(K key) {
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protectedKeys.remove(key);
+        }
+    }
+
+    @Override
+    public K selectVictim() {
+        while (window.size() > windowCapacity) {
+            K candidate = removeEldest(window);
+            if (probation.size() + protectedKeys.size() < mainCapacity) {
+                probation.put(candidate, Boolean.TRUE);
+                continue;
+            }
+
+            // The main area is full, so either the candidate or the main area's victim has to go
+            LinkedHashMap<K, Boolean> segment = probation.isEmpty() ? protectedKeys : probation;
+            if (segment.isEmpty()) {
+                return candidate;
+            }
+            K victim = segment.keySet().iterator().next();
+            if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+                segment.remove(victim);
+                probation.put(candidate, Boolean.TRUE);
+                return victim;
+            }
+            return candidate;
+        }
+
+        if (!probation.isEmpty()) {
+            return removeEldest(probation);
+        }
+        if (!protectedKeys.isEmpty()) {
+            return removeEldest(protectedKeys);
+        }
+        return window.isEmpty() ? null : removeEldest(window);
+    }
+
+    @Override
+    public void clear() {
+        window.clear();
+        probation.clear();
+        protectedKeys.clear();
+        sketch.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TinyLfuEvictionPolicy:[window:%d/%d probation:%d protected:%d/%d]", window.size(),
+            windowCapacity, probation.size(), protectedKeys.size(), protectedCapacity);
+    }
+
+    /**
+     * Gets the number of keys held.
+     */
+    private int size() {
+        return window.size() + probation.size() + protectedKeys.size();
+    }
+
+    private static <K> K removeEldest(LinkedHashMap<K, Boolean> keys) {
+        Iterator<K> iterator = keys.keySet().iterator();
+        K eldest = iterator.next();
+        iterator.remove();
+        return eldest;
+    }
+}
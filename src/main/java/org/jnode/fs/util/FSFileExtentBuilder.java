@@ -0,0 +1,135 @@
+package org.jnode.fs.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.jnode.fs.FSFileExtent;
+
+/**
+ * Builds a file's extent list from the runs of its block map, in file order.
+ * <p>
+ * Runs which follow on from the previous one on the device are merged, so file systems can add their blocks one at a
+ * time. Gaps between runs, and after the last one, are filled with sparse extents, and anything past the file's
+ * length is dropped.
+ */
+public class FSFileExtentBuilder {
+
+    /**
+     * The length of the file.
+     */
+    private final long fileLength;
+
+    /**
+     * The extents built so far.
+     */
+    private final List<FSFileExtent> extents = new ArrayList<FSFileExtent>();
+
+    /**
+     * The file offset of the run being built.
+     */
+    private long runOffset;
+
+    /**
+     * The length of the run being built, zero if there is none.
+     */
+    private long runLength;
+
+    /**
+     * The device offset of the run being built.
+     */
+    private long runDeviceOffset;
+
+    /**
+     * The flags of the run being built.
+     */
+    private int runFlags;
+
+    /**
+     * Creates a new builder.
+     *
+     * @param fileLength the length of the file.
+     */
+    public FSFileExtentBuilder(long fileLength) {
+        this.fileLength = fileLength;
+    }
+
+    /**
+     * Adds a run. Any part of it before the end of the previous run, or past the end of the file, is skipped.
+     *
+     * @param fileOffset the offset of the run in the file.
+     * @param length the length of the run in bytes.
+     * @param deviceOffset the offset of the run on the device, or {@link FSFileExtent#NO_DEVICE_OFFSET}.
+     * @param flags the {@link FSFileExtent} flags.
+     * @return this builder.
+     */
+    public FSFileExtentBuilder add(long fileOffset, long length, long deviceOffset, int flags) {
+        long end = runOffset + runLength;
+        if (fileOffset < end) {
+            // Overlaps the previous run, only seen on a corrupt file system
+            long skip = Math.min(end - fileOffset, length);
+            fileOffset += skip;
+            length -= skip;
+            if (deviceOffset != FSFileExtent.NO_DEVICE_OFFSET) {
+                deviceOffset += skip;
+            }
+        }
+
+        length = Math.min(length, fileLength - fileOffset);
+        if (length <= 0) {
+            return this;
+        }
+
+        if (fileOffset > end) {
+            append(end, fileOffset - end, FSFileExtent.NO_DEVICE_OFFSET, FSFileExtent.SPARSE);
+        }
+        append(fileOffset, length, deviceOffset, flags);
+        return this;
+    }
+
+    /**
+     * Gets the extents, with any hole at the end of the file filled.
+     *
+     * @return the extents.
+     */
+    public List<FSFileExtent> build() {
+        long end = runOffset + runLength;
+        if (end < fileLength) {
+            append(end, fileLength - end, FSFileExtent.NO_DEVICE_OFFSET, FSFileExtent.SPARSE);
+        }
+        if (runLength > 0) {
+            extents.add(new FSFileExtent(runOffset, runLength, runDeviceOffset, runFlags));
+            runOffset += runLength;
+            runLength = 0;
+        }
+        return Collections.unmodifiableList(new ArrayList<FSFileExtent>(extents));
+    }
+
+    /**
+     * Appends a run at the end, merging it into the run being built if it follows on from it.
+     */
+    private void append(long fileOffset, long length, long deviceOffset, int flags) {
+        if (runLength > 0) {
+            // Compressed and inline runs are separate units of data, so they are never merged
+            boolean mergeable = runFlags == flags && (flags & (FSFileExtent.COMPRESSED | FSFileExtent.INLINE)) == 0;
+            boolean contiguous = deviceOffset == FSFileExtent.NO_DEVICE_OFFSET ?
+                runDeviceOffset == FSFileExtent.NO_DEVICE_OFFSET :
+                runDeviceOffset != FSFileExtent.NO_DEVICE_OFFSET && runDeviceOffset + runLength == deviceOffset;
+
+            if (mergeable && contiguous) {
+                runLength += length;
+                return;
+            }
+            extents.add(new FSFileExtent(runOffset, runLength, runDeviceOffset, runFlags));
+        }
+
+        runOffset = fileOffset;
+        runLength = length;
+        runDeviceOffset = deviceOffset;
+        runFlags = flags;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FSFileExtentBuilder:[length:%d extents:%d]", fileLength, extents.size());
+    }
+}
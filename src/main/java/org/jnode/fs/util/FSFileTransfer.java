@@ -0,0 +1,256 @@
+package org.jnode.fs.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.FileChannelDevice;
+import org.jnode.driver.block.MappedBlockDeviceSupport;
+import org.jnode.driver.block.MappedFileDevice;
+import org.jnode.fs.FSFile;
+import org.jnode.fs.FSFileExtent;
+import org.jnode.fs.FSFileExtents;
+import org.jnode.fs.FileSystem;
+
+/**
+ * Copies a file's data to a channel, e.g. to export files from a disk image.
+ * <p>
+ * Where the file implements {@link FSFileExtents} and its file system's device is a {@link FileChannelDevice} or a
+ * {@link MappedFileDevice}, possibly under partitions, the file's direct extents are moved from the image's channel
+ * with {@link FileChannel#transferTo(long, long, WritableByteChannel)}. The bytes don't pass through the heap, and
+ * the kernel can copy them without going through user space at all when the target is a file or a socket. Holes and
+ * unwritten extents are written as zeros, and everything else, such as inline, compressed or encrypted data, is read
+ * through {@link FSFile#read(long, ByteBuffer)}. Files on other devices are read through
+ * {@link FSFile#read(long, ByteBuffer)} as a whole, since a filter device such as a copy-on-write overlay may not
+ * return what is in the image.
+ * <p>
+ * The extents are read from the device, so a file system with unflushed writes should be flushed first. The target
+ * should be in blocking mode, since a write which takes no bytes fails with an {@link IOException} rather than being
+ * retried.
+ */
+public class FSFileTransfer {
+
+    /**
+     * The size of the buffer for data which is read through the file.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The zeros written for holes, shared read-only between threads.
+     */
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(BUFFER_SIZE).asReadOnlyBuffer();
+
+    /**
+     * Extent flags for data which reads as zeros.
+     */
+    private static final int ZERO_FLAGS = FSFileExtent.SPARSE | FSFileExtent.UNWRITTEN;
+
+    private FSFileTransfer() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Copies a whole file to a channel.
+     *
+     * @param file the file.
+     * @param target the channel to write to.
+     * @return the number of bytes written, which is the length of the file.
+     * @throws IOException if an error occurs reading the file or writing to the channel.
+     */
+    public static long transferTo(FSFile file, WritableByteChannel target) throws IOException {
+        return transferTo(file, 0, file.getLength(), target);
+    }
+
+    /**
+     * Copies a range of a file to a channel.
+     *
+     * @param file the file.
+     * @param fileOffset the offset in the file to start at.
+     * @param count the maximum number of bytes to copy.
+     * @param target the channel to write to.
+     * @return the number of bytes written, which is less than the count if the range runs past the end of the file.
+     * @throws IOException if an error occurs reading the file or writing to the channel.
+     */
+    public static long transferTo(FSFile file, long fileOffset, long count, WritableByteChannel target)
+        throws IOException {
+
+        if (fileOffset < 0 || count < 0) {
+            throw new IllegalArgumentException("Invalid range: " + fileOffset + " +" + count);
+        }
+
+        long end = fileOffset + Math.min(count, Math.max(0, file.getLength() - fileOffset));
+        if (end <= fileOffset) {
+            return 0;
+        }
+
+        FileSystem<?> fileSystem = file.getFileSystem();
+        Device device = fileSystem == null ? null : fileSystem.getDevice();
+        FileChannel channel = getChannel(device);
+        if (!(file instanceof FSFileExtents) || channel == null) {
+            copy(file, fileOffset, end, target);
+            return end - fileOffset;
+        }
+
+        List<FSFileExtent> extents = ((FSFileExtents) file).getExtents();
+        if (extents == null) {
+            copy(file, fileOffset, end, target);
+            return end - fileOffset;
+        }
+
+        long channelOffset = getChannelOffset(device);
+
+        long position = fileOffset;
+        for (FSFileExtent extent : extents) {
+            long extentEnd = extent.getFileOffset() + extent.getLength();
+            if (extentEnd <= position) {
+                continue;
+            }
+            if (extent.getFileOffset() > position || position >= end) {
+                break;
+            }
+
+            long runEnd = Math.min(extentEnd, end);
+            if (extent.isDirect()) {
+                long deviceOffset = extent.getDeviceOffset() + position - extent.getFileOffset();
+                transfer(channel, channelOffset + deviceOffset, runEnd - position, target);
+            } else if ((extent.getFlags() & ~ZERO_FLAGS) == 0) {
+                writeZeros(runEnd - position, target);
+            } else {
+                copy(file, position, runEnd, target);
+            }
+            position = runEnd;
+        }
+
+        if (position < end) {
+            // The extents don't cover the whole range, so let the file read the rest
+            copy(file, position, end, target);
+        }
+
+        return end - fileOffset;
+    }
+
+    /**
+     * Gets the channel to the image under a device.
+     *
+     * @param device the device.
+     * @return the channel, or {@code null} if the device isn't backed directly by an image file.
+     */
+    private static FileChannel getChannel(Device device) {
+        while (device instanceof MappedBlockDeviceSupport) {
+            device = ((MappedBlockDeviceSupport) device).getParent();
+        }
+
+        if (device instanceof FileChannelDevice) {
+            return ((FileChannelDevice) device).getChannel();
+        } else if (device instanceof MappedFileDevice) {
+            return ((MappedFileDevice) device).getChannel();
+        }
+        return null;
+    }
+
+    /**
+     * Gets the offset of a device in the image under it.
+     *
+     * @param device the device.
+     * @return the offset.
+     */
+    private static long getChannelOffset(Device device) {
+        long offset = 0;
+        while (device instanceof MappedBlockDeviceSupport) {
+            offset += ((MappedBlockDeviceSupport) device).getOffset();
+            device = ((MappedBlockDeviceSupport) device).getParent();
+        }
+        return offset;
+    }
+
+    /**
+     * Moves a range of the image to the target.
+     */
+    private static void transfer(FileChannel channel, long position, long length, WritableByteChannel target)
+        throws IOException {
+
+        while (length > 0) {
+            long transferred = channel.transferTo(position, length, target);
+            if (transferred <= 0) {
+                if (position >= channel.size()) {
+                    throw new EOFException("Extent runs past the end of the image: offset " + position +
+                        ", remaining " + length);
+                }
+
+                // Nothing was moved, e.g. because the target took no bytes, so copy the rest through a buffer
+                copy(channel, position, length, target);
+                return;
+            }
+            position += transferred;
+            length -= transferred;
+        }
+    }
+
+    /**
+     * Copies a range of the image to the target by reading it into a buffer.
+     */
+    private static void copy(FileChannel channel, long position, long length, WritableByteChannel target)
+        throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, length));
+        while (length > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(length, buffer.capacity()));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Extent runs past the end of the image: offset " +
+                        (position + buffer.position()) + ", remaining " + (length - buffer.position()));
+                }
+            }
+
+            buffer.flip();
+            position += buffer.remaining();
+            length -= buffer.remaining();
+            write(buffer, target);
+        }
+    }
+
+    /**
+     * Writes zeros to the target.
+     */
+    private static void writeZeros(long length, WritableByteChannel target) throws IOException {
+        ByteBuffer zeros = ZEROS.duplicate();
+        while (length > 0) {
+            zeros.clear();
+            zeros.limit((int) Math.min(length, zeros.capacity()));
+            length -= zeros.remaining();
+            write(zeros, target);
+        }
+    }
+
+    /**
+     * Copies a range of the file to the target by reading it through the file.
+     */
+    private static void copy(FSFile file, long position, long end, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, end - position));
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(end - position, buffer.capacity()));
+            file.read(position, buffer);
+
+            // Not every file system moves the buffer's position as it reads, so write what was asked for
+            buffer.rewind();
+            position += buffer.remaining();
+            write(buffer, target);
+        }
+    }
+
+    /**
+     * Writes the whole of a buffer to the target.
+     */
+    private static void write(ByteBuffer buffer, WritableByteChannel target) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (target.write(buffer) == 0) {
+                throw new IOException("The target took no bytes, " + buffer.remaining() + " remaining");
+            }
+        }
+    }
+}
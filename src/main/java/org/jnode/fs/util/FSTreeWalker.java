@@ -0,0 +1,400 @@
+package org.jnode.fs.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import org.jnode.fs.FSDirectory;
+import org.jnode.fs.FSDirectoryId;
+import org.jnode.fs.FSEntry;
+import org.jnode.fs.FileSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Walks a directory tree in parallel on a work-stealing {@link ForkJoinPool}, with each directory read as a task.
+ * <p>
+ * Directory decoding is mostly CPU bound on file systems such as NTFS and XFS, so a walk scales with the number of
+ * cores until the device becomes the limit. The number of directories of a file system read at once can be limited,
+ * e.g. for a file system on a spinning disk or when several file systems are walked on a shared pool. The limit is
+ * shared by all the walks of a file system and is the lowest any of them asked for, so a later walk can tighten it but
+ * never raise it for walks already running. Directories which
+ * implement {@link FSDirectoryId} are only walked once, so hard-linked directories can't make the walk loop forever.
+ */
+public class FSTreeWalker implements Closeable {
+
+    /**
+     * The path separator.
+     */
+    public static final String SEPARATOR = "/";
+
+    /**
+     * The logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(FSTreeWalker.class);
+
+    /**
+     * The permits to read a directory, for each file system being walked.
+     */
+    private static final Map<FileSystem<?>, Permits> permitsByFileSystem = new WeakHashMap<FileSystem<?>, Permits>();
+
+    /**
+     * The pool the directory tasks run on.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Whether the pool is owned by this walker.
+     */
+    private final boolean ownsPool;
+
+    /**
+     * Creates a new walker with its own pool, using all processors.
+     */
+    public FSTreeWalker() {
+        this(new ForkJoinPool(), true);
+    }
+
+    /**
+     * Creates a new walker on a shared pool, which is not shut down when the walker is closed.
+     *
+     * @param pool the pool.
+     */
+    public FSTreeWalker(ForkJoinPool pool) {
+        this(pool, false);
+    }
+
+    private FSTreeWalker(ForkJoinPool pool, boolean ownsPool) {
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+    }
+
+    /**
+     * Walks a file system from its root entry, reading as many directories at once as the pool has threads.
+     *
+     * @param fileSystem the file system.
+     * @param visitor the visitor.
+     * @throws IOException if an error occurs reading the root entry.
+     */
+    public void walk(FileSystem<?> fileSystem, Visitor visitor) throws IOException {
+        walk(fileSystem, visitor, pool.getParallelism());
+    }
+
+    /**
+     * Walks a file system from its root entry.
+     *
+     * @param fileSystem the file system.
+     * @param visitor the visitor.
+     * @param maxConcurrency the maximum number of directories of the file system read at once, by all walks. A lower
+     * limit asked for by another walk of the file system takes precedence.
+     * @throws IOException if an error occurs reading the root entry.
+     */
+    public void walk(FileSystem<?> fileSystem, Visitor visitor, int maxConcurrency) throws IOException {
+        walk(fileSystem.getRootEntry(), SEPARATOR, visitor, maxConcurrency);
+    }
+
+    /**
+     * Walks the tree under a directory.
+     *
+     * @param directory the directory entry.
+     * @param path the path of the directory, used to build the paths passed to the visitor.
+     * @param visitor the visitor.
+     * @param maxConcurrency the maximum number of directories of the file system read at once, by all walks. A lower
+     * limit asked for by another walk of the file system takes precedence.
+     * @throws IOException if the walk is interrupted.
+     */
+    public void walk(FSEntry directory, String path, Visitor visitor, int maxConcurrency) throws IOException {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Invalid concurrency: " + maxConcurrency);
+        }
+
+        Walk walk = new Walk(visitor, getPermits(directory.getFileSystem(), maxConcurrency));
+        if (!visitor.preVisitDirectory(directory, path)) {
+            return;
+        }
+        pool.invoke(new DirectoryTask(walk, directory, path));
+
+        if (walk.interrupted) {
+            throw new InterruptedIOException("Interrupted walking " + path);
+        }
+    }
+
+    /**
+     * Shuts down the pool if it is owned by this walker.
+     */
+    @Override
+    public void close() {
+        if (ownsPool) {
+            pool.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FSTreeWalker:[%s]", pool);
+    }
+
+    /**
+     * Gets the permits shared by the walks of a file system, lowering their limit if this walk asks for fewer.
+     *
+     * @param fileSystem the file system, or {@code null} if not known.
+     * @param maxConcurrency the maximum number of directories read at once.
+     * @return the permits.
+     */
+    private static Permits getPermits(FileSystem<?> fileSystem, int maxConcurrency) {
+        if (fileSystem == null) {
+            return new Permits(maxConcurrency);
+        }
+
+        synchronized (permitsByFileSystem) {
+            Permits permits = permitsByFileSystem.get(fileSystem);
+            if (permits == null) {
+                permits = new Permits(maxConcurrency);
+                permitsByFileSystem.put(fileSystem, permits);
+            } else {
+                permits.lowerLimit(maxConcurrency);
+            }
+            return permits;
+        }
+    }
+
+    /**
+     * Joins a path and a name.
+     */
+    private static String childPath(String path, String name) {
+        return path.endsWith(SEPARATOR) ? path + name : path + SEPARATOR + name;
+    }
+
+    /**
+     * Told about the entries found during a walk. The methods are called concurrently from the pool's threads, so
+     * they must be thread safe.
+     */
+    public interface Visitor {
+
+        /**
+         * Called for a directory before it is read.
+         *
+         * @param directory the directory entry.
+         * @param path the path of the directory.
+         * @return {@code true} to read the directory, or {@code false} to skip it and everything under it.
+         */
+        boolean preVisitDirectory(FSEntry directory, String path);
+
+        /**
+         * Called for each entry which is not a directory.
+         *
+         * @param entry the entry.
+         * @param path the path of the entry.
+         */
+        void visitEntry(FSEntry entry, String path);
+
+        /**
+         * Called when a directory couldn't be read. By default the error is logged and the walk carries on.
+         *
+         * @param directory the directory entry.
+         * @param path the path of the directory.
+         * @param e the error.
+         */
+        default void visitFailed(FSEntry directory, String path, IOException e) {
+            log.warn("Error reading directory " + path, e);
+        }
+    }
+
+    /**
+     * The state shared by the tasks of one walk.
+     */
+    private static class Walk {
+
+        /**
+         * The visitor.
+         */
+        private final Visitor visitor;
+
+        /**
+         * The permits to read a directory.
+         */
+        private final Semaphore permits;
+
+        /**
+         * The IDs of the directories walked.
+         */
+        private final Set<String> directoryIds = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Whether a task was interrupted waiting for a permit.
+         */
+        private volatile boolean interrupted;
+
+        private Walk(Visitor visitor, Semaphore permits) {
+            this.visitor = visitor;
+            this.permits = permits;
+        }
+    }
+
+    /**
+     * The permits to read the directories of a file system, whose number can be lowered while they are in use.
+     */
+    private static class Permits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The number of permits, including those acquired.
+         */
+        private int limit;
+
+        private Permits(int limit) {
+            super(limit);
+            this.limit = limit;
+        }
+
+        /**
+         * Lowers the number of permits, leaving it as it is if it is already no higher. If it is reduced below the
+         * number acquired, no more are given out until enough are released.
+         *
+         * @param newLimit the new number of permits.
+         */
+        private synchronized void lowerLimit(int newLimit) {
+            if (newLimit < limit) {
+                reducePermits(limit - newLimit);
+                limit = newLimit;
+            }
+        }
+    }
+
+    /**
+     * Blocks for a permit, letting the pool start another thread meanwhile so the wait doesn't starve it.
+     */
+    private static class PermitBlocker implements ForkJoinPool.ManagedBlocker {
+
+        /**
+         * The permits.
+         */
+        private final Semaphore permits;
+
+        /**
+         * Whether a permit was acquired.
+         */
+        private boolean acquired;
+
+        private PermitBlocker(Semaphore permits) {
+            this.permits = permits;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            if (!acquired) {
+                permits.acquire();
+                acquired = true;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            if (!acquired) {
+                acquired = permits.tryAcquire();
+            }
+            return acquired;
+        }
+    }
+
+    /**
+     * Reads a directory, visits its entries and forks a task for each subdirectory.
+     */
+    private static class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The walk.
+         */
+        private final Walk walk;
+
+        /**
+         * The directory entry.
+         */
+        private final FSEntry entry;
+
+        /**
+         * The path of the directory.
+         */
+        private final String path;
+
+        private DirectoryTask(Walk walk, FSEntry entry, String path) {
+            this.walk = walk;
+            this.entry = entry;
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            List<FSEntry> children;
+            try {
+                children = read();
+            } catch (InterruptedException e) {
+                walk.interrupted = true;
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                walk.visitor.visitFailed(entry, path, e);
+                return;
+            }
+            if (children == null) {
+                return;
+            }
+
+            List<DirectoryTask> subtasks = new ArrayList<DirectoryTask>();
+            for (FSEntry child : children) {
+                String childPath = childPath(path, child.getName());
+                if (child.isDirectory()) {
+                    if (walk.visitor.preVisitDirectory(child, childPath)) {
+                        subtasks.add(new DirectoryTask(walk, child, childPath));
+                    }
+                } else {
+                    walk.visitor.visitEntry(child, childPath);
+                }
+            }
+            invokeAll(subtasks);
+        }
+
+        /**
+         * Reads the directory's entries, holding a permit.
+         *
+         * @return the entries, or {@code null} if the directory was already walked.
+         */
+        private List<FSEntry> read() throws IOException, InterruptedException {
+            PermitBlocker blocker = new PermitBlocker(walk.permits);
+            ForkJoinPool.managedBlock(blocker);
+            try {
+                FSDirectory directory = entry.getDirectory();
+                if (directory instanceof FSDirectoryId) {
+                    String id = ((FSDirectoryId) directory).getDirectoryId();
+                    if (id != null && !walk.directoryIds.add(id)) {
+                        log.debug("Skipping directory already walked: " + path);
+                        return null;
+                    }
+                }
+
+                List<FSEntry> children = new ArrayList<FSEntry>();
+                for (Iterator<? extends FSEntry> iterator = directory.iterator(); iterator.hasNext(); ) {
+                    FSEntry child = iterator.next();
+                    String name = child.getName();
+                    if (name != null && !".".equals(name) && !"..".equals(name)) {
+                        children.add(child);
+                    }
+                }
+                return children;
+            } finally {
+                walk.permits.release();
+            }
+        }
+    }
+}
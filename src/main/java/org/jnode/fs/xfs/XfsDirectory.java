@@ -14,6 +14,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -130,14 +131,7 @@ public class XfsDirectory extends AbstractFSDirectory implements FSDirectoryId {
                     if (logger.isDebugEnabled()) {
                         logger.debug("Processing a Block directory, Inode Number: {}", entry.getINode().getINodeNumber());
                     }
-                    final DataExtent extentInformation = extents.get(0);
-                    final long extOffset = extentInformation.getExtentOffset(fileSystem);
-                    ByteBuffer buffer = ByteBuffer.allocate((int) fileSystem.getSuperblock().getBlockSize() * (int) extentInformation.getBlockCount());
-                    try {
-                        fileSystem.getFSApi().read(extOffset, buffer);
-                    } catch (ApiNotFoundException e) {
-                        logger.warn("Failed to read directory entries at offset: " + extOffset, e);
-                    }
+                    ByteBuffer buffer = readExtent(extents.get(0));
                     final BlockDirectory myBlockDirectory = new BlockDirectory(buffer.array(), 0, fileSystem);
                     entries = myBlockDirectory.getEntries(this);
                 } else {
@@ -148,14 +142,7 @@ public class XfsDirectory extends AbstractFSDirectory implements FSDirectoryId {
                     if (leafExtentIndex == -1) {
                         throw new IOException("Cannot compute leaf extent for inode " + iNodeNumber);
                     }
-                    final DataExtent extentInformation = extents.get((int) leafExtentIndex);
-                    final long extOffset = extentInformation.getExtentOffset(fileSystem);
-                    ByteBuffer buffer = ByteBuffer.allocate((int) fileSystem.getSuperblock().getBlockSize() * (int) extentInformation.getBlockCount());
-                    try {
-                        fileSystem.getFSApi().read(extOffset, buffer);
-                    } catch (ApiNotFoundException e) {
-                        logger.warn("Failed to read directory entries at offset: " + extOffset, e);
-                    }
+                    ByteBuffer buffer = readExtent(extents.get((int) leafExtentIndex));
 
                     if (leafExtentIndex == (extents.size() - 1)) {
                         // Leaf Directory
@@ -188,7 +175,45 @@ public class XfsDirectory extends AbstractFSDirectory implements FSDirectoryId {
                 throw new IllegalStateException("Unexpected format: " + inode.getRawFormat());
         }
 
-        return new FSEntryTable(fileSystem, entries);
+        return FSEntryTable.create(fileSystem, entries);
+    }
+
+    /**
+     * Streams the entries of block and leaf directories. Other directories are loaded whole.
+     */
+    @Override
+    protected Iterator<FSEntry> streamEntries() throws IOException {
+        if (inode.getFormat() != INode.Format.EXTENTS || !inode.isDirectory()) {
+            return null;
+        }
+
+        List<DataExtent> extents = inode.getExtentInfo();
+        if (extents.size() == 1) {
+            BlockDirectory blockDirectory = new BlockDirectory(readExtent(extents.get(0)).array(), 0, fileSystem);
+            return blockDirectory.iterator(this);
+        }
+        if (LeafDirectory.getLeafExtentIndex(extents, fileSystem) == extents.size() - 1) {
+            return LeafDirectory.iterator(fileSystem, extents, this);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the blocks of an extent.
+     *
+     * @param extent the extent.
+     * @return the data.
+     */
+    private ByteBuffer readExtent(DataExtent extent) throws IOException {
+        final long extOffset = extent.getExtentOffset(fileSystem);
+        int blockSize = (int) fileSystem.getSuperblock().getBlockSize();
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize * (int) extent.getBlockCount());
+        try {
+            fileSystem.getFSApi().read(extOffset, buffer);
+        } catch (ApiNotFoundException e) {
+            logger.warn("Failed to read directory entries at offset: " + extOffset, e);
+        }
+        return buffer;
     }
 
     @Override
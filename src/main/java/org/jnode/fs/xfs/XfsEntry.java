@@ -2,6 +2,7 @@ package org.jnode.fs.xfs;
 
 import org.jnode.fs.*;
 import org.jnode.fs.spi.AbstractFSEntry;
+import org.jnode.fs.util.FSFileExtentBuilder;
 import org.jnode.fs.util.UnixFSConstants;
 import org.jnode.fs.xfs.extent.DataExtent;
 import org.jnode.fs.xfs.inode.INode;
@@ -158,16 +159,6 @@ public class XfsEntry extends AbstractFSEntry implements FSEntryLastAccessed, FS
                 break;
 
             case EXTENTS:
-                if (extentList == null) {
-                    extentList = new ArrayList<>((int) inode.getExtentCount());
-
-                    for (int i = 0; i < inode.getExtentCount(); i++) {
-                        int inodeDataOffset = inode.getDataOffset();
-                        int extentOffset = inodeDataOffset + i * DataExtent.PACKED_LENGTH;
-                        DataExtent extent = new DataExtent(inode.getData(), extentOffset);
-                        extentList.add(extent);
-                    }
-                }
                 readFromExtentList(offset, destBuf);
                 break;
 
@@ -179,6 +170,56 @@ public class XfsEntry extends AbstractFSEntry implements FSEntryLastAccessed, FS
         }
     }
 
+    /**
+     * Gets the extents of this entry's data. Preallocated extents are reported as unwritten.
+     *
+     * @return the extents, or {@code null} for the B+tree format, which isn't mapped yet.
+     * @throws IOException if an error occurs reading.
+     */
+    public List<FSFileExtent> getExtents() throws IOException {
+        long length = inode.getSize();
+        FSFileExtentBuilder builder = new FSFileExtentBuilder(length);
+
+        switch (inode.getFormat()) {
+            case LOCAL:
+                return builder.add(0, length, FSFileExtent.NO_DEVICE_OFFSET, FSFileExtent.INLINE).build();
+
+            case EXTENTS:
+                long blockSize = fileSystem.getSuperblock().getBlockSize();
+                for (DataExtent extent : getExtentList()) {
+                    int flags = extent.isInitialised() ? FSFileExtent.UNWRITTEN : 0;
+                    builder.add(extent.getStartOffset() * blockSize, extent.getBlockCount() * blockSize,
+                        extent.getFileSystemBlockOffset(fileSystem), flags);
+                }
+                return builder.build();
+
+            case BTREE:
+                return null;
+
+            default:
+                throw new IllegalStateException("Unexpected format: " + inode.getRawFormat());
+        }
+    }
+
+    /**
+     * Gets the list of extents when the data format is 'XFS_DINODE_FMT_EXTENTS', reading it on first use.
+     *
+     * @return the extents.
+     */
+    private List<DataExtent> getExtentList() {
+        if (extentList == null) {
+            extentList = new ArrayList<>((int) inode.getExtentCount());
+
+            for (int i = 0; i < inode.getExtentCount(); i++) {
+                int inodeDataOffset = inode.getDataOffset();
+                int extentOffset = inodeDataOffset + i * DataExtent.PACKED_LENGTH;
+                DataExtent extent = new DataExtent(inode.getData(), extentOffset);
+                extentList.add(extent);
+            }
+        }
+        return extentList;
+    }
+
     /**
      * Reads from the entry's extent list.
      *
@@ -190,7 +231,7 @@ public class XfsEntry extends AbstractFSEntry implements FSEntryLastAccessed, FS
         long blockSize = fileSystem.getSuperblock().getBlockSize();
         int bytesToRead;
 
-        for (DataExtent extent : extentList) {
+        for (DataExtent extent : getExtentList()) {
             if (!destBuf.hasRemaining()) {
                 return;
             }
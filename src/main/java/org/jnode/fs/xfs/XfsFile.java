@@ -1,9 +1,12 @@
 package org.jnode.fs.xfs;
 
+import org.jnode.fs.FSFileExtent;
+import org.jnode.fs.FSFileExtents;
 import org.jnode.fs.spi.AbstractFSFile;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * A XFS file.
@@ -12,7 +15,7 @@ import java.nio.ByteBuffer;
  * @author Ricardo Garza
  * @author Julio Parra
  */
-public class XfsFile extends AbstractFSFile {
+public class XfsFile extends AbstractFSFile implements FSFileExtents {
 
     /**
      * The entry.
@@ -44,6 +47,11 @@ public class XfsFile extends AbstractFSFile {
         entry.read(fileOffset, dest);
     }
 
+    @Override
+    public List<FSFileExtent> getExtents() throws IOException {
+        return entry.getExtents();
+    }
+
     @Override
     public void write(long fileOffset, ByteBuffer src) throws IOException {
         throw new UnsupportedOperationException(XfsConstants.XFS_IS_READ_ONLY);
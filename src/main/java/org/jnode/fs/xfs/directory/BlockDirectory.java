@@ -9,7 +9,9 @@ import org.jnode.fs.xfs.inode.INode;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * <p>A XFS block directory inode.</p>
@@ -124,25 +126,97 @@ public class BlockDirectory extends XfsObject {
      * @return a list of inode entries
      */
     public List<FSEntry> getEntries(FSDirectory parentDirectory) throws IOException {
+        List<FSEntry> data = new ArrayList<>(getActiveCount());
+        for (int i = 0; i < getActiveCount(); i++) {
+            if (getLeafEntry(i).getAddress() != 0) {
+                data.add(createEntry(i, parentDirectory));
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Gets an iterator over the inode's entries, which reads each entry's inode as it is reached.
+     *
+     * @param parentDirectory the directory holding the entries.
+     * @return the iterator.
+     */
+    public Iterator<FSEntry> iterator(final FSDirectory parentDirectory) {
+        return new Iterator<FSEntry>() {
+            private int index = skipUnused(0);
+
+            @Override
+            public boolean hasNext() {
+                return index < getActiveCount();
+            }
+
+            @Override
+            public FSEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                int current = index;
+                index = skipUnused(index + 1);
+                try {
+                    return createEntry(current, parentDirectory);
+                } catch (IOException e) {
+                    NoSuchElementException error = new NoSuchElementException("Root cause: " + e.getMessage());
+                    error.initCause(e);
+                    throw error;
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private int skipUnused(int from) {
+                int next = from;
+                while (next < getActiveCount() && getLeafEntry(next).getAddress() == 0) {
+                    next++;
+                }
+                return next;
+            }
+        };
+    }
+
+    /**
+     * Gets the number of leaf entries in use, which are at the end of the block.
+     *
+     * @return the number of entries.
+     */
+    private int getActiveCount() {
         int blockSize = getData().length;
         long stale = getUInt32(blockSize - 4);
         long count = getUInt32(blockSize - 8);
-        int activeDirs = (int) (count - stale);
+        return (int) (count - stale);
+    }
 
+    /**
+     * Gets a leaf entry.
+     *
+     * @param index the index of the leaf entry.
+     * @return the leaf entry.
+     */
+    private LeafEntry getLeafEntry(int index) {
+        int leafOffset = getData().length - ((getActiveCount() + 1) * 8);
+        return new LeafEntry(getData(), leafOffset + (index * 8L));
+    }
 
-        List<FSEntry> data = new ArrayList<>(activeDirs);
-        int leafOffset = blockSize - ((activeDirs + 1) * 8);
-        for (int i = 0; i < activeDirs; i++) {
-            LeafEntry leafEntry = new LeafEntry(getData(), leafOffset + (i * 8L));
-            if (leafEntry.getAddress() == 0) {
-                continue;
-            }
-            BlockDirectoryEntry entry = new BlockDirectoryEntry(getData(), leafEntry.getAddress() * 8, fs.isV5());
+    /**
+     * Creates the entry a leaf entry points to.
+     *
+     * @param index the index of the leaf entry.
+     * @param parentDirectory the directory holding the entry.
+     * @return the entry.
+     */
+    private FSEntry createEntry(int index, FSDirectory parentDirectory) throws IOException {
+        BlockDirectoryEntry entry = new BlockDirectoryEntry(getData(), getLeafEntry(index).getAddress() * 8, fs.isV5());
 
-            INode iNode = fs.getINode(entry.getINodeNumber());
-            data.add(new XfsEntry(iNode, entry.getName(), i, fs, parentDirectory));
-        }
-        return data;
+        INode iNode = fs.getINode(entry.getINodeNumber());
+        return new XfsEntry(iNode, entry.getName(), index, fs, parentDirectory);
     }
 }
 
@@ -10,7 +10,9 @@ import org.jnode.util.BigEndian;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * <p>Leaf directory.</p>
@@ -110,6 +112,20 @@ public class LeafDirectory extends XfsObject {
         }
     }
 
+    /**
+     * Gets an iterator over the entries in the data blocks of a leaf directory, which reads one block at a time.
+     *
+     * @param fs              the file system.
+     * @param extents         the extents of the directory.
+     * @param parentDirectory the directory holding the entries.
+     * @return the iterator.
+     * @throws IOException if an error occurs reading the first entry.
+     */
+    public static Iterator<FSEntry> iterator(XfsFileSystem fs, List<DataExtent> extents, FSDirectory parentDirectory)
+        throws IOException {
+        return new DataBlockIterator(fs, extents, parentDirectory);
+    }
+
     /**
      * Get the leaf block entries.
      *
@@ -125,4 +141,141 @@ public class LeafDirectory extends XfsObject {
         }
         return entries;
     }
+
+    /**
+     * Decodes the entries of a directory's data blocks, reading the next block once the current one is used up.
+     * Blocks which aren't data blocks, such as the leaf block, are skipped.
+     */
+    private static class DataBlockIterator implements Iterator<FSEntry> {
+
+        /**
+         * The file system.
+         */
+        private final XfsFileSystem fs;
+
+        /**
+         * The extents of the directory.
+         */
+        private final List<DataExtent> extents;
+
+        /**
+         * The directory holding the entries.
+         */
+        private final FSDirectory parentDirectory;
+
+        /**
+         * The current block.
+         */
+        private final ByteBuffer block;
+
+        /**
+         * The index of the current extent.
+         */
+        private int extentIndex = -1;
+
+        /**
+         * The index of the next block to read in the current extent.
+         */
+        private long blockIndex;
+
+        /**
+         * The offset of the next entry in the current block, or the block size once it is used up.
+         */
+        private int offset;
+
+        /**
+         * The index given to the next entry.
+         */
+        private int entryIndex;
+
+        /**
+         * The next entry, or {@code null} at the end.
+         */
+        private FSEntry next;
+
+        private DataBlockIterator(XfsFileSystem fs, List<DataExtent> extents, FSDirectory parentDirectory)
+            throws IOException {
+            this.fs = fs;
+            this.extents = extents;
+            this.parentDirectory = parentDirectory;
+            block = ByteBuffer.allocate((int) fs.getSuperblock().getBlockSize());
+            offset = block.capacity();
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public FSEntry next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+
+            FSEntry current = next;
+            try {
+                advance();
+            } catch (IOException e) {
+                NoSuchElementException error = new NoSuchElementException("Root cause: " + e.getMessage());
+                error.initCause(e);
+                throw error;
+            }
+            return current;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Decodes the next entry, reading blocks as needed.
+         */
+        private void advance() throws IOException {
+            next = null;
+            while (true) {
+                if (offset < block.capacity()) {
+                    BlockDirectoryEntry entry = new BlockDirectoryEntry(block.array(), offset, fs.isV5());
+                    long size = entry.getOffsetSize();
+                    offset = size > 0 ? offset + (int) size : block.capacity();
+                    if (!entry.isFreeTag()) {
+                        next = new XfsEntry(fs.getINode(entry.getINodeNumber()), entry.getName(), entryIndex++, fs,
+                            parentDirectory);
+                        return;
+                    }
+                } else if (extentIndex >= 0 && blockIndex < extents.get(extentIndex).getBlockCount()) {
+                    readBlock(extents.get(extentIndex), blockIndex++);
+                } else if (++extentIndex < extents.size()) {
+                    blockIndex = 0;
+                    entryIndex = 2;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Reads a block, setting the offset to its first entry if it is a data block.
+         */
+        private void readBlock(DataExtent extent, long index) throws IOException {
+            int blockSize = block.capacity();
+            block.clear();
+            try {
+                fs.getFSApi().read(extent.getExtentOffset(fs) + index * blockSize, block);
+            } catch (ApiNotFoundException e) {
+                throw new IOException("Error reading directory block", e);
+            }
+
+            long signature = BigEndian.getUInt32(block.array(), 0);
+            if (signature == XFS_DIR3_DATA_MAGIC) {
+                offset = 64;
+            } else if (signature == XFS_DIR2_DATA_MAGIC) {
+                offset = 16;
+            } else {
+                offset = blockSize;
+            }
+        }
+    }
 }
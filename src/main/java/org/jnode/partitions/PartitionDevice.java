@@ -0,0 +1,69 @@
+package org.jnode.partitions;
+
+import java.io.IOException;
+import org.jnode.driver.ApiNotFoundException;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.FSBlockDeviceAPI;
+import org.jnode.driver.block.FileChannelDevice;
+import org.jnode.driver.block.MappedBlockDeviceSupport;
+
+/**
+ * A partition of a device, which also carries the {@link FSBlockDeviceAPI} so that file system types can see the
+ * partition table entry it came from.
+ */
+public class PartitionDevice extends MappedBlockDeviceSupport implements FSBlockDeviceAPI {
+
+    /**
+     * The partition table entry.
+     */
+    private final PartitionTableEntry entry;
+
+    /**
+     * The sector size of the parent device.
+     */
+    private final int sectorSize;
+
+    /**
+     * Creates a new partition device.
+     *
+     * @param parent the device holding the partition.
+     * @param entry the partition table entry.
+     * @param offset the offset of the partition in the parent device.
+     * @param length the length of the partition.
+     * @throws IOException if the parent doesn't have a {@link BlockDeviceAPI}.
+     * @throws IndexOutOfBoundsException if the partition doesn't fit in the parent.
+     */
+    public PartitionDevice(Device parent, PartitionTableEntry entry, long offset, long length) throws IOException {
+        super(parent, offset, length);
+        this.entry = entry;
+
+        int parentSectorSize = FileChannelDevice.DEFAULT_SECTOR_SIZE;
+        if (parent.implementsAPI(FSBlockDeviceAPI.class)) {
+            try {
+                parentSectorSize = parent.getAPI(FSBlockDeviceAPI.class).getSectorSize();
+            } catch (ApiNotFoundException e) {
+                throw new IOException("FSBlockDeviceAPI not found on device", e);
+            }
+        }
+        this.sectorSize = parentSectorSize;
+
+        registerAPI(FSBlockDeviceAPI.class, this);
+    }
+
+    @Override
+    public PartitionTableEntry getPartitionTableEntry() {
+        return entry;
+    }
+
+    @Override
+    public int getSectorSize() {
+        return sectorSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PartitionDevice:[%s offset:%d size:%d %s]", getParent().getId(), getOffset(),
+            getLength(), entry);
+    }
+}
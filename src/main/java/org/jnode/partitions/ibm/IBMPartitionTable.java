@@ -31,6 +31,7 @@ import java.util.Set;
 import org.jnode.driver.ApiNotFoundException;
 import org.jnode.driver.Device;
 import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.FSBlockDeviceAPI;
 import org.jnode.driver.bus.ide.IDEConstants;
 import org.jnode.partitions.PartitionTable;
 import org.jnode.partitions.PartitionTableType;
@@ -129,7 +130,7 @@ public class IBMPartitionTable implements PartitionTable<IBMPartitionTableEntry>
         try {
             log.debug("Try to read the Extended Partition Table");
             BlockDeviceAPI api = driveDevice.getAPI(BlockDeviceAPI.class);
-            api.read(startLBA * IDEConstants.SECTOR_SIZE, sector);
+            api.read(startLBA * getSectorSize(), sector);
         } catch (ApiNotFoundException e) {
             // I think we can't get it
             log.error("API Not Found Exception");
@@ -155,6 +156,22 @@ public class IBMPartitionTable implements PartitionTable<IBMPartitionTableEntry>
         }
     }
 
+    /**
+     * Gets the sector size the table's LBAs are in, which is the sector size of the device.
+     *
+     * @return the sector size in bytes.
+     */
+    public int getSectorSize() {
+        if (driveDevice != null && driveDevice.implementsAPI(FSBlockDeviceAPI.class)) {
+            try {
+                return driveDevice.getAPI(FSBlockDeviceAPI.class).getSectorSize();
+            } catch (ApiNotFoundException | IOException e) {
+                log.debug("Error getting the sector size of " + driveDevice.getId(), e);
+            }
+        }
+        return IDEConstants.SECTOR_SIZE;
+    }
+
     public boolean hasExtended() {
         return !extendedPartitions.isEmpty();
     }
@@ -0,0 +1,220 @@
+package org.jnode.partitions.lvm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.FSBlockDeviceAPI;
+import org.jnode.driver.block.ReadCoalescer;
+import org.jnode.driver.block.ReadRequest;
+import org.jnode.partitions.PartitionTableEntry;
+
+/**
+ * An LVM2 logical volume, presented as a block device over its physical volumes.
+ * <p>
+ * The segment holding an offset is found with a binary search over the segment start offsets. Reads and writes are
+ * split where the mapping to the physical volumes isn't contiguous, at segment and stripe chunk boundaries, and each
+ * piece goes straight between the caller's buffer and the physical volume without copying.
+ */
+public class LogicalVolumeDevice extends Device implements FSBlockDeviceAPI {
+
+    /**
+     * The name of the volume group.
+     */
+    private final String volumeGroupName;
+
+    /**
+     * The name of the logical volume.
+     */
+    private final String name;
+
+    /**
+     * The segments, in order.
+     */
+    private final LvmSegment[] segments;
+
+    /**
+     * The offset of each segment in the logical volume.
+     */
+    private final long[] starts;
+
+    /**
+     * The size of the logical volume.
+     */
+    private final long length;
+
+    /**
+     * Creates a new logical volume device.
+     *
+     * @param volumeGroupName the name of the volume group.
+     * @param name the name of the logical volume.
+     * @param segments the segments, in order and contiguous from the start of the volume.
+     */
+    LogicalVolumeDevice(String volumeGroupName, String name, List<LvmSegment> segments) {
+        super("lvm-" + volumeGroupName + "-" + name);
+        this.volumeGroupName = volumeGroupName;
+        this.name = name;
+        this.segments = segments.toArray(new LvmSegment[segments.size()]);
+        this.starts = new long[this.segments.length];
+
+        long offset = 0;
+        for (int i = 0; i < this.segments.length; i++) {
+            starts[i] = this.segments[i].getStart();
+            offset = this.segments[i].getStart() + this.segments[i].getLength();
+        }
+        this.length = offset;
+
+        registerAPI(FSBlockDeviceAPI.class, this);
+    }
+
+    /**
+     * Gets the name of the volume group.
+     *
+     * @return the name.
+     */
+    public String getVolumeGroupName() {
+        return volumeGroupName;
+    }
+
+    /**
+     * Gets the name of the logical volume.
+     *
+     * @return the name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the number of segments.
+     *
+     * @return the count.
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public int getSectorSize() {
+        return LvmPhysicalVolume.SECTOR_SIZE;
+    }
+
+    @Override
+    public PartitionTableEntry getPartitionTableEntry() {
+        return null;
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        transfer(devOffset, dest, false);
+    }
+
+    /**
+     * Reads a batch of requests, merging neighbouring requests into single reads.
+     *
+     * @param requests the requests, in any order.
+     * @throws IOException if an error occurs reading.
+     */
+    @Override
+    public void readBatch(List<ReadRequest> requests) throws IOException {
+        ReadCoalescer.read(this, requests);
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        transfer(devOffset, src, true);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        Set<BlockDeviceAPI> flushed = new HashSet<BlockDeviceAPI>();
+        for (LvmSegment segment : segments) {
+            for (BlockDeviceAPI device : segment.getDevices()) {
+                if (flushed.add(device)) {
+                    device.flush();
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LogicalVolumeDevice:[%s/%s segments:%d size:%d]", volumeGroupName, name,
+            segments.length, length);
+    }
+
+    /**
+     * Moves data between a buffer and the physical volumes, one contiguous piece at a time. Each piece is passed on
+     * as the buffer itself with its limit lowered to the end of the piece.
+     *
+     * @param devOffset the offset in the logical volume.
+     * @param buffer the buffer.
+     * @param write {@code true} to write the buffer, {@code false} to read into it.
+     * @throws IOException if an error occurs.
+     */
+    private void transfer(long devOffset, ByteBuffer buffer, boolean write) throws IOException {
+        if (devOffset < 0) {
+            throw new IOException("devOffset < 0");
+        }
+        if (devOffset + buffer.remaining() > length) {
+            throw new EOFException("Access past the end of logical volume " + name + ": offset " + devOffset +
+                ", length " + buffer.remaining());
+        }
+
+        int limit = buffer.limit();
+        long position = devOffset;
+        int index = findSegment(position);
+        try {
+            while (buffer.hasRemaining()) {
+                LvmSegment segment = segments[index];
+                long offset = position - segment.getStart();
+                if (offset >= segment.getLength()) {
+                    index++;
+                    continue;
+                }
+
+                int count = (int) Math.min(buffer.remaining(), segment.getContiguousLength(offset));
+                buffer.limit(buffer.position() + count);
+                BlockDeviceAPI device = segment.getDevice(offset);
+                if (write) {
+                    device.write(segment.getDeviceOffset(offset), buffer);
+                } else {
+                    device.read(segment.getDeviceOffset(offset), buffer);
+                }
+                buffer.limit(limit);
+                position += count;
+            }
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+
+    /**
+     * Finds the segment containing an offset.
+     *
+     * @param position the offset.
+     * @return the segment index.
+     */
+    private int findSegment(long position) {
+        int low = 0;
+        int high = starts.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+}
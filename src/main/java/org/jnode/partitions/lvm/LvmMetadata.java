@@ -0,0 +1,254 @@
+package org.jnode.partitions.lvm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A parser for the LVM2 text metadata format.
+ * <p>
+ * The metadata is a tree of sections, {@code name { ... }}, holding values, {@code key = value}, where a value is a
+ * quoted string, an integer or a list of strings and integers in square brackets. Sections are returned as maps in
+ * the order they appear, strings as {@link String}, integers as {@link Long} and lists as {@link List}.
+ */
+final class LvmMetadata {
+
+    /**
+     * The metadata text.
+     */
+    private final String text;
+
+    /**
+     * The current position in the text.
+     */
+    private int position;
+
+    private LvmMetadata(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Parses metadata text.
+     *
+     * @param text the text.
+     * @return the top level section.
+     * @throws IOException if the text isn't valid metadata.
+     */
+    static Map<String, Object> parse(String text) throws IOException {
+        LvmMetadata parser = new LvmMetadata(text);
+        Map<String, Object> root = parser.parseSection(false);
+        if (parser.position < text.length()) {
+            throw parser.error("Unexpected '" + text.charAt(parser.position) + "'");
+        }
+        return root;
+    }
+
+    /**
+     * Gets a child section.
+     *
+     * @param section the parent section.
+     * @param name the name of the child.
+     * @return the child section.
+     * @throws IOException if there is no such section.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> getSection(Map<String, Object> section, String name) throws IOException {
+        Object value = section.get(name);
+        if (!(value instanceof Map)) {
+            throw new IOException("Missing section in LVM metadata: " + name);
+        }
+        return (Map<String, Object>) value;
+    }
+
+    /**
+     * Gets an integer value.
+     *
+     * @param section the section holding the value.
+     * @param name the name of the value.
+     * @return the value.
+     * @throws IOException if there is no such integer value.
+     */
+    static long getLong(Map<String, Object> section, String name) throws IOException {
+        Object value = section.get(name);
+        if (!(value instanceof Long)) {
+            throw new IOException("Missing integer in LVM metadata: " + name);
+        }
+        return (Long) value;
+    }
+
+    /**
+     * Gets a string value.
+     *
+     * @param section the section holding the value.
+     * @param name the name of the value.
+     * @return the value.
+     * @throws IOException if there is no such string value.
+     */
+    static String getString(Map<String, Object> section, String name) throws IOException {
+        Object value = section.get(name);
+        if (!(value instanceof String)) {
+            throw new IOException("Missing string in LVM metadata: " + name);
+        }
+        return (String) value;
+    }
+
+    /**
+     * Gets a list value.
+     *
+     * @param section the section holding the value.
+     * @param name the name of the value.
+     * @return the value.
+     * @throws IOException if there is no such list value.
+     */
+    @SuppressWarnings("unchecked")
+    static List<Object> getList(Map<String, Object> section, String name) throws IOException {
+        Object value = section.get(name);
+        if (!(value instanceof List)) {
+            throw new IOException("Missing list in LVM metadata: " + name);
+        }
+        return (List<Object>) value;
+    }
+
+    private Map<String, Object> parseSection(boolean nested) throws IOException {
+        Map<String, Object> section = new LinkedHashMap<String, Object>();
+        while (true) {
+            skipWhitespace();
+            if (position >= text.length()) {
+                if (nested) {
+                    throw error("Unterminated section");
+                }
+                return section;
+            }
+            if (text.charAt(position) == '}') {
+                if (!nested) {
+                    throw error("Unexpected '}'");
+                }
+                position++;
+                return section;
+            }
+
+            String name = parseName();
+            skipWhitespace();
+            char c = next();
+            if (c == '{') {
+                section.put(name, parseSection(true));
+            } else if (c == '=') {
+                section.put(name, parseValue());
+            } else {
+                throw error("Expected '{' or '=' after " + name);
+            }
+        }
+    }
+
+    private Object parseValue() throws IOException {
+        skipWhitespace();
+        if (position >= text.length()) {
+            throw error("Missing value");
+        }
+        char c = text.charAt(position);
+        if (c == '[') {
+            position++;
+            List<Object> list = new ArrayList<Object>();
+            skipWhitespace();
+            if (position < text.length() && text.charAt(position) == ']') {
+                position++;
+                return list;
+            }
+            while (true) {
+                list.add(parseValue());
+                skipWhitespace();
+                c = next();
+                if (c == ']') {
+                    return list;
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or ']' in list");
+                }
+            }
+        }
+        if (c == '"') {
+            return parseString();
+        }
+        return parseNumber();
+    }
+
+    private String parseString() throws IOException {
+        position++;
+        StringBuilder value = new StringBuilder();
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c == '\\') {
+                c = next();
+            }
+            value.append(c);
+        }
+    }
+
+    private Long parseNumber() throws IOException {
+        int start = position;
+        if (position < text.length() && (text.charAt(position) == '-' || text.charAt(position) == '+')) {
+            position++;
+        }
+        while (position < text.length() && Character.isDigit(text.charAt(position))) {
+            position++;
+        }
+        try {
+            return Long.valueOf(text.substring(start, position));
+        } catch (NumberFormatException e) {
+            position = start;
+            throw error("Invalid value");
+        }
+    }
+
+    private String parseName() throws IOException {
+        int start = position;
+        while (position < text.length()) {
+            char c = text.charAt(position);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '.' && c != '-' && c != '+') {
+                break;
+            }
+            position++;
+        }
+        if (position == start) {
+            throw error("Unexpected '" + text.charAt(position) + "'");
+        }
+        return text.substring(start, position);
+    }
+
+    private void skipWhitespace() {
+        while (position < text.length()) {
+            char c = text.charAt(position);
+            if (c == '#') {
+                while (position < text.length() && text.charAt(position) != '\n') {
+                    position++;
+                }
+            } else if (Character.isWhitespace(c) || c == '\0') {
+                position++;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private char next() throws IOException {
+        if (position >= text.length()) {
+            throw error("Unexpected end of metadata");
+        }
+        return text.charAt(position++);
+    }
+
+    private IOException error(String message) {
+        int line = 1;
+        for (int i = 0; i < position && i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                line++;
+            }
+        }
+        return new IOException("Invalid LVM metadata at line " + line + ": " + message);
+    }
+}
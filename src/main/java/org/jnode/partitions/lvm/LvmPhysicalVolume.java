@@ -0,0 +1,262 @@
+package org.jnode.partitions.lvm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import org.jnode.driver.ApiNotFoundException;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.util.LittleEndian;
+
+/**
+ * An LVM2 physical volume: the label and header at the start of the device, and the volume group metadata from its
+ * metadata area.
+ */
+public class LvmPhysicalVolume {
+
+    /**
+     * The size of the sectors the label and metadata areas are laid out in.
+     */
+    static final int SECTOR_SIZE = 512;
+
+    /**
+     * The number of sectors at the start of the device which may hold the label.
+     */
+    public static final int LABEL_SCAN_SECTORS = 4;
+
+    /**
+     * The label signature.
+     */
+    private static final byte[] LABEL_ID = "LABELONE".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The label type of LVM2 physical volumes.
+     */
+    private static final byte[] LABEL_TYPE = "LVM2 001".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The signature of a metadata area header.
+     */
+    private static final byte[] MDA_MAGIC = " LVM2 x[5A%r0N*>".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The size of a metadata area header, the metadata text wraps around to just after it.
+     */
+    private static final int MDA_HEADER_SIZE = 512;
+
+    /**
+     * The largest metadata text accepted.
+     */
+    private static final int MAX_METADATA_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The device holding the physical volume.
+     */
+    private final Device device;
+
+    /**
+     * The UUID of the physical volume, without dashes.
+     */
+    private final String uuid;
+
+    /**
+     * The size of the device recorded in the header.
+     */
+    private final long deviceSize;
+
+    /**
+     * The name of the volume group.
+     */
+    private final String volumeGroupName;
+
+    /**
+     * The volume group section of the metadata.
+     */
+    private final Map<String, Object> volumeGroupMetadata;
+
+    /**
+     * Reads the label, header and metadata of a physical volume.
+     *
+     * @param device the device.
+     * @throws IOException if an error occurs reading or the device isn't a physical volume in a volume group.
+     */
+    public LvmPhysicalVolume(Device device) throws IOException {
+        this.device = device;
+
+        BlockDeviceAPI api;
+        try {
+            api = device.getAPI(BlockDeviceAPI.class);
+        } catch (ApiNotFoundException e) {
+            throw new IOException("BlockDeviceAPI not found on device", e);
+        }
+
+        byte[] start = new byte[(int) Math.min(LABEL_SCAN_SECTORS * SECTOR_SIZE, api.getLength())];
+        api.read(0, ByteBuffer.wrap(start));
+        int labelSector = findLabel(start);
+        if (labelSector < 0) {
+            throw new IOException("No LVM2 label on " + device.getId());
+        }
+
+        int label = labelSector * SECTOR_SIZE;
+        int header = label + LittleEndian.getInt32(start, label + 20);
+        if (header < label || header + 56 > label + SECTOR_SIZE) {
+            throw new IOException("Invalid LVM2 physical volume header offset on " + device.getId());
+        }
+        uuid = new String(start, header, 32, StandardCharsets.US_ASCII);
+        deviceSize = LittleEndian.getInt64(start, header + 32);
+
+        // The data area list and then the metadata area list, each terminated by an empty entry
+        int locn = header + 40;
+        while (locn + 16 <= label + SECTOR_SIZE && LittleEndian.getInt64(start, locn) != 0) {
+            locn += 16;
+        }
+        locn += 16;
+
+        String text = null;
+        while (text == null && locn + 16 <= label + SECTOR_SIZE && LittleEndian.getInt64(start, locn) != 0) {
+            text = readMetadata(api, LittleEndian.getInt64(start, locn));
+            locn += 16;
+        }
+        if (text == null) {
+            throw new IOException("No volume group metadata on LVM2 physical volume " + device.getId());
+        }
+
+        // The volume group is the only section at the top level
+        Map<String, Object> root = LvmMetadata.parse(text);
+        String name = null;
+        for (Map.Entry<String, Object> entry : root.entrySet()) {
+            if (entry.getValue() instanceof Map) {
+                name = entry.getKey();
+                break;
+            }
+        }
+        if (name == null) {
+            throw new IOException("No volume group in LVM2 metadata on " + device.getId());
+        }
+        volumeGroupName = name;
+        volumeGroupMetadata = LvmMetadata.getSection(root, name);
+    }
+
+    /**
+     * Checks whether the start of a device holds an LVM2 physical volume label.
+     *
+     * @param firstSectors at least the first {@link #LABEL_SCAN_SECTORS} sectors of the device.
+     * @return {@code true} if there is a label.
+     */
+    public static boolean hasLabel(byte[] firstSectors) {
+        return findLabel(firstSectors) >= 0;
+    }
+
+    /**
+     * Gets the device holding the physical volume.
+     *
+     * @return the device.
+     */
+    public Device getDevice() {
+        return device;
+    }
+
+    /**
+     * Gets the UUID of the physical volume.
+     *
+     * @return the UUID, without dashes.
+     */
+    public String getUuid() {
+        return uuid;
+    }
+
+    /**
+     * Gets the size of the device recorded in the physical volume header.
+     *
+     * @return the size in bytes.
+     */
+    public long getDeviceSize() {
+        return deviceSize;
+    }
+
+    /**
+     * Gets the name of the volume group the physical volume belongs to.
+     *
+     * @return the name.
+     */
+    public String getVolumeGroupName() {
+        return volumeGroupName;
+    }
+
+    /**
+     * Gets the volume group section of the metadata.
+     *
+     * @return the section.
+     */
+    Map<String, Object> getVolumeGroupMetadata() {
+        return volumeGroupMetadata;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LvmPhysicalVolume:[%s uuid:%s vg:%s]", device.getId(), uuid, volumeGroupName);
+    }
+
+    private static int findLabel(byte[] firstSectors) {
+        for (int sector = 0; sector < LABEL_SCAN_SECTORS; sector++) {
+            int offset = sector * SECTOR_SIZE;
+            if (offset + 32 > firstSectors.length) {
+                break;
+            }
+            if (regionMatches(firstSectors, offset, LABEL_ID) &&
+                LittleEndian.getInt64(firstSectors, offset + 8) == sector &&
+                regionMatches(firstSectors, offset + 24, LABEL_TYPE)) {
+                return sector;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the current metadata text from a metadata area.
+     *
+     * @param api the device.
+     * @param areaOffset the offset of the metadata area.
+     * @return the text, or {@code null} if the area doesn't hold any metadata.
+     * @throws IOException if an error occurs reading.
+     */
+    private static String readMetadata(BlockDeviceAPI api, long areaOffset) throws IOException {
+        if (areaOffset < 0 || areaOffset + MDA_HEADER_SIZE > api.getLength()) {
+            return null;
+        }
+        byte[] header = new byte[MDA_HEADER_SIZE];
+        api.read(areaOffset, ByteBuffer.wrap(header));
+        if (!regionMatches(header, 4, MDA_MAGIC)) {
+            return null;
+        }
+
+        long areaSize = LittleEndian.getInt64(header, 32);
+        long offset = LittleEndian.getInt64(header, 40);
+        long size = LittleEndian.getInt64(header, 48);
+        if (offset == 0 || size <= 0 || size > MAX_METADATA_SIZE || offset >= areaSize ||
+            areaOffset + areaSize > api.getLength()) {
+            return null;
+        }
+
+        // The text is written circularly, continuing after the header once it reaches the end of the area
+        byte[] text = new byte[(int) size];
+        int first = (int) Math.min(size, areaSize - offset);
+        api.read(areaOffset + offset, ByteBuffer.wrap(text, 0, first));
+        if (first < size) {
+            api.read(areaOffset + MDA_HEADER_SIZE, ByteBuffer.wrap(text, first, text.length - first));
+        }
+
+        int length = text.length;
+        while (length > 0 && text[length - 1] == 0) {
+            length--;
+        }
+        return new String(text, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private static boolean regionMatches(byte[] data, int offset, byte[] expected) {
+        return offset + expected.length <= data.length &&
+            Arrays.equals(Arrays.copyOfRange(data, offset, offset + expected.length), expected);
+    }
+}
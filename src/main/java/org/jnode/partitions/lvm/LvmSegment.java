@@ -0,0 +1,123 @@
+package org.jnode.partitions.lvm;
+
+import org.jnode.driver.block.BlockDeviceAPI;
+
+/**
+ * A segment of a logical volume, a run of extents which is either linear, mapped to one area of a physical volume,
+ * or striped across several areas in chunks of the stripe size.
+ */
+final class LvmSegment {
+
+    /**
+     * The offset of the segment in the logical volume.
+     */
+    private final long start;
+
+    /**
+     * The length of the segment.
+     */
+    private final long length;
+
+    /**
+     * The physical volume holding each stripe.
+     */
+    private final BlockDeviceAPI[] devices;
+
+    /**
+     * The offset of each stripe's area in its physical volume.
+     */
+    private final long[] offsets;
+
+    /**
+     * The size of a stripe chunk, unused for linear segments.
+     */
+    private final long stripeSize;
+
+    /**
+     * Creates a new segment.
+     *
+     * @param start the offset of the segment in the logical volume.
+     * @param length the length of the segment.
+     * @param devices the physical volume holding each stripe, one for a linear segment.
+     * @param offsets the offset of each stripe's area in its physical volume.
+     * @param stripeSize the size of a stripe chunk.
+     */
+    LvmSegment(long start, long length, BlockDeviceAPI[] devices, long[] offsets, long stripeSize) {
+        this.start = start;
+        this.length = length;
+        this.devices = devices;
+        this.offsets = offsets;
+        this.stripeSize = stripeSize;
+    }
+
+    /**
+     * Gets the offset of the segment in the logical volume.
+     *
+     * @return the offset.
+     */
+    long getStart() {
+        return start;
+    }
+
+    /**
+     * Gets the length of the segment.
+     *
+     * @return the length.
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Gets the physical volume holding each stripe.
+     *
+     * @return the physical volumes, which may repeat.
+     */
+    BlockDeviceAPI[] getDevices() {
+        return devices;
+    }
+
+    /**
+     * Gets the physical volume holding an offset.
+     *
+     * @param offset the offset in the segment.
+     * @return the physical volume.
+     */
+    BlockDeviceAPI getDevice(long offset) {
+        return devices.length == 1 ? devices[0] : devices[(int) ((offset / stripeSize) % devices.length)];
+    }
+
+    /**
+     * Maps an offset in the segment to its offset in the physical volume.
+     *
+     * @param offset the offset in the segment.
+     * @return the offset in the physical volume returned by {@link #getDevice(long)}.
+     */
+    long getDeviceOffset(long offset) {
+        if (devices.length == 1) {
+            return offsets[0] + offset;
+        }
+        long chunk = offset / stripeSize;
+        return offsets[(int) (chunk % devices.length)] + (chunk / devices.length) * stripeSize + offset % stripeSize;
+    }
+
+    /**
+     * Gets the number of bytes from an offset which are contiguous in the physical volume, to the end of the segment
+     * or of the stripe chunk.
+     *
+     * @param offset the offset in the segment.
+     * @return the number of bytes.
+     */
+    long getContiguousLength(long offset) {
+        if (devices.length == 1) {
+            return length - offset;
+        }
+        return Math.min(length - offset, stripeSize - offset % stripeSize);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LvmSegment:[start:%d length:%d stripes:%d stripeSize:%d]", start, length,
+            devices.length, stripeSize);
+    }
+}
@@ -0,0 +1,302 @@
+package org.jnode.partitions.lvm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jnode.driver.ApiNotFoundException;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An LVM2 volume group assembled from its physical volumes, giving access to its logical volumes.
+ * <p>
+ * Linear and striped segments are supported, which covers the logical volumes created by default. Logical volumes
+ * using other segment types (thin, RAID, mirror or snapshot), or placed on a physical volume which wasn't supplied,
+ * are left out.
+ */
+public class LvmVolumeGroup {
+
+    /**
+     * The segment type of linear and striped segments.
+     */
+    private static final String STRIPED = "striped";
+
+    /**
+     * The logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(LvmVolumeGroup.class);
+
+    /**
+     * The name of the volume group.
+     */
+    private final String name;
+
+    /**
+     * The UUID of the volume group.
+     */
+    private final String id;
+
+    /**
+     * The size of an extent in bytes.
+     */
+    private final long extentSize;
+
+    /**
+     * The physical volumes which were supplied, by their name in the metadata.
+     */
+    private final Map<String, LvmPhysicalVolume> physicalVolumes = new LinkedHashMap<String, LvmPhysicalVolume>();
+
+    /**
+     * The names of the physical volumes in the metadata which weren't supplied.
+     */
+    private final List<String> missingPhysicalVolumes = new ArrayList<String>();
+
+    /**
+     * The logical volumes which can be read, by name.
+     */
+    private final Map<String, LogicalVolumeDevice> logicalVolumes = new LinkedHashMap<String, LogicalVolumeDevice>();
+
+    /**
+     * Assembles a volume group.
+     *
+     * @param volumes the physical volumes of the group. The metadata with the highest sequence number is used.
+     * @throws IOException if the volumes aren't from one group or the metadata is invalid.
+     */
+    public LvmVolumeGroup(Collection<LvmPhysicalVolume> volumes) throws IOException {
+        if (volumes.isEmpty()) {
+            throw new IOException("No physical volumes");
+        }
+
+        Map<String, Object> metadata = null;
+        long seqno = -1;
+        String groupName = null;
+        for (LvmPhysicalVolume volume : volumes) {
+            if (groupName != null && !groupName.equals(volume.getVolumeGroupName())) {
+                throw new IOException("Physical volumes from different volume groups: " + groupName + ", " +
+                    volume.getVolumeGroupName());
+            }
+            groupName = volume.getVolumeGroupName();
+            long volumeSeqno = LvmMetadata.getLong(volume.getVolumeGroupMetadata(), "seqno");
+            if (volumeSeqno > seqno) {
+                seqno = volumeSeqno;
+                metadata = volume.getVolumeGroupMetadata();
+            }
+        }
+
+        name = groupName;
+        id = LvmMetadata.getString(metadata, "id");
+        extentSize = LvmMetadata.getLong(metadata, "extent_size") * LvmPhysicalVolume.SECTOR_SIZE;
+        if (extentSize <= 0) {
+            throw new IOException("Invalid extent size in volume group " + name);
+        }
+
+        Map<String, LvmPhysicalVolume> byUuid = new HashMap<String, LvmPhysicalVolume>();
+        for (LvmPhysicalVolume volume : volumes) {
+            byUuid.put(volume.getUuid(), volume);
+        }
+
+        Map<String, Long> dataStarts = new HashMap<String, Long>();
+        Map<String, Object> pvSections = LvmMetadata.getSection(metadata, "physical_volumes");
+        for (String pvName : pvSections.keySet()) {
+            Map<String, Object> pvSection = LvmMetadata.getSection(pvSections, pvName);
+            LvmPhysicalVolume volume = byUuid.get(LvmMetadata.getString(pvSection, "id").replace("-", ""));
+            if (volume == null) {
+                missingPhysicalVolumes.add(pvName);
+            } else {
+                physicalVolumes.put(pvName, volume);
+                dataStarts.put(pvName, LvmMetadata.getLong(pvSection, "pe_start") * LvmPhysicalVolume.SECTOR_SIZE);
+            }
+        }
+
+        if (metadata.get("logical_volumes") instanceof Map) {
+            Map<String, Object> lvSections = LvmMetadata.getSection(metadata, "logical_volumes");
+            for (String lvName : lvSections.keySet()) {
+                Map<String, Object> lvSection = LvmMetadata.getSection(lvSections, lvName);
+                if (!LvmMetadata.getList(lvSection, "status").contains("VISIBLE")) {
+                    continue;
+                }
+                try {
+                    logicalVolumes.put(lvName, new LogicalVolumeDevice(name, lvName,
+                        readSegments(lvSection, dataStarts)));
+                } catch (IOException e) {
+                    log.warn("Can't read logical volume {}/{}: {}", name, lvName, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Assembles the volume groups from a set of physical volumes.
+     *
+     * @param volumes the physical volumes, from any number of volume groups.
+     * @return the volume groups, leaving out any with invalid metadata.
+     */
+    public static List<LvmVolumeGroup> assemble(Collection<LvmPhysicalVolume> volumes) {
+        Map<String, List<LvmPhysicalVolume>> groups = new LinkedHashMap<String, List<LvmPhysicalVolume>>();
+        for (LvmPhysicalVolume volume : volumes) {
+            List<LvmPhysicalVolume> group = groups.get(volume.getVolumeGroupName());
+            if (group == null) {
+                group = new ArrayList<LvmPhysicalVolume>();
+                groups.put(volume.getVolumeGroupName(), group);
+            }
+            group.add(volume);
+        }
+
+        List<LvmVolumeGroup> volumeGroups = new ArrayList<LvmVolumeGroup>(groups.size());
+        for (Map.Entry<String, List<LvmPhysicalVolume>> group : groups.entrySet()) {
+            try {
+                volumeGroups.add(new LvmVolumeGroup(group.getValue()));
+            } catch (IOException e) {
+                log.warn("Can't assemble volume group {}", group.getKey(), e);
+            }
+        }
+        return volumeGroups;
+    }
+
+    /**
+     * Gets the name of the volume group.
+     *
+     * @return the name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the UUID of the volume group.
+     *
+     * @return the UUID.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Gets the size of an extent.
+     *
+     * @return the size in bytes.
+     */
+    public long getExtentSize() {
+        return extentSize;
+    }
+
+    /**
+     * Gets the physical volumes which were supplied.
+     *
+     * @return the physical volumes.
+     */
+    public Collection<LvmPhysicalVolume> getPhysicalVolumes() {
+        return Collections.unmodifiableCollection(physicalVolumes.values());
+    }
+
+    /**
+     * Gets the names of the physical volumes in the metadata which weren't supplied.
+     *
+     * @return the names, empty if the group is complete.
+     */
+    public List<String> getMissingPhysicalVolumes() {
+        return Collections.unmodifiableList(missingPhysicalVolumes);
+    }
+
+    /**
+     * Gets the logical volumes which can be read.
+     *
+     * @return the logical volumes, in metadata order.
+     */
+    public List<LogicalVolumeDevice> getLogicalVolumes() {
+        return new ArrayList<LogicalVolumeDevice>(logicalVolumes.values());
+    }
+
+    /**
+     * Gets a logical volume.
+     *
+     * @param lvName the name of the logical volume.
+     * @return the logical volume, or {@code null} if there is no such volume or it can't be read.
+     */
+    public LogicalVolumeDevice getLogicalVolume(String lvName) {
+        return logicalVolumes.get(lvName);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LvmVolumeGroup:[%s pvs:%s missing:%s lvs:%s]", name, physicalVolumes.keySet(),
+            missingPhysicalVolumes, logicalVolumes.keySet());
+    }
+
+    /**
+     * Reads the segments of a logical volume.
+     *
+     * @param lvSection the logical volume's section of the metadata.
+     * @param dataStarts the offset of the first extent on each physical volume which was supplied.
+     * @return the segments, in order.
+     * @throws IOException if the volume uses an unsupported segment type, a physical volume which wasn't supplied, or
+     * the metadata is invalid.
+     */
+    private List<LvmSegment> readSegments(Map<String, Object> lvSection, Map<String, Long> dataStarts)
+        throws IOException {
+
+        int count = (int) LvmMetadata.getLong(lvSection, "segment_count");
+        List<LvmSegment> segments = new ArrayList<LvmSegment>(count);
+        long nextExtent = 0;
+        for (int i = 1; i <= count; i++) {
+            Map<String, Object> segmentSection = LvmMetadata.getSection(lvSection, "segment" + i);
+            String type = LvmMetadata.getString(segmentSection, "type");
+            if (!STRIPED.equals(type) && !"linear".equals(type)) {
+                throw new IOException("Unsupported segment type: " + type);
+            }
+
+            long startExtent = LvmMetadata.getLong(segmentSection, "start_extent");
+            long extentCount = LvmMetadata.getLong(segmentSection, "extent_count");
+            if (startExtent != nextExtent) {
+                throw new IOException("Segment " + i + " doesn't follow on from the previous segment");
+            }
+            nextExtent = startExtent + extentCount;
+
+            List<Object> stripes = LvmMetadata.getList(segmentSection, "stripes");
+            int stripeCount = segmentSection.containsKey("stripe_count") ?
+                (int) LvmMetadata.getLong(segmentSection, "stripe_count") : 1;
+            if (stripeCount < 1 || stripes.size() != stripeCount * 2 || extentCount % stripeCount != 0) {
+                throw new IOException("Invalid stripes in segment " + i);
+            }
+            long stripeSize = stripeCount == 1 ? 0 :
+                LvmMetadata.getLong(segmentSection, "stripe_size") * LvmPhysicalVolume.SECTOR_SIZE;
+            if (stripeCount > 1 && (stripeSize <= 0 || extentSize % stripeSize != 0)) {
+                throw new IOException("Invalid stripe size in segment " + i);
+            }
+
+            BlockDeviceAPI[] devices = new BlockDeviceAPI[stripeCount];
+            long[] offsets = new long[stripeCount];
+            long areaLength = extentCount / stripeCount * extentSize;
+            for (int stripe = 0; stripe < stripeCount; stripe++) {
+                Object pvName = stripes.get(stripe * 2);
+                Object firstExtent = stripes.get(stripe * 2 + 1);
+                if (!(firstExtent instanceof Long)) {
+                    throw new IOException("Invalid stripes in segment " + i);
+                }
+                LvmPhysicalVolume volume = physicalVolumes.get(pvName);
+                if (volume == null) {
+                    throw new IOException("Physical volume " + pvName + " is missing");
+                }
+                try {
+                    devices[stripe] = volume.getDevice().getAPI(BlockDeviceAPI.class);
+                } catch (ApiNotFoundException e) {
+                    throw new IOException("BlockDeviceAPI not found on device", e);
+                }
+                offsets[stripe] = dataStarts.get(pvName) + (Long) firstExtent * extentSize;
+                if (offsets[stripe] + areaLength > devices[stripe].getLength()) {
+                    throw new IOException("Segment " + i + " is past the end of physical volume " + pvName);
+                }
+            }
+
+            segments.add(new LvmSegment(startExtent * extentSize, extentCount * extentSize, devices, offsets,
+                stripeSize));
+        }
+        return segments;
+    }
+}
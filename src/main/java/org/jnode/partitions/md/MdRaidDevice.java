@@ -0,0 +1,742 @@
+package org.jnode.partitions.md;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import org.jnode.driver.ApiNotFoundException;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.DaemonThreadFactory;
+import org.jnode.driver.block.FSBlockDeviceAPI;
+import org.jnode.driver.block.ReadCoalescer;
+import org.jnode.driver.block.ReadRequest;
+import org.jnode.partitions.PartitionTableEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read-only block device for a Linux md software-RAID array, assembled from the superblocks of its members.
+ * <p>
+ * Linear, RAID0, RAID1, RAID4, RAID5 and RAID10 arrays are supported. A read is mapped to pieces on the members and
+ * each member's pieces are passed to it as one batch, read straight into the caller's buffer. When a read covers
+ * several members the batches are run in parallel, so large reads of striped arrays are faster than reading any one
+ * member. RAID1 reads are spread over the mirrors by offset, RAID10 reads over the copies of each chunk, and RAID4/5
+ * chunks on a missing member are rebuilt from the other members and the parity.
+ * <p>
+ * The member devices aren't closed with the array.
+ */
+public class MdRaidDevice extends Device implements FSBlockDeviceAPI, Closeable {
+
+    /**
+     * The RAID5 layout with parity rotating from the last member and data in order.
+     */
+    public static final int LAYOUT_LEFT_ASYMMETRIC = 0;
+
+    /**
+     * The RAID5 layout with parity rotating from the first member and data in order.
+     */
+    public static final int LAYOUT_RIGHT_ASYMMETRIC = 1;
+
+    /**
+     * The RAID5 layout with parity rotating from the last member and data following the parity, the default.
+     */
+    public static final int LAYOUT_LEFT_SYMMETRIC = 2;
+
+    /**
+     * The RAID5 layout with parity rotating from the first member and data following the parity.
+     */
+    public static final int LAYOUT_RIGHT_SYMMETRIC = 3;
+
+    /**
+     * The RAID5 layout with parity on the first member.
+     */
+    public static final int LAYOUT_PARITY_0 = 4;
+
+    /**
+     * The RAID5 layout with parity on the last member, as used by RAID4.
+     */
+    public static final int LAYOUT_PARITY_N = 5;
+
+    /**
+     * The size of the runs of a RAID1 array read from each mirror in turn.
+     */
+    public static final int MIRROR_BALANCE_SIZE = 64 * 1024;
+
+    /**
+     * The smallest read which is split between threads when it covers several members.
+     */
+    public static final int PARALLEL_READ_SIZE = 64 * 1024;
+
+    /**
+     * The logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(MdRaidDevice.class);
+
+    /**
+     * The superblock the geometry was taken from, the most recent one.
+     */
+    private final MdSuperblock superblock;
+
+    /**
+     * The RAID level.
+     */
+    private final int level;
+
+    /**
+     * The layout.
+     */
+    private final int layout;
+
+    /**
+     * The chunk size.
+     */
+    private final long chunkSize;
+
+    /**
+     * The member in each role, or {@code null} if it is missing.
+     */
+    private final BlockDeviceAPI[] members;
+
+    /**
+     * The offset of the data on the member in each role.
+     */
+    private final long[] dataOffsets;
+
+    /**
+     * The offset in the array of the member in each role, for linear arrays.
+     */
+    private final long[] linearStarts;
+
+    /**
+     * The roles of the members which are present.
+     */
+    private final int[] present;
+
+    /**
+     * The number of copies of each chunk on neighbouring members, for RAID10.
+     */
+    private final int nearCopies;
+
+    /**
+     * The number of copies of each chunk further along the members, for RAID10.
+     */
+    private final int farCopies;
+
+    /**
+     * The distance between far copies on a member, for RAID10.
+     */
+    private final long farStride;
+
+    /**
+     * Whether far copies are in the following stripe rather than a later section of the members, for RAID10.
+     */
+    private final boolean farOffset;
+
+    /**
+     * The size of the array.
+     */
+    private final long length;
+
+    /**
+     * The executor for parallel member reads, or {@code null} to read members one at a time.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Whether the executor was created by, and should be shut down by, this device.
+     */
+    private final boolean ownsExecutor;
+
+    /**
+     * Assembles an array, reading members in parallel on a pool with a thread for each member.
+     *
+     * @param devices the member devices, in any order. Spares are ignored.
+     * @throws IOException if an error occurs reading the superblocks or the array can't be assembled.
+     */
+    public MdRaidDevice(List<Device> devices) throws IOException {
+        this(devices, Executors.newFixedThreadPool(Math.max(1, devices.size()), new DaemonThreadFactory("md-read")),
+            true);
+    }
+
+    /**
+     * Assembles an array.
+     *
+     * @param devices the member devices, in any order. Spares are ignored.
+     * @param executor a shared executor for parallel member reads, which isn't shut down when this device is closed,
+     * or {@code null} to read members one at a time.
+     * @throws IOException if an error occurs reading the superblocks or the array can't be assembled.
+     */
+    public MdRaidDevice(List<Device> devices, ExecutorService executor) throws IOException {
+        this(devices, executor, false);
+    }
+
+    private MdRaidDevice(List<Device> devices, ExecutorService executor, boolean ownsExecutor) throws IOException {
+        super("md-" + (devices.isEmpty() ? "" : devices.get(0).getId()));
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+
+        try {
+            if (devices.isEmpty()) {
+                throw new IOException("No md members");
+            }
+
+            BlockDeviceAPI[] apis = new BlockDeviceAPI[devices.size()];
+            MdSuperblock[] superblocks = new MdSuperblock[devices.size()];
+            MdSuperblock latest = null;
+            for (int i = 0; i < apis.length; i++) {
+                apis[i] = getApi(devices.get(i));
+                superblocks[i] = MdSuperblock.read(apis[i]);
+                if (superblocks[i] == null) {
+                    throw new IOException("No md superblock on " + devices.get(i).getId());
+                }
+                if (!Arrays.equals(superblocks[0].getArrayUuid(), superblocks[i].getArrayUuid())) {
+                    throw new IOException("Members from different md arrays: " + devices.get(0).getId() + ", " +
+                        devices.get(i).getId());
+                }
+                if (superblocks[i].getRole() != MdSuperblock.ROLE_NONE &&
+                    (latest == null || superblocks[i].getEvents() > latest.getEvents())) {
+                    latest = superblocks[i];
+                }
+            }
+            if (latest == null) {
+                throw new IOException("The md members are all spares");
+            }
+
+            superblock = latest;
+            level = latest.getLevel();
+            layout = level == 4 ? LAYOUT_PARITY_N : latest.getLayout();
+            chunkSize = latest.getChunkSize();
+
+            int raidDisks = latest.getRaidDisks();
+            members = new BlockDeviceAPI[raidDisks];
+            dataOffsets = new long[raidDisks];
+            long[] dataSizes = new long[raidDisks];
+            List<Integer> presentRoles = new ArrayList<Integer>();
+            for (int i = 0; i < apis.length; i++) {
+                int role = superblocks[i].getRole();
+                if (role == MdSuperblock.ROLE_NONE || role >= raidDisks) {
+                    continue;
+                }
+                if (superblocks[i].getEvents() < latest.getEvents() && level > 0) {
+                    log.warn("Ignoring out of date md member {} in role {}", devices.get(i).getId(), role);
+                    continue;
+                }
+                if (members[role] != null) {
+                    throw new IOException("Two md members in role " + role);
+                }
+                members[role] = apis[i];
+                dataOffsets[role] = superblocks[i].getDataOffset();
+                dataSizes[role] = superblocks[i].getDataSize();
+                presentRoles.add(role);
+            }
+            Collections.sort(presentRoles);
+            present = new int[presentRoles.size()];
+            for (int i = 0; i < present.length; i++) {
+                present[i] = presentRoles.get(i);
+            }
+
+            int missing = raidDisks - present.length;
+            if ((level == MdSuperblock.LEVEL_LINEAR || level == 0) && missing > 0 ||
+                (level == 4 || level == 5) && missing > 1 || present.length == 0) {
+                throw new IOException("Too many md members missing for RAID level " + level + ": " +
+                    getMissingMembers());
+            }
+            if (level != MdSuperblock.LEVEL_LINEAR && level != 1 && chunkSize <= 0) {
+                throw new IOException("Invalid md chunk size: " + chunkSize);
+            }
+
+            linearStarts = new long[raidDisks];
+            int near = 1;
+            int far = 1;
+            long stride = 0;
+            boolean offsetLayout = false;
+            long componentChunks = chunkSize > 0 ? latest.getComponentSize() / chunkSize : 0;
+            switch (level) {
+                case MdSuperblock.LEVEL_LINEAR: {
+                    long offset = 0;
+                    for (int role = 0; role < raidDisks; role++) {
+                        linearStarts[role] = offset;
+                        offset += dataSizes[role];
+                    }
+                    length = offset;
+                    break;
+                }
+                case 0: {
+                    long memberSize = Long.MAX_VALUE;
+                    for (long dataSize : dataSizes) {
+                        memberSize = Math.min(memberSize, dataSize / chunkSize * chunkSize);
+                    }
+                    for (long dataSize : dataSizes) {
+                        if (dataSize - memberSize >= chunkSize) {
+                            log.warn("md RAID0 members differ in size, only the first {} bytes of each are used",
+                                memberSize);
+                            break;
+                        }
+                    }
+                    length = memberSize * raidDisks;
+                    break;
+                }
+                case 1:
+                    length = latest.getComponentSize();
+                    break;
+                case 4:
+                case 5:
+                    if (layout < LAYOUT_LEFT_ASYMMETRIC || layout > LAYOUT_PARITY_N) {
+                        throw new IOException("Unsupported md RAID5 layout: " + layout);
+                    }
+                    if (raidDisks < 2) {
+                        throw new IOException("Too few md members for RAID level " + level);
+                    }
+                    length = componentChunks * chunkSize * (raidDisks - 1);
+                    break;
+                case 10:
+                    near = layout & 0xff;
+                    far = (layout >> 8) & 0xff;
+                    offsetLayout = (layout & 0x10000) != 0;
+                    if (near < 1 || far < 1 || (layout >> 17) != 0) {
+                        throw new IOException("Unsupported md RAID10 layout: 0x" + Integer.toHexString(layout));
+                    }
+                    stride = offsetLayout ? chunkSize : componentChunks / far * chunkSize;
+                    length = componentChunks / far * raidDisks / near * chunkSize;
+                    break;
+                default:
+                    throw new IOException("Unsupported md RAID level: " + level);
+            }
+            nearCopies = near;
+            farCopies = far;
+            farStride = stride;
+            farOffset = offsetLayout;
+        } catch (IOException | RuntimeException e) {
+            if (ownsExecutor) {
+                executor.shutdown();
+            }
+            throw e;
+        }
+
+        registerAPI(FSBlockDeviceAPI.class, this);
+    }
+
+    /**
+     * Gets the name of the array.
+     *
+     * @return the name, empty for arrays with 0.90 superblocks.
+     */
+    public String getName() {
+        return superblock.getName();
+    }
+
+    /**
+     * Gets the RAID level.
+     *
+     * @return the level, {@link MdSuperblock#LEVEL_LINEAR} for a linear array.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Gets the number of members in the array.
+     *
+     * @return the count, including missing members but not spares.
+     */
+    public int getRaidDisks() {
+        return members.length;
+    }
+
+    /**
+     * Gets the roles of the members which are missing.
+     *
+     * @return the roles, empty if the array is complete.
+     */
+    public List<Integer> getMissingMembers() {
+        List<Integer> missing = new ArrayList<Integer>();
+        for (int role = 0; role < members.length; role++) {
+            if (members[role] == null) {
+                missing.add(role);
+            }
+        }
+        return missing;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public int getSectorSize() {
+        return 512;
+    }
+
+    @Override
+    public PartitionTableEntry getPartitionTableEntry() {
+        return null;
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        if (devOffset < 0) {
+            throw new IOException("devOffset < 0");
+        }
+        if (devOffset + dest.remaining() > length) {
+            throw new EOFException("Read past the end of the md array: offset " + devOffset + ", length " +
+                dest.remaining());
+        }
+
+        List<Piece> pieces = new ArrayList<Piece>();
+        int position = 0;
+        int count = dest.remaining();
+        while (position < count) {
+            Piece piece = map(devOffset + position, count - position);
+            piece.position = position;
+            pieces.add(piece);
+            position += piece.length;
+        }
+
+        readPieces(pieces, dest);
+    }
+
+    /**
+     * Reads a batch of requests, merging neighbouring requests into single reads.
+     *
+     * @param requests the requests, in any order.
+     * @throws IOException if an error occurs reading.
+     */
+    @Override
+    public void readBatch(List<ReadRequest> requests) throws IOException {
+        ReadCoalescer.read(this, requests);
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        throw new IOException("md arrays are read-only");
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to do
+    }
+
+    /**
+     * Shuts down the executor if it was created by this device. Reads which are still running are left to finish.
+     */
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MdRaidDevice:[%s level:%d disks:%d missing:%s size:%d]", superblock.getName(), level,
+            members.length, getMissingMembers(), length);
+    }
+
+    /**
+     * Maps an offset in the array to the member holding it.
+     *
+     * @param offset the offset in the array.
+     * @param remaining the number of bytes left to read.
+     * @return the piece, running to the end of the contiguous area on the member or the end of the read.
+     * @throws IOException if no member holding the offset is present.
+     */
+    private Piece map(long offset, int remaining) throws IOException {
+        Piece piece = new Piece();
+        long within = chunkSize > 0 ? offset % chunkSize : 0;
+        long chunk = chunkSize > 0 ? offset / chunkSize : 0;
+        int disks = members.length;
+
+        switch (level) {
+            case MdSuperblock.LEVEL_LINEAR: {
+                int index = Arrays.binarySearch(linearStarts, offset);
+                piece.member = index >= 0 ? index : -index - 2;
+                while (piece.member + 1 < disks && linearStarts[piece.member + 1] <= offset) {
+                    piece.member++;
+                }
+                piece.offset = offset - linearStarts[piece.member];
+                long end = piece.member + 1 < disks ? linearStarts[piece.member + 1] : length;
+                piece.length = (int) Math.min(remaining, end - offset);
+                break;
+            }
+            case 0:
+                piece.member = (int) (chunk % disks);
+                piece.offset = chunk / disks * chunkSize + within;
+                piece.length = (int) Math.min(remaining, chunkSize - within);
+                break;
+            case 1:
+                piece.member = present[(int) ((offset / MIRROR_BALANCE_SIZE) % present.length)];
+                piece.offset = offset;
+                piece.length = (int) Math.min(remaining, MIRROR_BALANCE_SIZE - offset % MIRROR_BALANCE_SIZE);
+                break;
+            case 4:
+            case 5:
+                mapParity(piece, chunk, within, disks);
+                piece.length = (int) Math.min(remaining, chunkSize - within);
+                break;
+            default:
+                mapRaid10(piece, chunk, within, disks);
+                piece.length = (int) Math.min(remaining, chunkSize - within);
+                break;
+        }
+        return piece;
+    }
+
+    private void mapParity(Piece piece, long chunk, long within, int disks) {
+        int dataDisks = disks - 1;
+        long row = chunk / dataDisks;
+        int index = (int) (chunk % dataDisks);
+        int parity;
+        int member;
+        switch (layout) {
+            case LAYOUT_LEFT_ASYMMETRIC:
+                parity = dataDisks - (int) (row % disks);
+                member = index >= parity ? index + 1 : index;
+                break;
+            case LAYOUT_RIGHT_ASYMMETRIC:
+                parity = (int) (row % disks);
+                member = index >= parity ? index + 1 : index;
+                break;
+            case LAYOUT_LEFT_SYMMETRIC:
+                parity = dataDisks - (int) (row % disks);
+                member = (parity + 1 + index) % disks;
+                break;
+            case LAYOUT_RIGHT_SYMMETRIC:
+                parity = (int) (row % disks);
+                member = (parity + 1 + index) % disks;
+                break;
+            case LAYOUT_PARITY_0:
+                member = index + 1;
+                break;
+            default:
+                member = index;
+                break;
+        }
+        piece.member = member;
+        piece.offset = row * chunkSize + within;
+        piece.reconstruct = members[member] == null;
+    }
+
+    /**
+     * Maps a RAID10 chunk to one of its copies, the copies which are present are used in turn for successive
+     * chunks.
+     */
+    private void mapRaid10(Piece piece, long chunk, long within, int disks) throws IOException {
+        long position = chunk * nearCopies;
+        int device = (int) (position % disks);
+        long stripe = position / disks;
+        if (farOffset) {
+            stripe *= farCopies;
+        }
+        long sector = stripe * chunkSize + within;
+
+        int copies = nearCopies * farCopies;
+        int[] copyMembers = new int[copies];
+        long[] copyOffsets = new long[copies];
+        int available = 0;
+        for (int near = 0; near < nearCopies; near++) {
+            for (int far = 0; far < farCopies; far++) {
+                int member = (device + far * nearCopies) % disks;
+                if (members[member] != null) {
+                    copyMembers[available] = member;
+                    copyOffsets[available] = sector + far * farStride;
+                    available++;
+                }
+            }
+            device++;
+            if (device >= disks) {
+                device = 0;
+                sector += chunkSize;
+            }
+        }
+        if (available == 0) {
+            throw new IOException("No copy of md RAID10 chunk " + chunk + " is present");
+        }
+
+        int copy = (int) (chunk % available);
+        piece.member = copyMembers[copy];
+        piece.offset = copyOffsets[copy];
+    }
+
+    /**
+     * Reads the pieces of a read, passing each member its pieces as one batch. The batches run in parallel when
+     * the read is large enough and covers several members.
+     *
+     * @param pieces the pieces.
+     * @param dest the buffer to read into, its position is advanced past the pieces.
+     * @throws IOException if an error occurs reading.
+     */
+    private void readPieces(List<Piece> pieces, ByteBuffer dest) throws IOException {
+        int start = dest.position();
+        int count = dest.remaining();
+
+        Map<Integer, List<ReadRequest>> batches = new TreeMap<Integer, List<ReadRequest>>();
+        List<Piece> rebuilt = new ArrayList<Piece>();
+        for (Piece piece : pieces) {
+            if (piece.reconstruct) {
+                rebuilt.add(piece);
+                continue;
+            }
+            List<ReadRequest> batch = batches.get(piece.member);
+            if (batch == null) {
+                batch = new ArrayList<ReadRequest>();
+                batches.put(piece.member, batch);
+            }
+            batch.add(new ReadRequest(dataOffsets[piece.member] + piece.offset, slice(dest, start, piece)));
+        }
+
+        if (executor != null && batches.size() > 1 && count >= PARALLEL_READ_SIZE) {
+            readParallel(batches);
+        } else {
+            for (Map.Entry<Integer, List<ReadRequest>> batch : batches.entrySet()) {
+                members[batch.getKey()].readBatch(batch.getValue());
+            }
+        }
+
+        for (Piece piece : rebuilt) {
+            reconstruct(piece, slice(dest, start, piece));
+        }
+
+        dest.position(start + count);
+    }
+
+    /**
+     * Reads the members' batches in parallel. If one fails, the others are waited for rather than interrupted, since
+     * interrupting a read from a {@link java.nio.channels.FileChannel} closes the channel for good, and a batch still
+     * running could go on writing to the caller's buffer after the read had failed.
+     */
+    private void readParallel(Map<Integer, List<ReadRequest>> batches) throws IOException {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(batches.size());
+        boolean done = false;
+        try {
+            for (final Map.Entry<Integer, List<ReadRequest>> batch : batches.entrySet()) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        members[batch.getKey()].readBatch(batch.getValue());
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            done = true;
+        } catch (RejectedExecutionException e) {
+            throw new IOException("md device is closed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading md members");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error reading md members", e.getCause());
+        } finally {
+            if (!done) {
+                awaitAll(futures);
+            }
+        }
+    }
+
+    /**
+     * Waits for reads to finish, ignoring their results and keeping any interrupt for the caller.
+     */
+    private static void awaitAll(List<Future<Void>> futures) {
+        boolean interrupted = false;
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Rebuilds a piece on a missing member of a RAID4/5 array from the same area of the other members.
+     */
+    private void reconstruct(Piece piece, ByteBuffer dest) throws IOException {
+        byte[] result = new byte[piece.length];
+        byte[] other = new byte[piece.length];
+        for (int member = 0; member < members.length; member++) {
+            if (member != piece.member) {
+                members[member].read(dataOffsets[member] + piece.offset, ByteBuffer.wrap(other));
+                for (int i = 0; i < result.length; i++) {
+                    result[i] ^= other[i];
+                }
+            }
+        }
+        dest.put(result);
+    }
+
+    /**
+     * Gets a view of the part of the caller's buffer a piece is read into.
+     */
+    private static ByteBuffer slice(ByteBuffer dest, int start, Piece piece) {
+        ByteBuffer slice = dest.duplicate();
+        slice.limit(start + piece.position + piece.length);
+        slice.position(start + piece.position);
+        return slice;
+    }
+
+    private static BlockDeviceAPI getApi(Device device) throws IOException {
+        try {
+            return device.getAPI(BlockDeviceAPI.class);
+        } catch (ApiNotFoundException e) {
+            throw new IOException("BlockDeviceAPI not found on device", e);
+        }
+    }
+
+    /**
+     * A part of a read which is contiguous on one member.
+     */
+    private static class Piece {
+        /**
+         * The role of the member.
+         */
+        private int member;
+
+        /**
+         * The offset in the member's data area.
+         */
+        private long offset;
+
+        /**
+         * The offset in the read.
+         */
+        private int position;
+
+        /**
+         * The length.
+         */
+        private int length;
+
+        /**
+         * Whether the member is missing, so the piece has to be rebuilt from parity.
+         */
+        private boolean reconstruct;
+    }
+}
@@ -0,0 +1,330 @@
+package org.jnode.partitions.md;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.util.LittleEndian;
+import org.jnode.util.NumberUtils;
+
+/**
+ * The superblock of a Linux md software-RAID member, either the 0.90 format at the end of the device or one of the
+ * 1.x formats: 1.0 at the end, 1.1 at the start or 1.2 4 KiB from the start.
+ */
+public class MdSuperblock {
+
+    /**
+     * The superblock magic number.
+     */
+    public static final int MAGIC = 0xa92b4efc;
+
+    /**
+     * The role of a member which is a spare or faulty.
+     */
+    public static final int ROLE_NONE = -1;
+
+    /**
+     * The level of a linear (concatenated) array.
+     */
+    public static final int LEVEL_LINEAR = -1;
+
+    /**
+     * The size of a sector.
+     */
+    private static final int SECTOR_SIZE = 512;
+
+    /**
+     * The size of the area read for a superblock, enough for a 0.90 superblock or a 1.x superblock with 384 roles.
+     */
+    private static final int SUPERBLOCK_SIZE = 4096;
+
+    /**
+     * The size of the reserved area at the end of a device holding a 0.90 superblock.
+     */
+    private static final int V090_RESERVED_SIZE = 64 * 1024;
+
+    /**
+     * The highest role value in a 1.x superblock, higher values mark spare, faulty and journal devices.
+     */
+    private static final int V1_MAX_ROLE = 0xff00;
+
+    /**
+     * The format version, e.g. {@code "0.90"} or {@code "1.2"}.
+     */
+    private final String version;
+
+    /**
+     * The UUID of the array.
+     */
+    private final byte[] arrayUuid;
+
+    /**
+     * The name of the array, empty for 0.90 superblocks.
+     */
+    private final String name;
+
+    /**
+     * The RAID level.
+     */
+    private final int level;
+
+    /**
+     * The layout, whose meaning depends on the level.
+     */
+    private final int layout;
+
+    /**
+     * The chunk size in bytes.
+     */
+    private final int chunkSize;
+
+    /**
+     * The number of members in the array, excluding spares.
+     */
+    private final int raidDisks;
+
+    /**
+     * The role of this member, the slot it fills in the array, or {@link #ROLE_NONE}.
+     */
+    private final int role;
+
+    /**
+     * The event count, which is higher in members which are more up to date.
+     */
+    private final long events;
+
+    /**
+     * The offset of the data on this member.
+     */
+    private final long dataOffset;
+
+    /**
+     * The size of the data on this member.
+     */
+    private final long dataSize;
+
+    /**
+     * The size used from each member by the array, for redundant levels.
+     */
+    private final long componentSize;
+
+    private MdSuperblock(String version, byte[] arrayUuid, String name, int level, int layout, int chunkSize,
+                         int raidDisks, int role, long events, long dataOffset, long dataSize, long componentSize) {
+        this.version = version;
+        this.arrayUuid = arrayUuid;
+        this.name = name;
+        this.level = level;
+        this.layout = layout;
+        this.chunkSize = chunkSize;
+        this.raidDisks = raidDisks;
+        this.role = role;
+        this.events = events;
+        this.dataOffset = dataOffset;
+        this.dataSize = dataSize;
+        this.componentSize = componentSize;
+    }
+
+    /**
+     * Reads the superblock of a member, looking in each of the places the formats put it.
+     *
+     * @param api the member device.
+     * @return the superblock, or {@code null} if there isn't one.
+     * @throws IOException if an error occurs reading.
+     */
+    public static MdSuperblock read(BlockDeviceAPI api) throws IOException {
+        long length = api.getLength();
+        long[] v1Offsets = {0, 4096, ((length / SECTOR_SIZE - 16) & ~7L) * SECTOR_SIZE};
+        String[] v1Versions = {"1.1", "1.2", "1.0"};
+
+        byte[] buffer = new byte[SUPERBLOCK_SIZE];
+        for (int i = 0; i < v1Offsets.length; i++) {
+            long offset = v1Offsets[i];
+            if (offset >= 0 && offset + SUPERBLOCK_SIZE <= length) {
+                api.read(offset, ByteBuffer.wrap(buffer));
+                if (LittleEndian.getInt32(buffer, 0) == MAGIC && LittleEndian.getInt32(buffer, 4) == 1) {
+                    return parseV1(v1Versions[i], buffer);
+                }
+            }
+        }
+
+        long offset = (length & ~(V090_RESERVED_SIZE - 1L)) - V090_RESERVED_SIZE;
+        if (offset > 0) {
+            api.read(offset, ByteBuffer.wrap(buffer));
+            if (LittleEndian.getInt32(buffer, 0) == MAGIC && LittleEndian.getInt32(buffer, 4) == 0 &&
+                LittleEndian.getInt32(buffer, 8) == 90) {
+                return parseV090(buffer, offset);
+            }
+        }
+        return null;
+    }
+
+    private static MdSuperblock parseV1(String version, byte[] buffer) throws IOException {
+        byte[] uuid = Arrays.copyOfRange(buffer, 16, 32);
+        int nameLength = 0;
+        while (nameLength < 32 && buffer[32 + nameLength] != 0) {
+            nameLength++;
+        }
+        String name = new String(buffer, 32, nameLength, StandardCharsets.UTF_8);
+
+        int devNumber = LittleEndian.getInt32(buffer, 160);
+        int maxDev = LittleEndian.getInt32(buffer, 220);
+        if (devNumber < 0 || devNumber >= maxDev || 256 + devNumber * 2 + 2 > buffer.length) {
+            throw new IOException("Invalid md device number: " + devNumber);
+        }
+        int role = LittleEndian.getUInt16(buffer, 256 + devNumber * 2);
+
+        return new MdSuperblock(version, uuid, name,
+            LittleEndian.getInt32(buffer, 72),
+            LittleEndian.getInt32(buffer, 76),
+            LittleEndian.getInt32(buffer, 88) * SECTOR_SIZE,
+            LittleEndian.getInt32(buffer, 92),
+            role < V1_MAX_ROLE ? role : ROLE_NONE,
+            LittleEndian.getInt64(buffer, 200),
+            LittleEndian.getInt64(buffer, 128) * SECTOR_SIZE,
+            LittleEndian.getInt64(buffer, 136) * SECTOR_SIZE,
+            LittleEndian.getInt64(buffer, 80) * SECTOR_SIZE);
+    }
+
+    private static MdSuperblock parseV090(byte[] buffer, long superblockOffset) {
+        byte[] uuid = new byte[16];
+        System.arraycopy(buffer, 20, uuid, 0, 4);
+        System.arraycopy(buffer, 52, uuid, 4, 12);
+
+        // The events count is split in two words, low word first on little endian machines
+        long events = (LittleEndian.getUInt32(buffer, 160) << 32) | LittleEndian.getUInt32(buffer, 156);
+
+        // The descriptor of this member, its raid_disk is the role
+        int thisDisk = 992 * 4;
+        int state = LittleEndian.getInt32(buffer, thisDisk + 16);
+        boolean faulty = (state & 1) != 0;
+        int raidDisks = LittleEndian.getInt32(buffer, 40);
+        int raidDisk = LittleEndian.getInt32(buffer, thisDisk + 12);
+
+        return new MdSuperblock("0.90", uuid, "",
+            LittleEndian.getInt32(buffer, 28),
+            LittleEndian.getInt32(buffer, 256),
+            LittleEndian.getInt32(buffer, 260),
+            raidDisks,
+            faulty || raidDisk < 0 || raidDisk >= raidDisks ? ROLE_NONE : raidDisk,
+            events,
+            0,
+            superblockOffset,
+            LittleEndian.getUInt32(buffer, 32) * 1024);
+    }
+
+    /**
+     * Gets the format version.
+     *
+     * @return the version, e.g. {@code "0.90"} or {@code "1.2"}.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the UUID of the array.
+     *
+     * @return the UUID.
+     */
+    public byte[] getArrayUuid() {
+        return arrayUuid.clone();
+    }
+
+    /**
+     * Gets the name of the array.
+     *
+     * @return the name, empty for 0.90 superblocks.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the RAID level.
+     *
+     * @return the level, {@link #LEVEL_LINEAR} for a linear array.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Gets the layout.
+     *
+     * @return the layout, whose meaning depends on the level.
+     */
+    public int getLayout() {
+        return layout;
+    }
+
+    /**
+     * Gets the chunk size.
+     *
+     * @return the size in bytes.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Gets the number of members in the array.
+     *
+     * @return the count, excluding spares.
+     */
+    public int getRaidDisks() {
+        return raidDisks;
+    }
+
+    /**
+     * Gets the role of this member.
+     *
+     * @return the slot it fills in the array, or {@link #ROLE_NONE} for a spare or faulty member.
+     */
+    public int getRole() {
+        return role;
+    }
+
+    /**
+     * Gets the event count.
+     *
+     * @return the count, which is higher in members which are more up to date.
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    /**
+     * Gets the offset of the data on this member.
+     *
+     * @return the offset in bytes.
+     */
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * Gets the size of the data area on this member.
+     *
+     * @return the size in bytes.
+     */
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    /**
+     * Gets the size used from each member by a redundant array.
+     *
+     * @return the size in bytes.
+     */
+    public long getComponentSize() {
+        return componentSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MdSuperblock:[%s uuid:%s name:%s level:%d layout:%d chunk:%d disks:%d role:%d " +
+                "events:%d]", version, NumberUtils.hex(arrayUuid), name, level, layout, chunkSize, raidDisks, role,
+            events);
+    }
+}
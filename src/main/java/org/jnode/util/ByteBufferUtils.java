@@ -20,9 +20,15 @@
  
 package org.jnode.util;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class ByteBufferUtils {
+    private static final Logger log = LoggerFactory.getLogger(ByteBufferUtils.class);
+
     /**
      * This method is the equivalent of System.arraycopy
      * But, instead of 2 arrays, it takes 2 ByteBuffers.
@@ -54,6 +60,52 @@ public class ByteBufferUtils {
         return array;
     }
 
+    /**
+     * Releases the memory or mapping behind a direct buffer (e.g. a {@link java.nio.MappedByteBuffer}) without
+     * waiting for it to be garbage collected. The buffer, and any views or duplicates of it, must not be used after
+     * this call.
+     *
+     * @param buffer the buffer to release, non-direct buffers are ignored.
+     * @return {@code true} if the buffer was released, {@code false} if this JVM doesn't support it.
+     */
+    public static boolean unmap(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return false;
+        }
+
+        try {
+            // Java 9+: sun.misc.Unsafe.invokeCleaner(ByteBuffer)
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return true;
+        } catch (NoSuchMethodException e) {
+            // Fall through to the Java 8 approach
+        } catch (Exception e) {
+            log.debug("Error unmapping buffer", e);
+            return false;
+        }
+
+        try {
+            // Java 8: ((sun.nio.ch.DirectBuffer) buffer).cleaner().clean()
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner == null) {
+                return false;
+            }
+            Method cleanMethod = cleaner.getClass().getMethod("clean");
+            cleanMethod.setAccessible(true);
+            cleanMethod.invoke(cleaner);
+            return true;
+        } catch (Exception e) {
+            log.debug("Error unmapping buffer", e);
+            return false;
+        }
+    }
+
     public static class ByteArray {
         private ByteBuffer buf;
         private int bufPosition;
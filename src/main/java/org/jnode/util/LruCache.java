@@ -0,0 +1,99 @@
+package org.jnode.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small thread-safe cache which holds a fixed number of entries and evicts the least recently used entry when full.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ */
+public class LruCache<K, V> {
+
+    /**
+     * The entries, in access order.
+     */
+    private final LinkedHashMap<K, V> entries;
+
+    /**
+     * The maximum number of entries.
+     */
+    private final int maxEntries;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxEntries the maximum number of entries.
+     */
+    public LruCache(final int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxEntries);
+        }
+
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<K, V>(Math.min(maxEntries, 1024), 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Gets the maximum number of entries.
+     *
+     * @return the maximum.
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Looks up an entry, marking it as recently used.
+     *
+     * @param key the key.
+     * @return the value, or {@code null} if it is not cached.
+     */
+    public synchronized V get(K key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Adds an entry, evicting the least recently used entry if the cache is full.
+     *
+     * @param key the key.
+     * @param value the value.
+     */
+    public synchronized void put(K key, V value) {
+        entries.put(key, value);
+    }
+
+    /**
+     * Removes an entry.
+     *
+     * @param key the key.
+     * @return the removed value, or {@code null} if it was not cached.
+     */
+    public synchronized V remove(K key) {
+        return entries.remove(key);
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return the count.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,67 @@
+package org.jnode.driver.block;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link AsyncBlockDevice}.
+ */
+public class AsyncBlockDeviceTest {
+
+    @Test
+    public void testReadAsync() throws Exception {
+        byte[] data = new byte[256 * 1024];
+        new Random(1).nextBytes(data);
+
+        try (AsyncBlockDevice device = new AsyncBlockDevice(new ByteArrayDevice(data), 4, 8)) {
+            AsyncBlockDeviceAPI api = device.getAPI(AsyncBlockDeviceAPI.class);
+
+            List<CompletableFuture<ByteBuffer>> futures = new ArrayList<CompletableFuture<ByteBuffer>>();
+            for (int i = 0; i < 64; i++) {
+                futures.add(api.readAsync(i * 4096L, ByteBuffer.allocate(4096)));
+            }
+
+            for (int i = 0; i < 64; i++) {
+                ByteBuffer buffer = AsyncBlockDevice.await(futures.get(i));
+                assertThat(buffer.array(), is(Arrays.copyOfRange(data, i * 4096, (i + 1) * 4096)));
+            }
+            assertThat(device.getExecutor().getInFlightCount(), is(0));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testSubmitFromAnIoThread() throws Exception {
+        try (BlockIoExecutor executor = new BlockIoExecutor("async-test", 1, 1)) {
+            final BlockIoExecutor nested = executor;
+            CompletableFuture<Integer> future = executor.submit(new BlockIoExecutor.IoOperation<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    // The only permit is held by this operation, so the nested one runs on this thread
+                    return AsyncBlockDevice.await(nested.submit(new BlockIoExecutor.IoOperation<Integer>() {
+                        @Override
+                        public Integer call() {
+                            return 42;
+                        }
+                    }));
+                }
+            });
+            assertThat(AsyncBlockDevice.await(future), is(42));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadAsyncFailure() throws Exception {
+        try (AsyncBlockDevice device = new AsyncBlockDevice(new ByteArrayDevice(new byte[4096]), 1, 1)) {
+            AsyncBlockDevice.await(device.readAsync(8192, ByteBuffer.allocate(512)));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.jnode.driver.block;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jnode.driver.Device;
+import org.jnode.partitions.PartitionTableEntry;
+
+/**
+ * An in-memory block device for tests, which counts the reads made against it.
+ */
+public class ByteArrayDevice extends Device implements FSBlockDeviceAPI
+{
+    private final byte[] data;
+
+    private final AtomicInteger readCount = new AtomicInteger();
+
+    public ByteArrayDevice(byte[] data)
+    {
+        super("bytes");
+        this.data = data;
+        registerAPI(FSBlockDeviceAPI.class, this);
+    }
+
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    public int getReadCount()
+    {
+        return readCount.get();
+    }
+
+    @Override
+    public long getLength()
+    {
+        return data.length;
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException
+    {
+        readCount.incrementAndGet();
+        if (devOffset < 0 || devOffset + dest.remaining() > data.length)
+        {
+            throw new IOException("Out of bounds: " + devOffset + " + " + dest.remaining());
+        }
+        dest.put(data, (int) devOffset, dest.remaining());
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException
+    {
+        if (devOffset < 0 || devOffset + src.remaining() > data.length)
+        {
+            throw new IOException("Out of bounds: " + devOffset + " + " + src.remaining());
+        }
+        src.get(data, (int) devOffset, src.remaining());
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public int getSectorSize()
+    {
+        return 512;
+    }
+
+    @Override
+    public PartitionTableEntry getPartitionTableEntry()
+    {
+        return null;
+    }
+}
@@ -0,0 +1,77 @@
+package org.jnode.driver.block;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link CachingBlockDevice} and {@link SharedPageCache}.
+ */
+public class CachingBlockDeviceTest {
+
+    private static byte[] randomData(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testReadsAreCached() throws Exception {
+        ByteArrayDevice parent = new ByteArrayDevice(randomData(64 * 1024 + 100, 1));
+        SharedPageCache cache = new SharedPageCache(1024 * 1024, 4096, 4);
+        CachingBlockDevice device = new CachingBlockDevice(parent, cache);
+
+        ByteBuffer first = ByteBuffer.allocate(10000);
+        device.read(100, first);
+        assertThat(parent.getReadCount(), is(1));
+        assertThat(first.array(), is(Arrays.copyOfRange(parent.getData(), 100, 10100)));
+
+        ByteBuffer second = ByteBuffer.allocate(512);
+        device.read(5000, second);
+        assertThat(parent.getReadCount(), is(1));
+        assertThat(second.array(), is(Arrays.copyOfRange(parent.getData(), 5000, 5512)));
+        assertThat(cache.getHitCount(), is(1L));
+
+        // Read up to the end of the device, where the last page is short
+        ByteBuffer tail = ByteBuffer.allocate(200);
+        device.read(64 * 1024 - 100, tail);
+        assertThat(tail.array(), is(Arrays.copyOfRange(parent.getData(), 64 * 1024 - 100, 64 * 1024 + 100)));
+    }
+
+    @Test
+    public void testWriteInvalidates() throws Exception {
+        ByteArrayDevice parent = new ByteArrayDevice(randomData(16 * 1024, 2));
+        SharedPageCache cache = new SharedPageCache(1024 * 1024, 4096, 4);
+        CachingBlockDevice device = new CachingBlockDevice(parent, cache);
+
+        device.read(0, ByteBuffer.allocate(8192));
+        byte[] update = randomData(100, 3);
+        device.write(4000, ByteBuffer.wrap(update));
+
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        device.read(4000, buffer);
+        assertThat(buffer.array(), is(update));
+    }
+
+    @Test
+    public void testSharedBudget() throws Exception {
+        SharedPageCache cache = new SharedPageCache(16 * 4096, 4096, 1);
+        CachingBlockDevice device1 = new CachingBlockDevice(new ByteArrayDevice(randomData(64 * 4096, 4)), cache);
+        CachingBlockDevice device2 = new CachingBlockDevice(new ByteArrayDevice(randomData(64 * 4096, 5)), cache);
+
+        for (int i = 0; i < 64; i++) {
+            device1.read(i * 4096L, ByteBuffer.allocate(4096));
+            device2.read(i * 4096L, ByteBuffer.allocate(4096));
+        }
+
+        assertThat(cache.getSize(), is(16 * 4096L));
+        assertThat(cache.getEvictionCount(), is(128L - 16));
+
+        device1.close();
+        assertThat(cache.getSize(), lessThanOrEqualTo(8 * 4096L));
+    }
+}
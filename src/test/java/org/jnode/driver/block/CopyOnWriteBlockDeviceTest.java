@@ -0,0 +1,158 @@
+package org.jnode.driver.block;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link CopyOnWriteBlockDevice}.
+ */
+public class CopyOnWriteBlockDeviceTest {
+
+    private static final int BLOCK_SIZE = 512;
+
+    /**
+     * Not a multiple of the block size, so the last block is short.
+     */
+    private static final int SIZE = 64 * BLOCK_SIZE + 100;
+
+    private File directory;
+    private File deltaFile;
+    private byte[] baseData;
+    private byte[] original;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("copyOnWriteDevice").toFile();
+        deltaFile = new File(directory, "delta");
+        baseData = new byte[SIZE];
+        new Random(1).nextBytes(baseData);
+        original = baseData.clone();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testWritesGoToDelta() throws Exception {
+        byte[] expected = baseData.clone();
+
+        try (CopyOnWriteBlockDevice device = open()) {
+            Random random = new Random(2);
+            for (int i = 0; i < 200; i++) {
+                int offset = random.nextInt(SIZE);
+                int length = random.nextInt(Math.min(SIZE - offset, 5 * BLOCK_SIZE) + 1);
+                byte[] data = new byte[length];
+                random.nextBytes(data);
+                device.write(offset, ByteBuffer.wrap(data));
+                System.arraycopy(data, 0, expected, offset, length);
+
+                int readOffset = random.nextInt(SIZE);
+                int readLength = random.nextInt(SIZE - readOffset + 1);
+                ByteBuffer buffer = ByteBuffer.allocate(readLength);
+                device.read(readOffset, buffer);
+                assertThat(buffer.array(), is(Arrays.copyOfRange(expected, readOffset, readOffset + readLength)));
+            }
+
+            assertThat(readAll(device), is(expected));
+        }
+
+        assertThat(baseData, is(original));
+    }
+
+    @Test
+    public void testPartialWriteKeepsRestOfBlock() throws Exception {
+        try (CopyOnWriteBlockDevice device = open()) {
+            device.write(BLOCK_SIZE + 10, ByteBuffer.wrap(new byte[] {1, 2, 3}));
+            assertThat(device.getWrittenBlockCount(), is(1));
+
+            byte[] expected = baseData.clone();
+            expected[BLOCK_SIZE + 10] = 1;
+            expected[BLOCK_SIZE + 11] = 2;
+            expected[BLOCK_SIZE + 12] = 3;
+            assertThat(readAll(device), is(expected));
+        }
+    }
+
+    @Test
+    public void testWriteLastShortBlock() throws Exception {
+        byte[] tail = new byte[100];
+        Arrays.fill(tail, (byte) 7);
+
+        try (CopyOnWriteBlockDevice device = open()) {
+            device.write(SIZE - 100, ByteBuffer.wrap(tail));
+            assertThat(device.getWrittenBlockCount(), is(1));
+
+            ByteBuffer buffer = ByteBuffer.allocate(100);
+            device.read(SIZE - 100, buffer);
+            assertThat(buffer.array(), is(tail));
+        }
+    }
+
+    @Test
+    public void testPersistAndReopen() throws Exception {
+        byte[] expected = baseData.clone();
+        byte[] data = new byte[3 * BLOCK_SIZE];
+        new Random(3).nextBytes(data);
+        System.arraycopy(data, 0, expected, 5 * BLOCK_SIZE + 7, data.length);
+
+        try (CopyOnWriteBlockDevice device = open()) {
+            device.write(5 * BLOCK_SIZE + 7, ByteBuffer.wrap(data));
+        }
+
+        try (CopyOnWriteBlockDevice device = open()) {
+            assertThat(device.getWrittenBlockCount(), is(4));
+            assertThat(readAll(device), is(expected));
+        }
+        assertThat(baseData, is(original));
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        try (CopyOnWriteBlockDevice device = open()) {
+            device.write(0, ByteBuffer.wrap(new byte[4 * BLOCK_SIZE]));
+            device.flush();
+            device.discard();
+
+            assertThat(device.getWrittenBlockCount(), is(0));
+            assertThat(deltaFile.length(), is(0L));
+            assertThat(readAll(device), is(original));
+        }
+
+        try (CopyOnWriteBlockDevice device = open()) {
+            assertThat(readAll(device), is(original));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReopenWithDifferentBlockSize() throws Exception {
+        try (CopyOnWriteBlockDevice device = open()) {
+            device.write(0, ByteBuffer.wrap(new byte[10]));
+        }
+        new CopyOnWriteBlockDevice(new ByteArrayDevice(baseData), deltaFile, 2 * BLOCK_SIZE);
+    }
+
+    private CopyOnWriteBlockDevice open() throws IOException {
+        return new CopyOnWriteBlockDevice(new ByteArrayDevice(baseData), deltaFile, BLOCK_SIZE);
+    }
+
+    private static byte[] readAll(CopyOnWriteBlockDevice device) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) device.getLength());
+        device.read(0, buffer);
+        return buffer.array();
+    }
+}
@@ -0,0 +1,148 @@
+package org.jnode.driver.block;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A simple benchmark comparing random reads through {@link FileChannelDevice} with the seek + read pattern used by
+ * {@link FileDevice}. Since the seek + read pattern shares a file pointer it has to be serialised to be correct when
+ * used from several threads.
+ * <p>
+ * Usage: {@code FileChannelDeviceBenchmark [image-file] [threads] [reads-per-thread] [read-size]}. If no image is
+ * given a temporary 256MB file is created.
+ */
+public class FileChannelDeviceBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        File image;
+        boolean deleteImage = false;
+        if (args.length > 0) {
+            image = new File(args[0]);
+        } else {
+            image = createImage(256 * 1024 * 1024);
+            deleteImage = true;
+        }
+
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int reads = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+        int readSize = args.length > 3 ? Integer.parseInt(args[3]) : 4096;
+
+        try {
+            for (int round = 0; round < 3; round++) {
+                report("seek+read", threads, reads, readSize, runSeekRead(image, threads, reads, readSize));
+                report("FileChannelDevice", threads, reads, readSize,
+                    runFileChannel(image, threads, reads, readSize));
+            }
+        } finally {
+            if (deleteImage) {
+                image.delete();
+            }
+        }
+    }
+
+    private static void report(String name, int threads, int reads, int readSize, long nanos) {
+        double seconds = nanos / 1e9;
+        double totalReads = (double) threads * reads;
+        System.out.printf("%-18s threads:%d reads/s:%.0f MB/s:%.1f%n", name, threads, totalReads / seconds,
+            totalReads * readSize / seconds / (1024 * 1024));
+    }
+
+    private static long runSeekRead(File image, int threads, final int reads, final int readSize)
+        throws Exception {
+
+        final RandomAccessFile file = new RandomAccessFile(image, "r");
+        try {
+            final long length = file.length();
+            return run(threads, new Worker() {
+                @Override
+                public void run(Random random) throws Exception {
+                    byte[] buffer = new byte[readSize];
+                    for (int i = 0; i < reads; i++) {
+                        long offset = nextOffset(random, length, readSize);
+                        synchronized (file) {
+                            file.seek(offset);
+                            file.readFully(buffer);
+                        }
+                    }
+                }
+            });
+        } finally {
+            file.close();
+        }
+    }
+
+    private static long runFileChannel(File image, int threads, final int reads, final int readSize)
+        throws Exception {
+
+        final FileChannelDevice device = new FileChannelDevice(image, "r");
+        try {
+            final long length = device.getLength();
+            return run(threads, new Worker() {
+                @Override
+                public void run(Random random) throws Exception {
+                    ByteBuffer buffer = ByteBuffer.allocate(readSize);
+                    for (int i = 0; i < reads; i++) {
+                        buffer.clear();
+                        device.read(nextOffset(random, length, readSize), buffer);
+                    }
+                }
+            });
+        } finally {
+            device.close();
+        }
+    }
+
+    private static long nextOffset(Random random, long length, int readSize) {
+        long blocks = (length - readSize) / readSize;
+        return (long) (random.nextDouble() * blocks) * readSize;
+    }
+
+    private static long run(int threads, final Worker worker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final long seed = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        worker.run(new Random(seed));
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static File createImage(int size) throws Exception {
+        File image = File.createTempFile("benchmark", ".img");
+        try (RandomAccessFile file = new RandomAccessFile(image, "rw")) {
+            byte[] chunk = new byte[1024 * 1024];
+            Random random = new Random(0);
+            for (int written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                file.write(chunk);
+            }
+        }
+        return image;
+    }
+
+    private interface Worker {
+        void run(Random random) throws Exception;
+    }
+}
@@ -0,0 +1,131 @@
+package org.jnode.driver.block;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link FileChannelDevice}.
+ */
+public class FileChannelDeviceTest {
+
+    private File imageFile;
+
+    private byte[] imageData;
+
+    @Before
+    public void setUp() throws Exception {
+        imageData = new byte[256 * 1024];
+        new Random(1234).nextBytes(imageData);
+        imageFile = File.createTempFile("fileChannelDevice", ".img");
+        Files.write(imageFile.toPath(), imageData);
+    }
+
+    @After
+    public void tearDown() {
+        imageFile.delete();
+    }
+
+    @Test
+    public void testReadHonoursPositionAndLimit() throws Exception {
+        try (FileChannelDevice device = new FileChannelDevice(imageFile, "r")) {
+            ByteBuffer buffer = ByteBuffer.allocate(64);
+            buffer.position(8);
+            buffer.limit(40);
+
+            device.read(1000, buffer);
+
+            assertThat(buffer.position(), is(40));
+            assertThat(buffer.limit(), is(40));
+            byte[] array = buffer.array();
+            for (int i = 0; i < 8; i++) {
+                assertThat(array[i], is((byte) 0));
+            }
+            for (int i = 8; i < 40; i++) {
+                assertThat(array[i], is(imageData[1000 + i - 8]));
+            }
+            for (int i = 40; i < 64; i++) {
+                assertThat(array[i], is((byte) 0));
+            }
+        }
+    }
+
+    @Test
+    public void testReadDirectBuffer() throws Exception {
+        try (FileChannelDevice device = new FileChannelDevice(imageFile, "r")) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+            device.read(12345, buffer);
+            buffer.flip();
+
+            byte[] actual = new byte[4096];
+            buffer.get(actual);
+            for (int i = 0; i < actual.length; i++) {
+                assertThat(actual[i], is(imageData[12345 + i]));
+            }
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void testReadPastEnd() throws Exception {
+        try (FileChannelDevice device = new FileChannelDevice(imageFile, "r")) {
+            device.read(imageData.length - 10, ByteBuffer.allocate(20));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testWriteReadOnly() throws Exception {
+        try (FileChannelDevice device = new FileChannelDevice(imageFile, "r")) {
+            device.write(0, ByteBuffer.allocate(20));
+        }
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (final FileChannelDevice device = new FileChannelDevice(imageFile, "r")) {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int t = 0; t < 8; t++) {
+                final long seed = t;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 2000; i++) {
+                            int length = 1 + random.nextInt(8192);
+                            int offset = random.nextInt(imageData.length - length);
+                            ByteBuffer buffer = ByteBuffer.allocate(length);
+                            device.read(offset, buffer);
+                            for (int j = 0; j < length; j++) {
+                                if (buffer.get(j) != imageData[offset + j]) {
+                                    return false;
+                                }
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+
+            for (Future<Boolean> result : results) {
+                assertThat(result.get(), is(true));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
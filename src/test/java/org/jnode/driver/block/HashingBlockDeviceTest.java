@@ -0,0 +1,104 @@
+package org.jnode.driver.block;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link HashingBlockDevice}.
+ */
+public class HashingBlockDeviceTest {
+
+    /**
+     * Not a multiple of the page or chunk size.
+     */
+    private static final int SIZE = 1024 * 1024 + 123;
+
+    private byte[] data;
+
+    @Before
+    public void setUp() {
+        data = new byte[SIZE];
+        new Random(1).nextBytes(data);
+    }
+
+    @Test
+    public void testHashesMatchSequentialPass() throws Exception {
+        ByteArrayDevice parent = new ByteArrayDevice(data);
+        try (HashingBlockDevice device = new HashingBlockDevice(parent, new SharedPageCache(256 * 1024))) {
+            device.start();
+
+            // Filesystem reads while the hashing runs
+            Random random = new Random(2);
+            for (int i = 0; i < 500; i++) {
+                int offset = random.nextInt(SIZE);
+                int length = random.nextInt(Math.min(SIZE - offset, 16 * 1024) + 1);
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                device.read(offset, buffer);
+                assertThat(buffer.array(), is(Arrays.copyOfRange(data, offset, offset + length)));
+            }
+
+            Map<String, byte[]> hashes = device.getHashes().get(30, TimeUnit.SECONDS);
+            assertThat(hashes.keySet(), contains("MD5", "SHA-1", "SHA-256"));
+            for (Map.Entry<String, byte[]> entry : hashes.entrySet()) {
+                byte[] expected = MessageDigest.getInstance(entry.getKey()).digest(data);
+                assertThat(entry.getKey(), entry.getValue(), is(expected));
+            }
+            assertThat(device.getHashedBytes(), is((long) SIZE));
+        }
+    }
+
+    @Test
+    public void testFilesystemReadsAreServedFromHashingPass() throws Exception {
+        ByteArrayDevice parent = new ByteArrayDevice(data);
+        try (HashingBlockDevice device = new HashingBlockDevice(parent, new SharedPageCache(2 * SIZE), "SHA-256")) {
+            device.start().get(30, TimeUnit.SECONDS);
+            int readCount = parent.getReadCount();
+
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            device.read(500000, buffer);
+            assertThat(buffer.array(), is(Arrays.copyOfRange(data, 500000, 508192)));
+            assertThat(parent.getReadCount(), is(readCount));
+        }
+    }
+
+    @Test
+    public void testHashingReusesCachedPages() throws Exception {
+        ByteArrayDevice parent = new ByteArrayDevice(data);
+        try (HashingBlockDevice device = new HashingBlockDevice(parent, new SharedPageCache(2 * SIZE), "MD5")) {
+            for (int offset = 0; offset < SIZE / 2; offset += 4096) {
+                device.read(offset, ByteBuffer.allocate(4096));
+            }
+            int readCount = parent.getReadCount();
+
+            byte[] hash = device.start().get(30, TimeUnit.SECONDS).get("MD5");
+            assertThat(hash, is(MessageDigest.getInstance("MD5").digest(data)));
+
+            // Only the second half, in chunks of the largest cached read, needed reading
+            int chunks = (SIZE - SIZE / 2 + device.getMaxCachedReadSize() - 1) / device.getMaxCachedReadSize();
+            assertThat(parent.getReadCount() - readCount, is(lessThanOrEqualTo(chunks + 1)));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testWriteFails() throws Exception {
+        ByteArrayDevice parent = new ByteArrayDevice(data);
+        try (HashingBlockDevice device = new HashingBlockDevice(parent, new SharedPageCache(1024 * 1024))) {
+            device.write(0, ByteBuffer.allocate(10));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownAlgorithm() throws Exception {
+        new HashingBlockDevice(new ByteArrayDevice(data), new SharedPageCache(1024 * 1024), "NOT-A-HASH");
+    }
+}
@@ -0,0 +1,74 @@
+package org.jnode.driver.block;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link InstrumentedBlockDevice} and {@link IoHistogram}.
+ */
+public class InstrumentedBlockDeviceTest {
+
+    @Test
+    public void testStatisticsByTag() throws Exception {
+        InstrumentedBlockDevice device = new InstrumentedBlockDevice(new ByteArrayDevice(new byte[64 * 1024]));
+
+        for (int i = 0; i < 10; i++) {
+            device.read(i * 4L, ByteBuffer.allocate(4));
+        }
+
+        String previousTag = BlockIoTag.set(BlockIoTag.NTFS_MFT);
+        try {
+            device.read(0, ByteBuffer.allocate(1024));
+            device.read(1024, ByteBuffer.allocate(1024));
+            device.write(2048, ByteBuffer.allocate(512));
+        } finally {
+            BlockIoTag.restore(previousTag);
+        }
+        assertThat(BlockIoTag.get(), is(nullValue()));
+
+        Map<String, IoStatistics.Snapshot> snapshot = device.snapshot();
+        assertThat(snapshot.keySet(), contains(BlockIoTag.NTFS_MFT, BlockIoTag.UNTAGGED));
+
+        IoStatistics.Snapshot untagged = snapshot.get(BlockIoTag.UNTAGGED);
+        assertThat(untagged.getReadCount(), is(10L));
+        assertThat(untagged.getBytesRead(), is(40L));
+        assertThat(untagged.getReadSizes().getValueAtPercentile(100), is(4L));
+
+        IoStatistics.Snapshot mft = snapshot.get(BlockIoTag.NTFS_MFT);
+        assertThat(mft.getReadCount(), is(2L));
+        assertThat(mft.getWriteCount(), is(1L));
+        assertThat(mft.getBytesWritten(), is(512L));
+
+        assertThat(device.snapshotTotal().getReadCount(), is(12L));
+
+        device.reset();
+        assertThat(device.snapshotTotal().getReadCount(), is(0L));
+        assertThat(device.snapshot().get(BlockIoTag.NTFS_MFT).getBytesRead(), is(0L));
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        for (long value : new long[] { 0, 1, 7, 8, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE }) {
+            int index = IoHistogram.bucketIndex(value);
+            assertThat(index, lessThan(IoHistogram.BUCKET_COUNT));
+            assertThat(IoHistogram.bucketUpperBound(index), greaterThanOrEqualTo(value));
+            if (index > 0) {
+                assertThat(IoHistogram.bucketUpperBound(index - 1), lessThan(value));
+            }
+        }
+
+        IoHistogram histogram = new IoHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        IoHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), is(1000L));
+        assertThat(snapshot.getMax(), is(1000L));
+        assertThat((double) snapshot.getValueAtPercentile(50), closeTo(500, 500 * 0.125));
+        assertThat((double) snapshot.getValueAtPercentile(99), closeTo(990, 990 * 0.125));
+    }
+}
@@ -0,0 +1,135 @@
+package org.jnode.driver.block;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link MappedFileDevice}.
+ */
+public class MappedFileDeviceTest {
+
+    private File imageFile;
+
+    private byte[] imageData;
+
+    @Before
+    public void setUp() throws Exception {
+        // Not a multiple of the window size so the last window is short
+        imageData = new byte[5 * 4096 + 100];
+        new Random(4321).nextBytes(imageData);
+        imageFile = File.createTempFile("mappedFileDevice", ".img");
+        Files.write(imageFile.toPath(), imageData);
+    }
+
+    @After
+    public void tearDown() {
+        imageFile.delete();
+    }
+
+    @Test
+    public void testReadAcrossWindows() throws Exception {
+        try (MappedFileDevice device = new MappedFileDevice(imageFile, "r", 12)) {
+            assertThat(device.getLength(), is((long) imageData.length));
+            assertThat(device.getMappedWindowCount(), is(0));
+
+            ByteBuffer buffer = ByteBuffer.allocate(3 * 4096);
+            device.read(4000, buffer);
+
+            assertThat(device.getMappedWindowCount(), is(4));
+            for (int i = 0; i < buffer.capacity(); i++) {
+                assertThat(buffer.get(i), is(imageData[4000 + i]));
+            }
+
+            ByteBuffer tail = ByteBuffer.allocateDirect(200);
+            device.read(imageData.length - 200, tail);
+            for (int i = 0; i < 200; i++) {
+                assertThat(tail.get(i), is(imageData[imageData.length - 200 + i]));
+            }
+        }
+    }
+
+    @Test
+    public void testWriteAcrossWindows() throws Exception {
+        try (MappedFileDevice device = new MappedFileDevice(imageFile, "rw", 12)) {
+            byte[] data = new byte[300];
+            new Random(1).nextBytes(data);
+            device.write(4096 - 150, ByteBuffer.wrap(data));
+
+            ByteBuffer buffer = ByteBuffer.allocate(300);
+            device.read(4096 - 150, buffer);
+            assertThat(buffer.array(), is(data));
+        }
+
+        byte[] written = Files.readAllBytes(imageFile.toPath());
+        assertThat(written.length, is(imageData.length));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testReadPastEnd() throws Exception {
+        try (MappedFileDevice device = new MappedFileDevice(imageFile, "r", 12)) {
+            device.read(imageData.length - 10, ByteBuffer.allocate(20));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadAfterClose() throws Exception {
+        MappedFileDevice device = new MappedFileDevice(imageFile, "r", 12);
+        device.read(0, ByteBuffer.allocate(100));
+        device.close();
+        device.read(0, ByteBuffer.allocate(100));
+    }
+
+    @Test
+    public void testCloseWhileReading() throws Exception {
+        final MappedFileDevice device = new MappedFileDevice(imageFile, "r", 12);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int thread = 0; thread < 4; thread++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        // Reads until the device is closed, checking every read
+                        ByteBuffer buffer = ByteBuffer.allocate(imageData.length);
+                        int reads = 0;
+                        while (true) {
+                            buffer.clear();
+                            try {
+                                device.read(0, buffer);
+                            } catch (IOException e) {
+                                return reads;
+                            }
+                            assertThat(buffer.get(imageData.length - 1), is(imageData[imageData.length - 1]));
+                            reads++;
+                        }
+                    }
+                }));
+            }
+
+            Thread.sleep(100);
+            device.close();
+            for (Future<Integer> future : futures) {
+                assertThat(future.get(), is(greaterThan(0)));
+            }
+            assertThat(device.getMappedWindowCount(), is(0));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.jnode.driver.block;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link ReadAheadBlockDevice}.
+ */
+public class ReadAheadBlockDeviceTest {
+
+    @Test
+    public void testSequentialReadsArePrefetched() throws Exception {
+        byte[] data = new byte[1024 * 1024 + 1000];
+        new Random(1).nextBytes(data);
+        ByteArrayDevice parent = new ByteArrayDevice(data);
+
+        try (ReadAheadBlockDevice device = new ReadAheadBlockDevice(parent, 16 * 1024, 256 * 1024, 4, null)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            for (int offset = 0; offset < data.length; offset += 4096) {
+                buffer.clear();
+                buffer.limit(Math.min(4096, data.length - offset));
+                device.read(offset, buffer);
+                assertThat(Arrays.copyOf(buffer.array(), buffer.limit()),
+                    is(Arrays.copyOfRange(data, offset, offset + buffer.limit())));
+            }
+
+            assertThat(parent.getReadCount(), lessThan(20));
+            assertThat(device.getPrefetchedBytes(), greaterThan(1000L * 1000));
+        }
+    }
+
+    @Test
+    public void testInterleavedStreams() throws Exception {
+        byte[] data = new byte[512 * 1024];
+        new Random(2).nextBytes(data);
+        ByteArrayDevice parent = new ByteArrayDevice(data);
+
+        try (ReadAheadBlockDevice device = new ReadAheadBlockDevice(parent, 8 * 1024, 64 * 1024, 4, null)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            for (int offset = 0; offset < 128 * 1024; offset += 1024) {
+                for (int stream = 0; stream < 3; stream++) {
+                    int streamOffset = stream * 160 * 1024 + offset;
+                    buffer.clear();
+                    device.read(streamOffset, buffer);
+                    assertThat(buffer.array(), is(Arrays.copyOfRange(data, streamOffset, streamOffset + 1024)));
+                }
+            }
+
+            assertThat(parent.getReadCount(), lessThan(60));
+        }
+    }
+
+    @Test
+    public void testWriteDropsPrefetchedData() throws Exception {
+        byte[] data = new byte[256 * 1024];
+        ByteArrayDevice parent = new ByteArrayDevice(data);
+
+        try (ReadAheadBlockDevice device = new ReadAheadBlockDevice(parent, 16 * 1024, 64 * 1024, 2, null)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            device.read(0, buffer);
+            buffer.clear();
+            device.read(1024, buffer);
+
+            byte[] update = new byte[1024];
+            Arrays.fill(update, (byte) 7);
+            device.write(2048, ByteBuffer.wrap(update));
+
+            buffer.clear();
+            device.read(2048, buffer);
+            assertThat(buffer.array(), is(update));
+        }
+    }
+}
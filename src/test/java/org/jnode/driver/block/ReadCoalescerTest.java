@@ -0,0 +1,55 @@
+package org.jnode.driver.block;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link ReadCoalescer}.
+ */
+public class ReadCoalescerTest {
+
+    @Test
+    public void testNeighbouringRequestsAreMerged() throws Exception {
+        byte[] data = new byte[1024 * 1024];
+        new Random(1).nextBytes(data);
+        ByteArrayDevice device = new ByteArrayDevice(data);
+
+        // Out of order, with small gaps, and one far away request
+        long[] offsets = { 8192, 0, 4096 + 100, 900 * 1024, 12288 };
+        List<ReadRequest> requests = new ArrayList<ReadRequest>();
+        for (long offset : offsets) {
+            requests.add(new ReadRequest(offset, ByteBuffer.allocate(4000)));
+        }
+
+        ReadCoalescer.read(device, requests, 1024, 1024 * 1024);
+
+        assertThat(device.getReadCount(), is(2));
+        for (ReadRequest request : requests) {
+            int offset = (int) request.getDevOffset();
+            assertThat(request.getDest().hasRemaining(), is(false));
+            assertThat(request.getDest().array(), is(Arrays.copyOfRange(data, offset, offset + 4000)));
+        }
+    }
+
+    @Test
+    public void testMaxReadSizeSplitsGroups() throws Exception {
+        byte[] data = new byte[64 * 1024];
+        ByteArrayDevice device = new ByteArrayDevice(data);
+
+        List<ReadRequest> requests = new ArrayList<ReadRequest>();
+        for (int i = 0; i < 8; i++) {
+            requests.add(new ReadRequest(i * 4096L, ByteBuffer.allocate(4096)));
+        }
+
+        ReadCoalescer.read(device, requests, 0, 16 * 1024);
+
+        assertThat(device.getReadCount(), is(2));
+    }
+}
@@ -0,0 +1,123 @@
+package org.jnode.driver.block;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.jnode.driver.Device;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link SplitFileDevice}.
+ */
+public class SplitFileDeviceTest {
+
+    /**
+     * The segment sizes, including an empty segment and a short last segment.
+     */
+    private static final int[] SEGMENT_SIZES = {4096, 1000, 0, 8192, 300};
+
+    private File directory;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("splitFileDevice").toFile();
+
+        int size = 0;
+        for (int segmentSize : SEGMENT_SIZES) {
+            size += segmentSize;
+        }
+        data = new byte[size];
+        new Random(1).nextBytes(data);
+
+        int offset = 0;
+        for (int i = 0; i < SEGMENT_SIZES.length; i++) {
+            File file = new File(directory, String.format("disk.%03d", i + 1));
+            Files.write(file.toPath(), Arrays.copyOfRange(data, offset, offset + SEGMENT_SIZES[i]));
+            offset += SEGMENT_SIZES[i];
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testFindSegments() throws Exception {
+        List<File> segments = SplitFileDevice.findSegments(new File(directory, "disk.001"));
+        assertThat(segments.size(), is(SEGMENT_SIZES.length));
+        assertThat(segments.get(4).getName(), is("disk.005"));
+
+        assertThat(SplitFileDevice.findSegments(new File(directory, "disk.003")).size(), is(3));
+
+        File raw = new File(directory, "disk.img");
+        Files.write(raw.toPath(), new byte[512]);
+        assertThat(SplitFileDevice.findSegments(raw), is(Arrays.asList(raw)));
+    }
+
+    @Test
+    public void testReadAcrossSegments() throws Exception {
+        try (SplitFileDevice device = new SplitFileDevice(new File(directory, "disk.001"))) {
+            assertThat(device.getSegmentCount(), is(SEGMENT_SIZES.length));
+            assertThat(device.getLength(), is((long) data.length));
+
+            ByteBuffer buffer = ByteBuffer.allocate(data.length);
+            device.read(0, buffer);
+            assertThat(buffer.array(), is(data));
+
+            Random random = new Random(2);
+            for (int i = 0; i < 500; i++) {
+                int offset = random.nextInt(data.length);
+                int length = random.nextInt(data.length - offset + 1);
+                ByteBuffer slice = ByteBuffer.allocateDirect(length);
+                device.read(offset, slice);
+                assertThat(slice.hasRemaining(), is(false));
+
+                byte[] actual = new byte[length];
+                slice.flip();
+                slice.get(actual);
+                assertThat(actual, is(Arrays.copyOfRange(data, offset, offset + length)));
+            }
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void testReadPastEnd() throws Exception {
+        try (SplitFileDevice device = new SplitFileDevice(new File(directory, "disk.001"))) {
+            device.read(data.length - 10, ByteBuffer.allocate(20));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadAfterClose() throws Exception {
+        SplitFileDevice device = new SplitFileDevice(new File(directory, "disk.001"));
+        device.close();
+        device.read(0, ByteBuffer.allocate(10));
+    }
+
+    @Test
+    public void testOpenedByDiskImages() throws Exception {
+        Device device = DiskImages.open(new File(directory, "disk.001"));
+        try {
+            assertThat(device, instanceOf(SplitFileDevice.class));
+            assertThat(((SplitFileDevice) device).getLength(), is((long) data.length));
+        } finally {
+            ((Closeable) device).close();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package org.jnode.driver.block.ewf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import org.jnode.driver.block.AsyncBlockDevice;
+import org.jnode.driver.block.BlockIoExecutor;
+import org.jnode.util.LittleEndian;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link EwfDevice}.
+ */
+public class EwfDeviceTest {
+
+    private static final int BYTES_PER_SECTOR = 512;
+    private static final int SECTORS_PER_CHUNK = 8;
+    private static final int CHUNK_SIZE = BYTES_PER_SECTOR * SECTORS_PER_CHUNK;
+    private static final int SECTOR_COUNT = 84;
+
+    private File directory;
+    private byte[] media;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("ewfDevice").toFile();
+
+        // Alternate compressible and random chunks, so both storage forms are used
+        media = new byte[SECTOR_COUNT * BYTES_PER_SECTOR];
+        Random random = new Random(1);
+        for (int offset = 0; offset < media.length; offset += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, media.length - offset);
+            if ((offset / CHUNK_SIZE) % 2 == 0) {
+                Arrays.fill(media, offset, offset + length, (byte) (offset / CHUNK_SIZE));
+            } else {
+                byte[] chunk = new byte[length];
+                random.nextBytes(chunk);
+                System.arraycopy(chunk, 0, media, offset, length);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testReadAcrossSegments() throws Exception {
+        File first = writeImage("image", 6);
+
+        try (EwfDevice device = new EwfDevice(first)) {
+            assertThat(device.getSegmentCount(), is(2));
+            assertThat(device.getChunkCount(), is(11L));
+            assertThat(device.getChunkSize(), is(CHUNK_SIZE));
+            assertThat(device.getSectorSize(), is(BYTES_PER_SECTOR));
+            assertThat(device.getLength(), is((long) media.length));
+
+            ByteBuffer buffer = ByteBuffer.allocate(media.length);
+            device.read(0, buffer);
+            assertThat(buffer.array(), is(media));
+        }
+    }
+
+    @Test
+    public void testUnalignedReads() throws Exception {
+        File first = writeImage("image", 11);
+
+        try (EwfDevice device = new EwfDevice(Collections.singletonList(first), 4, 2, null)) {
+            Random random = new Random(2);
+            for (int i = 0; i < 200; i++) {
+                int offset = random.nextInt(media.length);
+                int length = random.nextInt(Math.min(3 * CHUNK_SIZE, media.length - offset) + 1);
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                device.read(offset, buffer);
+                assertThat(buffer.array(), is(Arrays.copyOfRange(media, offset, offset + length)));
+            }
+        }
+    }
+
+    @Test
+    public void testSequentialReadInflatesAhead() throws Exception {
+        File first = writeImage("image", 6);
+
+        try (EwfDevice device = new EwfDevice(first)) {
+            for (int offset = 0; offset < media.length; offset += 1024) {
+                ByteBuffer buffer = ByteBuffer.allocate(Math.min(1024, media.length - offset));
+                device.read(offset, buffer);
+                assertThat(buffer.array(), is(Arrays.copyOfRange(media, offset, offset + buffer.capacity())));
+            }
+            assertThat(device.getInflatedChunkCount(), is(11L));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testReadsWhenReadAheadIsRejected() throws Exception {
+        File first = writeImage("image", 6);
+
+        BlockIoExecutor executor = new BlockIoExecutor("ewf-test", 1, 4);
+        executor.close();
+
+        try (EwfDevice device = new EwfDevice(EwfDevice.findSegments(first), 8, 4, executor)) {
+            for (int offset = 0; offset < media.length; offset += 1024) {
+                ByteBuffer buffer = ByteBuffer.allocate(Math.min(1024, media.length - offset));
+                device.read(offset, buffer);
+                assertThat(buffer.array(), is(Arrays.copyOfRange(media, offset, offset + buffer.capacity())));
+            }
+            assertThat(device.getInflatedChunkCount(), is(11L));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testAsyncReadsOnTheReadAheadExecutor() throws Exception {
+        File first = writeImage("image", 6);
+
+        // The async read holds the only permit while the device reads ahead on the same executor
+        try (BlockIoExecutor executor = new BlockIoExecutor("ewf-test", 1, 1);
+             EwfDevice device = new EwfDevice(EwfDevice.findSegments(first), 8, 4, executor);
+             AsyncBlockDevice async = new AsyncBlockDevice(device, executor)) {
+            for (int offset = 0; offset < media.length; offset += 1024) {
+                ByteBuffer buffer = ByteBuffer.allocate(Math.min(1024, media.length - offset));
+                AsyncBlockDevice.await(async.readAsync(offset, buffer));
+                assertThat(buffer.array(), is(Arrays.copyOfRange(media, offset, offset + buffer.capacity())));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadPastEnd() throws Exception {
+        File first = writeImage("image", 6);
+
+        try (EwfDevice device = new EwfDevice(first)) {
+            device.read(media.length - 10, ByteBuffer.allocate(20));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testChecksumMismatch() throws Exception {
+        File first = writeImage("image", 11);
+
+        // Corrupt the first uncompressed chunk
+        byte[] image = Files.readAllBytes(first.toPath());
+        int offset = indexOf(image, Arrays.copyOfRange(media, CHUNK_SIZE, CHUNK_SIZE + 64));
+        image[offset + 10] ^= 1;
+        Files.write(first.toPath(), image);
+
+        try (EwfDevice device = new EwfDevice(Collections.singletonList(first), 4, 0, null)) {
+            device.read(0, ByteBuffer.allocate(CHUNK_SIZE));
+            device.read(CHUNK_SIZE, ByteBuffer.allocate(CHUNK_SIZE));
+        }
+    }
+
+    @Test
+    public void testSegmentExtensions() {
+        assertThat(EwfDevice.getSegmentExtension('E', 1), is("E01"));
+        assertThat(EwfDevice.getSegmentExtension('E', 99), is("E99"));
+        assertThat(EwfDevice.getSegmentExtension('E', 100), is("EAA"));
+        assertThat(EwfDevice.getSegmentExtension('E', 101), is("EAB"));
+        assertThat(EwfDevice.getSegmentExtension('E', 775), is("EZZ"));
+        assertThat(EwfDevice.getSegmentExtension('E', 776), is("FAA"));
+        assertThat(EwfDevice.getSegmentExtension('Z', 776), is(nullValue()));
+    }
+
+    @Test
+    public void testFindSegments() throws Exception {
+        File first = writeImage("image", 6);
+        List<File> segments = EwfDevice.findSegments(first);
+        assertThat(segments, contains(first, new File(directory, "image.E02")));
+    }
+
+    /**
+     * Writes the media as an EWF image.
+     *
+     * @param name the base file name.
+     * @param chunksPerSegment the number of chunks to put in each segment.
+     * @return the first segment file.
+     */
+    private File writeImage(String name, int chunksPerSegment) throws IOException {
+        int chunkCount = (media.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int segmentCount = (chunkCount + chunksPerSegment - 1) / chunksPerSegment;
+
+        for (int segment = 1; segment <= segmentCount; segment++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] header = new byte[13];
+            System.arraycopy(EwfSegment.SIGNATURE, 0, header, 0, 8);
+            header[8] = 1;
+            LittleEndian.setInt16(header, 9, segment);
+            out.write(header);
+
+            if (segment == 1) {
+                byte[] volume = new byte[1052];
+                LittleEndian.setInt32(volume, 4, chunkCount);
+                LittleEndian.setInt32(volume, 8, SECTORS_PER_CHUNK);
+                LittleEndian.setInt32(volume, 12, BYTES_PER_SECTOR);
+                LittleEndian.setInt32(volume, 16, SECTOR_COUNT);
+                writeSection(out, "volume", volume);
+            }
+
+            // The chunks go in a sectors section and the table offsets are relative to the start of its data
+            int firstChunk = (segment - 1) * chunksPerSegment;
+            int lastChunk = Math.min(firstChunk + chunksPerSegment, chunkCount);
+            long sectorsData = out.size() + EwfSegment.SECTION_DESCRIPTOR_SIZE;
+            ByteArrayOutputStream sectors = new ByteArrayOutputStream();
+            byte[] table = new byte[EwfSegment.TABLE_HEADER_SIZE + (lastChunk - firstChunk) * 4 + 4];
+            LittleEndian.setInt32(table, 0, lastChunk - firstChunk);
+            LittleEndian.setInt64(table, 8, sectorsData);
+
+            for (int chunk = firstChunk; chunk < lastChunk; chunk++) {
+                int offset = chunk * CHUNK_SIZE;
+                int length = Math.min(CHUNK_SIZE, media.length - offset);
+                int entry = sectors.size();
+
+                if (chunk % 2 == 0) {
+                    Deflater deflater = new Deflater();
+                    deflater.setInput(media, offset, length);
+                    deflater.finish();
+                    byte[] compressed = new byte[length + 64];
+                    int size = deflater.deflate(compressed);
+                    deflater.end();
+                    sectors.write(compressed, 0, size);
+                    entry |= 0x80000000;
+                } else {
+                    Adler32 adler = new Adler32();
+                    adler.update(media, offset, length);
+                    byte[] checksum = new byte[4];
+                    LittleEndian.setInt32(checksum, 0, (int) adler.getValue());
+                    sectors.write(media, offset, length);
+                    sectors.write(checksum);
+                }
+
+                LittleEndian.setInt32(table, EwfSegment.TABLE_HEADER_SIZE + (chunk - firstChunk) * 4, entry);
+            }
+
+            writeSection(out, "sectors", sectors.toByteArray());
+            writeSection(out, "table", table);
+            writeSection(out, "table2", table);
+            writeSection(out, segment == segmentCount ? "done" : "next", new byte[0]);
+
+            File file = new File(directory, name + ".E0" + segment);
+            Files.write(file.toPath(), out.toByteArray());
+        }
+
+        return new File(directory, name + ".E01");
+    }
+
+    private static void writeSection(ByteArrayOutputStream out, String type, byte[] data) throws IOException {
+        long offset = out.size();
+        long size = EwfSegment.SECTION_DESCRIPTOR_SIZE + data.length;
+        boolean last = "done".equals(type) || "next".equals(type);
+
+        byte[] descriptor = new byte[EwfSegment.SECTION_DESCRIPTOR_SIZE];
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(typeBytes, 0, descriptor, 0, typeBytes.length);
+        LittleEndian.setInt64(descriptor, 16, last ? offset : offset + size);
+        LittleEndian.setInt64(descriptor, 24, size);
+        out.write(descriptor);
+        out.write(data);
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        for (int i = 0; i <= data.length - pattern.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + pattern.length), pattern)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Pattern not found");
+    }
+}
@@ -0,0 +1,199 @@
+package org.jnode.driver.block.qcow2;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.DiskImages;
+import org.jnode.driver.block.FSBlockDeviceAPI;
+import org.jnode.util.BigEndian;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link Qcow2Device}.
+ */
+public class Qcow2DeviceTest {
+
+    private static final int CLUSTER_BITS = 12;
+    private static final int CLUSTER_SIZE = 1 << CLUSTER_BITS;
+    private static final long IMAGE_SIZE = 3 * 1024 * 1024;
+
+    private File directory;
+    private byte[] backingData;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("qcow2Device").toFile();
+        backingData = new byte[(int) (IMAGE_SIZE - IMAGE_SIZE / 6)];
+        new Random(1).nextBytes(backingData);
+        Files.write(new File(directory, "backing.img").toPath(), backingData);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testReadWithBackingFile() throws Exception {
+        byte[] expected = new byte[(int) IMAGE_SIZE];
+        System.arraycopy(backingData, 0, expected, 0, backingData.length);
+        File image = writeImage("image.qcow2", "backing.img", expected);
+
+        try (Qcow2Device device = new Qcow2Device(image)) {
+            assertThat(device.getLength(), is(IMAGE_SIZE));
+            assertThat(device.getClusterSize(), is(CLUSTER_SIZE));
+            assertThat(device.getBacking(), is(notNullValue()));
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) IMAGE_SIZE);
+            device.read(0, buffer);
+            assertThat(Arrays.equals(buffer.array(), expected), is(true));
+
+            Random random = new Random(2);
+            for (int i = 0; i < 200; i++) {
+                int offset = random.nextInt((int) IMAGE_SIZE);
+                int length = random.nextInt(Math.min(4 * CLUSTER_SIZE, (int) IMAGE_SIZE - offset) + 1);
+                ByteBuffer slice = ByteBuffer.allocate(length);
+                device.read(offset, slice);
+                assertThat(slice.array(), is(Arrays.copyOfRange(expected, offset, offset + length)));
+            }
+        }
+    }
+
+    @Test
+    public void testUnallocatedReadsZerosWithoutBackingFile() throws Exception {
+        byte[] expected = new byte[(int) IMAGE_SIZE];
+        File image = writeImage("image.qcow2", null, expected);
+
+        try (Qcow2Device device = new Qcow2Device(image)) {
+            assertThat(device.getBacking(), is(nullValue()));
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) IMAGE_SIZE);
+            device.read(0, buffer);
+            assertThat(Arrays.equals(buffer.array(), expected), is(true));
+        }
+    }
+
+    @Test
+    public void testOpenDetectsFormat() throws Exception {
+        byte[] expected = new byte[(int) IMAGE_SIZE];
+        File image = writeImage("image.qcow2", null, expected);
+
+        Device device = DiskImages.open(image);
+        try {
+            assertThat(device, instanceOf(Qcow2Device.class));
+            assertThat(device.getAPI(FSBlockDeviceAPI.class).getLength(), is(IMAGE_SIZE));
+        } finally {
+            ((Closeable) device).close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testBackingFileIsItself() throws Exception {
+        File image = writeImage("image.qcow2", "image.qcow2", new byte[(int) IMAGE_SIZE]);
+        DiskImages.open(image);
+    }
+
+    @Test(expected = IOException.class)
+    public void testBackingFilesLoop() throws Exception {
+        File image = writeImage("first.qcow2", "second.qcow2", new byte[(int) IMAGE_SIZE]);
+        writeImage("second.qcow2", "./first.qcow2", new byte[(int) IMAGE_SIZE]);
+        new Qcow2Device(image);
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotQcow2() throws Exception {
+        new Qcow2Device(new File(directory, "backing.img"));
+    }
+
+    /**
+     * Writes a version 3 image. Guest clusters 0 and 1 are stored contiguously, cluster 2 is compressed, cluster 3 is
+     * a zero cluster, cluster 5 is stored out of order and the rest, including the whole second L2 range, are
+     * unallocated.
+     *
+     * @param name the file name.
+     * @param backingName the backing file name, or {@code null}.
+     * @param expected the backing data, which is updated with the data written to the image.
+     * @return the image file.
+     */
+    private File writeImage(String name, String backingName, byte[] expected) throws IOException {
+        byte[] image = new byte[10 * CLUSTER_SIZE];
+        Random random = new Random(3);
+
+        // Header in cluster 0
+        BigEndian.setInt32(image, 0, Qcow2Device.MAGIC);
+        BigEndian.setInt32(image, 4, 3);
+        BigEndian.setInt32(image, 20, CLUSTER_BITS);
+        BigEndian.setInt64(image, 24, IMAGE_SIZE);
+        BigEndian.setInt32(image, 36, 2);
+        BigEndian.setInt64(image, 40, CLUSTER_SIZE);
+        BigEndian.setInt32(image, 96, 4);
+        BigEndian.setInt32(image, 100, 104);
+        if (backingName != null) {
+            byte[] nameBytes = backingName.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(nameBytes, 0, image, 512, nameBytes.length);
+            BigEndian.setInt64(image, 8, 512);
+            BigEndian.setInt32(image, 16, nameBytes.length);
+        }
+
+        // L1 table in cluster 1, L2 table in cluster 2
+        BigEndian.setInt64(image, CLUSTER_SIZE, (2L * CLUSTER_SIZE) | (1L << 63));
+        int l2 = 2 * CLUSTER_SIZE;
+
+        // Guest clusters 0 and 1 at host clusters 3 and 4
+        for (int cluster = 0; cluster < 2; cluster++) {
+            byte[] data = new byte[CLUSTER_SIZE];
+            random.nextBytes(data);
+            System.arraycopy(data, 0, image, (3 + cluster) * CLUSTER_SIZE, CLUSTER_SIZE);
+            System.arraycopy(data, 0, expected, cluster * CLUSTER_SIZE, CLUSTER_SIZE);
+            BigEndian.setInt64(image, l2 + cluster * 8, (3L + cluster) * CLUSTER_SIZE);
+        }
+
+        // Guest cluster 2 compressed, at an unaligned offset in host cluster 5
+        byte[] plain = new byte[CLUSTER_SIZE];
+        for (int i = 0; i < plain.length; i++) {
+            plain[i] = (byte) (i / 100);
+        }
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(plain);
+        deflater.finish();
+        byte[] compressed = new byte[CLUSTER_SIZE];
+        int compressedSize = deflater.deflate(compressed);
+        deflater.end();
+        long compressedOffset = 5L * CLUSTER_SIZE + 100;
+        System.arraycopy(compressed, 0, image, (int) compressedOffset, compressedSize);
+        System.arraycopy(plain, 0, expected, 2 * CLUSTER_SIZE, CLUSTER_SIZE);
+        long sectors = (100 + compressedSize + 511) / 512;
+        int offsetBits = 62 - (CLUSTER_BITS - 8);
+        BigEndian.setInt64(image, l2 + 2 * 8, (1L << 62) | ((sectors - 1) << offsetBits) | compressedOffset);
+
+        // Guest cluster 3 reads as zeros, even with a backing file
+        Arrays.fill(expected, 3 * CLUSTER_SIZE, 4 * CLUSTER_SIZE, (byte) 0);
+        BigEndian.setInt64(image, l2 + 3 * 8, 1L);
+
+        // Guest cluster 5 at host cluster 7
+        byte[] data = new byte[CLUSTER_SIZE];
+        random.nextBytes(data);
+        System.arraycopy(data, 0, image, 7 * CLUSTER_SIZE, CLUSTER_SIZE);
+        System.arraycopy(data, 0, expected, 5 * CLUSTER_SIZE, CLUSTER_SIZE);
+        BigEndian.setInt64(image, l2 + 5 * 8, 7L * CLUSTER_SIZE);
+
+        File file = new File(directory, name);
+        Files.write(file.toPath(), image);
+        return file;
+    }
+}
@@ -0,0 +1,198 @@
+package org.jnode.driver.block.vhd;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.DiskImages;
+import org.jnode.util.BigEndian;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link VhdDevice}.
+ */
+public class VhdDeviceTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCK_COUNT = 4;
+    private static final int SIZE = BLOCK_SIZE * BLOCK_COUNT;
+
+    private File directory;
+    private byte[] parentData;
+    private File parentFile;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("vhdDevice").toFile();
+        parentData = new byte[SIZE];
+        new Random(1).nextBytes(parentData);
+
+        // A fixed image is the data followed by the footer
+        byte[] fixed = Arrays.copyOf(parentData, SIZE + VhdDevice.FOOTER_SIZE);
+        System.arraycopy(createFooter(VhdDevice.TYPE_FIXED, -1), 0, fixed, SIZE, VhdDevice.FOOTER_SIZE);
+        parentFile = new File(directory, "parent.vhd");
+        Files.write(parentFile.toPath(), fixed);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testFixed() throws Exception {
+        try (VhdDevice device = new VhdDevice(parentFile)) {
+            assertThat(device.getDiskType(), is(VhdDevice.TYPE_FIXED));
+            assertThat(device.getLength(), is((long) SIZE));
+            assertThat(readAll(device), is(parentData));
+        }
+    }
+
+    @Test
+    public void testDynamic() throws Exception {
+        byte[] expected = new byte[SIZE];
+        byte[] block = randomBlock(2);
+        System.arraycopy(block, 0, expected, 2 * BLOCK_SIZE, BLOCK_SIZE);
+
+        // Only block 2 is allocated, the rest read as zeros
+        File image = writeDynamic("dynamic.vhd", VhdDevice.TYPE_DYNAMIC, new int[] {-1, -1, 0, -1},
+            new byte[][] {block}, new byte[] {0});
+
+        try (VhdDevice device = new VhdDevice(image)) {
+            assertThat(device.getDiskType(), is(VhdDevice.TYPE_DYNAMIC));
+            assertThat(device.getParent(), is(nullValue()));
+            assertThat(readAll(device), is(expected));
+        }
+    }
+
+    @Test
+    public void testDifferencing() throws Exception {
+        byte[] expected = parentData.clone();
+        byte[] block = randomBlock(3);
+
+        // Block 1 has sectors 0, 2 and 3 in this image, the rest come from the parent
+        for (int sector : new int[] {0, 2, 3}) {
+            System.arraycopy(block, sector * 512, expected, BLOCK_SIZE + sector * 512, 512);
+        }
+        File image = writeDynamic("child.vhd", VhdDevice.TYPE_DIFFERENCING, new int[] {-1, 0, -1, -1},
+            new byte[][] {block}, new byte[] {(byte) 0xb0});
+
+        Device opened = DiskImages.open(image);
+        try {
+            assertThat(opened, instanceOf(VhdDevice.class));
+            VhdDevice device = (VhdDevice) opened;
+            assertThat(device.getParent(), instanceOf(VhdDevice.class));
+            assertThat(readAll(device), is(expected));
+
+            Random random = new Random(4);
+            for (int i = 0; i < 100; i++) {
+                int offset = random.nextInt(SIZE);
+                int length = random.nextInt(SIZE - offset + 1);
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                device.read(offset, buffer);
+                assertThat(buffer.array(), is(Arrays.copyOfRange(expected, offset, offset + length)));
+            }
+        } finally {
+            ((Closeable) opened).close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testDifferencingParentIsItself() throws Exception {
+        // Replaces the fixed parent with a differencing image which names itself as its parent
+        File image = writeDynamic("parent.vhd", VhdDevice.TYPE_DIFFERENCING, new int[] {-1, -1, -1, -1},
+            new byte[0][], new byte[0]);
+        DiskImages.open(image);
+    }
+
+    private static byte[] readAll(VhdDevice device) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) device.getLength());
+        device.read(0, buffer);
+        return buffer.array();
+    }
+
+    private static byte[] randomBlock(long seed) {
+        byte[] block = new byte[BLOCK_SIZE];
+        new Random(seed).nextBytes(block);
+        return block;
+    }
+
+    private static byte[] createFooter(int type, long dataOffset) {
+        byte[] footer = new byte[VhdDevice.FOOTER_SIZE];
+        System.arraycopy(VhdDevice.FOOTER_COOKIE, 0, footer, 0, 8);
+        BigEndian.setInt64(footer, 16, dataOffset);
+        BigEndian.setInt64(footer, 40, SIZE);
+        BigEndian.setInt64(footer, 48, SIZE);
+        BigEndian.setInt32(footer, 60, type);
+        return footer;
+    }
+
+    /**
+     * Writes a dynamic or differencing image: footer copy, dynamic header, BAT, parent locator, blocks, footer.
+     *
+     * @param name the file name.
+     * @param type the disk type.
+     * @param batBlocks the index into {@code blocks} for each BAT entry, or -1 if the block is unallocated.
+     * @param blocks the block data.
+     * @param bitmaps the first byte of the sector bitmap for each block.
+     * @return the image file.
+     */
+    private File writeDynamic(String name, int type, int[] batBlocks, byte[][] blocks, byte[] bitmaps)
+        throws IOException {
+        int headerOffset = 512;
+        int batOffset = headerOffset + VhdDevice.DYNAMIC_HEADER_SIZE;
+        int locatorOffset = batOffset + 512;
+        int blocksOffset = locatorOffset + 512;
+        int blockStride = 512 + BLOCK_SIZE;
+
+        byte[] image = new byte[blocksOffset + blocks.length * blockStride + VhdDevice.FOOTER_SIZE];
+        byte[] footer = createFooter(type, headerOffset);
+        System.arraycopy(footer, 0, image, 0, footer.length);
+        System.arraycopy(footer, 0, image, image.length - footer.length, footer.length);
+
+        System.arraycopy("cxsparse".getBytes(StandardCharsets.US_ASCII), 0, image, headerOffset, 8);
+        BigEndian.setInt64(image, headerOffset + 8, -1);
+        BigEndian.setInt64(image, headerOffset + 16, batOffset);
+        BigEndian.setInt32(image, headerOffset + 28, batBlocks.length);
+        BigEndian.setInt32(image, headerOffset + 32, BLOCK_SIZE);
+
+        if (type == VhdDevice.TYPE_DIFFERENCING) {
+            byte[] path = ".\\parent.vhd".getBytes(Charset.forName("UTF-16LE"));
+            System.arraycopy(path, 0, image, locatorOffset, path.length);
+            int locator = headerOffset + 576;
+            BigEndian.setInt32(image, locator, 0x57327275);
+            BigEndian.setInt32(image, locator + 4, 512);
+            BigEndian.setInt32(image, locator + 8, path.length);
+            BigEndian.setInt64(image, locator + 16, locatorOffset);
+        }
+
+        for (int i = 0; i < batBlocks.length; i++) {
+            int entry = -1;
+            if (batBlocks[i] >= 0) {
+                int blockOffset = blocksOffset + batBlocks[i] * blockStride;
+                image[blockOffset] = bitmaps[batBlocks[i]];
+                System.arraycopy(blocks[batBlocks[i]], 0, image, blockOffset + 512, BLOCK_SIZE);
+                entry = blockOffset / 512;
+            }
+            BigEndian.setInt32(image, batOffset + i * 4, entry);
+        }
+
+        File file = new File(directory, name);
+        Files.write(file.toPath(), image);
+        return file;
+    }
+}
@@ -0,0 +1,234 @@
+package org.jnode.driver.block.vhd;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import org.jnode.driver.block.DiskImages;
+import org.jnode.driver.block.FileChannelDevice;
+import org.jnode.util.LittleEndian;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link VhdxDevice}.
+ */
+public class VhdxDeviceTest {
+
+    private static final int MB = 1024 * 1024;
+    private static final int BLOCK_SIZE = MB;
+    private static final int SIZE = 4 * MB;
+    private static final int CHUNK_RATIO = 4096;
+
+    private File directory;
+    private byte[] parentData;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("vhdxDevice").toFile();
+        parentData = new byte[SIZE];
+        new Random(1).nextBytes(parentData);
+        Files.write(new File(directory, "parent.img").toPath(), parentData);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testGuid() {
+        byte[] data = {0x66, 0x77, (byte) 0xc2, 0x2d, 0x23, (byte) 0xf6, 0x00, 0x42, (byte) 0x9d, 0x64, 0x11, 0x5e,
+            (byte) 0x9b, (byte) 0xfd, 0x4a, 0x08};
+        assertThat(VhdxDevice.readGuid(data, 0), is(UUID.fromString("2DC27766-F623-4200-9D64-115E9BFD4A08")));
+    }
+
+    @Test
+    public void testDynamic() throws Exception {
+        byte[] image = createImage(false);
+        byte[] expected = new byte[SIZE];
+
+        // Block 0 present, block 1 zero, block 2 not present, block 3 present
+        byte[] block0 = randomBlock(2);
+        byte[] block3 = randomBlock(3);
+        image = setBlock(image, 0, 6, 3 * MB, block0);
+        image = setBlock(image, 1, 2, 0, null);
+        image = setBlock(image, 3, 6, 4 * MB, block3);
+        System.arraycopy(block0, 0, expected, 0, BLOCK_SIZE);
+        System.arraycopy(block3, 0, expected, 3 * MB, BLOCK_SIZE);
+
+        File file = new File(directory, "dynamic.vhdx");
+        Files.write(file.toPath(), image);
+
+        try (VhdxDevice device = new VhdxDevice(file)) {
+            assertThat(device.getLength(), is((long) SIZE));
+            assertThat(device.getBlockSize(), is(BLOCK_SIZE));
+            assertThat(device.getSectorSize(), is(512));
+            assertThat(device.getParent(), is(nullValue()));
+
+            ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+            device.read(0, buffer);
+            assertThat(Arrays.equals(buffer.array(), expected), is(true));
+        }
+    }
+
+    @Test
+    public void testDifferencing() throws Exception {
+        byte[] image = createImage(true);
+        byte[] expected = parentData.clone();
+
+        // Block 0 partially present: every other sector of the first 64 sectors is in this image
+        byte[] block0 = randomBlock(4);
+        byte[] bitmap = new byte[MB];
+        for (int sector = 0; sector < 64; sector += 2) {
+            bitmap[sector / 8] |= 1 << (sector % 8);
+            System.arraycopy(block0, sector * 512, expected, sector * 512, 512);
+        }
+        image = setBlock(image, 0, 7, 3 * MB, block0);
+        image = setBlock(image, CHUNK_RATIO, 6, 4 * MB, bitmap);
+
+        // Block 2 zero
+        image = setBlock(image, 2, 2, 0, null);
+        Arrays.fill(expected, 2 * MB, 3 * MB, (byte) 0);
+
+        File file = new File(directory, "child.vhdx");
+        Files.write(file.toPath(), image);
+
+        try (VhdxDevice device = new VhdxDevice(file)) {
+            assertThat(device.getParent(), instanceOf(FileChannelDevice.class));
+
+            ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+            device.read(0, buffer);
+            assertThat(Arrays.equals(buffer.array(), expected), is(true));
+
+            Random random = new Random(5);
+            for (int i = 0; i < 100; i++) {
+                int offset = random.nextInt(64 * 1024);
+                int length = random.nextInt(8 * 1024);
+                ByteBuffer slice = ByteBuffer.allocate(length);
+                device.read(offset, slice);
+                assertThat(slice.array(), is(Arrays.copyOfRange(expected, offset, offset + length)));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testDifferencingParentIsItself() throws Exception {
+        // Replaces the parent with a differencing image which names itself as its parent
+        File file = new File(directory, "parent.img");
+        Files.write(file.toPath(), createImage(true));
+        DiskImages.open(file);
+    }
+
+    private static byte[] randomBlock(long seed) {
+        byte[] block = new byte[BLOCK_SIZE];
+        new Random(seed).nextBytes(block);
+        return block;
+    }
+
+    /**
+     * Sets a BAT entry and writes its data.
+     */
+    private static byte[] setBlock(byte[] image, int batIndex, int state, int offset, byte[] data) {
+        byte[] result = image;
+        if (data != null && offset + data.length > image.length) {
+            result = Arrays.copyOf(image, offset + data.length);
+        }
+        LittleEndian.setInt64(result, MB + batIndex * 8, (long) offset | state);
+        if (data != null) {
+            System.arraycopy(data, 0, result, offset, data.length);
+        }
+        return result;
+    }
+
+    /**
+     * Creates an image with the headers, region table and metadata, and an empty BAT at 1MB.
+     */
+    private static byte[] createImage(boolean differencing) {
+        byte[] image = new byte[3 * MB];
+        System.arraycopy(VhdxDevice.SIGNATURE, 0, image, 0, 8);
+
+        for (int i = 0; i < 2; i++) {
+            int header = (1 + i) * 64 * 1024;
+            System.arraycopy("head".getBytes(StandardCharsets.US_ASCII), 0, image, header, 4);
+            LittleEndian.setInt64(image, header + 8, 10 - i);
+            LittleEndian.setInt16(image, header + 66, 1);
+        }
+
+        int regions = 192 * 1024;
+        System.arraycopy("regi".getBytes(StandardCharsets.US_ASCII), 0, image, regions, 4);
+        LittleEndian.setInt32(image, regions + 8, 2);
+        writeGuid(image, regions + 16, UUID.fromString("2DC27766-F623-4200-9D64-115E9BFD4A08"));
+        LittleEndian.setInt64(image, regions + 32, MB);
+        LittleEndian.setInt32(image, regions + 40, MB);
+        writeGuid(image, regions + 48, UUID.fromString("8B7CA206-4790-4B9A-B8FE-575F050F886E"));
+        LittleEndian.setInt64(image, regions + 64, 2 * MB);
+        LittleEndian.setInt32(image, regions + 72, MB);
+
+        int metadata = 2 * MB;
+        System.arraycopy("metadata".getBytes(StandardCharsets.US_ASCII), 0, image, metadata, 8);
+        LittleEndian.setInt16(image, metadata + 10, differencing ? 4 : 3);
+
+        byte[] fileParameters = new byte[8];
+        LittleEndian.setInt32(fileParameters, 0, BLOCK_SIZE);
+        LittleEndian.setInt32(fileParameters, 4, differencing ? 2 : 0);
+        writeItem(image, 0, "CAA16737-FA36-4D43-B3B6-33F0AA44E76B", 64 * 1024, fileParameters);
+
+        byte[] size = new byte[8];
+        LittleEndian.setInt64(size, 0, SIZE);
+        writeItem(image, 1, "2FA54224-CD1B-4876-B211-5DBED83BF4B8", 65 * 1024, size);
+
+        byte[] sectorSize = new byte[4];
+        LittleEndian.setInt32(sectorSize, 0, 512);
+        writeItem(image, 2, "8141BF1D-A96F-4709-BA47-F233A8FAAB5F", 66 * 1024, sectorSize);
+
+        if (differencing) {
+            Charset utf16le = Charset.forName("UTF-16LE");
+            byte[] key = "relative_path".getBytes(utf16le);
+            byte[] value = ".\\parent.img".getBytes(utf16le);
+            byte[] locator = new byte[32 + key.length + value.length];
+            LittleEndian.setInt16(locator, 18, 1);
+            LittleEndian.setInt32(locator, 20, 32);
+            LittleEndian.setInt32(locator, 24, 32 + key.length);
+            LittleEndian.setInt16(locator, 28, key.length);
+            LittleEndian.setInt16(locator, 30, value.length);
+            System.arraycopy(key, 0, locator, 32, key.length);
+            System.arraycopy(value, 0, locator, 32 + key.length, value.length);
+            writeItem(image, 3, "A8D35F2D-B30B-454D-ABF7-D3D84834AB0C", 67 * 1024, locator);
+        }
+
+        return image;
+    }
+
+    private static void writeItem(byte[] image, int index, String id, int offset, byte[] data) {
+        int entry = 2 * MB + 32 + index * 32;
+        writeGuid(image, entry, UUID.fromString(id));
+        LittleEndian.setInt32(image, entry + 16, offset);
+        LittleEndian.setInt32(image, entry + 20, data.length);
+        System.arraycopy(data, 0, image, 2 * MB + offset, data.length);
+    }
+
+    private static void writeGuid(byte[] data, int offset, UUID uuid) {
+        long high = uuid.getMostSignificantBits();
+        LittleEndian.setInt32(data, offset, (int) (high >>> 32));
+        LittleEndian.setInt16(data, offset + 4, (int) (high >>> 16));
+        LittleEndian.setInt16(data, offset + 6, (int) high);
+        long low = uuid.getLeastSignificantBits();
+        for (int i = 15; i >= 8; i--) {
+            data[offset + i] = (byte) low;
+            low >>>= 8;
+        }
+    }
+}
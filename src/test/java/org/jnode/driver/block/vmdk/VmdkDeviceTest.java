@@ -0,0 +1,276 @@
+package org.jnode.driver.block.vmdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.DiskImages;
+import org.jnode.util.LittleEndian;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link VmdkDevice}.
+ */
+public class VmdkDeviceTest {
+
+    private static final int GRAIN_SECTORS = 8;
+    private static final int GRAIN_SIZE = GRAIN_SECTORS * 512;
+    private static final int GT_ENTRIES = 512;
+    private static final int CAPACITY_SECTORS = 8192;
+    private static final int SIZE = CAPACITY_SECTORS * 512;
+
+    /**
+     * The grain which is marked as a zero grain rather than left unallocated.
+     */
+    private static final int ZERO_GRAIN = 5;
+
+    private File directory;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("vmdkDevice").toFile();
+
+        // Random data in some grains of both grain tables, the rest zeros
+        data = new byte[SIZE];
+        Random random = new Random(1);
+        for (int grain : new int[] {0, 1, 2, 7, 100, GT_ENTRIES + 3, 2 * GT_ENTRIES - 1}) {
+            byte[] grainData = new byte[GRAIN_SIZE];
+            random.nextBytes(grainData);
+            System.arraycopy(grainData, 0, data, grain * GRAIN_SIZE, GRAIN_SIZE);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testMonolithicSparse() throws Exception {
+        File file = writeSparse("disk.vmdk", false, descriptor("monolithicSparse", null,
+            "RW " + CAPACITY_SECTORS + " SPARSE \"disk.vmdk\""));
+
+        try (VmdkDevice device = new VmdkDevice(file)) {
+            assertThat(device.getLength(), is((long) SIZE));
+            assertThat(device.getExtentCount(), is(1));
+            assertThat(Arrays.equals(readAll(device), data), is(true));
+        }
+    }
+
+    @Test
+    public void testStreamOptimized() throws Exception {
+        File file = writeSparse("disk.vmdk", true, descriptor("streamOptimized", null,
+            "RW " + CAPACITY_SECTORS + " SPARSE \"disk.vmdk\""));
+
+        Device opened = DiskImages.open(file);
+        try {
+            assertThat(opened, instanceOf(VmdkDevice.class));
+            VmdkDevice device = (VmdkDevice) opened;
+            assertThat(Arrays.equals(readAll(device), data), is(true));
+
+            Random random = new Random(2);
+            for (int i = 0; i < 100; i++) {
+                int offset = random.nextInt(GT_ENTRIES * GRAIN_SIZE);
+                int length = random.nextInt(3 * GRAIN_SIZE);
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                device.read(offset, buffer);
+                assertThat(buffer.array(), is(Arrays.copyOfRange(data, offset, offset + length)));
+            }
+        } finally {
+            ((Closeable) opened).close();
+        }
+    }
+
+    @Test
+    public void testDescriptorWithSplitExtents() throws Exception {
+        byte[] flat = new byte[2048 * 512];
+        new Random(3).nextBytes(flat);
+        Files.write(new File(directory, "disk-flat.vmdk").toPath(), flat);
+        writeSparse("disk-s002.vmdk", false, null);
+
+        File descriptorFile = new File(directory, "disk.vmdk");
+        Files.write(descriptorFile.toPath(), descriptor("custom", null,
+            "RW 2048 FLAT \"disk-flat.vmdk\" 0",
+            "RW " + CAPACITY_SECTORS + " SPARSE \"disk-s002.vmdk\"",
+            "RW 1024 ZERO").getBytes(StandardCharsets.UTF_8));
+
+        byte[] expected = new byte[flat.length + SIZE + 1024 * 512];
+        System.arraycopy(flat, 0, expected, 0, flat.length);
+        System.arraycopy(data, 0, expected, flat.length, SIZE);
+
+        try (VmdkDevice device = new VmdkDevice(descriptorFile)) {
+            assertThat(device.getExtentCount(), is(3));
+            assertThat(device.getLength(), is((long) expected.length));
+            assertThat(Arrays.equals(readAll(device), expected), is(true));
+
+            // A read spanning all three extents
+            ByteBuffer buffer = ByteBuffer.allocate(SIZE + 2000);
+            device.read(flat.length - 1000, buffer);
+            assertThat(buffer.array(), is(Arrays.copyOfRange(expected, flat.length - 1000, flat.length + SIZE + 1000)));
+        }
+    }
+
+    @Test
+    public void testSnapshotReadsParent() throws Exception {
+        byte[] parentData = new byte[SIZE];
+        new Random(4).nextBytes(parentData);
+        Files.write(new File(directory, "parent.img").toPath(), parentData);
+
+        File file = writeSparse("child.vmdk", false, descriptor("monolithicSparse", "parent.img",
+            "RW " + CAPACITY_SECTORS + " SPARSE \"child.vmdk\""));
+
+        // Allocated grains come from the child, zero grains are zeros and the rest come from the parent
+        byte[] expected = parentData.clone();
+        for (int grain = 0; grain < SIZE / GRAIN_SIZE; grain++) {
+            if (grain == ZERO_GRAIN || !isEmpty(grain)) {
+                System.arraycopy(data, grain * GRAIN_SIZE, expected, grain * GRAIN_SIZE, GRAIN_SIZE);
+            }
+        }
+
+        try (VmdkDevice device = new VmdkDevice(file)) {
+            assertThat(device.getParent(), is(notNullValue()));
+            assertThat(Arrays.equals(readAll(device), expected), is(true));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testSnapshotParentsLoop() throws Exception {
+        File file = writeSparse("first.vmdk", false, descriptor("monolithicSparse", "second.vmdk",
+            "RW " + CAPACITY_SECTORS + " SPARSE \"first.vmdk\""));
+        writeSparse("second.vmdk", false, descriptor("monolithicSparse", "first.vmdk",
+            "RW " + CAPACITY_SECTORS + " SPARSE \"second.vmdk\""));
+        new VmdkDevice(file);
+    }
+
+    private static byte[] readAll(VmdkDevice device) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) device.getLength());
+        device.read(0, buffer);
+        return buffer.array();
+    }
+
+    private static String descriptor(String createType, String parent, String... extents) {
+        StringBuilder builder = new StringBuilder(VmdkDevice.DESCRIPTOR_SIGNATURE).append("\nversion=1\n");
+        builder.append("CID=12345678\n");
+        builder.append("parentCID=").append(parent == null ? "ffffffff" : "87654321").append('\n');
+        if (parent != null) {
+            builder.append("parentFileNameHint=\"").append(parent).append("\"\n");
+        }
+        builder.append("createType=\"").append(createType).append("\"\n\n# Extent description\n");
+        for (String extent : extents) {
+            builder.append(extent).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private boolean isEmpty(int grain) {
+        for (int i = grain * GRAIN_SIZE; i < (grain + 1) * GRAIN_SIZE; i++) {
+            if (data[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a sparse extent holding the test data. Empty grains are left unallocated, apart from
+     * {@link #ZERO_GRAIN} which is marked as a zero grain.
+     *
+     * @param name the file name.
+     * @param stream whether to write a streamOptimized extent, with compressed grains and the header in a footer.
+     * @param embeddedDescriptor the descriptor to embed, or {@code null}.
+     * @return the file.
+     */
+    private File writeSparse(String name, boolean stream, String embeddedDescriptor) throws IOException {
+        int gdSector = 3;
+        int gtSector = 4;
+        int gtSectors = GT_ENTRIES * 4 / 512;
+        int gdEntries = CAPACITY_SECTORS / (GRAIN_SECTORS * GT_ENTRIES);
+
+        ByteArrayOutputStream grains = new ByteArrayOutputStream();
+        int firstGrainSector = gtSector + gdEntries * gtSectors;
+        byte[] metadata = new byte[firstGrainSector * 512];
+
+        for (int i = 0; i < gdEntries; i++) {
+            LittleEndian.setInt32(metadata, gdSector * 512 + i * 4, gtSector + i * gtSectors);
+        }
+
+        for (int grain = 0; grain < SIZE / GRAIN_SIZE; grain++) {
+            int entry = 0;
+            if (grain == ZERO_GRAIN) {
+                entry = 1;
+            } else if (!isEmpty(grain)) {
+                entry = firstGrainSector + grains.size() / 512;
+                if (stream) {
+                    Deflater deflater = new Deflater();
+                    deflater.setInput(data, grain * GRAIN_SIZE, GRAIN_SIZE);
+                    deflater.finish();
+                    byte[] compressed = new byte[GRAIN_SIZE + 64];
+                    int size = deflater.deflate(compressed);
+                    deflater.end();
+
+                    byte[] header = new byte[12];
+                    LittleEndian.setInt64(header, 0, (long) grain * GRAIN_SECTORS);
+                    LittleEndian.setInt32(header, 8, size);
+                    grains.write(header);
+                    grains.write(compressed, 0, size);
+                    grains.write(new byte[(512 - (12 + size) % 512) % 512]);
+                } else {
+                    grains.write(data, grain * GRAIN_SIZE, GRAIN_SIZE);
+                }
+            }
+            LittleEndian.setInt32(metadata, gtSector * 512 + grain * 4, entry);
+        }
+
+        byte[] header = new byte[SparseExtent.HEADER_SIZE];
+        LittleEndian.setInt32(header, 0, SparseExtent.MAGIC);
+        LittleEndian.setInt32(header, 4, stream ? 3 : 1);
+        LittleEndian.setInt32(header, 8, stream ? SparseExtent.FLAG_COMPRESSED | SparseExtent.FLAG_MARKERS : 0);
+        LittleEndian.setInt64(header, 12, CAPACITY_SECTORS);
+        LittleEndian.setInt64(header, 20, GRAIN_SECTORS);
+        LittleEndian.setInt32(header, 44, GT_ENTRIES);
+        LittleEndian.setInt64(header, 56, gdSector);
+        LittleEndian.setInt16(header, 77, stream ? 1 : 0);
+        if (embeddedDescriptor != null) {
+            byte[] descriptorBytes = embeddedDescriptor.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(descriptorBytes, 0, metadata, 512, descriptorBytes.length);
+            LittleEndian.setInt64(header, 28, 1);
+            LittleEndian.setInt64(header, 36, 2);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (stream) {
+            // The real header goes in the footer, followed by an end-of-stream marker
+            byte[] startHeader = header.clone();
+            LittleEndian.setInt64(startHeader, 56, SparseExtent.GD_AT_END);
+            System.arraycopy(startHeader, 0, metadata, 0, startHeader.length);
+            out.write(metadata);
+            out.write(grains.toByteArray());
+            out.write(header);
+            out.write(new byte[512]);
+        } else {
+            System.arraycopy(header, 0, metadata, 0, header.length);
+            out.write(metadata);
+            out.write(grains.toByteArray());
+        }
+
+        File file = new File(directory, name);
+        Files.write(file.toPath(), out.toByteArray());
+        return file;
+    }
+}
@@ -1,12 +1,15 @@
 package org.jnode.fs;
 
+import org.jnode.driver.block.BlockDeviceAPI;
 import org.jnode.fs.xfs.XfsEntry;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import static org.hamcrest.MatcherAssert.*;
@@ -93,6 +96,97 @@ public class DataStructureAsserts
         }
     }
 
+    /**
+     * Checks the extents of every file in a file system with {@link #assertExtents(FSFile, BlockDeviceAPI)}.
+     *
+     * @param fileSystem the file system.
+     * @param device the device the file system is on.
+     * @return the number of files checked.
+     * @throws IOException if an error occurs.
+     */
+    public static int assertAllExtents(FileSystem<?> fileSystem, BlockDeviceAPI device) throws IOException
+    {
+        return assertAllExtents(fileSystem.getRootEntry(), device);
+    }
+
+    private static int assertAllExtents(FSEntry directoryEntry, BlockDeviceAPI device) throws IOException
+    {
+        int checked = 0;
+        Iterator<? extends FSEntry> iterator = directoryEntry.getDirectory().iterator();
+
+        while (iterator.hasNext())
+        {
+            FSEntry child = iterator.next();
+
+            if (".".equals(child.getName()) || "..".equals(child.getName()))
+            {
+                continue;
+            }
+
+            if (child.isFile())
+            {
+                assertExtents(child.getFile(), device);
+                checked++;
+            }
+            else if (child.isDirectory())
+            {
+                checked += assertAllExtents(child, device);
+            }
+        }
+
+        return checked;
+    }
+
+    /**
+     * Checks that a file's extents cover it in order, and that the data at the device offset of each extent which can
+     * be read directly matches the file's data. Holes must read as zeros.
+     *
+     * @param file the file to check.
+     * @param device the device the file system is on.
+     * @return the extents.
+     * @throws IOException if an error occurs.
+     */
+    public static List<FSFileExtent> assertExtents(FSFile file, BlockDeviceAPI device) throws IOException
+    {
+        List<FSFileExtent> extents = ((FSFileExtents) file).getExtents();
+
+        long fileOffset = 0;
+        for (FSFileExtent extent : extents)
+        {
+            assertThat(extent.toString(), extent.getFileOffset(), is(fileOffset));
+            assertThat(extent.toString(), extent.getLength(), is(greaterThan(0L)));
+            fileOffset += extent.getLength();
+
+            if (extent.isDirect() || extent.isSparse())
+            {
+                // Compare a block at a time, as the test FileDevice always reads to the start of the buffer's array
+                byte[] expected = new byte[0x1000];
+                byte[] actual = new byte[expected.length];
+                for (long position = 0; position < extent.getLength(); position += expected.length)
+                {
+                    int chunkLength = (int) Math.min(extent.getLength() - position, expected.length);
+                    Arrays.fill(expected, (byte) 0);
+                    Arrays.fill(actual, (byte) 0);
+                    file.read(extent.getFileOffset() + position, ByteBuffer.wrap(expected, 0, chunkLength));
+                    if (extent.isDirect())
+                    {
+                        device.read(extent.getDeviceOffset() + position, ByteBuffer.wrap(actual, 0, chunkLength));
+                    }
+
+                    byte[] expectedChunk = Arrays.copyOf(expected, chunkLength);
+                    byte[] actualChunk = Arrays.copyOf(actual, chunkLength);
+                    if (!Arrays.equals(actualChunk, expectedChunk))
+                    {
+                        assertThat(extent + " at " + position, actualChunk, is(expectedChunk));
+                    }
+                }
+            }
+        }
+        assertThat(fileOffset, is(file.getLength()));
+
+        return extents;
+    }
+
     public static String getMD5Digest(FSFile file) throws IOException
     {
         MessageDigest md5;
@@ -0,0 +1,204 @@
+package org.jnode.fs;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.ByteArrayDevice;
+import org.jnode.driver.block.FSBlockDeviceAPI;
+import org.jnode.driver.block.FileChannelDevice;
+import org.jnode.fs.ext2.Ext2FileSystemType;
+import org.jnode.partitions.PartitionTableEntry;
+import org.jnode.util.LittleEndian;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link FileSystemService}.
+ */
+public class FileSystemServiceTest {
+
+    @Test
+    public void testServiceLoaderTypes() throws Exception {
+        try (FileSystemService service = new FileSystemService()) {
+            assertThat(service.getFileSystemTypes().size(), is(10));
+            assertThat(service.getFileSystemType(Ext2FileSystemType.class), instanceOf(Ext2FileSystemType.class));
+        }
+    }
+
+    @Test(expected = FileSystemException.class)
+    public void testUnknownType() throws Exception {
+        try (FileSystemService service = new FileSystemService(Arrays.<FileSystemType<?>>asList(), null)) {
+            service.getFileSystemType(Ext2FileSystemType.class);
+        }
+    }
+
+    @Test
+    public void testDetectExt2() throws Exception {
+        byte[] data = new byte[256 * 1024];
+        LittleEndian.setInt16(data, 1024 + 56, 0xef53);
+        LittleEndian.setInt32(data, 1024 + 76, 1);
+
+        ByteArrayDevice device = new ByteArrayDevice(data);
+        try (FileSystemService service = new FileSystemService()) {
+            assertThat(service.detect(device), instanceOf(Ext2FileSystemType.class));
+
+            // Every check was served from the single probe read
+            assertThat(device.getReadCount(), is(1));
+        }
+    }
+
+    @Test
+    public void testPreferenceOrderWinsOverSpeed() throws Exception {
+        StubType slow = new StubType("slow", 100, 0, true);
+        StubType fast = new StubType("fast", 0, 0, true);
+        StubType none = new StubType("none", 0, 0, false);
+
+        try (FileSystemService service = new FileSystemService(Arrays.asList(none, slow, fast), null)) {
+            ByteArrayDevice device = new ByteArrayDevice(new byte[4096]);
+            assertThat(service.detect(device), is((FileSystemType<?>) slow));
+            assertThat(service.detectAll(device), contains((FileSystemType<?>) slow, fast));
+        }
+    }
+
+    @Test
+    public void testResultIsRemembered() throws Exception {
+        StubType type = new StubType("type", 0, 1000, true);
+
+        try (FileSystemService service = new FileSystemService(Arrays.asList(type), null)) {
+            ByteArrayDevice device = new ByteArrayDevice(new byte[128 * 1024]);
+            assertThat(service.detect(device), is((FileSystemType<?>) type));
+            assertThat(service.detect(device), is((FileSystemType<?>) type));
+            assertThat(service.detectAll(device), contains((FileSystemType<?>) type));
+            assertThat(type.checks.get(), is(1));
+            assertThat(device.getReadCount(), is(1));
+
+            service.forget(device);
+            service.detect(device);
+            assertThat(type.checks.get(), is(2));
+        }
+    }
+
+    @Test
+    public void testReadsOutsideProbeBufferGoToDevice() throws Exception {
+        StubType type = new StubType("type", 0, FileSystemService.PROBE_SIZE + 10, true);
+
+        try (FileSystemService service = new FileSystemService(Arrays.asList(type), null)) {
+            ByteArrayDevice device = new ByteArrayDevice(new byte[128 * 1024]);
+            service.detect(device);
+            assertThat(device.getReadCount(), is(2));
+        }
+    }
+
+    @Test
+    public void testFailingCheckIsNotSupported() throws Exception {
+        StubType failing = new StubType("failing", 0, -1, true);
+        StubType other = new StubType("other", 0, 0, true);
+
+        try (FileSystemService service = new FileSystemService(Arrays.asList(failing, other), null)) {
+            List<FileSystemType<?>> types = service.detectAll(new ByteArrayDevice(new byte[4096]));
+            assertThat(types, contains((FileSystemType<?>) other));
+        }
+    }
+
+    @Test
+    public void testLateChecksAreNotInterrupted() throws Exception {
+        // Both checks run at once, and the slow one is still running when the fast one matches
+        StubType fast = new StubType("fast", 50, 0, true);
+        StubType slow = new StubType("slow", 300, FileSystemService.PROBE_SIZE + 10, false);
+
+        File file = File.createTempFile("fileSystemService", ".img");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (FileChannelDevice device = new FileChannelDevice(file, "rw");
+             FileSystemService service = new FileSystemService(Arrays.asList(fast, slow), executor)) {
+            device.write(0, ByteBuffer.allocate(128 * 1024));
+            assertThat(service.detect(device), is((FileSystemType<?>) fast));
+
+            // The slow check reads the device's channel after the result is known, which mustn't close it
+            assertThat(slow.finished.await(10, TimeUnit.SECONDS), is(true));
+            assertThat(slow.failed, is(false));
+            device.read(0, ByteBuffer.allocate(4096));
+        } finally {
+            executor.shutdown();
+            file.delete();
+        }
+    }
+
+    /**
+     * A type which sleeps, optionally reads from the device and then gives a fixed answer.
+     */
+    private static class StubType implements FileSystemType<FileSystem<?>> {
+        private final String name;
+        private final long sleepMillis;
+        private final long readOffset;
+        private final boolean supported;
+        private final AtomicInteger checks = new AtomicInteger();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile boolean failed;
+
+        StubType(String name, long sleepMillis, long readOffset, boolean supported) {
+            this.name = name;
+            this.sleepMillis = sleepMillis;
+            this.readOffset = readOffset;
+            this.supported = supported;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public FileSystem<?> create(Device device, boolean readOnly) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean supports(PartitionTableEntry pte, byte[] firstSector, FSBlockDeviceAPI devApi) {
+            checks.incrementAndGet();
+            try {
+                sleep();
+                if (readOffset != 0) {
+                    devApi.read(readOffset, ByteBuffer.allocate(16));
+                }
+            } catch (Exception e) {
+                failed = true;
+                throw new IllegalStateException(e);
+            } finally {
+                finished.countDown();
+            }
+            return supported;
+        }
+
+        /**
+         * Sleeps even if interrupted, like a check busy reading, keeping the interrupt for the read which follows.
+         */
+        private void sleep() {
+            long end = System.currentTimeMillis() + sleepMillis;
+            boolean interrupted = false;
+            for (long now = System.currentTimeMillis(); now < end; now = System.currentTimeMillis()) {
+                try {
+                    Thread.sleep(end - now);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package org.jnode.fs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jnode.driver.Device;
+
+/**
+ * An in-memory directory tree, built up by tests rather than through the file system API, which counts how often
+ * directories are searched and listed.
+ */
+public class MemoryFileSystem implements FileSystem<MemoryFileSystem.Entry> {
+
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Entry root = new Entry(this, null, "", true);
+    private final AtomicInteger getEntryCount = new AtomicInteger();
+    private final AtomicInteger iteratorCount = new AtomicInteger();
+    private final AtomicInteger runningIterators = new AtomicInteger();
+    private final AtomicInteger maxRunningIterators = new AtomicInteger();
+    private volatile long iteratorMillis;
+    private final boolean readOnly;
+    private boolean closed;
+
+    public MemoryFileSystem(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Adds the entries on a path, e.g. "a/b/c.txt", the last of which is a file.
+     */
+    public Entry addFile(String path) {
+        Entry current = root;
+        String[] names = path.split("/");
+        for (int i = 0; i < names.length; i++) {
+            Entry child = current.find(names[i]);
+            if (child == null) {
+                child = new Entry(this, current, names[i], i < names.length - 1);
+                current.children.add(child);
+            }
+            current = child;
+        }
+        return current;
+    }
+
+    /**
+     * Creates a file entry in the root directory without adding it, e.g. for building entry tables.
+     */
+    public Entry createFile(String name) {
+        return new Entry(this, root, name, false);
+    }
+
+    /**
+     * Adds an existing directory to another directory as well, like a directory hard link.
+     */
+    public void addLink(Entry directory, Entry target) {
+        directory.children.add(target);
+    }
+
+    public int getEntryCount() {
+        return getEntryCount.get();
+    }
+
+    public int getIteratorCount() {
+        return iteratorCount.get();
+    }
+
+    /**
+     * Makes listing a directory take a while, so the number of directories listed at once can be checked.
+     */
+    public void setIteratorMillis(long iteratorMillis) {
+        this.iteratorMillis = iteratorMillis;
+    }
+
+    public int getMaxRunningIterators() {
+        return maxRunningIterators.get();
+    }
+
+    @Override
+    public FileSystemType<? extends FileSystem<Entry>> getType() {
+        return null;
+    }
+
+    @Override
+    public Device getDevice() {
+        return null;
+    }
+
+    @Override
+    public Entry getRootEntry() {
+        return root;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public long getTotalSpace() {
+        return -1;
+    }
+
+    @Override
+    public long getFreeSpace() {
+        return -1;
+    }
+
+    @Override
+    public long getUsableSpace() {
+        return -1;
+    }
+
+    @Override
+    public String getVolumeName() {
+        return "memory";
+    }
+
+    /**
+     * An entry, which is its own directory if it is one.
+     */
+    public static class Entry implements FSEntry, FSDirectory, FSDirectoryId {
+        private final MemoryFileSystem fs;
+        private final Entry parent;
+        private final String name;
+        private final String id;
+        private final boolean directory;
+        private final List<Entry> children = new ArrayList<Entry>();
+        private boolean valid = true;
+
+        Entry(MemoryFileSystem fs, Entry parent, String name, boolean directory) {
+            this.fs = fs;
+            this.parent = parent;
+            this.name = name;
+            this.directory = directory;
+            id = String.valueOf(fs.nextId.incrementAndGet());
+        }
+
+        /**
+         * Removes this entry, making it invalid.
+         */
+        public void remove() {
+            parent.children.remove(this);
+            valid = false;
+        }
+
+        private Entry find(String childName) {
+            for (Entry child : children) {
+                if (child.name.equals(childName)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Iterator<? extends FSEntry> iterator() throws IOException {
+            fs.iteratorCount.incrementAndGet();
+            if (fs.iteratorMillis > 0) {
+                int running = fs.runningIterators.incrementAndGet();
+                while (true) {
+                    int max = fs.maxRunningIterators.get();
+                    if (running <= max || fs.maxRunningIterators.compareAndSet(max, running)) {
+                        break;
+                    }
+                }
+                try {
+                    Thread.sleep(fs.iteratorMillis);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                } finally {
+                    fs.runningIterators.decrementAndGet();
+                }
+            }
+            return new ArrayList<Entry>(children).iterator();
+        }
+
+        @Override
+        public FSEntry getEntry(String childName) {
+            fs.getEntryCount.incrementAndGet();
+            return find(childName);
+        }
+
+        @Override
+        public FSEntry getEntryById(String id) {
+            return getEntry(id);
+        }
+
+        @Override
+        public FSEntry addFile(String childName) throws IOException {
+            throw new IOException("Read only");
+        }
+
+        @Override
+        public FSEntry addDirectory(String childName) throws IOException {
+            throw new IOException("Read only");
+        }
+
+        @Override
+        public void remove(String childName) throws IOException {
+            throw new IOException("Read only");
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public String getId() {
+            return name;
+        }
+
+        @Override
+        public String getDirectoryId() {
+            return id;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public FSDirectory getParent() {
+            return parent;
+        }
+
+        @Override
+        public long getLastModified() {
+            return 0;
+        }
+
+        @Override
+        public boolean isFile() {
+            return !directory;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        @Override
+        public void setName(String newName) throws IOException {
+            throw new IOException("Read only");
+        }
+
+        @Override
+        public void setLastModified(long lastModified) throws IOException {
+            throw new IOException("Read only");
+        }
+
+        @Override
+        public FSFile getFile() throws IOException {
+            throw new IOException("Not supported");
+        }
+
+        @Override
+        public FSDirectory getDirectory() throws IOException {
+            if (!directory) {
+                throw new IOException("Not a directory: " + name);
+            }
+            return this;
+        }
+
+        @Override
+        public FSAccessRights getAccessRights() {
+            return null;
+        }
+
+        @Override
+        public boolean isDirty() {
+            return false;
+        }
+
+        @Override
+        public boolean isValid() {
+            return valid;
+        }
+
+        @Override
+        public FileSystem<?> getFileSystem() {
+            return fs;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
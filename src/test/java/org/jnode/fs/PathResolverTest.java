@@ -0,0 +1,116 @@
+package org.jnode.fs;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link PathResolver}.
+ */
+public class PathResolverTest {
+
+    @Test
+    public void testResolve() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        FSEntry file = fs.addFile("Users/x/Library/prefs.plist");
+        PathResolver resolver = new PathResolver(fs);
+
+        assertThat(resolver.resolve("/Users/x/Library/prefs.plist"), is(sameInstance(file)));
+        assertThat(resolver.resolve("Users//x/./Library/prefs.plist"), is(sameInstance(file)));
+        assertThat(resolver.resolve("/Users/x/../x/Library/prefs.plist"), is(sameInstance(file)));
+        assertThat(resolver.resolve("/"), is(sameInstance((FSEntry) fs.getRootEntry())));
+        assertThat(resolver.resolve("/Users/y"), is(nullValue()));
+        assertThat(resolver.resolve("/Users/x/Library/prefs.plist/child"), is(nullValue()));
+    }
+
+    @Test
+    public void testCachesComponents() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        FSEntry file = fs.addFile("a/b/c/d.txt");
+        PathResolver resolver = new PathResolver(fs);
+
+        resolver.resolve("/a/b/c/d.txt");
+        int lookups = fs.getEntryCount();
+        assertThat(lookups, is(4));
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(resolver.resolve("/a/b/c/d.txt"), is(sameInstance(file)));
+        }
+        assertThat(fs.getEntryCount(), is(lookups));
+        assertThat(resolver.getHitCount(), is(40L));
+    }
+
+    @Test
+    public void testCachesMissingNamesOnReadOnlyFileSystems() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        fs.addFile("a/b.txt");
+        PathResolver resolver = new PathResolver(fs);
+
+        assertThat(resolver.resolve("/a/missing"), is(nullValue()));
+        int lookups = fs.getEntryCount();
+        assertThat(resolver.resolve("/a/missing"), is(nullValue()));
+        assertThat(fs.getEntryCount(), is(lookups));
+    }
+
+    @Test
+    public void testDoesNotCacheMissingNamesOnWritableFileSystems() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem(false);
+        fs.addFile("a/b.txt");
+        PathResolver resolver = new PathResolver(fs);
+
+        assertThat(resolver.resolve("/a/c.txt"), is(nullValue()));
+        FSEntry added = fs.addFile("a/c.txt");
+        assertThat(resolver.resolve("/a/c.txt"), is(sameInstance(added)));
+    }
+
+    @Test
+    public void testDoesNotCacheEntriesOnWritableFileSystems() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem(false);
+        MemoryFileSystem.Entry file = fs.addFile("a/b.txt");
+        PathResolver resolver = new PathResolver(fs);
+
+        assertThat(resolver.resolve("/a/b.txt"), is(sameInstance((FSEntry) file)));
+        assertThat(resolver.resolve("/a/b.txt"), is(sameInstance((FSEntry) file)));
+        assertThat(fs.getEntryCount(), is(4));
+        assertThat(resolver.getHitCount(), is(0L));
+    }
+
+    @Test
+    public void testLooksUpRemovedEntriesAgain() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem(false);
+        MemoryFileSystem.Entry file = fs.addFile("a/b.txt");
+        PathResolver resolver = new PathResolver(fs);
+
+        assertThat(resolver.resolve("/a/b.txt"), is(sameInstance((FSEntry) file)));
+        file.remove();
+        assertThat(resolver.resolve("/a/b.txt"), is(nullValue()));
+    }
+
+    @Test
+    public void testListsDirectoryForRepeatedLookups() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        for (int i = 0; i < 100; i++) {
+            fs.addFile("dir/file" + i);
+        }
+        PathResolver resolver = new PathResolver(fs);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(resolver.resolve("/dir/file" + i).getName(), is("file" + i));
+        }
+
+        // The directory was listed once rather than searched for every name
+        assertThat(fs.getIteratorCount(), is(1));
+        assertThat(fs.getEntryCount(), is(2));
+    }
+
+    @Test
+    public void testUncachedResolve() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        FSEntry file = fs.addFile("a/b/c.txt");
+
+        assertThat(fs.resolve("/a/b/c.txt"), is(sameInstance(file)));
+        assertThat(fs.resolve("/a/../a/b/./c.txt"), is(sameInstance(file)));
+        assertThat(fs.resolve("/a/c.txt"), is(nullValue()));
+    }
+}
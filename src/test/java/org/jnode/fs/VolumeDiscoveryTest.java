@@ -0,0 +1,307 @@
+package org.jnode.fs;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.ByteArrayDevice;
+import org.jnode.driver.block.FSBlockDeviceAPI;
+import org.jnode.driver.block.FileChannelDevice;
+import org.jnode.partitions.PartitionDevice;
+import org.jnode.partitions.PartitionTableEntry;
+import org.jnode.partitions.ibm.IBMPartitionTableEntry;
+import org.jnode.partitions.lvm.LvmImages;
+import org.jnode.util.LittleEndian;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link VolumeDiscovery}.
+ */
+public class VolumeDiscoveryTest {
+
+    private static final int SECTOR = 512;
+    private static final byte[] MARKER = "STUB".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void testFindsPrimaryLogicalAndNestedPartitions() throws Exception {
+        StubType type = new StubType(0);
+        try (FileSystemService service = new FileSystemService(Arrays.asList(type), null);
+             VolumeDiscovery discovery = new VolumeDiscovery(service)) {
+            List<Volume> volumes = discovery.findVolumes(new ByteArrayDevice(createDisk()));
+
+            assertThat(paths(volumes), contains("1", "2/1", "5", "6"));
+            assertThat(volumes.get(0).getDevice().getAPI(FSBlockDeviceAPI.class).getLength(), is(2048L * SECTOR));
+            assertThat(volumes.get(0).getPartitionTableEntry(), instanceOf(IBMPartitionTableEntry.class));
+
+            // Logical partitions are relative to their extended boot record
+            IBMPartitionTableEntry logical5 = (IBMPartitionTableEntry) volumes.get(2).getPartitionTableEntry();
+            IBMPartitionTableEntry logical6 = (IBMPartitionTableEntry) volumes.get(3).getPartitionTableEntry();
+            assertThat(logical5.getStartLba(), is(6144L + 63));
+            assertThat(logical6.getStartLba(), is(8192L + 63));
+        }
+    }
+
+    @Test
+    public void testIbmPartitionsOn4KnDevice() throws Exception {
+        // The table is in 4096 byte sectors: 1 at LBA 16, and an extended partition at LBA 64 with logical 5 at
+        // LBA 8 in it. The helpers take the table's position in 512 byte sectors.
+        int sector = 4096;
+        byte[] disk = new byte[128 * sector];
+        setEntry(disk, 0, 0, 0x83, 16, 16);
+        setEntry(disk, 0, 1, 0x05, 64, 64);
+        setSignature(disk, 0);
+        setEntry(disk, 64 * 8, 0, 0x83, 8, 16);
+        setSignature(disk, 64 * 8);
+        System.arraycopy(MARKER, 0, disk, 16 * sector, MARKER.length);
+        System.arraycopy(MARKER, 0, disk, 72 * sector, MARKER.length);
+
+        File file = File.createTempFile("volumeDiscovery", ".img");
+        StubType type = new StubType(0);
+        try (FileChannelDevice device = new FileChannelDevice(file, "rw", sector);
+             FileSystemService service = new FileSystemService(Arrays.asList(type), null);
+             VolumeDiscovery discovery = new VolumeDiscovery(service)) {
+            device.write(0, ByteBuffer.wrap(disk));
+
+            List<Volume> volumes = discovery.discover(device, true);
+            assertThat(paths(volumes), contains("1", "5"));
+            for (Volume volume : volumes) {
+                PartitionDevice partition = (PartitionDevice) volume.getDevice();
+                assertThat(partition.getLength(), is(16L * sector));
+                assertThat(volume.getFileSystemType(), is((FileSystemType<?>) type));
+            }
+            assertThat(((PartitionDevice) volumes.get(0).getDevice()).getOffset(), is(16L * sector));
+            assertThat(((PartitionDevice) volumes.get(1).getDevice()).getOffset(), is(72L * sector));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMountsConcurrently() throws Exception {
+        StubType type = new StubType(200);
+        try (FileSystemService service = new FileSystemService(Arrays.asList(type), null);
+             VolumeDiscovery discovery = new VolumeDiscovery(service, 4)) {
+            List<Volume> volumes = discovery.discover(new ByteArrayDevice(createDisk()), true);
+
+            assertThat(paths(volumes), contains("1", "2/1", "5", "6"));
+            for (Volume volume : volumes.subList(0, 3)) {
+                assertThat(volume.getPath(), volume.getFileSystemType(), is((FileSystemType<?>) type));
+                assertThat(volume.getError(), is(nullValue()));
+            }
+            assertThat(volumes.get(3).getFileSystemType(), is(nullValue()));
+
+            assertThat(type.creates.get(), is(3));
+            assertThat(type.maxConcurrent.get(), is(greaterThan(1)));
+        }
+    }
+
+    @Test
+    public void testMountErrorIsKept() throws Exception {
+        StubType type = new StubType(-1);
+        try (FileSystemService service = new FileSystemService(Arrays.asList(type), null);
+             VolumeDiscovery discovery = new VolumeDiscovery(service, 2)) {
+            List<Volume> volumes = discovery.discover(new ByteArrayDevice(createDisk()), true);
+            assertThat(volumes.get(0).getError(), instanceOf(FileSystemException.class));
+            assertThat(volumes.get(0).getFileSystem(), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void testInterruptClosesMountedFileSystems() throws Exception {
+        StubType type = new StubType(300);
+        try (FileSystemService service = new FileSystemService(Arrays.asList(type), null);
+             VolumeDiscovery discovery = new VolumeDiscovery(service, 1)) {
+            final Thread caller = Thread.currentThread();
+            Thread interrupter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    caller.interrupt();
+                }
+            });
+            interrupter.start();
+
+            InterruptedIOException error = null;
+            try {
+                discovery.discover(new ByteArrayDevice(createDisk()), true);
+            } catch (InterruptedIOException e) {
+                error = e;
+            }
+            assertThat(Thread.interrupted(), is(true));
+            assertThat(error, is(notNullValue()));
+
+            // The running mount finished rather than being interrupted, and was closed, and the rest never started
+            assertThat(type.interrupted, is(false));
+            assertThat(type.creates.get(), is(1));
+            assertThat(type.fileSystems.size(), is(1));
+            assertThat(type.fileSystems.get(0).isClosed(), is(true));
+        }
+    }
+
+    @Test
+    public void testDeviceWithoutPartitionTable() throws Exception {
+        byte[] data = new byte[64 * 1024];
+        System.arraycopy(MARKER, 0, data, 0, MARKER.length);
+
+        StubType type = new StubType(0);
+        try (FileSystemService service = new FileSystemService(Arrays.asList(type), null);
+             VolumeDiscovery discovery = new VolumeDiscovery(service)) {
+            List<Volume> volumes = discovery.discover(new ByteArrayDevice(data), true);
+            assertThat(paths(volumes), contains(""));
+            assertThat(volumes.get(0).getFileSystemType(), is((FileSystemType<?>) type));
+            assertThat(volumes.get(0).getPartitionTableEntry(), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void testFindsLogicalVolumes() throws Exception {
+        String metadata = "vg0 {\n" +
+            "id = \"vg\"\nseqno = 1\nextent_size = 8\n" +
+            "physical_volumes {\npv0 {\nid = \"PV0PV0-PV0P-V0PV-0PV0-PV0P-V0PV-0PV0PV\"\npe_start = 2048\n}\n}\n" +
+            "logical_volumes {\n" +
+            "root {\nstatus = [\"VISIBLE\"]\nsegment_count = 1\nsegment1 {\nstart_extent = 0\n" +
+            "extent_count = 16\ntype = \"striped\"\nstripe_count = 1\nstripes = [\"pv0\", 16]\n}\n}\n" +
+            "swap {\nstatus = [\"VISIBLE\"]\nsegment_count = 1\nsegment1 {\nstart_extent = 0\n" +
+            "extent_count = 16\ntype = \"striped\"\nstripe_count = 1\nstripes = [\"pv0\", 0]\n}\n}\n" +
+            "}\n}\n";
+        byte[] pv = LvmImages.createPhysicalVolume("PV0PV0PV0PV0PV0PV0PV0PV0PV0PV0PV", metadata,
+            LvmImages.DATA_OFFSET + 32 * 4096, false);
+        System.arraycopy(MARKER, 0, pv, LvmImages.DATA_OFFSET + 16 * 4096, MARKER.length);
+
+        byte[] disk = new byte[2048 * SECTOR + pv.length];
+        setEntry(disk, 0, 0, 0x8e, 2048, pv.length / SECTOR);
+        setSignature(disk, 0);
+        System.arraycopy(pv, 0, disk, 2048 * SECTOR, pv.length);
+
+        StubType type = new StubType(0);
+        try (FileSystemService service = new FileSystemService(Arrays.asList(type), null);
+             VolumeDiscovery discovery = new VolumeDiscovery(service)) {
+            List<Volume> volumes = discovery.discover(new ByteArrayDevice(disk), true);
+            assertThat(paths(volumes), contains("vg0/root", "vg0/swap"));
+            assertThat(volumes.get(0).getFileSystemType(), is((FileSystemType<?>) type));
+            assertThat(volumes.get(0).getDevice().getAPI(FSBlockDeviceAPI.class).getLength(), is(16L * 4096));
+            assertThat(volumes.get(1).getFileSystemType(), is(nullValue()));
+        }
+    }
+
+    private static List<String> paths(List<Volume> volumes) {
+        List<String> paths = new ArrayList<String>();
+        for (Volume volume : volumes) {
+            paths.add(volume.getPath());
+        }
+        return paths;
+    }
+
+    /**
+     * Creates an 8 MiB disk with an IBM partition table:
+     * <ul>
+     * <li>1: a file system</li>
+     * <li>2: a nested partition table with one file system</li>
+     * <li>3: an extended partition with logical partitions 5, a file system, and 6, empty</li>
+     * </ul>
+     */
+    private static byte[] createDisk() {
+        byte[] disk = new byte[16384 * SECTOR];
+
+        setEntry(disk, 0, 0, 0x83, 2048, 2048);
+        setEntry(disk, 0, 1, 0x83, 4096, 2048);
+        setEntry(disk, 0, 2, 0x05, 6144, 6144);
+        setSignature(disk, 0);
+
+        // Extended boot records, the links are relative to the start of the extended partition
+        setEntry(disk, 6144, 0, 0x83, 63, 2000);
+        setEntry(disk, 6144, 1, 0x05, 2048, 4096);
+        setSignature(disk, 6144);
+        setEntry(disk, 8192, 0, 0x83, 63, 2000);
+        setSignature(disk, 8192);
+
+        // Nested table in partition 2
+        setEntry(disk, 4096, 0, 0x83, 64, 1000);
+        setSignature(disk, 4096);
+
+        for (long sector : new long[] {2048, 6144 + 63, 4096 + 64}) {
+            System.arraycopy(MARKER, 0, disk, (int) sector * SECTOR, MARKER.length);
+        }
+        return disk;
+    }
+
+    private static void setEntry(byte[] disk, long tableSector, int slot, int type, long start, long count) {
+        int offset = (int) tableSector * SECTOR + 446 + slot * 16;
+        disk[offset + 4] = (byte) type;
+        LittleEndian.setInt32(disk, offset + 8, (int) start);
+        LittleEndian.setInt32(disk, offset + 12, (int) count);
+    }
+
+    private static void setSignature(byte[] disk, long tableSector) {
+        LittleEndian.setInt16(disk, (int) tableSector * SECTOR + 510, 0xaa55);
+    }
+
+    /**
+     * A type which supports devices starting with {@link #MARKER} and records concurrent creates.
+     */
+    private static class StubType implements FileSystemType<FileSystem<?>> {
+        private final long createMillis;
+        private final AtomicInteger creates = new AtomicInteger();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxConcurrent = new AtomicInteger();
+        private final List<MemoryFileSystem> fileSystems = new CopyOnWriteArrayList<MemoryFileSystem>();
+        private volatile boolean interrupted;
+
+        /**
+         * @param createMillis how long creating takes, or -1 to fail.
+         */
+        StubType(long createMillis) {
+            this.createMillis = createMillis;
+        }
+
+        @Override
+        public String getName() {
+            return "STUB";
+        }
+
+        @Override
+        public FileSystem<?> create(Device device, boolean readOnly) throws FileSystemException {
+            if (createMillis < 0) {
+                throw new FileSystemException("Can't mount");
+            }
+            creates.incrementAndGet();
+            int now = running.incrementAndGet();
+            while (true) {
+                int max = maxConcurrent.get();
+                if (now <= max || maxConcurrent.compareAndSet(max, now)) {
+                    break;
+                }
+            }
+            try {
+                Thread.sleep(createMillis);
+            } catch (InterruptedException e) {
+                interrupted = true;
+                throw new FileSystemException(e);
+            } finally {
+                running.decrementAndGet();
+            }
+            MemoryFileSystem fileSystem = new MemoryFileSystem(readOnly);
+            fileSystems.add(fileSystem);
+            return fileSystem;
+        }
+
+        @Override
+        public boolean supports(PartitionTableEntry pte, byte[] firstSector, FSBlockDeviceAPI devApi) {
+            return firstSector.length >= MARKER.length &&
+                Arrays.equals(Arrays.copyOf(firstSector, MARKER.length), MARKER);
+        }
+    }
+}
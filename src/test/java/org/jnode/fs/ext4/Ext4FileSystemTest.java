@@ -22,11 +22,13 @@ package org.jnode.fs.ext4;
 
 import java.io.File;
 import java.util.Iterator;
+import java.util.List;
 
 import org.jnode.driver.block.FileDevice;
 import org.jnode.fs.DataStructureAsserts;
 import org.jnode.fs.FSDirectory;
 import org.jnode.fs.FSEntry;
+import org.jnode.fs.FSFileExtent;
 import org.jnode.fs.FileSystemTestUtils;
 import org.jnode.fs.ext2.Ext2FileSystem;
 import org.jnode.fs.ext2.Ext2FileSystemType;
@@ -223,6 +225,44 @@ public class Ext4FileSystemTest
         }
     }
 
+    @Test
+    public void testStreamExt4LargeDirectory() throws Exception
+    {
+        File testFile = FileSystemTestUtils.getTestFile("org/jnode/fs/ext4/ext4-large-directory.dd");
+        try (FileDevice device = new FileDevice(testFile, "r"))
+        {
+            Ext2FileSystemType type = fss.getFileSystemType(Ext2FileSystemType.ID);
+            Ext2FileSystem fs = type.create(device, true);
+            fs.setStreamingIteration(true);
+
+            FSDirectory rootDirectory = fs.getRootEntry().getDirectory();
+            FSDirectory largeDirectory = rootDirectory.getEntry("large-directory").getDirectory();
+
+            int childCount = 0;
+            String lastName = null;
+            Iterator<? extends FSEntry> iterator = largeDirectory.iterator();
+            while (iterator.hasNext())
+            {
+                FSEntry entry = iterator.next();
+
+                if (entry.isFile())
+                {
+                    lastName = entry.getName();
+                    childCount++;
+                }
+            }
+
+            assertThat(childCount, is(65001));
+
+            // Lookups still go through the entry table
+            assertThat(largeDirectory.getEntry(lastName).getName(), is(lastName));
+        }
+        finally
+        {
+            testFile.delete();
+        }
+    }
+
     @Test
     public void testReadExt4LargeDirectoryWithIndex() throws Exception
     {
@@ -308,5 +348,102 @@ public class Ext4FileSystemTest
             testFile.delete();
         }
     }
-}
 
+    @Test
+    public void testExtents() throws Exception
+    {
+        File testFile = FileSystemTestUtils.getTestFile("org/jnode/fs/ext4/ext4-64bit.dd");
+        try (FileDevice device = new FileDevice(testFile, "r"))
+        {
+            Ext2FileSystemType type = fss.getFileSystemType(Ext2FileSystemType.ID);
+            Ext2FileSystem fs = type.create(device, true);
+
+            assertThat(DataStructureAsserts.assertAllExtents(fs, device), is(12));
+
+            FSEntry entry = fs.getRootEntry().getDirectory().getEntry("MAINTAINERS");
+            List<FSFileExtent> extents = DataStructureAsserts.assertExtents(entry.getFile(), device);
+            assertThat(extents.get(0).isDirect(), is(true));
+            assertThat(extents.get(0).getDeviceOffset(), is(not(FSFileExtent.NO_DEVICE_OFFSET)));
+        }
+        finally
+        {
+            testFile.delete();
+        }
+    }
+
+    @Test
+    public void testInlineAndSymlinkExtents() throws Exception
+    {
+        File testFile = FileSystemTestUtils.getTestFile("org/jnode/fs/ext4/inline.dd");
+        try (FileDevice device = new FileDevice(testFile, "r"))
+        {
+            Ext2FileSystemType type = fss.getFileSystemType(Ext2FileSystemType.ID);
+            Ext2FileSystem fs = type.create(device, true);
+
+            FSEntry entry = fs.getRootEntry().getDirectory().getEntry("inline.txt");
+            List<FSFileExtent> extents = DataStructureAsserts.assertExtents(entry.getFile(), device);
+            assertThat(extents, contains(new FSFileExtent(0, 31, FSFileExtent.NO_DEVICE_OFFSET, FSFileExtent.INLINE)));
+        }
+        finally
+        {
+            testFile.delete();
+        }
+
+        testFile = FileSystemTestUtils.getTestFile("org/jnode/fs/ext4/test-special-files.ext4");
+        try (FileDevice device = new FileDevice(testFile, "r"))
+        {
+            Ext2FileSystemType type = fss.getFileSystemType(Ext2FileSystemType.ID);
+            Ext2FileSystem fs = type.create(device, true);
+
+            assertThat(DataStructureAsserts.assertAllExtents(fs, device), is(7));
+
+            FSEntry entry = fs.getRootEntry().getDirectory().getEntry("wired-science.jpg");
+            assertThat(DataStructureAsserts.assertExtents(entry.getFile(), device).get(0).isInline(), is(true));
+        }
+        finally
+        {
+            testFile.delete();
+        }
+    }
+
+    @Test
+    public void testBlockMapExtents() throws Exception
+    {
+        File testFile = FileSystemTestUtils.getTestFile("org/jnode/fs/ext4/ext2-block-map.dd");
+        try (FileDevice device = new FileDevice(testFile, "r"))
+        {
+            Ext2FileSystemType type = fss.getFileSystemType(Ext2FileSystemType.ID);
+            Ext2FileSystem fs = type.create(device, true);
+
+            String expectedStructure =
+                "type: EXT2 vol:block-map total:2097152 free:1681408\n" +
+                "  /; \n" +
+                "    lost+found; \n" +
+                "    block-map.bin; 307323; a172cf004a37ffb158a6bfed4f63a6ad\n" +
+                "    sparse.bin; 614400; 8de9df6d4e9998c504aed0cd0f6deca2\n";
+
+            DataStructureAsserts.assertStructure(fs, expectedStructure);
+
+            // The direct blocks, then the blocks after the indirect block, then the blocks after the double indirect
+            // block and its first indirect block
+            FSEntry entry = fs.getRootEntry().getDirectory().getEntry("block-map.bin");
+            assertThat(DataStructureAsserts.assertExtents(entry.getFile(), device), contains(
+                new FSFileExtent(0, 12 * 1024, 90 * 1024, 0),
+                new FSFileExtent(12 * 1024, 256 * 1024, 103 * 1024, 0),
+                new FSFileExtent(268 * 1024, 307323 - 268 * 1024, 361 * 1024, 0)));
+
+            entry = fs.getRootEntry().getDirectory().getEntry("sparse.bin");
+            assertThat(DataStructureAsserts.assertExtents(entry.getFile(), device), contains(
+                new FSFileExtent(0, 5 * 1024, 394 * 1024, 0),
+                new FSFileExtent(5 * 1024, 35 * 1024, FSFileExtent.NO_DEVICE_OFFSET, FSFileExtent.SPARSE),
+                new FSFileExtent(40 * 1024, 3 * 1024, 400 * 1024, 0),
+                new FSFileExtent(43 * 1024, 357 * 1024, FSFileExtent.NO_DEVICE_OFFSET, FSFileExtent.SPARSE),
+                new FSFileExtent(400 * 1024, 1024, 405 * 1024, 0),
+                new FSFileExtent(401 * 1024, 199 * 1024, FSFileExtent.NO_DEVICE_OFFSET, FSFileExtent.SPARSE)));
+        }
+        finally
+        {
+            testFile.delete();
+        }
+    }
+}
@@ -30,6 +30,8 @@ import java.util.List;
 import org.jnode.driver.block.FileDevice;
 import org.jnode.fs.DataStructureAsserts;
 import org.jnode.fs.FSDirectory;
+import org.jnode.fs.FSFile;
+import org.jnode.fs.FSFileExtent;
 import org.jnode.fs.FileSystemTestUtils;
 import org.jnode.fs.hfsplus.attributes.AttributeData;
 import org.jnode.fs.service.FileSystemService;
@@ -432,6 +434,50 @@ public class HfsPlusFileSystemTest
         }
     }
 
+    @Test
+    public void testExtents() throws Exception
+    {
+        File testFile = FileSystemTestUtils.getTestFile("org/jnode/fs/hfsplus/hard-linked-files.dmg");
+        try (FileDevice device = new FileDevice(testFile, "r"))
+        {
+            HfsPlusFileSystemType type = fss.getFileSystemType(HfsPlusFileSystemType.ID);
+            HfsPlusFileSystem fs = type.create(device, true);
+
+            assertThat(DataStructureAsserts.assertAllExtents(fs, device), is(greaterThan(0)));
+
+            // Hard links share the extents of the file they link to
+            FSDirectory root = fs.getRootEntry().getDirectory();
+            List<FSFileExtent> arrest =
+                DataStructureAsserts.assertExtents(root.getEntry("arrest.txt").getFile(), device);
+            List<FSFileExtent> diapers =
+                DataStructureAsserts.assertExtents(root.getEntry("diapers.txt").getFile(), device);
+            assertThat(arrest, hasSize(1));
+            assertThat(arrest.get(0).isDirect(), is(true));
+            assertThat(diapers, is(arrest));
+        }
+        finally
+        {
+            testFile.delete();
+        }
+
+        testFile = FileSystemTestUtils.getTestFile("org/jnode/fs/hfsplus/compressed.dd");
+        try (FileDevice device = new FileDevice(testFile, "r"))
+        {
+            HfsPlusFileSystemType type = fss.getFileSystemType(HfsPlusFileSystemType.ID);
+            HfsPlusFileSystem fs = type.create(device, true);
+
+            HfsPlusFile file = (HfsPlusFile) fs.getRootEntry().getDirectory().getEntry("compression.html").getFile();
+            FSFile resourceFork = file.getStreams().get("rsrc");
+            List<FSFileExtent> extents = DataStructureAsserts.assertExtents(resourceFork, device);
+            assertThat(extents, hasSize(1));
+            assertThat(extents.get(0).getLength(), is(21007L));
+        }
+        finally
+        {
+            testFile.delete();
+        }
+    }
+
     private File createTestFile() throws IOException
     {
         File tempFile = File.createTempFile("testFile", ".tmp");
@@ -0,0 +1,103 @@
+package org.jnode.fs.spi;
+
+import java.io.IOException;
+import org.jnode.driver.block.ByteArrayDevice;
+import org.jnode.fs.FSDirectory;
+import org.jnode.fs.FSEntry;
+import org.jnode.fs.FSFile;
+import org.jnode.fs.FileSystemException;
+import org.jnode.fs.MemoryFileSystem;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link AbstractFileSystem}.
+ */
+public class AbstractFileSystemTest {
+
+    @Test
+    public void testWritableFileSystemKeepsDirectories() throws Exception {
+        StubFileSystem fs = new StubFileSystem(false, 2);
+        FSDirectory[] directories = getDirectories(fs, 10);
+
+        // Nothing is evicted, so each entry keeps a single live directory
+        assertThat(fs.getDirectoryCache().getEvictionCount(), is(0L));
+        for (int i = 0; i < directories.length; i++) {
+            assertThat(fs.getDirectory(fs.memory.resolve("d" + i)), is(sameInstance(directories[i])));
+        }
+    }
+
+    @Test
+    public void testReadOnlyFileSystemBoundsCaches() throws Exception {
+        StubFileSystem fs = new StubFileSystem(true, 2);
+        getDirectories(fs, 10);
+
+        assertThat(fs.getDirectoryCache().size(), is(2));
+        assertThat(fs.getFileCache().getMaximumSize(), is(2));
+
+        fs.setReadOnly(false);
+        assertThat(fs.getDirectoryCache().getMaximumSize(), is(Integer.MAX_VALUE));
+        fs.setReadOnly(true);
+        assertThat(fs.getDirectoryCache().getMaximumSize(), is(2));
+    }
+
+    private static FSDirectory[] getDirectories(StubFileSystem fs, int count) throws IOException {
+        FSDirectory[] directories = new FSDirectory[count];
+        for (int i = 0; i < count; i++) {
+            fs.memory.addFile("d" + i + "/file");
+        }
+        for (int i = 0; i < count; i++) {
+            directories[i] = fs.getDirectory(fs.memory.resolve("d" + i));
+        }
+        return directories;
+    }
+
+    /**
+     * A file system whose directories are those of a {@link MemoryFileSystem}.
+     */
+    static class StubFileSystem extends AbstractFileSystem<FSEntry> {
+        private final MemoryFileSystem memory;
+
+        StubFileSystem(boolean readOnly, int objectCacheSize) throws FileSystemException {
+            super(new ByteArrayDevice(new byte[512]), readOnly, null, objectCacheSize);
+            memory = new MemoryFileSystem(readOnly);
+        }
+
+        @Override
+        protected FSFile createFile(FSEntry entry) throws IOException {
+            return entry.getFile();
+        }
+
+        @Override
+        protected FSDirectory createDirectory(FSEntry entry) throws IOException {
+            return entry.getDirectory();
+        }
+
+        @Override
+        protected FSEntry createRootEntry() {
+            return memory.getRootEntry();
+        }
+
+        @Override
+        public long getTotalSpace() {
+            return 0;
+        }
+
+        @Override
+        public long getFreeSpace() {
+            return 0;
+        }
+
+        @Override
+        public long getUsableSpace() {
+            return 0;
+        }
+
+        @Override
+        public String getVolumeName() {
+            return "stub";
+        }
+    }
+}
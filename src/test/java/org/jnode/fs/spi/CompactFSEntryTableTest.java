@@ -0,0 +1,188 @@
+package org.jnode.fs.spi;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.jnode.fs.FSEntry;
+import org.jnode.fs.MemoryFileSystem;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link CompactFSEntryTable}.
+ */
+public class CompactFSEntryTableTest {
+
+    @Test
+    public void testLookups() {
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        List<FSEntry> entries = createEntries(fs, 5000);
+        entries.add(100, null);
+        CompactFSEntryTable table = new CompactFSEntryTable(null, entries);
+
+        assertThat(table.size(), is(5001));
+        assertThat(table.get(100), is(nullValue()));
+        for (int i = 0; i < 5000; i++) {
+            FSEntry entry = entries.get(i < 100 ? i : i + 1);
+            assertThat(table.get("file" + i), is(sameInstance(entry)));
+            assertThat(table.getById("file" + i), is(sameInstance(entry)));
+        }
+        assertThat(table.get("missing"), is(nullValue()));
+        assertThat(table.getById("missing"), is(nullValue()));
+        assertThat(table.get(null), is(nullValue()));
+    }
+
+    @Test
+    public void testIteratesLikeTheBaseTable() {
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        List<FSEntry> entries = createEntries(fs, 3000);
+        entries.add(0, null);
+        entries.add(null);
+
+        FSEntryTable compact = new CompactFSEntryTable(null, entries);
+        FSEntryTable plain = new FSEntryTable(null, entries);
+        assertThat(toList(compact.iterator()), is(toList(plain.iterator())));
+        assertThat(compact.toList(false), is(plain.toList(false)));
+        assertThat(compact.toList(true), is(plain.toList(true)));
+        assertThat(compact.getEntryNames(), is(plain.getEntryNames()));
+    }
+
+    @Test
+    public void testChanges() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem(false);
+        CompactFSEntryTable table = new CompactFSEntryTable(null, createEntries(fs, 2000));
+
+        assertThat(table.remove("file10"), is(10));
+        assertThat(table.remove("file10"), is(-1));
+        assertThat(table.get("file10"), is(nullValue()));
+        assertThat(table.getById("file10"), is(nullValue()));
+        assertThat(table.get(10), is(nullValue()));
+
+        // The free slot is reused
+        FSEntry added = fs.createFile("added");
+        assertThat(table.setFreeEntry(added), is(10));
+        assertThat(table.get("added"), is(sameInstance(added)));
+        assertThat(table.isDirty(), is(true));
+
+        // Then the table grows
+        FSEntry appended = fs.createFile("appended");
+        assertThat(table.setFreeEntry(appended), is(2000));
+        assertThat(table.size(), is(2001));
+
+        assertThat(table.rename("file20", "renamed"), is(20));
+        assertThat(table.get("file20"), is(nullValue()));
+        assertThat(table.get("renamed").getName(), is("file20"));
+        assertThat(table.rename("missing", "other"), is(-1));
+
+        // Removing many entries leaves the rest reachable
+        for (int i = 1000; i < 2000; i++) {
+            table.remove("file" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            if (i != 10 && i != 20) {
+                assertThat(table.get("file" + i).getName(), is("file" + i));
+            }
+        }
+        assertThat(table.toList(true).size(), is(1001));
+    }
+
+    @Test
+    public void testNormalizesNames() {
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        CompactFSEntryTable table = new CompactFSEntryTable(null, createEntries(fs, 10)) {
+            @Override
+            protected String normalizeName(String name) {
+                return name == null ? null : name.toUpperCase();
+            }
+        };
+
+        assertThat(table.get("FILE3").getName(), is("file3"));
+        assertThat(table.get("File3").getName(), is("file3"));
+    }
+
+    @Test
+    public void testNonAsciiNames() {
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        String[] names = { "caf\u00e9", "\u65e5\u672c\u8a9e.txt", "emoji-\ud83d\ude00", "cafe", "caf\u00e9s" };
+        List<FSEntry> entries = new ArrayList<FSEntry>();
+        for (String name : names) {
+            entries.add(fs.createFile(name));
+        }
+        CompactFSEntryTable table = new CompactFSEntryTable(null, entries);
+
+        for (int i = 0; i < names.length; i++) {
+            assertThat(table.get(names[i]), is(sameInstance(entries.get(i))));
+        }
+        assertThat(table.get("caf\u00e8"), is(nullValue()));
+        assertThat(table.get("emoji-\ud83d"), is(nullValue()));
+        assertThat(table.getEntryNames(), contains(names));
+    }
+
+    @Test
+    public void testCreatesCompactTablesForLargeDirectoriesWhenEnabled() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        AbstractFileSystemTest.StubFileSystem stub = new AbstractFileSystemTest.StubFileSystem(true, 10);
+        List<FSEntry> large = createEntries(fs, CompactFSEntryTable.MIN_ENTRIES);
+        assertThat(FSEntryTable.create(stub, large), is(not(instanceOf(CompactFSEntryTable.class))));
+        assertThat(FSEntryTable.create(null, large), is(not(instanceOf(CompactFSEntryTable.class))));
+
+        stub.setCompactEntryTables(true);
+        assertThat(FSEntryTable.create(stub, createEntries(fs, 10)), is(not(instanceOf(CompactFSEntryTable.class))));
+        assertThat(FSEntryTable.create(stub, large), is(instanceOf(CompactFSEntryTable.class)));
+    }
+
+    @Test
+    public void testSizesNamesToFit() {
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        List<FSEntry> entries = createEntries(fs, 10);
+        entries.add(fs.createFile("caf\u00e9"));
+        entries.add(null);
+        CompactFSEntryTable table = new CompactFSEntryTable(null, entries);
+
+        // Six bytes of record header per name, then "file0" to "file9" and "caf\u00e9" in UTF-8
+        assertThat(table.getNameCapacity(), is(11 * 6 + 10 * 5 + 5));
+    }
+
+    @Test
+    public void testReusesSpaceOfOldNames() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem(false);
+        CompactFSEntryTable table = new CompactFSEntryTable(null, createEntries(fs, 1000));
+        int capacity = table.getNameCapacity();
+
+        for (int i = 0; i < 100000; i++) {
+            String oldName = i == 0 ? "file500" : "renamed" + (i - 1);
+            assertThat(table.rename(oldName, "renamed" + i), is(500));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertThat(table.remove("file7"), is(7));
+            assertThat(table.setFreeEntry(fs.createFile("file7")), is(7));
+        }
+
+        assertThat(table.getNameCapacity(), is(lessThan(capacity * 2)));
+        assertThat(table.get("renamed99999").getName(), is("file500"));
+        for (int i = 0; i < 1000; i++) {
+            if (i != 500) {
+                assertThat(table.get("file" + i).getName(), is("file" + i));
+            }
+        }
+        assertThat(table.getEntryNames().get(500), is("renamed99999"));
+    }
+
+    static List<FSEntry> createEntries(MemoryFileSystem fs, int count) {
+        List<FSEntry> entries = new ArrayList<FSEntry>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(fs.createFile("file" + i));
+        }
+        return entries;
+    }
+
+    private static List<FSEntry> toList(Iterator<FSEntry> iterator) {
+        List<FSEntry> list = new ArrayList<FSEntry>();
+        while (iterator.hasNext()) {
+            list.add(iterator.next());
+        }
+        return list;
+    }
+}
@@ -0,0 +1,86 @@
+package org.jnode.fs.spi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import org.jnode.fs.FSEntry;
+import org.jnode.fs.MemoryFileSystem;
+
+/**
+ * A simple benchmark comparing the memory used by {@link FSEntryTable} and {@link CompactFSEntryTable} for a large
+ * directory, and the time taken to build them, look up every name and iterate them. The entries themselves are
+ * shared by both tables, so only the memory of the tables is counted.
+ * <p>
+ * Usage: {@code FSEntryTableBenchmark [entries]}, by default a million. Run with a heap of a few GB.
+ */
+public class FSEntryTableBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        List<FSEntry> entries = new ArrayList<FSEntry>(count);
+        List<String> names = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(fs.createFile(String.format("message-%08d.eml", i)));
+        }
+
+        // Look up with separate copies of the names, as a lookup string sharing the key's chars, or allocated next to
+        // them, would be unrealistically cheap to compare
+        for (int i = 0; i < count; i++) {
+            names.add(String.format("message-%08d.eml", i));
+        }
+        Collections.shuffle(names, new Random(1));
+
+        for (int round = 0; round < 3; round++) {
+            run("FSEntryTable", false, entries, names);
+            run("CompactFSEntryTable", true, entries, names);
+        }
+    }
+
+    private static void run(String name, boolean compact, List<FSEntry> entries, List<String> names) {
+        long before = usedMemory();
+
+        long start = System.nanoTime();
+        FSEntryTable table = compact ? new CompactFSEntryTable(null, entries) : new FSEntryTable(null, entries);
+        long buildNanos = System.nanoTime() - start;
+
+        long after = usedMemory();
+
+        start = System.nanoTime();
+        int found = 0;
+        for (String entryName : names) {
+            if (table.get(entryName) != null) {
+                found++;
+            }
+        }
+        long lookupNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int iterated = 0;
+        for (Iterator<FSEntry> iterator = table.iterator(); iterator.hasNext(); ) {
+            iterator.next();
+            iterated++;
+        }
+        long iterateNanos = System.nanoTime() - start;
+
+        System.out.printf("%-20s entries:%d found:%d iterated:%d memory:%.1fMB build:%dms lookup:%.0fns/op " +
+                "iterate:%dms%n", name, entries.size(), found, iterated, (after - before) / (1024.0 * 1024.0),
+            buildNanos / 1000000, (double) lookupNanos / names.size(), iterateNanos / 1000000);
+
+        // Keep the table reachable until after the measurements
+        if (table.size() < 0) {
+            System.out.println(table);
+        }
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
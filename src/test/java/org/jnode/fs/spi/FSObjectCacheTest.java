@@ -0,0 +1,199 @@
+package org.jnode.fs.spi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link FSObjectCache}.
+ */
+public class FSObjectCacheTest {
+
+    @Test
+    public void testHitsAndMisses() {
+        FSObjectCache<String, String> cache = new FSObjectCache<String, String>(10);
+        assertThat(cache.get("a"), is(nullValue()));
+        assertThat(cache.add("a", "A"), is("A"));
+        assertThat(cache.get("a"), is("A"));
+        assertThat(cache.get("a"), is("A"));
+
+        assertThat(cache.getHitCount(), is(2L));
+        assertThat(cache.getMissCount(), is(1L));
+        assertThat(cache.getHitRate(), is(closeTo(2.0 / 3, 0.0001)));
+
+        cache.resetStatistics();
+        assertThat(cache.getHitCount(), is(0L));
+        assertThat(cache.getHitRate(), is(0.0));
+    }
+
+    @Test
+    public void testAddKeepsExistingObject() {
+        FSObjectCache<String, String> cache = new FSObjectCache<String, String>(10);
+        cache.add("a", "first");
+        assertThat(cache.add("a", "second"), is("first"));
+        assertThat(cache.get("a"), is("first"));
+        assertThat(cache.size(), is(1));
+    }
+
+    @Test
+    public void testStaysWithinMaximumSize() {
+        final List<Integer> evicted = new ArrayList<Integer>();
+        FSObjectCache<Integer, String> cache = new FSObjectCache<Integer, String>(100);
+        cache.setEvictionListener(new FSObjectCache.EvictionListener<Integer, String>() {
+            @Override
+            public void evicted(Integer key, String value) {
+                assertThat(value, is("v" + key));
+                evicted.add(key);
+            }
+        });
+
+        for (int i = 0; i < 1000; i++) {
+            cache.add(i, "v" + i);
+        }
+        assertThat(cache.size(), is(100));
+        assertThat(cache.getEvictionCount(), is(900L));
+        assertThat(evicted.size(), is(900));
+
+        cache.setMaximumSize(10);
+        assertThat(cache.size(), is(10));
+        assertThat(evicted.size(), is(990));
+    }
+
+    @Test
+    public void testKeepsFrequentlyUsedObjectsDuringScan() {
+        assertThat(scanHitRate(new TinyLfuEvictionPolicy<Integer>()), is(greaterThan(0.9)));
+
+        // Plain LRU loses the directories used again and again to the one-off objects from the scan
+        assertThat(scanHitRate(new LruEvictionPolicy<Integer>()), is(lessThan(0.1)));
+    }
+
+    @Test
+    public void testLruPolicy() {
+        FSObjectCache<Integer, String> cache =
+            new FSObjectCache<Integer, String>(2, new LruEvictionPolicy<Integer>());
+        cache.add(1, "one");
+        cache.add(2, "two");
+        cache.get(1);
+        cache.add(3, "three");
+
+        assertThat(cache.get(1), is("one"));
+        assertThat(cache.get(2), is(nullValue()));
+        assertThat(cache.get(3), is("three"));
+    }
+
+    @Test
+    public void testRemove() {
+        FSObjectCache<Integer, String> cache = new FSObjectCache<Integer, String>(2);
+        cache.add(1, "one");
+        assertThat(cache.remove(1), is("one"));
+        assertThat(cache.remove(1), is(nullValue()));
+
+        cache.add(2, "two");
+        cache.add(3, "three");
+        assertThat(cache.size(), is(2));
+        assertThat(cache.getEvictionCount(), is(0L));
+    }
+
+    @Test
+    public void testUnboundedCacheSkipsPolicy() {
+        final List<String> calls = new ArrayList<String>();
+        FSObjectCache<Integer, String> cache = new FSObjectCache<Integer, String>(FSObjectCache.UNBOUNDED,
+            new LruEvictionPolicy<Integer>() {
+                @Override
+                public void setMaximumSize(int maximumSize) {
+                    calls.add("setMaximumSize " + maximumSize);
+                    super.setMaximumSize(maximumSize);
+                }
+
+                @Override
+                public void recordAccess(Integer key) {
+                    calls.add("recordAccess " + key);
+                    super.recordAccess(key);
+                }
+            });
+
+        for (int i = 0; i < 1000; i++) {
+            cache.add(i, "v" + i);
+            cache.get(i);
+        }
+        assertThat(cache.size(), is(1000));
+        assertThat(calls, is(empty()));
+
+        // Once bounded, the policy is given the cached keys so it can evict them
+        cache.setMaximumSize(10);
+        assertThat(calls, contains("setMaximumSize 10"));
+        assertThat(cache.size(), is(10));
+        assertThat(cache.getEvictionCount(), is(990L));
+
+        cache.setMaximumSize(FSObjectCache.UNBOUNDED);
+        for (int i = 0; i < 1000; i++) {
+            cache.add(i, "v" + i);
+        }
+        assertThat(cache.size(), is(1000));
+        assertThat(cache.getEvictionCount(), is(990L));
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception {
+        final FSObjectCache<Integer, Integer> cache = new FSObjectCache<Integer, Integer>(64);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int thread = 0; thread < 4; thread++) {
+                final int seed = thread;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = 0; i < 20000; i++) {
+                            Integer key = (i * 31 + seed) % 200;
+                            Integer value = cache.get(key);
+                            if (value == null) {
+                                value = cache.add(key, key);
+                            }
+                            assertThat(value, is(key));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(cache.size(), is(lessThanOrEqualTo(64)));
+        assertThat(cache.getHitCount() + cache.getMissCount(), is(80000L));
+    }
+
+    /**
+     * Walks many objects once while using 50 others every now and again, giving the hit rate for the 50.
+     */
+    private static double scanHitRate(EvictionPolicy<Integer> policy) {
+        FSObjectCache<Integer, String> cache = new FSObjectCache<Integer, String>(100, policy);
+        int hits = 0;
+        int lookups = 0;
+        for (int key = 1000; key < 21000; key++) {
+            cache.add(key, "cold");
+            if (key % 100 == 0) {
+                for (int hot = 0; hot < 50; hot++) {
+                    lookups++;
+                    if (cache.get(hot) != null) {
+                        hits++;
+                    } else {
+                        cache.add(hot, "hot");
+                    }
+                }
+            }
+        }
+        return (double) hits / lookups;
+    }
+}
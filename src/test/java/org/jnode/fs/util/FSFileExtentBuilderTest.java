@@ -0,0 +1,80 @@
+package org.jnode.fs.util;
+
+import org.jnode.fs.FSFileExtent;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link FSFileExtentBuilder}.
+ */
+public class FSFileExtentBuilderTest {
+
+    @Test
+    public void testMergesContiguousRuns() {
+        FSFileExtentBuilder builder = new FSFileExtentBuilder(4096);
+        for (int block = 0; block < 4; block++) {
+            builder.add(block * 1024, 1024, 8192 + block * 1024, 0);
+        }
+
+        assertThat(builder.build(), contains(new FSFileExtent(0, 4096, 8192, 0)));
+    }
+
+    @Test
+    public void testSplitsOnDeviceGapsAndFlags() {
+        FSFileExtentBuilder builder = new FSFileExtentBuilder(4096);
+        builder.add(0, 1024, 8192, 0);
+        builder.add(1024, 1024, 20480, 0);
+        builder.add(2048, 1024, 21504, FSFileExtent.UNWRITTEN);
+        builder.add(3072, 1024, 22528, FSFileExtent.UNWRITTEN);
+
+        assertThat(builder.build(), contains(
+            new FSFileExtent(0, 1024, 8192, 0),
+            new FSFileExtent(1024, 1024, 20480, 0),
+            new FSFileExtent(2048, 2048, 21504, FSFileExtent.UNWRITTEN)));
+    }
+
+    @Test
+    public void testFillsHoles() {
+        FSFileExtentBuilder builder = new FSFileExtentBuilder(10000);
+        builder.add(1000, 1000, 50000, 0);
+        builder.add(5000, 1000, 51000, 0);
+
+        assertThat(builder.build(), contains(
+            new FSFileExtent(0, 1000, FSFileExtent.NO_DEVICE_OFFSET, FSFileExtent.SPARSE),
+            new FSFileExtent(1000, 1000, 50000, 0),
+            new FSFileExtent(2000, 3000, FSFileExtent.NO_DEVICE_OFFSET, FSFileExtent.SPARSE),
+            new FSFileExtent(5000, 1000, 51000, 0),
+            new FSFileExtent(6000, 4000, FSFileExtent.NO_DEVICE_OFFSET, FSFileExtent.SPARSE)));
+
+        assertThat(new FSFileExtentBuilder(0).build(), is(empty()));
+        assertThat(new FSFileExtentBuilder(100).build(),
+            contains(new FSFileExtent(0, 100, FSFileExtent.NO_DEVICE_OFFSET, FSFileExtent.SPARSE)));
+    }
+
+    @Test
+    public void testClipsToTheFileAndPreviousRuns() {
+        FSFileExtentBuilder builder = new FSFileExtentBuilder(2500);
+        builder.add(0, 1024, 8192, 0);
+
+        // Overlaps the first run by 24 bytes, then runs past the end of the file
+        builder.add(1000, 2048, 30000, 0);
+        builder.add(3072, 1024, 40000, 0);
+
+        assertThat(builder.build(), contains(
+            new FSFileExtent(0, 1024, 8192, 0),
+            new FSFileExtent(1024, 1476, 30024, 0)));
+    }
+
+    @Test
+    public void testKeepsCompressedUnitsSeparate() {
+        FSFileExtentBuilder builder = new FSFileExtentBuilder(8192);
+        builder.add(0, 4096, 8192, FSFileExtent.COMPRESSED);
+        builder.add(4096, 4096, 12288, FSFileExtent.COMPRESSED);
+
+        assertThat(builder.build(), hasSize(2));
+        assertThat(builder.build().get(1).isCompressed(), is(true));
+        assertThat(builder.build().get(1).isDirect(), is(false));
+    }
+}
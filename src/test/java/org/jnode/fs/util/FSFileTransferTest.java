@@ -0,0 +1,274 @@
+package org.jnode.fs.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.FileChannelDevice;
+import org.jnode.driver.block.FileDevice;
+import org.jnode.driver.block.MappedFileDevice;
+import org.jnode.fs.FSFile;
+import org.jnode.fs.FSFileExtent;
+import org.jnode.fs.FSFileExtents;
+import org.jnode.fs.FileSystem;
+import org.jnode.fs.FileSystemTestUtils;
+import org.jnode.fs.ext2.Ext2FileSystem;
+import org.jnode.fs.ext2.Ext2FileSystemType;
+import org.jnode.fs.service.FileSystemService;
+import org.jnode.partitions.PartitionDevice;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link FSFileTransfer}.
+ */
+public class FSFileTransferTest {
+
+    private FileSystemService fss;
+
+    private File imageFile;
+
+    private File outputFile;
+
+    @Before
+    public void setUp() throws Exception {
+        fss = FileSystemTestUtils.createFSService(Ext2FileSystemType.class.getName());
+        imageFile = FileSystemTestUtils.getTestFile("org/jnode/fs/ext4/ext2-block-map.dd");
+        outputFile = File.createTempFile("fsFileTransfer", ".out");
+    }
+
+    @After
+    public void tearDown() {
+        imageFile.delete();
+        outputFile.delete();
+    }
+
+    @Test
+    public void testTransfersFromFileChannelDevice() throws Exception {
+        try (FileChannelDevice device = new FileChannelDevice(imageFile, "r")) {
+            Ext2FileSystem fs = mount(device);
+            assertTransfer(getFile(fs, "block-map.bin"));
+            assertTransfer(getFile(fs, "sparse.bin"));
+        }
+    }
+
+    @Test
+    public void testTransfersFromMappedFileDevice() throws Exception {
+        try (MappedFileDevice device = new MappedFileDevice(imageFile, "r")) {
+            Ext2FileSystem fs = mount(device);
+            assertTransfer(getFile(fs, "block-map.bin"));
+            assertTransfer(getFile(fs, "sparse.bin"));
+        }
+    }
+
+    @Test
+    public void testTransfersFromPartition() throws Exception {
+        // Put the file system after some junk, so a transfer which ignores the partition's offset would copy the junk
+        byte[] junk = new byte[64 * 1024];
+        Arrays.fill(junk, (byte) 0xff);
+        File diskFile = File.createTempFile("fsFileTransfer", ".img");
+        try {
+            try (FileOutputStream out = new FileOutputStream(diskFile)) {
+                out.write(junk);
+                Files.copy(imageFile.toPath(), out);
+            }
+
+            try (FileChannelDevice device = new FileChannelDevice(diskFile, "r")) {
+                PartitionDevice partition = new PartitionDevice(device, null, junk.length, imageFile.length());
+                Ext2FileSystem fs = mount(partition);
+                assertTransfer(getFile(fs, "block-map.bin"));
+                assertTransfer(getFile(fs, "sparse.bin"));
+            }
+        } finally {
+            diskFile.delete();
+        }
+    }
+
+    @Test
+    public void testTransfersRanges() throws Exception {
+        try (FileChannelDevice device = new FileChannelDevice(imageFile, "r")) {
+            FSFile file = getFile(mount(device), "sparse.bin");
+            byte[] expected = read(file);
+
+            // Starts part way into the first extent and ends part way into the second hole
+            assertRange(file, expected, 4000, 40000);
+            assertRange(file, expected, 5 * 1024, 35 * 1024);
+            assertRange(file, expected, 0, 1);
+
+            // Runs past the end of the file
+            assertRange(file, expected, expected.length - 100, 1000);
+            assertRange(file, expected, expected.length, 1000);
+            assertRange(file, expected, expected.length + 1, 1000);
+        }
+    }
+
+    @Test
+    public void testFallsBackToReadingTheFile() throws Exception {
+        try (FileDevice device = new FileDevice(imageFile, "r")) {
+            Ext2FileSystem fs = mount(device);
+            assertTransfer(getFile(fs, "block-map.bin"));
+            assertTransfer(getFile(fs, "sparse.bin"));
+        }
+    }
+
+    @Test
+    public void testFallsBackWhenTheExtentsAreNotMapped() throws Exception {
+        try (FileChannelDevice device = new FileChannelDevice(imageFile, "r")) {
+            Ext2FileSystem fs = mount(device);
+            assertTransfer(new UnmappedFile(getFile(fs, "block-map.bin")));
+            assertTransfer(new UnmappedFile(getFile(fs, "sparse.bin")));
+        }
+    }
+
+    @Test
+    public void testCopiesWhenTransferMovesNothing() throws Exception {
+        try (FileChannelDevice device = new FileChannelDevice(imageFile, "r")) {
+            FSFile file = getFile(mount(device), "block-map.bin");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            // The first write takes nothing, so the channel's transfer moves nothing
+            assertThat(FSFileTransfer.transferTo(file, new StallingChannel(Channels.newChannel(out), 1)),
+                is(file.getLength()));
+            assertThat(Arrays.equals(out.toByteArray(), read(file)), is(true));
+        }
+    }
+
+    @Test(expected = IOException.class, timeout = 10000)
+    public void testFailsWhenTheTargetTakesNothing() throws Exception {
+        try (FileChannelDevice device = new FileChannelDevice(imageFile, "r")) {
+            FSFile file = getFile(mount(device), "block-map.bin");
+            WritableByteChannel out = Channels.newChannel(new ByteArrayOutputStream());
+            FSFileTransfer.transferTo(file, new StallingChannel(out, Integer.MAX_VALUE));
+        }
+    }
+
+    private Ext2FileSystem mount(Device device) throws Exception {
+        Ext2FileSystemType type = fss.getFileSystemType(Ext2FileSystemType.ID);
+        return type.create(device, true);
+    }
+
+    private static FSFile getFile(Ext2FileSystem fs, String name) throws IOException {
+        return fs.getRootEntry().getDirectory().getEntry(name).getFile();
+    }
+
+    private static byte[] read(FSFile file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) file.getLength());
+        file.read(0, buffer);
+        return buffer.array();
+    }
+
+    private void assertTransfer(FSFile file) throws IOException {
+        try (FileChannel out = new RandomAccessFile(outputFile, "rw").getChannel()) {
+            out.truncate(0);
+            assertThat(FSFileTransfer.transferTo(file, out), is(file.getLength()));
+        }
+
+        assertThat(Arrays.equals(Files.readAllBytes(outputFile.toPath()), read(file)), is(true));
+    }
+
+    private static void assertRange(FSFile file, byte[] expected, int offset, int count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long transferred = FSFileTransfer.transferTo(file, offset, count, Channels.newChannel(out));
+
+        int start = Math.min(offset, expected.length);
+        int end = Math.max(start, Math.min(offset + count, expected.length));
+        assertThat(transferred, is((long) (end - start)));
+        assertThat(Arrays.equals(out.toByteArray(), Arrays.copyOfRange(expected, start, end)), is(true));
+    }
+
+    /**
+     * A channel which takes no bytes for its first few writes, like a non-blocking channel which is full.
+     */
+    private static class StallingChannel implements WritableByteChannel {
+        private final WritableByteChannel channel;
+        private int stalls;
+
+        StallingChannel(WritableByteChannel channel, int stalls) {
+            this.channel = channel;
+            this.stalls = stalls;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (stalls > 0) {
+                stalls--;
+                return 0;
+            }
+            return channel.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * A file whose extents can't be mapped, like an XFS file in the B+tree format.
+     */
+    private static class UnmappedFile implements FSFile, FSFileExtents {
+        private final FSFile file;
+
+        UnmappedFile(FSFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public List<FSFileExtent> getExtents() {
+            return null;
+        }
+
+        @Override
+        public long getLength() {
+            return file.getLength();
+        }
+
+        @Override
+        public void setLength(long length) throws IOException {
+            file.setLength(length);
+        }
+
+        @Override
+        public void read(long fileOffset, ByteBuffer dest) throws IOException {
+            file.read(fileOffset, dest);
+        }
+
+        @Override
+        public void write(long fileOffset, ByteBuffer src) throws IOException {
+            file.write(fileOffset, src);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            file.flush();
+        }
+
+        @Override
+        public boolean isValid() {
+            return file.isValid();
+        }
+
+        @Override
+        public FileSystem<?> getFileSystem() {
+            return file.getFileSystem();
+        }
+    }
+}
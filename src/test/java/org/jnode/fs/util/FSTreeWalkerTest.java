@@ -0,0 +1,186 @@
+package org.jnode.fs.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import org.jnode.fs.FSEntry;
+import org.jnode.fs.MemoryFileSystem;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link FSTreeWalker}.
+ */
+public class FSTreeWalkerTest {
+
+    @Test
+    public void testVisitsEveryEntry() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        List<String> expected = new ArrayList<String>();
+        for (int dir = 0; dir < 20; dir++) {
+            for (int file = 0; file < 10; file++) {
+                String path = "d" + dir + "/sub/f" + file;
+                fs.addFile(path);
+                expected.add("/" + path);
+            }
+        }
+
+        try (FSTreeWalker walker = new FSTreeWalker()) {
+            RecordingVisitor visitor = new RecordingVisitor(null);
+            walker.walk(fs, visitor);
+
+            assertThat(visitor.getFiles(), containsInAnyOrder(expected.toArray()));
+            assertThat(visitor.getDirectories().size(), is(41));
+            assertThat(visitor.getDirectories(), hasItems("/", "/d0", "/d19/sub"));
+        }
+    }
+
+    @Test
+    public void testPrunesDirectories() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        fs.addFile("keep/a.txt");
+        fs.addFile("skip/b.txt");
+        fs.addFile("skip/deeper/c.txt");
+
+        try (FSTreeWalker walker = new FSTreeWalker()) {
+            RecordingVisitor visitor = new RecordingVisitor("/skip");
+            walker.walk(fs, visitor, 1);
+
+            assertThat(visitor.getFiles(), contains("/keep/a.txt"));
+            assertThat(visitor.getDirectories(), containsInAnyOrder("/", "/keep", "/skip"));
+        }
+    }
+
+    @Test
+    public void testWalksLinkedDirectoriesOnce() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        MemoryFileSystem.Entry file = fs.addFile("a/b/c.txt");
+        MemoryFileSystem.Entry b = (MemoryFileSystem.Entry) file.getParent();
+
+        // b links back to the root, so a naive walk would never end
+        fs.addLink(b, fs.getRootEntry());
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try (FSTreeWalker walker = new FSTreeWalker(pool)) {
+            RecordingVisitor visitor = new RecordingVisitor(null);
+            walker.walk(fs, visitor);
+
+            assertThat(visitor.getFiles(), contains("/a/b/c.txt"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testWalksOfOneFileSystemSharePermits() throws Exception {
+        final MemoryFileSystem fs = new MemoryFileSystem(true);
+        for (int dir = 0; dir < 20; dir++) {
+            fs.addFile("d" + dir + "/f");
+        }
+        fs.setIteratorMillis(10);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try (final FSTreeWalker walker = new FSTreeWalker(pool)) {
+            List<Future<?>> walks = new ArrayList<Future<?>>();
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            for (int i = 0; i < 2; i++) {
+                walks.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        walker.walk(fs, new RecordingVisitor(null), 1);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> walk : walks) {
+                walk.get();
+            }
+            executor.shutdown();
+
+            assertThat(fs.getIteratorCount(), is(42));
+            assertThat(fs.getMaxRunningIterators(), is(1));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testLaterWalkDoesNotRaiseLimit() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        for (int dir = 0; dir < 20; dir++) {
+            fs.addFile("d" + dir + "/f");
+        }
+        fs.setIteratorMillis(10);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try (FSTreeWalker walker = new FSTreeWalker(pool)) {
+            walker.walk(fs, new RecordingVisitor(null), 1);
+
+            // A walk with the pool's parallelism keeps the lower limit asked for before
+            walker.walk(fs, new RecordingVisitor(null));
+            assertThat(fs.getIteratorCount(), is(42));
+            assertThat(fs.getMaxRunningIterators(), is(1));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testReportsErrors() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem(true);
+        final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+        RecordingVisitor visitor = new RecordingVisitor(null) {
+            @Override
+            public void visitFailed(FSEntry directory, String path, IOException e) {
+                failed.add(path);
+            }
+        };
+
+        // Reading a file as a directory fails, which is passed to the visitor rather than thrown
+        MemoryFileSystem.Entry notDirectory = fs.addFile("d/e.txt");
+        try (FSTreeWalker walker = new FSTreeWalker()) {
+            walker.walk(notDirectory, "/d/e.txt", visitor, 1);
+        }
+        assertThat(failed, contains("/d/e.txt"));
+    }
+
+    /**
+     * Records the paths visited, skipping one directory.
+     */
+    private static class RecordingVisitor implements FSTreeWalker.Visitor {
+        private final String skip;
+        private final List<String> directories = Collections.synchronizedList(new ArrayList<String>());
+        private final List<String> files = Collections.synchronizedList(new ArrayList<String>());
+
+        RecordingVisitor(String skip) {
+            this.skip = skip;
+        }
+
+        @Override
+        public boolean preVisitDirectory(FSEntry directory, String path) {
+            directories.add(path);
+            return !path.equals(skip);
+        }
+
+        @Override
+        public void visitEntry(FSEntry entry, String path) {
+            files.add(path);
+        }
+
+        List<String> getDirectories() {
+            return directories;
+        }
+
+        List<String> getFiles() {
+            return files;
+        }
+    }
+}
@@ -9,7 +9,11 @@ import org.jnode.fs.DataStructureAsserts;
 import org.jnode.fs.FileSystemTestUtils;
 import org.jnode.fs.*;
 import org.jnode.fs.service.FileSystemService;
+import org.jnode.util.BigEndian;
 
+import org.jnode.fs.xfs.directory.BlockDirectory;
+import org.jnode.fs.xfs.directory.LeafDirectory;
+import org.jnode.fs.xfs.extent.DataExtent;
 import org.jnode.fs.xfs.inode.INode;
 import org.jnode.fs.xfs.inode.INodeV3;
 import org.junit.*;
@@ -258,6 +262,137 @@ public class XfsFileSystemTest {
         }
     }
 
+    @Test
+    public void testExtents() throws Exception {
+        try (FileDevice device = new FileDevice(baseTestFile, "r")) {
+            XfsFileSystemType type = fss.getFileSystemType(XfsFileSystemType.ID);
+            XfsFileSystem fs = type.create(device, true);
+            assertThat(DataStructureAsserts.assertAllExtents(fs, device), is(3));
+        }
+
+        try (FileDevice device = new FileDevice(extendedAttrTestFile, "r")) {
+            XfsFileSystemType type = fss.getFileSystemType(XfsFileSystemType.ID);
+            XfsFileSystem fs = type.create(device, true);
+            assertThat(DataStructureAsserts.assertAllExtents(fs, device), is(5));
+
+            FSFile file = fs.getRootEntry().getDirectory().getEntry("sparse.dat").getFile();
+            List<FSFileExtent> extents = DataStructureAsserts.assertExtents(file, device);
+            assertThat(extents, hasSize(2));
+            assertThat(extents.get(0).isSparse(), is(true));
+            assertThat(extents.get(0).getLength(), is(786432000L));
+            assertThat(extents.get(1).isDirect(), is(true));
+            assertThat(extents.get(1).getLength(), is(46L));
+        }
+    }
+
+    @Test
+    public void testStreamBlockDirectory() throws Exception {
+        try (FileDevice device = new FileDevice(baseTestFile, "r")) {
+            XfsFileSystemType type = fss.getFileSystemType(XfsFileSystemType.ID);
+            XfsFileSystem fs = type.create(device, true);
+            long root = fs.getSuperblock().getRootInode();
+
+            // Entries "first" and "second" with an unused leaf entry between them
+            int blockSize = (int) fs.getSuperblock().getBlockSize();
+            byte[] block = new byte[blockSize];
+            BigEndian.setInt32(block, 0, (int) XfsObject.asciiToHex(fs.isV5() ? "XDB3" : "XD2B"));
+            int offset = fs.isV5() ? BlockDirectory.V5_LENGTH : BlockDirectory.V4_LENGTH;
+            int first = offset;
+            offset += writeDirectoryEntry(block, offset, root, "first", fs.isV5());
+            int second = offset;
+            offset += writeDirectoryEntry(block, offset, root, "second", fs.isV5());
+            writeFreeSpace(block, offset, blockSize - offset - 4 * 8);
+            int leaf = blockSize - 4 * 8;
+            BigEndian.setInt32(block, leaf + 4, first / 8);
+            BigEndian.setInt32(block, leaf + 20, second / 8);
+            BigEndian.setInt32(block, blockSize - 8, 4);
+            BigEndian.setInt32(block, blockSize - 4, 1);
+
+            BlockDirectory directory = new BlockDirectory(block, 0, fs);
+            List<FSEntry> streamed = iteratorToList(directory.iterator(null));
+            assertThat(getNames(streamed), contains("first", "second"));
+            assertThat(getNames(streamed), is(getNames(directory.getEntries(null))));
+        }
+    }
+
+    @Test
+    public void testStreamLeafDirectory() throws Exception {
+        File testFile = FileSystemTestUtils.getTestFile("org/jnode/fs/xfs/test-xfs-1.img");
+        try (FileDevice device = new FileDevice(testFile, "rw")) {
+            XfsFileSystemType type = fss.getFileSystemType(XfsFileSystemType.ID);
+            XfsFileSystem fs = type.create(device, true);
+            Superblock superblock = fs.getSuperblock();
+            long root = superblock.getRootInode();
+            int blockSize = (int) superblock.getBlockSize();
+            long magic = XfsObject.asciiToHex(fs.isV5() ? "XDD3" : "XD2D");
+            int headerLength = fs.isV5() ? 64 : 16;
+
+            // Free blocks at the end of the last allocation group: two data blocks and a block which isn't one,
+            // like the leaf, in one extent, and another data block in a second extent
+            long lastGroup = (superblock.getAGCount() - 1) << superblock.getAGSizeLog2();
+            long startBlock = lastGroup | (superblock.getAGSize() - 8);
+            String[][] names = {{"a", "b"}, {"c"}, {}, {"d", "e"}};
+            for (int i = 0; i < names.length; i++) {
+                byte[] block = new byte[blockSize];
+                if (names[i].length > 0) {
+                    BigEndian.setInt32(block, 0, (int) magic);
+                    int offset = headerLength;
+                    for (String name : names[i]) {
+                        offset += writeDirectoryEntry(block, offset, root, name, fs.isV5());
+                    }
+                    writeFreeSpace(block, offset, blockSize - offset);
+                }
+                long blockOffset = DataExtent.getFileSystemBlockOffset(startBlock + (i == 3 ? 4 : i), fs);
+                device.write(blockOffset, ByteBuffer.wrap(block));
+            }
+
+            List<DataExtent> extents = Arrays.asList(createExtent(0, startBlock, 3), createExtent(8, startBlock + 4, 1));
+            List<FSEntry> streamed = iteratorToList(LeafDirectory.iterator(fs, extents, null));
+            assertThat(getNames(streamed), contains("a", "b", "c", "d", "e"));
+
+            List<FSEntry> loaded = new ArrayList<>();
+            for (DataExtent extent : extents) {
+                LeafDirectory.extractEntriesFromExtent(fs, extent, loaded, null);
+            }
+            assertThat(getNames(streamed), is(getNames(loaded)));
+            for (int i = 0; i < loaded.size(); i++) {
+                assertThat(streamed.get(i).getId(), is(loaded.get(i).getId()));
+            }
+        } finally {
+            testFile.delete();
+        }
+    }
+
+    private static int writeDirectoryEntry(byte[] block, int offset, long inode, String name, boolean v5) {
+        BigEndian.setInt64(block, offset, inode);
+        block[offset + 8] = (byte) name.length();
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, block, offset + 9, nameBytes.length);
+        int length = (12 + name.length() - (v5 ? 0 : 1) + 7) / 8 * 8;
+        BigEndian.setInt16(block, offset + length - 2, offset);
+        return length;
+    }
+
+    private static void writeFreeSpace(byte[] block, int offset, int length) {
+        BigEndian.setInt16(block, offset, 0xffff);
+        BigEndian.setInt16(block, offset + 2, length);
+    }
+
+    private static DataExtent createExtent(long startOffset, long startBlock, int blockCount) {
+        byte[] packed = new byte[DataExtent.PACKED_LENGTH];
+        BigEndian.setInt64(packed, 0, (startOffset << 9) | (startBlock >>> 43));
+        BigEndian.setInt64(packed, 8, (startBlock << 21) | blockCount);
+        return new DataExtent(packed, 0);
+    }
+
+    private static List<String> getNames(List<FSEntry> entries) {
+        List<String> names = new ArrayList<>();
+        for (FSEntry entry : entries) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+
     private Matcher<FSAttribute> getSampleAttributeMatcher() {
         return new BaseMatcher<FSAttribute>() {
             private final Pattern namePattern = Pattern.compile("sample-attr([0-9]+)");
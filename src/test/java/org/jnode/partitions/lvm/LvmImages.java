@@ -0,0 +1,70 @@
+package org.jnode.partitions.lvm;
+
+import java.nio.charset.StandardCharsets;
+import org.jnode.util.LittleEndian;
+
+/**
+ * Builds LVM2 physical volume images for tests.
+ */
+public class LvmImages {
+
+    /**
+     * The offset of the metadata area.
+     */
+    public static final int MDA_OFFSET = 4096;
+
+    /**
+     * The offset of the first extent, {@code pe_start = 2048}.
+     */
+    public static final int DATA_OFFSET = 1024 * 1024;
+
+    /**
+     * Creates a physical volume with its label in sector 1 and one metadata area.
+     *
+     * @param uuid the 32 character UUID of the physical volume.
+     * @param metadata the metadata text.
+     * @param size the size of the image.
+     * @param wrap whether to write the metadata so it wraps around the end of the metadata area.
+     * @return the image.
+     */
+    public static byte[] createPhysicalVolume(String uuid, String metadata, int size, boolean wrap) {
+        byte[] data = new byte[size];
+
+        int label = 512;
+        setAscii(data, label, "LABELONE");
+        LittleEndian.setInt64(data, label + 8, 1);
+        LittleEndian.setInt32(data, label + 20, 32);
+        setAscii(data, label + 24, "LVM2 001");
+
+        int header = label + 32;
+        setAscii(data, header, uuid);
+        LittleEndian.setInt64(data, header + 32, size);
+        LittleEndian.setInt64(data, header + 40, DATA_OFFSET);
+        LittleEndian.setInt64(data, header + 72, MDA_OFFSET);
+        LittleEndian.setInt64(data, header + 80, DATA_OFFSET - MDA_OFFSET);
+
+        int areaSize = DATA_OFFSET - MDA_OFFSET;
+        setAscii(data, MDA_OFFSET + 4, " LVM2 x[5A%r0N*>");
+        LittleEndian.setInt32(data, MDA_OFFSET + 20, 1);
+        LittleEndian.setInt64(data, MDA_OFFSET + 24, MDA_OFFSET);
+        LittleEndian.setInt64(data, MDA_OFFSET + 32, areaSize);
+
+        byte[] text = (metadata + "\0").getBytes(StandardCharsets.US_ASCII);
+        int offset = wrap ? areaSize - text.length / 2 : 512;
+        LittleEndian.setInt64(data, MDA_OFFSET + 40, offset);
+        LittleEndian.setInt64(data, MDA_OFFSET + 48, text.length);
+        for (int i = 0; i < text.length; i++) {
+            int position = offset + i;
+            if (position >= areaSize) {
+                position = position - areaSize + 512;
+            }
+            data[MDA_OFFSET + position] = text[i];
+        }
+        return data;
+    }
+
+    private static void setAscii(byte[] data, int offset, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, data, offset, bytes.length);
+    }
+}
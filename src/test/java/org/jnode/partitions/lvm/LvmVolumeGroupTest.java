@@ -0,0 +1,282 @@
+package org.jnode.partitions.lvm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.jnode.driver.block.ByteArrayDevice;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link LvmVolumeGroup} and {@link LogicalVolumeDevice}.
+ */
+public class LvmVolumeGroupTest {
+
+    private static final String PV0_UUID = "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA0";
+    private static final String PV1_UUID = "BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB1";
+    private static final int EXTENT_SIZE = 4096;
+    private static final int PV_SIZE = LvmImages.DATA_OFFSET + 64 * EXTENT_SIZE;
+
+    /**
+     * The metadata of a group with two physical volumes:
+     * <ul>
+     * <li>linear: extents 0-3 on pv0 from extent 10, then extents 4-7 on pv1 from extent 0</li>
+     * <li>striped: 8 extents over pv0 and pv1 from extent 20, in 1 KiB chunks</li>
+     * <li>small: 2 extents on pv0 from extent 40</li>
+     * <li>pool: a thin pool, which isn't supported</li>
+     * <li>hidden: a linear volume which isn't visible</li>
+     * </ul>
+     */
+    public static final String METADATA = "# Generated by LVM2\n" +
+        "\n" +
+        "vg0 {\n" +
+        "\tid = \"Vg0Vg0-Vg0V-g0Vg-0Vg0-Vg0V-g0Vg-0Vg0Vg\"\n" +
+        "\tseqno = 7\n" +
+        "\tformat = \"lvm2\" # informational\n" +
+        "\tstatus = [\"RESIZEABLE\", \"READ\", \"WRITE\"]\n" +
+        "\textent_size = 8\n" +
+        "\n" +
+        "\tphysical_volumes {\n" +
+        "\t\tpv0 {\n" +
+        "\t\t\tid = \"AAAAAA-AAAA-AAAA-AAAA-AAAA-AAAA-AAAAA0\"\n" +
+        "\t\t\tdevice = \"/dev/sda2\"\n" +
+        "\t\t\tpe_start = 2048\n" +
+        "\t\t\tpe_count = 64\n" +
+        "\t\t}\n" +
+        "\t\tpv1 {\n" +
+        "\t\t\tid = \"BBBBBB-BBBB-BBBB-BBBB-BBBB-BBBB-BBBBB1\"\n" +
+        "\t\t\tdevice = \"/dev/sdb\"\n" +
+        "\t\t\tpe_start = 2048\n" +
+        "\t\t\tpe_count = 64\n" +
+        "\t\t}\n" +
+        "\t}\n" +
+        "\n" +
+        "\tlogical_volumes {\n" +
+        "\t\tlinear {\n" +
+        "\t\t\tstatus = [\"READ\", \"WRITE\", \"VISIBLE\"]\n" +
+        "\t\t\tsegment_count = 2\n" +
+        "\t\t\tsegment1 {\n" +
+        "\t\t\t\tstart_extent = 0\n" +
+        "\t\t\t\textent_count = 4\n" +
+        "\t\t\t\ttype = \"striped\"\n" +
+        "\t\t\t\tstripe_count = 1\n" +
+        "\t\t\t\tstripes = [\n" +
+        "\t\t\t\t\t\"pv0\", 10\n" +
+        "\t\t\t\t]\n" +
+        "\t\t\t}\n" +
+        "\t\t\tsegment2 {\n" +
+        "\t\t\t\tstart_extent = 4\n" +
+        "\t\t\t\textent_count = 4\n" +
+        "\t\t\t\ttype = \"striped\"\n" +
+        "\t\t\t\tstripe_count = 1\n" +
+        "\t\t\t\tstripes = [\n" +
+        "\t\t\t\t\t\"pv1\", 0\n" +
+        "\t\t\t\t]\n" +
+        "\t\t\t}\n" +
+        "\t\t}\n" +
+        "\t\tstriped {\n" +
+        "\t\t\tstatus = [\"READ\", \"WRITE\", \"VISIBLE\"]\n" +
+        "\t\t\tsegment_count = 1\n" +
+        "\t\t\tsegment1 {\n" +
+        "\t\t\t\tstart_extent = 0\n" +
+        "\t\t\t\textent_count = 8\n" +
+        "\t\t\t\ttype = \"striped\"\n" +
+        "\t\t\t\tstripe_count = 2\n" +
+        "\t\t\t\tstripe_size = 2\n" +
+        "\t\t\t\tstripes = [\n" +
+        "\t\t\t\t\t\"pv0\", 20,\n" +
+        "\t\t\t\t\t\"pv1\", 20\n" +
+        "\t\t\t\t]\n" +
+        "\t\t\t}\n" +
+        "\t\t}\n" +
+        "\t\tsmall {\n" +
+        "\t\t\tstatus = [\"READ\", \"WRITE\", \"VISIBLE\"]\n" +
+        "\t\t\tsegment_count = 1\n" +
+        "\t\t\tsegment1 {\n" +
+        "\t\t\t\tstart_extent = 0\n" +
+        "\t\t\t\textent_count = 2\n" +
+        "\t\t\t\ttype = \"striped\"\n" +
+        "\t\t\t\tstripe_count = 1\n" +
+        "\t\t\t\tstripes = [\"pv0\", 40]\n" +
+        "\t\t\t}\n" +
+        "\t\t}\n" +
+        "\t\tpool {\n" +
+        "\t\t\tstatus = [\"READ\", \"WRITE\", \"VISIBLE\"]\n" +
+        "\t\t\tsegment_count = 1\n" +
+        "\t\t\tsegment1 {\n" +
+        "\t\t\t\tstart_extent = 0\n" +
+        "\t\t\t\textent_count = 2\n" +
+        "\t\t\t\ttype = \"thin-pool\"\n" +
+        "\t\t\t}\n" +
+        "\t\t}\n" +
+        "\t\thidden {\n" +
+        "\t\t\tstatus = [\"READ\", \"WRITE\"]\n" +
+        "\t\t\tsegment_count = 1\n" +
+        "\t\t\tsegment1 {\n" +
+        "\t\t\t\tstart_extent = 0\n" +
+        "\t\t\t\textent_count = 1\n" +
+        "\t\t\t\ttype = \"striped\"\n" +
+        "\t\t\t\tstripe_count = 1\n" +
+        "\t\t\t\tstripes = [\"pv0\", 50]\n" +
+        "\t\t\t}\n" +
+        "\t\t}\n" +
+        "\t}\n" +
+        "}\n" +
+        "# Generated by LVM2\n" +
+        "contents = \"Text Format Volume Group\"\n" +
+        "version = 1\n" +
+        "description = \"Created *after* executing 'lvcreate -n \\\"linear\\\"'\"\n" +
+        "creation_time = 1700000000\n";
+
+    @Test
+    public void testReadsPhysicalVolume() throws Exception {
+        LvmPhysicalVolume volume = new LvmPhysicalVolume(new ByteArrayDevice(createPv(0, false)));
+        assertThat(volume.getUuid(), is(PV0_UUID));
+        assertThat(volume.getDeviceSize(), is((long) PV_SIZE));
+        assertThat(volume.getVolumeGroupName(), is("vg0"));
+    }
+
+    @Test
+    public void testReadsWrappedMetadata() throws Exception {
+        LvmPhysicalVolume volume = new LvmPhysicalVolume(new ByteArrayDevice(createPv(1, true)));
+        assertThat(volume.getUuid(), is(PV1_UUID));
+        assertThat(volume.getVolumeGroupName(), is("vg0"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNoLabel() throws Exception {
+        new LvmPhysicalVolume(new ByteArrayDevice(new byte[PV_SIZE]));
+    }
+
+    @Test
+    public void testParsesMetadata() throws Exception {
+        Map<String, Object> root = LvmMetadata.parse(METADATA);
+        assertThat(root.keySet(), contains("vg0", "contents", "version", "description", "creation_time"));
+        assertThat(LvmMetadata.getString(root, "description"),
+            is("Created *after* executing 'lvcreate -n \"linear\"'"));
+
+        Map<String, Object> segment = LvmMetadata.getSection(LvmMetadata.getSection(LvmMetadata.getSection(
+            LvmMetadata.getSection(root, "vg0"), "logical_volumes"), "striped"), "segment1");
+        assertThat(LvmMetadata.getList(segment, "stripes"), contains((Object) "pv0", 20L, "pv1", 20L));
+    }
+
+    @Test
+    public void testAssemblesVolumeGroup() throws Exception {
+        LvmVolumeGroup group = openGroup(createPv(0, false), createPv(1, false));
+
+        assertThat(group.getName(), is("vg0"));
+        assertThat(group.getExtentSize(), is((long) EXTENT_SIZE));
+        assertThat(group.getMissingPhysicalVolumes(), is(empty()));
+        assertThat(names(group.getLogicalVolumes()), contains("linear", "striped", "small"));
+        assertThat(group.getLogicalVolume("linear").getLength(), is(8L * EXTENT_SIZE));
+        assertThat(group.getLogicalVolume("linear").getSegmentCount(), is(2));
+        assertThat(group.getLogicalVolume("pool"), is(nullValue()));
+    }
+
+    @Test
+    public void testReadsLinearVolume() throws Exception {
+        byte[] pv0 = createPv(0, false);
+        byte[] pv1 = createPv(1, false);
+        LogicalVolumeDevice volume = openGroup(pv0, pv1).getLogicalVolume("linear");
+
+        byte[] expected = new byte[8 * EXTENT_SIZE];
+        System.arraycopy(pv0, extentOffset(10), expected, 0, 4 * EXTENT_SIZE);
+        System.arraycopy(pv1, extentOffset(0), expected, 4 * EXTENT_SIZE, 4 * EXTENT_SIZE);
+
+        ByteBuffer all = ByteBuffer.allocate(expected.length);
+        volume.read(0, all);
+        assertThat(all.position(), is(expected.length));
+        assertThat(Arrays.equals(all.array(), expected), is(true));
+
+        // A read crossing the segment boundary, at an offset in the buffer
+        ByteBuffer part = ByteBuffer.allocate(120);
+        part.position(20);
+        volume.read(4 * EXTENT_SIZE - 50, part);
+        assertThat(Arrays.copyOfRange(part.array(), 20, 120),
+            is(Arrays.copyOfRange(expected, 4 * EXTENT_SIZE - 50, 4 * EXTENT_SIZE + 50)));
+        assertThat(part.limit(), is(120));
+    }
+
+    @Test
+    public void testReadsStripedVolume() throws Exception {
+        byte[] pv0 = createPv(0, false);
+        byte[] pv1 = createPv(1, false);
+        LogicalVolumeDevice volume = openGroup(pv0, pv1).getLogicalVolume("striped");
+
+        byte[] expected = new byte[8 * EXTENT_SIZE];
+        for (int i = 0; i < expected.length; i++) {
+            int chunk = i / 1024;
+            byte[] pv = chunk % 2 == 0 ? pv0 : pv1;
+            expected[i] = pv[extentOffset(20) + (chunk / 2) * 1024 + i % 1024];
+        }
+
+        ByteBuffer all = ByteBuffer.allocate(expected.length);
+        volume.read(0, all);
+        assertThat(Arrays.equals(all.array(), expected), is(true));
+
+        ByteBuffer part = ByteBuffer.allocate(3000);
+        volume.read(1000, part);
+        assertThat(part.array(), is(Arrays.copyOfRange(expected, 1000, 4000)));
+    }
+
+    @Test
+    public void testWritesToPhysicalVolumes() throws Exception {
+        byte[] pv0 = createPv(0, false);
+        byte[] pv1 = createPv(1, false);
+        LogicalVolumeDevice volume = openGroup(pv0, pv1).getLogicalVolume("linear");
+
+        byte[] data = new byte[100];
+        Arrays.fill(data, (byte) 0x5a);
+        volume.write(4 * EXTENT_SIZE - 50, ByteBuffer.wrap(data));
+
+        assertThat(Arrays.copyOfRange(pv0, extentOffset(14) - 50, extentOffset(14)), is(Arrays.copyOf(data, 50)));
+        assertThat(Arrays.copyOfRange(pv1, extentOffset(0), extentOffset(0) + 50), is(Arrays.copyOf(data, 50)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadPastEnd() throws Exception {
+        LogicalVolumeDevice volume = openGroup(createPv(0, false), createPv(1, false)).getLogicalVolume("small");
+        volume.read(2 * EXTENT_SIZE - 10, ByteBuffer.allocate(20));
+    }
+
+    @Test
+    public void testMissingPhysicalVolume() throws Exception {
+        LvmVolumeGroup group = openGroup(createPv(0, false));
+        assertThat(group.getMissingPhysicalVolumes(), contains("pv1"));
+        assertThat(names(group.getLogicalVolumes()), contains("small"));
+    }
+
+    static byte[] createPv(int index, boolean wrap) {
+        byte[] data = LvmImages.createPhysicalVolume(index == 0 ? PV0_UUID : PV1_UUID, METADATA, PV_SIZE, wrap);
+        byte[] extents = new byte[PV_SIZE - LvmImages.DATA_OFFSET];
+        new Random(index).nextBytes(extents);
+        System.arraycopy(extents, 0, data, LvmImages.DATA_OFFSET, extents.length);
+        return data;
+    }
+
+    private static LvmVolumeGroup openGroup(byte[]... images) throws IOException {
+        LvmPhysicalVolume[] volumes = new LvmPhysicalVolume[images.length];
+        for (int i = 0; i < images.length; i++) {
+            volumes[i] = new LvmPhysicalVolume(new ByteArrayDevice(images[i]));
+        }
+        return new LvmVolumeGroup(Arrays.asList(volumes));
+    }
+
+    private static int extentOffset(int extent) {
+        return LvmImages.DATA_OFFSET + extent * EXTENT_SIZE;
+    }
+
+    private static List<String> names(List<LogicalVolumeDevice> volumes) {
+        List<String> names = new ArrayList<String>();
+        for (LogicalVolumeDevice volume : volumes) {
+            names.add(volume.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,309 @@
+package org.jnode.partitions.md;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.ByteArrayDevice;
+import org.jnode.util.LittleEndian;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link MdRaidDevice}.
+ */
+public class MdRaidDeviceTest {
+
+    private static final int CHUNK = 4096;
+    private static final int DATA_OFFSET = 8192;
+    private static final int MEMBER_DATA = 64 * CHUNK;
+
+    @Test
+    public void testRaid0() throws Exception {
+        byte[] data = random(3 * MEMBER_DATA, 1);
+        byte[][] members = new byte[3][MEMBER_DATA];
+        for (int chunk = 0; chunk < data.length / CHUNK; chunk++) {
+            System.arraycopy(data, chunk * CHUNK, members[chunk % 3], chunk / 3 * CHUNK, CHUNK);
+        }
+
+        List<ByteArrayDevice> devices = createV1Members(members, 0, 0, 0);
+        try (MdRaidDevice device = new MdRaidDevice(asDevices(devices))) {
+            assertThat(device.getLevel(), is(0));
+            assertThat(device.getLength(), is((long) data.length));
+            assertReads(device, data);
+
+            // The large read went to every member
+            for (ByteArrayDevice member : devices) {
+                assertThat(member.getReadCount(), is(greaterThan(1)));
+            }
+        }
+    }
+
+    @Test
+    public void testRaid1BalancesMirrors() throws Exception {
+        byte[] data = random(MEMBER_DATA, 2);
+        List<ByteArrayDevice> devices = createV1Members(new byte[][] {data, data}, 1, 0, MEMBER_DATA);
+
+        try (MdRaidDevice device = new MdRaidDevice(asDevices(devices))) {
+            assertReads(device, data);
+            int superblockReads = 2;
+            assertThat(devices.get(0).getReadCount(), is(greaterThan(superblockReads)));
+            assertThat(devices.get(1).getReadCount(), is(greaterThan(superblockReads)));
+        }
+    }
+
+    @Test
+    public void testRaid1WithMissingMirror() throws Exception {
+        byte[] data = random(MEMBER_DATA, 3);
+        List<ByteArrayDevice> devices = createV1Members(new byte[][] {data, data}, 1, 0, MEMBER_DATA);
+
+        try (MdRaidDevice device = new MdRaidDevice(asDevices(devices.subList(1, 2)))) {
+            assertThat(device.getMissingMembers(), contains(0));
+            assertReads(device, data);
+        }
+    }
+
+    @Test
+    public void testRaid5LeftSymmetric() throws Exception {
+        byte[] data = random(2 * MEMBER_DATA, 4);
+        byte[][] members = createRaid5(data, 3);
+        List<ByteArrayDevice> devices = createV1Members(members, 5, MdRaidDevice.LAYOUT_LEFT_SYMMETRIC, MEMBER_DATA);
+
+        try (MdRaidDevice device = new MdRaidDevice(asDevices(devices))) {
+            assertThat(device.getLength(), is((long) data.length));
+            assertReads(device, data);
+        }
+    }
+
+    @Test
+    public void testRaid5RebuildsMissingMember() throws Exception {
+        byte[] data = random(3 * MEMBER_DATA, 5);
+        byte[][] members = createRaid5(data, 4);
+        List<ByteArrayDevice> devices = createV1Members(members, 5, MdRaidDevice.LAYOUT_LEFT_SYMMETRIC, MEMBER_DATA);
+
+        for (int missing = 0; missing < 4; missing++) {
+            List<ByteArrayDevice> present = new ArrayList<ByteArrayDevice>(devices);
+            present.remove(missing);
+            try (MdRaidDevice device = new MdRaidDevice(asDevices(present))) {
+                assertThat(device.getMissingMembers(), contains(missing));
+                assertReads(device, data);
+            }
+        }
+    }
+
+    @Test
+    public void testRaid10Near() throws Exception {
+        byte[] data = random(2 * MEMBER_DATA, 6);
+        byte[][] members = new byte[4][MEMBER_DATA];
+        for (int chunk = 0; chunk < data.length / CHUNK; chunk++) {
+            for (int copy = 0; copy < 2; copy++) {
+                int position = chunk * 2 + copy;
+                System.arraycopy(data, chunk * CHUNK, members[position % 4], position / 4 * CHUNK, CHUNK);
+            }
+        }
+        List<ByteArrayDevice> devices = createV1Members(members, 10, 0x102, MEMBER_DATA);
+
+        try (MdRaidDevice device = new MdRaidDevice(asDevices(devices))) {
+            assertThat(device.getLength(), is((long) data.length));
+            assertReads(device, data);
+        }
+
+        // One of each pair of mirrors
+        try (MdRaidDevice device = new MdRaidDevice(asDevices(Arrays.asList(devices.get(1), devices.get(2))))) {
+            assertReads(device, data);
+        }
+    }
+
+    @Test
+    public void testV090Linear() throws Exception {
+        byte[] data = random(3 * 64 * 1024, 7);
+        byte[] first = createV090Member(Arrays.copyOf(data, 64 * 1024), 0, 2);
+        byte[] second = createV090Member(Arrays.copyOfRange(data, 64 * 1024, data.length), 1, 2);
+
+        // Members may be given in any order
+        try (MdRaidDevice device = new MdRaidDevice(asDevices(Arrays.asList(new ByteArrayDevice(second),
+            new ByteArrayDevice(first))))) {
+            assertThat(device.getLevel(), is(MdSuperblock.LEVEL_LINEAR));
+            assertThat(device.getLength(), is((long) data.length));
+            assertReads(device, data);
+        }
+    }
+
+    @Test
+    public void testFailedMemberReadDoesNotInterruptOthers() throws Exception {
+        byte[] data = random(2 * MEMBER_DATA, 8);
+        byte[][] members = new byte[2][MEMBER_DATA];
+        for (int chunk = 0; chunk < data.length / CHUNK; chunk++) {
+            System.arraycopy(data, chunk * CHUNK, members[chunk % 2], chunk / 2 * CHUNK, CHUNK);
+        }
+        List<ByteArrayDevice> devices = createV1Members(members, 0, 0, 0);
+
+        // Once assembled, the first member fails its next read while the second is still reading
+        final AtomicBoolean failing = new AtomicBoolean();
+        final AtomicBoolean slow = new AtomicBoolean();
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final AtomicBoolean slowReadDone = new AtomicBoolean();
+        ByteArrayDevice first = new ByteArrayDevice(devices.get(0).getData()) {
+            @Override
+            public void read(long devOffset, ByteBuffer dest) throws IOException {
+                if (failing.getAndSet(false)) {
+                    throw new IOException("Transient error");
+                }
+                super.read(devOffset, dest);
+            }
+        };
+        ByteArrayDevice second = new ByteArrayDevice(devices.get(1).getData()) {
+            @Override
+            public void read(long devOffset, ByteBuffer dest) throws IOException {
+                if (slow.getAndSet(false)) {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        interrupted.set(true);
+                    }
+                    slowReadDone.set(true);
+                }
+                super.read(devOffset, dest);
+            }
+        };
+
+        try (MdRaidDevice device = new MdRaidDevice(asDevices(Arrays.asList(first, second)))) {
+            failing.set(true);
+            slow.set(true);
+            IOException error = null;
+            try {
+                device.read(0, ByteBuffer.allocate(data.length));
+            } catch (IOException e) {
+                error = e;
+            }
+            assertThat(error, is(notNullValue()));
+            assertThat(error.getMessage(), is("Transient error"));
+            assertThat(interrupted.get(), is(false));
+            assertThat(slowReadDone.get(), is(true));
+
+            // The array is still readable
+            assertReads(device, data);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRaid0WithMissingMember() throws Exception {
+        byte[][] members = new byte[2][MEMBER_DATA];
+        List<ByteArrayDevice> devices = createV1Members(members, 0, 0, 0);
+        new MdRaidDevice(asDevices(devices.subList(0, 1)), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMembersOfDifferentArrays() throws Exception {
+        byte[][] members = new byte[2][MEMBER_DATA];
+        List<ByteArrayDevice> devices = createV1Members(members, 1, 0, MEMBER_DATA);
+        devices.get(1).getData()[4096 + 16] ^= 1;
+        new MdRaidDevice(asDevices(devices), null);
+    }
+
+    private static void assertReads(MdRaidDevice device, byte[] data) throws IOException {
+        ByteBuffer all = ByteBuffer.allocate(data.length);
+        device.read(0, all);
+        assertThat(all.hasRemaining(), is(false));
+        assertThat(Arrays.equals(all.array(), data), is(true));
+
+        // Small reads crossing chunk boundaries, at an offset in the buffer
+        Random random = new Random(data.length);
+        for (int i = 0; i < 50; i++) {
+            int length = 1 + random.nextInt(3 * CHUNK);
+            int offset = random.nextInt(data.length - length);
+            ByteBuffer part = ByteBuffer.allocate(length + 10);
+            part.position(10);
+            device.read(offset, part);
+            assertThat(Arrays.copyOfRange(part.array(), 10, length + 10),
+                is(Arrays.copyOfRange(data, offset, offset + length)));
+        }
+    }
+
+    /**
+     * Lays out data as a left-symmetric RAID5 array.
+     */
+    private static byte[][] createRaid5(byte[] data, int disks) {
+        byte[][] members = new byte[disks][MEMBER_DATA];
+        int rows = data.length / CHUNK / (disks - 1);
+        for (int row = 0; row < rows; row++) {
+            int parity = disks - 1 - row % disks;
+            for (int index = 0; index < disks - 1; index++) {
+                int chunk = row * (disks - 1) + index;
+                int disk = (parity + 1 + index) % disks;
+                System.arraycopy(data, chunk * CHUNK, members[disk], row * CHUNK, CHUNK);
+                for (int i = 0; i < CHUNK; i++) {
+                    members[parity][row * CHUNK + i] ^= data[chunk * CHUNK + i];
+                }
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Creates members with 1.2 superblocks.
+     */
+    private static List<ByteArrayDevice> createV1Members(byte[][] memberData, int level, int layout,
+                                                         long componentSize) {
+        List<ByteArrayDevice> devices = new ArrayList<ByteArrayDevice>();
+        for (int role = 0; role < memberData.length; role++) {
+            byte[] image = new byte[DATA_OFFSET + memberData[role].length];
+            int sb = 4096;
+            LittleEndian.setInt32(image, sb, MdSuperblock.MAGIC);
+            LittleEndian.setInt32(image, sb + 4, 1);
+            Arrays.fill(image, sb + 16, sb + 32, (byte) 0x42);
+            System.arraycopy("test".getBytes(), 0, image, sb + 32, 4);
+            LittleEndian.setInt32(image, sb + 72, level);
+            LittleEndian.setInt32(image, sb + 76, layout);
+            LittleEndian.setInt64(image, sb + 80, componentSize / 512);
+            LittleEndian.setInt32(image, sb + 88, CHUNK / 512);
+            LittleEndian.setInt32(image, sb + 92, memberData.length);
+            LittleEndian.setInt64(image, sb + 128, DATA_OFFSET / 512);
+            LittleEndian.setInt64(image, sb + 136, memberData[role].length / 512);
+            LittleEndian.setInt32(image, sb + 160, role);
+            LittleEndian.setInt64(image, sb + 200, 10);
+            LittleEndian.setInt32(image, sb + 220, memberData.length);
+            for (int i = 0; i < memberData.length; i++) {
+                LittleEndian.setInt16(image, sb + 256 + i * 2, i);
+            }
+            System.arraycopy(memberData[role], 0, image, DATA_OFFSET, memberData[role].length);
+            devices.add(new ByteArrayDevice(image));
+        }
+        return devices;
+    }
+
+    /**
+     * Creates a member of a linear array with a 0.90 superblock after its data.
+     */
+    private static byte[] createV090Member(byte[] data, int role, int disks) {
+        byte[] image = new byte[data.length + 64 * 1024];
+        System.arraycopy(data, 0, image, 0, data.length);
+        int sb = data.length;
+        LittleEndian.setInt32(image, sb, MdSuperblock.MAGIC);
+        LittleEndian.setInt32(image, sb + 8, 90);
+        LittleEndian.setInt32(image, sb + 20, 0x12345678);
+        LittleEndian.setInt32(image, sb + 28, MdSuperblock.LEVEL_LINEAR);
+        LittleEndian.setInt32(image, sb + 32, data.length / 1024);
+        LittleEndian.setInt32(image, sb + 40, disks);
+        LittleEndian.setInt32(image, sb + 156, 3);
+        LittleEndian.setInt32(image, sb + 260, CHUNK);
+        LittleEndian.setInt32(image, sb + 992 * 4 + 12, role);
+        return image;
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static List<Device> asDevices(List<ByteArrayDevice> devices) {
+        return new ArrayList<Device>(devices);
+    }
+}